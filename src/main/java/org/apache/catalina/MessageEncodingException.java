@@ -0,0 +1,15 @@
+package org.apache.catalina;
+
+public class MessageEncodingException extends Exception {
+  public MessageEncodingException(String message, int position) {
+    // XXX: e.g. Unable to encode message: expected ':' at position: 12
+    super(
+        new StringBuilder().
+        append("Unable to encode message: ").
+        append(message).
+        append(" at position: ").
+        append(position).
+        toString()
+    );
+  }
+}
@@ -0,0 +1,134 @@
+package org.apache.catalina.valves;
+
+import java.io.CharArrayWriter;
+import java.nio.ByteBuffer;
+import org.apache.catalina.MessageEncodingException;
+import org.apache.catalina.MessageLengthLimitException;
+import org.apache.catalina.valves.encoder.AccessLogRecord;
+import org.apache.catalina.valves.encoder.MessageEncoder;
+import org.apache.catalina.valves.encoder.Utf8;
+import org.apache.catalina.valves.jfr.AccessLogEvents;
+import org.apache.catalina.valves.transport.Lane;
+import org.apache.catalina.valves.transport.MessageSender;
+import org.apache.tomcat.util.collections.SynchronizedStack;
+
+/**
+ * Encodes rendered access log patterns with a {@link MessageEncoder} and hands them to a {@link
+ * MessageSender}.
+ *
+ * Records and their output buffers are pooled, so a message is encoded straight from the chars of
+ * the pattern writer into a reused buffer without allocating.
+ *
+ * While a Flight Recorder recording is running, the encoding of each entry is timed, see {@link
+ * AccessLogEvents}.
+ */
+public class AccessLogPipeline {
+
+  private final MessageEncoder encoder;
+  private final MessageSender sender;
+  private final byte[] senderId;
+  private final SynchronizedStack<PooledRecord> records = new SynchronizedStack<PooledRecord>();
+
+  public AccessLogPipeline(MessageEncoder encoder, MessageSender sender) {
+    this(encoder, sender, false);
+  }
+
+  /**
+   * @param sequenced whether to stamp messages with the instance id of the sender and its next
+   * sequence number, so receivers can measure loss
+   */
+  public AccessLogPipeline(MessageEncoder encoder, MessageSender sender, boolean sequenced) {
+    this.encoder = encoder;
+    this.sender = sender;
+    this.senderId = sequenced ? Utf8.bytes(sender.getInstanceId()) : null;
+  }
+
+  /**
+   * Encode and send one message.
+   *
+   * @param message the rendered pattern
+   * @param timestamp the time of the entry in milliseconds since the epoch
+   * @param priority the syslog PRI value, facility | severity
+   * @param lane the priority lane of the entry
+   * @param messageLengthLimit maximum length of the encoded message in bytes
+   * @param truncate whether to send longer messages cut at the limit rather than reject them
+   * @return false if the sender dropped the message or failed to send it
+   * @throws MessageEncodingException if the message cannot be represented in the encoder's format
+   * @throws MessageLengthLimitException if the message is longer than the limit and not truncated
+   */
+  public boolean log(CharArrayWriter message, long timestamp, int priority, Lane lane, int messageLengthLimit,
+      boolean truncate) throws MessageEncodingException, MessageLengthLimitException {
+    PooledRecord pooledRecord = this.records.pop();
+    if (pooledRecord == null) {
+      pooledRecord = new PooledRecord();
+    }
+
+    final AccessLogRecord record = pooledRecord.record;
+    try {
+      record.setBody(message);
+      record.setTimestamp(timestamp);
+      record.setPriority(priority);
+      if (this.senderId != null) {
+        record.setSequence(this.senderId, this.sender.nextSequenceId());
+      }
+
+      final ByteBuffer out = pooledRecord.buffer(messageLengthLimit);
+      final Object encodeEvent = AccessLogEvents.beginEncode();
+      final boolean complete;
+      try {
+        complete = this.encoder.encode(record, out);
+      } catch (MessageEncodingException e) {
+        AccessLogEvents.commitEncode(encodeEvent, this.sender.toString(), lane, 0, false, "encodingError");
+        throw e;
+      }
+      AccessLogEvents.endEncode(encodeEvent);
+      if (!complete && !truncate) {
+        AccessLogEvents.commitEncode(encodeEvent, this.sender.toString(), lane, out.position(), false,
+            "messageLengthLimit");
+        throw new MessageLengthLimitException(
+            Utf8.encodedLength(record.getBody(), record.getBodyOffset(), record.getBodyLength()),
+            messageLengthLimit);
+      }
+      out.flip();
+
+      final int bytes = out.remaining();
+      final boolean accepted = this.sender.submit(lane, out);
+      AccessLogEvents.commitEncode(encodeEvent, this.sender.toString(), lane, bytes, !complete,
+          accepted ? null : this.sender.isAsync() ? "queueFull" : "sendFailed");
+      return accepted;
+    } finally {
+      record.clear();
+      this.records.push(pooledRecord);
+    }
+  }
+
+  public MessageEncoder getEncoder() {
+    return encoder;
+  }
+
+  public MessageSender getSender() {
+    return sender;
+  }
+
+  public boolean isSequenced() {
+    return senderId != null;
+  }
+
+  private static final class PooledRecord {
+
+    private final AccessLogRecord record = new AccessLogRecord();
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+    /**
+     * @return the cleared buffer, limited to the message length limit
+     */
+    ByteBuffer buffer(int messageLengthLimit) {
+      if (this.buffer.capacity() < messageLengthLimit) {
+        this.buffer = ByteBuffer.allocate(messageLengthLimit);
+      }
+      this.buffer.clear();
+      this.buffer.limit(messageLengthLimit);
+      return this.buffer;
+    }
+  }
+}
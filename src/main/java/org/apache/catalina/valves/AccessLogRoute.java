@@ -0,0 +1,51 @@
+package org.apache.catalina.valves;
+
+import org.apache.catalina.valves.transport.MessageSender;
+
+/**
+ * Where the entries of a Context or Host go: their syslog priority and the pipeline to their
+ * destination. Routes are compiled once when the valve starts, see {@link
+ * SyslogAccessLogValve#setRoutes(String)}.
+ */
+final class AccessLogRoute {
+
+  private final String match;
+  private final int priority;
+  private final AccessLogPipeline pipeline;
+
+  /**
+   * @param match the Context path or Host name the route applies to
+   * @param priority the syslog PRI value, facility | severity; it indexes the PRI bytes pre-rendered
+   * by the encoders
+   * @param pipeline encodes and sends to the destination of the route
+   */
+  AccessLogRoute(String match, int priority, AccessLogPipeline pipeline) {
+    this.match = match;
+    this.priority = priority;
+    this.pipeline = pipeline;
+  }
+
+  String getMatch() {
+    return match;
+  }
+
+  int getPriority() {
+    return priority;
+  }
+
+  AccessLogPipeline getPipeline() {
+    return pipeline;
+  }
+
+  MessageSender getSender() {
+    return pipeline.getSender();
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().
+        append(this.match).
+        append(" -> <").append(this.priority).append("> ").
+        append(this.pipeline.getSender()).toString();
+  }
+}
@@ -0,0 +1,164 @@
+package org.apache.catalina.valves;
+
+import java.io.CharArrayWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.catalina.valves.transport.LaneQueue;
+import org.apache.catalina.valves.transport.MessageSender;
+
+/**
+ * Decides when a valve logs with its shorter, degraded pattern, so that every request is still
+ * logged, with fewer fields, while the send path is backed up.
+ *
+ * The valve degrades once the async queue of its sender fills beyond a share of its capacity or
+ * the transport takes longer than a threshold to accept a message, and restores its pattern once
+ * both have fallen to lower thresholds; the gap between the thresholds keeps a sender hovering
+ * around one of them from flapping between the patterns. The sender is sampled at most every 100
+ * ms, by whichever request thread logs first.
+ *
+ * The valve switches its pattern in {@link PatternSwitch#switchPattern(boolean)}, before the sample
+ * is published: a thread calling {@link #update(long)} either reads the next check time written
+ * after the switch, or waits for the sampling thread's lock, so it renders with the new pattern
+ * once the switch is done, even though the pattern is a plain field.
+ */
+final class LoadShedding {
+
+  static final long CHECK_INTERVAL_MILLIS = 100;
+
+  private static final String MARKER_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+
+  private final MessageSender sender;
+  private final PatternSwitch patternSwitch;
+  private final int degradeQueueDepth;
+  private final int restoreQueueDepth;
+  private final long degradeSendLatencyNanos;
+  private final long restoreSendLatencyNanos;
+
+  private volatile boolean degraded;
+  private volatile long nextCheckMillis;
+  // XXX: last sample, guarded by this
+  private int queueDepth;
+  private long sendLatencyNanos;
+
+  private final AtomicLong degradations = new AtomicLong();
+
+  /**
+   * @param sender the sender whose queue and latency are sampled
+   * @param degradeQueueDepth percentage of the queue capacity from which to degrade
+   * @param restoreQueueDepth percentage of the queue capacity up to which to restore
+   * @param degradeSendLatencyMillis send latency from which to degrade
+   * @param restoreSendLatencyMillis send latency up to which to restore
+   * @param patternSwitch switches the pattern of the valve when the mode changes
+   */
+  LoadShedding(MessageSender sender, int degradeQueueDepth, int restoreQueueDepth, long degradeSendLatencyMillis,
+      long restoreSendLatencyMillis, PatternSwitch patternSwitch) {
+    if (restoreQueueDepth > degradeQueueDepth || restoreSendLatencyMillis > degradeSendLatencyMillis) {
+      throw new IllegalArgumentException("Restore thresholds must not exceed degrade thresholds, were: "
+          + restoreQueueDepth + "% > " + degradeQueueDepth + "% or "
+          + restoreSendLatencyMillis + " ms > " + degradeSendLatencyMillis + " ms");
+    }
+    this.sender = sender;
+    this.patternSwitch = patternSwitch;
+    this.degradeQueueDepth = degradeQueueDepth;
+    this.restoreQueueDepth = restoreQueueDepth;
+    this.degradeSendLatencyNanos = TimeUnit.MILLISECONDS.toNanos(degradeSendLatencyMillis);
+    this.restoreSendLatencyNanos = TimeUnit.MILLISECONDS.toNanos(restoreSendLatencyMillis);
+  }
+
+  /**
+   * Sample the sender if the last sample is older than the check interval, and switch modes and
+   * patterns if a threshold was crossed.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   * @return true if this call switched the mode, see {@link #isDegraded()}
+   */
+  boolean update(long now) {
+    if (now < this.nextCheckMillis) {
+      return false;
+    }
+    synchronized (this) {
+      if (now < this.nextCheckMillis) {
+        return false;
+      }
+      final LaneQueue laneQueue = this.sender.getLaneQueue();
+      this.queueDepth = laneQueue == null ? 0 : (int) (100L * laneQueue.size() / laneQueue.getCapacity());
+      this.sendLatencyNanos = this.sender.getSendLatencyNanos();
+
+      final boolean overloaded = this.degraded
+          ? this.queueDepth > this.restoreQueueDepth || this.sendLatencyNanos > this.restoreSendLatencyNanos
+          : this.queueDepth >= this.degradeQueueDepth || this.sendLatencyNanos >= this.degradeSendLatencyNanos;
+      final boolean switched = overloaded != this.degraded;
+      if (switched) {
+        this.patternSwitch.switchPattern(overloaded);
+        this.degraded = overloaded;
+        if (overloaded) {
+          this.degradations.incrementAndGet();
+        }
+      }
+      // XXX: written last, publishes the pattern to the threads not taking the lock
+      this.nextCheckMillis = now + CHECK_INTERVAL_MILLIS;
+      return switched;
+    }
+  }
+
+  boolean isDegraded() {
+    return degraded;
+  }
+
+  /**
+   * Number of times the degraded pattern was switched to.
+   */
+  long getDegradations() {
+    return degradations.get();
+  }
+
+  /**
+   * Render the marker logged when the mode changes: a JSON object for JSON body formats, else a line
+   * of text.
+   *
+   * @param timestamp the time of the change, in milliseconds since the epoch
+   */
+  synchronized void writeMarker(CharArrayWriter out, boolean json, long timestamp) {
+    final String mode = this.degraded ? "degraded" : "restored";
+    final long sendLatencyMillis = TimeUnit.NANOSECONDS.toMillis(this.sendLatencyNanos);
+    if (json) {
+      out.append("{\"@timestamp\":\"").
+          append(new SimpleDateFormat(MARKER_DATE_FORMAT, Locale.US).format(new Date(timestamp))).
+          append("\",\"type\":\"tomcataccess_mode\",\"mode\":\"").append(mode).
+          append("\",\"queue_depth\":").append(Integer.toString(this.queueDepth)).
+          append(",\"send_latency_ms\":").append(Long.toString(sendLatencyMillis)).
+          append('}');
+    } else {
+      out.append("Access log pattern ").append(mode).
+          append(": queue depth ").append(Integer.toString(this.queueDepth)).
+          append("%, send latency ").append(Long.toString(sendLatencyMillis)).append(" ms");
+    }
+  }
+
+  /**
+   * Mode and last sample, e.g. {@code mode=degraded, queueDepth=83%, sendLatency=12ms, degradations=3}
+   */
+  synchronized String getStatistics() {
+    return new StringBuilder().
+        append("mode=").append(this.degraded ? "degraded" : "normal").
+        append(", queueDepth=").append(this.queueDepth).append('%').
+        append(", sendLatency=").append(TimeUnit.NANOSECONDS.toMillis(this.sendLatencyNanos)).append("ms").
+        append(", degradations=").append(getDegradations()).toString();
+  }
+
+  /**
+   * Switches a valve between its pattern and its degraded pattern.
+   */
+  interface PatternSwitch {
+
+    /**
+     * Called by the sampling thread, under the lock, before the new mode is published.
+     *
+     * @param degraded true to log with the degraded pattern
+     */
+    void switchPattern(boolean degraded);
+  }
+}
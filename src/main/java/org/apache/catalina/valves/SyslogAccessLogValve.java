@@ -22,19 +22,39 @@ package org.apache.catalina.valves;
 
 
 import java.io.CharArrayWriter;
+import java.io.File;
 import java.io.IOException;
-import java.lang.management.ManagementFactory;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.net.SocketException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Host;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.MessageEncodingException;
+import org.apache.catalina.MessageLengthLimitException;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.util.LifecycleSupport;
+import org.apache.catalina.valves.encoder.MessageEncoder;
+import org.apache.catalina.valves.encoder.EncodedValueCache;
+import org.apache.catalina.valves.encoder.MessageEncoders;
+import org.apache.catalina.valves.transport.BatchingUdpTransport;
+import org.apache.catalina.valves.transport.Lane;
+import org.apache.catalina.valves.transport.MessageSender;
+import org.apache.catalina.valves.transport.RelpTransport;
+import org.apache.catalina.valves.transport.RingFileReader;
+import org.apache.catalina.valves.transport.RingFileTransport;
+import org.apache.catalina.valves.transport.SenderRegistry;
+import org.apache.catalina.valves.transport.TlsTransport;
+import org.apache.catalina.valves.transport.Transport;
+import org.apache.catalina.valves.transport.UdpTransport;
 //import org.apache.catalina.util.StringManager;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -51,9 +71,30 @@ import org.apache.juli.logging.LogFactory;
  *          hostname="<i>syslog_host</i>"      <!-- defaults to localhost -->
  *          facility="<i>syslog_facility</i>"   <!-- defaults to LOG_USER -->
  *          level="<i>level</i>"               <!-- defaults to LOG_INFO -->
- *          level="<i>header</i>"              <!-- defaults to true -->
+ *          header="<i>header</i>"             <!-- defaults to true -->
+ *          format="<i>format</i>"             <!-- defaults to rfc5424 -->
  *          pattern="combined"
  *          resolveHosts="false"
+ *          async="false"                  <!-- defaults to false -->
+ *          queueCapacity="1024"           <!-- defaults to 1024 -->
+ *          slowRequestThreshold="1000"    <!-- defaults to 1000 ms -->
+ *          valueCacheSize="0"             <!-- defaults to 0, disabled -->
+ *          sequenceNumbers="false"        <!-- defaults to false -->
+ *          routes="/payments=local3.info@collector:514, static.example.com=local7.notice"
+ *          protocol="udp"                 <!-- defaults to udp, or tls, relp, file -->
+ *          trustStore="<i>path</i>"          <!-- defaults to the JVM's -->
+ *          trustStorePassword="<i>password</i>"
+ *          keyStore="<i>path</i>"            <!-- for client certificates -->
+ *          keyStorePassword="<i>password</i>"
+ *          relpWindowSize="128"           <!-- defaults to 128 -->
+ *          udpBatching="false"            <!-- defaults to false -->
+ *          ringFile="<i>path</i>"            <!-- with protocol file -->
+ *          ringFileSize="16777216"        <!-- defaults to 16 MiB -->
+ *          degradedPattern="%h %t &quot;%r&quot; %s %b"  <!-- disabled by default -->
+ *          degradeQueueDepth="75"         <!-- defaults to 75 % -->
+ *          restoreQueueDepth="25"         <!-- defaults to 25 % -->
+ *          degradeSendLatency="50"        <!-- defaults to 50 ms -->
+ *          restoreSendLatency="5"         <!-- defaults to 5 ms -->
  *      /&gt;
  * </pre>
  * </p>
@@ -64,9 +105,87 @@ import org.apache.juli.logging.LogFactory;
  * <code>resolveHosts</code> and <code>pattern</code>.
  * </p>
  * <p>
+ * The <code>format</code> selects the wire format: <code>rfc5424</code> or
+ * <code>rfc3164</code> syslog framing, optionally carrying a body format, e.g.
+ * <code>rfc5424+json</code> or <code>rfc3164+cef</code>, or a bare
+ * <code>text</code>, <code>json</code> or <code>cef</code> body; see
+ * {@link MessageEncoders}.
+ * </p>
+ * <p>
+ * With <code>async</code> enabled, messages are queued and sent by a
+ * background thread. The queue has one lane per {@link Lane}: server errors
+ * and requests slower than <code>slowRequestThreshold</code> go first and are
+ * never shed in favour of fast successful requests.
+ * </p>
+ * <p>
+ * With a <code>valueCacheSize</code>, the <code>json</code> body format keeps
+ * the encoding of up to that many repeating field values, see
+ * {@link EncodedValueCache}.
+ * </p>
+ * <p>
+ * With <code>sequenceNumbers</code> enabled, every message carries the id of
+ * its sender and a sequence number in an RFC 5424 structured data element,
+ * <code>[sequence@32473 senderId="..." sequenceId="..."]</code>, so that
+ * collectors can measure UDP loss, see
+ * {@link org.apache.catalina.valves.receiver.LossReceiver}.
+ * </p>
+ * <p>
+ * The <code>routes</code> send the entries of some Contexts or Hosts with
+ * another facility, level or destination: a comma separated list of
+ * <code>match=facility[.level][@host[:port]]</code>, where a match starting
+ * with '/' is a Context path ('/' for the ROOT context) and any other match a
+ * Host name, and an IPv6 host followed by a port is bracketed, e.g.
+ * <code>@[::1]:514</code>. A Context route wins over a Host route; entries
+ * no route matches use <code>facility</code>, <code>level</code>,
+ * <code>hostname</code> and <code>port</code>. Routes are compiled into
+ * lookup tables when the valve starts.
+ * </p>
+ * <p>
+ * With <code>protocol</code> "tls", messages are sent over persistent TLS
+ * connections as of RFC 5425, usually to port 6514, verifying the
+ * collector's certificate against <code>trustStore</code>; see
+ * {@link TlsTransport}. Reconnects resume the TLS session, and with
+ * <code>async</code> enabled the messages of a burst are coalesced into
+ * full TLS records.
+ * </p>
+ * <p>
+ * With <code>protocol</code> "relp", messages are sent to an rsyslog
+ * collector with RELP, usually on port 2514, which acknowledges every
+ * message. Up to <code>relpWindowSize</code> messages are sent ahead of
+ * their acknowledgements; messages unacknowledged when the connection fails
+ * are retransmitted once it is reopened, see {@link RelpTransport}.
+ * </p>
+ * <p>
+ * With <code>udpBatching</code> enabled, UDP datagrams are sent from a
+ * socket connected to the collector, and with <code>async</code> enabled
+ * the datagrams of a burst are handed to the kernel in one sendmmsg(2)
+ * call on 64-bit Linux with Java 21 or later, see
+ * {@link BatchingUdpTransport}.
+ * </p>
+ * <p>
+ * With <code>protocol</code> "file", messages are appended to the
+ * memory-mapped ring file <code>ringFile</code> of
+ * <code>ringFileSize</code> bytes, for a log shipper on the same host to
+ * tail without a system call per message; see {@link RingFileTransport}
+ * and {@link RingFileReader}. Once the ring is full, the oldest messages
+ * are overwritten; <code>transportStatistics</code> reports how far the
+ * reader is behind.
+ * </p>
+ * <p>
+ * With a <code>degradedPattern</code>, the valve logs with that shorter
+ * pattern while its send path is overloaded, rather than losing whole
+ * entries: from the moment the async queue holds
+ * <code>degradeQueueDepth</code> percent of its capacity or sending takes
+ * <code>degradeSendLatency</code> milliseconds, until both have fallen to
+ * <code>restoreQueueDepth</code> and <code>restoreSendLatency</code>. Every
+ * change of pattern is logged as a marker message, see
+ * {@link LoadShedding}.
+ * </p>
+ * <p>
  * This logger can be used at the level of the Engine context (being shared
  * by all the defined hosts) or the Host context (one instance of the logger 
- * per host).
+ * per host). Instances logging to the same destination share one socket,
+ * queue and sender thread, see {@link SenderRegistry}.
  * </p>
  * <p>
  * <i>TO DO: provide option for excluding logging of certain MIME types.</i>
@@ -75,7 +194,7 @@ import org.apache.juli.logging.LogFactory;
  * @author Marco Walther
  */
 
-public final class SyslogAccessLogValve extends AccessLogValve {
+public class SyslogAccessLogValve extends AccessLogValve {
     // The following constants are extracted from a syslog.h file
     // copyrighted by the Regents of the University of California
     // I hope nobody at Berkley gets offended.
@@ -169,6 +288,18 @@ public final class SyslogAccessLogValve extends AccessLogValve {
 
     private static Log log = LogFactory.getLog(SyslogAccessLogValve.class);
 
+    /**
+     * Lane of the entry being logged by the current thread, see
+     * {@link #log(Request, Response, long)}.
+     */
+    private static final ThreadLocal<Lane> currentLane = new ThreadLocal<Lane>();
+
+    /**
+     * Route of the entry being logged by the current thread, null for the
+     * default priority and destination.
+     */
+    private static final ThreadLocal<AccessLogRoute> currentRoute = new ThreadLocal<AccessLogRoute>();
+
 
     private String hostname = null;
     private int facility = LOG_USER;
@@ -177,7 +308,66 @@ public final class SyslogAccessLogValve extends AccessLogValve {
 
     private InetAddress address;
     private int port = 514;
-    private DatagramSocket ds;
+    private MessageSender sender;
+    private AccessLogPipeline pipeline;
+
+    /**
+     * Wire format of the messages, see {@link MessageEncoders}.
+     */
+    private String format = MessageEncoders.RFC5424;
+
+    /**
+     * If true, messages are queued and sent by a background thread.
+     */
+    private boolean async = false;
+    private int queueCapacity = 1024;
+    private long slowRequestThreshold = 1000;
+
+    /**
+     * Max number of encoded field values cached, 0 to disable the cache.
+     */
+    private int valueCacheSize = 0;
+    private EncodedValueCache valueCache;
+
+    /**
+     * If true, messages are stamped with the sender id and a sequence number.
+     */
+    private boolean sequenceNumbers = false;
+
+    /**
+     * Routes by Context path or Host name, compiled by open().
+     */
+    private String routes = null;
+    private Map<String, AccessLogRoute> routesByContextPath = null;
+    private Map<String, AccessLogRoute> routesByHostName = null;
+
+    /**
+     * Transport of the messages, "udp", "tls" or "relp"; the TLS connections
+     * of the valve share one socket factory and thus its session cache.
+     */
+    private String protocol = "udp";
+    private int relpWindowSize = 128;
+    private boolean udpBatching = false;
+    private String ringFile = null;
+    private int ringFileSize = RingFileTransport.DEFAULT_CAPACITY;
+    private String keyStore = null;
+    private String keyStorePassword = null;
+    private String trustStore = null;
+    private String trustStorePassword = null;
+    private SSLSocketFactory socketFactory;
+
+    /**
+     * Shorter pattern logged with while the send path is overloaded, null
+     * to disable; the log elements of both patterns are compiled by open().
+     */
+    private String degradedPattern = null;
+    private int degradeQueueDepth = 75;
+    private int restoreQueueDepth = 25;
+    private long degradeSendLatency = 50;
+    private long restoreSendLatency = 5;
+    private LoadShedding loadShedding;
+    private AccessLogElement[] normalElements;
+    private AccessLogElement[] degradedElements;
     
     /**
      * Max lengths in bytes of a message. Per RFC 5424, size limits are dictated
@@ -193,10 +383,6 @@ public final class SyslogAccessLogValve extends AccessLogValve {
      * part of the syslog packet.
      */
     private boolean header = true;
-    /**
-     * Date format used if header = true.
-     */
-    private final SimpleDateFormat dateFormat = new SimpleDateFormat("1 yyyy-MM-dd'T'HH:mm:ss.SSS'Z' ");
     /**
      * Host name used to identify messages from this appender.
      */
@@ -365,39 +551,767 @@ public final class SyslogAccessLogValve extends AccessLogValve {
         this.resolveHosts = new Boolean(resolveHosts).booleanValue();
     }
 
+    /**
+     * Gets the value of format
+     *
+     * @return the value of format
+     */
+    public String getFormat() {
+	return this.format;
+    }
+
+    /**
+     * Sets the wire format of the messages, e.g. "rfc5424", "rfc3164",
+     * "rfc5424+json" or "cef"
+     *
+     * @param argFormat Value to assign to this.format
+     */
+    public void setFormat(String argFormat) {
+        this.format = argFormat;
+    }
+
+    /**
+     * Gets the value of async
+     *
+     * @return the value of async
+     */
+    public boolean isAsync() {
+	return this.async;
+    }
+
+    /**
+     * Determines whether messages are queued and sent by a background
+     * thread instead of the request thread.
+     *
+     * @param argAsync "true" or "false"
+     */
+    public void setAsync(String argAsync) {
+        this.async = Boolean.parseBoolean(argAsync);
+    }
+
+    /**
+     * Gets the number of messages the async queue can hold
+     *
+     * @return the number of messages the async queue can hold
+     */
+    public int getQueueCapacity() {
+	return this.queueCapacity;
+    }
+
+    /**
+     * Sets the number of messages the async queue can hold, shared by all
+     * of its lanes
+     *
+     * @param argQueueCapacity Value to assign to this.queueCapacity
+     */
+    public void setQueueCapacity(String argQueueCapacity) {
+        this.queueCapacity = Integer.parseInt(argQueueCapacity);
+    }
+
+    /**
+     * Gets the time in milliseconds from which a request is queued in the
+     * high priority lane
+     *
+     * @return the slow request threshold in milliseconds
+     */
+    public long getSlowRequestThreshold() {
+	return this.slowRequestThreshold;
+    }
+
+    /**
+     * Sets the time in milliseconds from which a request is queued in the
+     * high priority lane, like server errors
+     *
+     * @param argSlowRequestThreshold Value to assign to this.slowRequestThreshold
+     */
+    public void setSlowRequestThreshold(String argSlowRequestThreshold) {
+        this.slowRequestThreshold = Long.parseLong(argSlowRequestThreshold);
+    }
+
+    /**
+     * Gets the max number of encoded field values cached
+     *
+     * @return the value cache size, 0 if disabled
+     */
+    public int getValueCacheSize() {
+	return this.valueCacheSize;
+    }
+
+    /**
+     * Sets the max number of encoded field values cached, 0 to disable
+     * the cache
+     *
+     * @param argValueCacheSize Value to assign to this.valueCacheSize
+     */
+    public void setValueCacheSize(String argValueCacheSize) {
+        this.valueCacheSize = Integer.parseInt(argValueCacheSize);
+    }
+
+    /**
+     * Gets whether messages are stamped with the sender id and a sequence
+     * number
+     *
+     * @return true if messages carry sequence numbers
+     */
+    public boolean getSequenceNumbers() {
+	return this.sequenceNumbers;
+    }
+
+    /**
+     * Sets whether messages are stamped with the sender id and a sequence
+     * number, in the RFC 5424 structured data or the JSON body
+     *
+     * @param argSequenceNumbers Value to assign to this.sequenceNumbers
+     */
+    public void setSequenceNumbers(String argSequenceNumbers) {
+        this.sequenceNumbers = Boolean.parseBoolean(argSequenceNumbers);
+    }
+
+    /**
+     * Gets the routes by Context path or Host name
+     *
+     * @return the routes, null if none
+     */
+    public String getRoutes() {
+	return this.routes;
+    }
+
+    /**
+     * Sets the routes by Context path or Host name, a comma separated list
+     * of <code>match=facility[.level][@host[:port]]</code>
+     *
+     * @param argRoutes Value to assign to this.routes
+     */
+    public void setRoutes(String argRoutes) {
+        this.routes = argRoutes;
+    }
+
+    /**
+     * Gets the transport of the messages
+     *
+     * @return "udp", "tls", "relp" or "file"
+     */
+    public String getProtocol() {
+	return this.protocol;
+    }
+
+    /**
+     * Sets the transport of the messages, "udp", "tls" (RFC 5425), "relp"
+     * or "file", a memory-mapped ring file
+     *
+     * @param argProtocol Value to assign to this.protocol
+     */
+    public void setProtocol(String argProtocol) {
+        this.protocol = argProtocol.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Gets the number of RELP messages sent ahead of their acknowledgements
+     *
+     * @return the RELP window size
+     */
+    public int getRelpWindowSize() {
+	return this.relpWindowSize;
+    }
+
+    /**
+     * Sets the number of RELP messages sent ahead of their acknowledgements;
+     * once that many are unacknowledged, sending waits for the collector
+     *
+     * @param argRelpWindowSize Value to assign to this.relpWindowSize
+     */
+    public void setRelpWindowSize(String argRelpWindowSize) {
+        this.relpWindowSize = Integer.parseInt(argRelpWindowSize);
+    }
+
+    /**
+     * Gets whether UDP datagrams are sent in batches from a connected
+     * socket
+     *
+     * @return true if UDP datagrams are batched
+     */
+    public boolean getUdpBatching() {
+	return this.udpBatching;
+    }
+
+    /**
+     * Sets whether UDP datagrams are sent in batches from a socket
+     * connected to the collector, rather than one by one to its address
+     *
+     * @param argUdpBatching Value to assign to this.udpBatching
+     */
+    public void setUdpBatching(String argUdpBatching) {
+        this.udpBatching = Boolean.parseBoolean(argUdpBatching);
+    }
+
+    /**
+     * Gets the ring file messages are appended to with protocol "file"
+     *
+     * @return the path of the ring file
+     */
+    public String getRingFile() {
+	return this.ringFile;
+    }
+
+    /**
+     * Sets the memory-mapped ring file messages are appended to with
+     * protocol "file", created if it does not exist
+     *
+     * @param argRingFile Value to assign to this.ringFile
+     */
+    public void setRingFile(String argRingFile) {
+        this.ringFile = argRingFile;
+    }
+
+    /**
+     * Gets the size of the ring of the ring file
+     *
+     * @return the ring size in bytes
+     */
+    public int getRingFileSize() {
+	return this.ringFileSize;
+    }
+
+    /**
+     * Sets the size of the ring of the ring file in bytes; once it is
+     * full, the oldest messages are overwritten
+     *
+     * @param argRingFileSize Value to assign to this.ringFileSize
+     */
+    public void setRingFileSize(String argRingFileSize) {
+        this.ringFileSize = Integer.parseInt(argRingFileSize);
+    }
+
+    /**
+     * Gets the shorter pattern logged with while the send path is
+     * overloaded
+     *
+     * @return the degraded pattern, null if disabled
+     */
+    public String getDegradedPattern() {
+	return this.degradedPattern;
+    }
+
+    /**
+     * Sets the shorter pattern logged with while the send path is
+     * overloaded, so every request is still logged with fewer fields
+     *
+     * @param argDegradedPattern Value to assign to this.degradedPattern
+     */
+    public void setDegradedPattern(String argDegradedPattern) {
+        this.degradedPattern = argDegradedPattern;
+    }
+
+    /**
+     * Gets the percentage of the async queue capacity from which the
+     * degraded pattern is logged
+     *
+     * @return the queue depth in percent
+     */
+    public int getDegradeQueueDepth() {
+	return this.degradeQueueDepth;
+    }
+
+    /**
+     * Sets the percentage of the async queue capacity from which the
+     * degraded pattern is logged
+     *
+     * @param argDegradeQueueDepth Value to assign to this.degradeQueueDepth
+     */
+    public void setDegradeQueueDepth(String argDegradeQueueDepth) {
+        this.degradeQueueDepth = Integer.parseInt(argDegradeQueueDepth);
+    }
+
+    /**
+     * Gets the percentage of the async queue capacity up to which the
+     * pattern is restored
+     *
+     * @return the queue depth in percent
+     */
+    public int getRestoreQueueDepth() {
+	return this.restoreQueueDepth;
+    }
+
+    /**
+     * Sets the percentage of the async queue capacity up to which the
+     * pattern is restored
+     *
+     * @param argRestoreQueueDepth Value to assign to this.restoreQueueDepth
+     */
+    public void setRestoreQueueDepth(String argRestoreQueueDepth) {
+        this.restoreQueueDepth = Integer.parseInt(argRestoreQueueDepth);
+    }
+
+    /**
+     * Gets the send latency in milliseconds from which the degraded
+     * pattern is logged
+     *
+     * @return the send latency in milliseconds
+     */
+    public long getDegradeSendLatency() {
+	return this.degradeSendLatency;
+    }
+
+    /**
+     * Sets the send latency in milliseconds from which the degraded
+     * pattern is logged
+     *
+     * @param argDegradeSendLatency Value to assign to this.degradeSendLatency
+     */
+    public void setDegradeSendLatency(String argDegradeSendLatency) {
+        this.degradeSendLatency = Long.parseLong(argDegradeSendLatency);
+    }
+
+    /**
+     * Gets the send latency in milliseconds up to which the pattern is
+     * restored
+     *
+     * @return the send latency in milliseconds
+     */
+    public long getRestoreSendLatency() {
+	return this.restoreSendLatency;
+    }
+
+    /**
+     * Sets the send latency in milliseconds up to which the pattern is
+     * restored
+     *
+     * @param argRestoreSendLatency Value to assign to this.restoreSendLatency
+     */
+    public void setRestoreSendLatency(String argRestoreSendLatency) {
+        this.restoreSendLatency = Long.parseLong(argRestoreSendLatency);
+    }
+
+    /**
+     * Gets the path of the key store of the TLS client certificate
+     *
+     * @return the key store path, null if none
+     */
+    public String getKeyStore() {
+	return this.keyStore;
+    }
+
+    /**
+     * Sets the path of the PKCS12 or JKS key store of the TLS client
+     * certificate, for collectors requiring client authentication
+     *
+     * @param argKeyStore Value to assign to this.keyStore
+     */
+    public void setKeyStore(String argKeyStore) {
+        this.keyStore = argKeyStore;
+    }
+
+    /**
+     * Sets the password of the key store and its key
+     *
+     * @param argKeyStorePassword Value to assign to this.keyStorePassword
+     */
+    public void setKeyStorePassword(String argKeyStorePassword) {
+        this.keyStorePassword = argKeyStorePassword;
+    }
+
+    /**
+     * Gets the path of the trust store of the TLS collectors
+     *
+     * @return the trust store path, null for the JVM's default
+     */
+    public String getTrustStore() {
+	return this.trustStore;
+    }
+
+    /**
+     * Sets the path of the PKCS12 or JKS trust store the certificates of
+     * the TLS collectors are verified with
+     *
+     * @param argTrustStore Value to assign to this.trustStore
+     */
+    public void setTrustStore(String argTrustStore) {
+        this.trustStore = argTrustStore;
+    }
+
+    /**
+     * Sets the password of the trust store
+     *
+     * @param argTrustStorePassword Value to assign to this.trustStorePassword
+     */
+    public void setTrustStorePassword(String argTrustStorePassword) {
+        this.trustStorePassword = argTrustStorePassword;
+    }
+
+    /**
+     * Gets the counters of the value cache
+     *
+     * @return the value cache statistics, empty if disabled
+     */
+    public String getValueCacheStatistics() {
+	EncodedValueCache c = valueCache;
+	return c == null ? "" : c.getStatistics();
+    }
+
+    /**
+     * Gets the counters of the sender, per lane if async
+     *
+     * @return the sender statistics
+     */
+    public String getSenderStatistics() {
+	MessageSender s = sender;
+	return s == null ? "" : s.getStatistics();
+    }
+
+    /**
+     * Gets the counters of the transport of the sender, for TLS, RELP,
+     * batched UDP and ring files, e.g. the occupancy of the RELP window or
+     * the lag of the ring file reader
+     *
+     * @return the transport statistics, empty for plain UDP
+     */
+    public String getTransportStatistics() {
+	MessageSender s = sender;
+	return s == null ? "" : transportStatistics(s.getTransport());
+    }
+
+    /**
+     * Gets the mode and last sample of the load shedding
+     *
+     * @return the load shedding statistics, empty if disabled
+     */
+    public String getLoadSheddingStatistics() {
+	LoadShedding l = loadShedding;
+	return l == null ? "" : l.getStatistics();
+    }
+
     // --------------------------------------------------------- Public Methods
 
+    /**
+     * Classifies the entry into its {@link Lane} before the pattern is
+     * rendered and handed to {@link #log(CharArrayWriter)}.
+     */
     @Override
-    public void log(final CharArrayWriter msg) {
-	if (ds != null) {
-	    String packet = msg.toString();
-	    String hdr = getPacketHeader(new Date().getTime());
+    public void log(Request request, Response response, long time) {
+	if (loadShedding != null) {
+	    shedLoad(System.currentTimeMillis());
+	}
+	currentLane.set(Lane.classify(response.getStatus(), time, slowRequestThreshold));
+	currentRoute.set(route(request));
+	try {
+	    super.log(request, response, time);
+	}
+	finally {
+	    currentLane.remove();
+	    currentRoute.remove();
+	}
+    }
 
-	    if(hdr.length() > 0) {
-		StringBuffer buf = new StringBuffer(hdr);
+    @Override
+    public void log(final CharArrayWriter msg) {
+	log(msg, currentRoute.get());
+    }
 
-		buf.append(msg);
-		packet = buf.toString();
+    /**
+     * Sends the message through the route, or with the default priority
+     * and destination if null.
+     */
+    void log(final CharArrayWriter msg, final AccessLogRoute route) {
+	AccessLogPipeline p = route != null ? route.getPipeline() : pipeline;
+	if (p != null) {
+	    Lane lane = currentLane.get();
+	    try {
+				//
+				//  syslog packets are cut at msgLength bytes
+				//
+		p.log(msg, System.currentTimeMillis(),
+		      route != null ? route.getPriority() : facility | level,
+		      lane != null ? lane : Lane.NORMAL, msgLength, true);
+	    }
+	    catch (MessageEncodingException e) {
+		log.error("Could not encode message:", e);
+	    }
+	    catch (MessageLengthLimitException e) {
+		// XXX: not raised, messages are truncated
+		log.error("Could not send message:", e);
 	    }
-	    
-	    String p1 = "<" + ( facility | level ) + ">" + packet;
-	    write(p1);
 	}
     }
 
     // --------------------------------------------------------- Protected Methods
-    protected void open() {
+    @Override
+    protected synchronized void open() {
 	setAddress();
+
+	if (sender == null && address != null) {
+	    try {
+		sender = SenderRegistry.acquire(
+			createTransport(new InetSocketAddress(address, port)),
+			async ? queueCapacity : 0);
+		valueCache = valueCacheSize > 0 ? new EncodedValueCache(valueCacheSize) : null;
+		pipeline = new AccessLogPipeline(createEncoder(), sender, sequenceNumbers);
+	    }
+	    catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+		log.error("Could not open sender to " + hostname + ":" + port + ". All logging will FAIL.", e);
+	    }
+	}
+	if (pipeline != null && routes != null && routesByContextPath == null) {
+	    compileRoutes(pipeline.getEncoder());
+	}
+	if (sender != null && degradedPattern != null && loadShedding == null) {
+	    try {
+		loadShedding = new LoadShedding(sender, degradeQueueDepth, restoreQueueDepth,
+						degradeSendLatency, restoreSendLatency,
+						new LoadShedding.PatternSwitch() {
+		    @Override
+		    public void switchPattern(boolean degraded) {
+			logElements = degraded ? degradedElements : normalElements;
+		    }
+		});
+		compileDegradedPattern();
+	    }
+	    catch (IllegalArgumentException e) {
+		log.error("Invalid load shedding thresholds. Will not degrade the pattern.", e);
+		loadShedding = null;
+	    }
+	}
     }
 
-    protected void close() {
-	if (ds != null) {
-	    ds.close();
+    /**
+     * Finds the route of the request's Context, else of its Host.
+     *
+     * @return the route, or null for the default priority and destination
+     */
+    AccessLogRoute route(Request request) {
+	Map<String, AccessLogRoute> byContextPath = routesByContextPath;
+	if (byContextPath == null) {
+	    return null;
+	}
+	AccessLogRoute route = null;
+	Context context = request.getContext();
+	if (context != null && !byContextPath.isEmpty()) {
+	    route = byContextPath.get(context.getPath());
 	}
-	ds = null;
+	Host host = request.getHost();
+	if (route == null && host != null && !routesByHostName.isEmpty()) {
+	    route = routesByHostName.get(host.getName());
+	}
+	return route;
+    }
+
+    protected synchronized void close() {
+	if (loadShedding != null) {
+	    log.info("Load shedding: " + loadShedding.getStatistics());
+	    logElements = normalElements;
+	    loadShedding = null;
+	}
+	pipeline = null;
+	if (routesByContextPath != null) {
+	    releaseRoutes(routesByContextPath);
+	    releaseRoutes(routesByHostName);
+	    routesByContextPath = null;
+	    routesByHostName = null;
+	}
+	if (sender != null) {
+	    log.info("Releasing sender " + sender + ": " + sender.getStatistics()
+		     + " " + transportStatistics(sender.getTransport()));
+	    SenderRegistry.release(sender);
+	}
+	if (valueCache != null) {
+	    log.info("Value cache: " + valueCache.getStatistics());
+	}
+	sender = null;
+	socketFactory = null;
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+	super.stopInternal();
+	close();
     }
 
     // --------------------------------------------------------- Private Methods
+    /**
+     * Compiles the routes into lookup tables by Context path and Host
+     * name; invalid routes are logged and skipped.
+     */
+    private void compileRoutes(MessageEncoder encoder) {
+	Map<String, AccessLogRoute> byContextPath = new HashMap<String, AccessLogRoute>();
+	Map<String, AccessLogRoute> byHostName = new HashMap<String, AccessLogRoute>();
+
+	for (String entry : routes.split(",")) {
+	    entry = entry.trim();
+	    if (entry.length() == 0) {
+		continue;
+	    }
+	    int equals = entry.indexOf('=');
+	    if (equals <= 0) {
+		log.error("Invalid route " + entry + ", expected match=facility[.level][@host[:port]]. Will ignore it.");
+		continue;
+	    }
+	    String match = entry.substring(0, equals).trim();
+	    String target = entry.substring(equals + 1).trim();
+
+	    int at = target.indexOf('@');
+	    String priorityPart = at < 0 ? target : target.substring(0, at);
+	    int dot = priorityPart.indexOf('.');
+	    int routeFacility = getFacility(dot < 0 ? priorityPart : priorityPart.substring(0, dot));
+	    int routeLevel = dot < 0 ? level : getLogLevel(priorityPart.substring(dot + 1));
+	    if (routeFacility == -1 || routeLevel == -1) {
+		log.error("Invalid facility or level in route " + entry + ". Will ignore it.");
+		continue;
+	    }
+
+	    AccessLogPipeline routePipeline;
+	    try {
+		routePipeline = at < 0
+		    ? new AccessLogPipeline(encoder, SenderRegistry.acquire(
+			    createTransport(new InetSocketAddress(address, port)),
+			    async ? queueCapacity : 0), sequenceNumbers)
+		    : new AccessLogPipeline(encoder, SenderRegistry.acquire(
+			    createTransport(parseDestination(target.substring(at + 1))),
+			    async ? queueCapacity : 0), sequenceNumbers);
+	    }
+	    catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+		log.error("Could not open sender of route " + entry + ". Will ignore it.", e);
+		continue;
+	    }
+
+	    AccessLogRoute route = new AccessLogRoute(match, routeFacility | routeLevel, routePipeline);
+	    AccessLogRoute replaced = match.startsWith("/")
+		? byContextPath.put("/".equals(match) ? "" : match, route)
+		: byHostName.put(match.toLowerCase(Locale.ENGLISH), route);
+	    if (replaced != null) {
+		log.warn("Route " + entry + " replaces route " + replaced);
+		SenderRegistry.release(replaced.getSender());
+	    }
+	    log.info("Route " + route);
+	}
+
+	routesByHostName = byHostName;
+	routesByContextPath = byContextPath;
+    }
+
+    /**
+     * Compiles the log elements of the degraded pattern next to those of
+     * the pattern.
+     */
+    private void compileDegradedPattern() {
+	String normalPattern = pattern;
+	setPattern(degradedPattern);
+	degradedElements = logElements;
+	setPattern(normalPattern);
+	normalElements = logElements;
+    }
+
+    /**
+     * Samples the sender, which switches between the pattern and the
+     * degraded pattern once it crossed a threshold, and logs a marker of
+     * the change.
+     */
+    private void shedLoad(long now) {
+	LoadShedding l = loadShedding;
+	AccessLogPipeline p = pipeline;
+	if (!l.update(now) || p == null) {
+	    return;
+	}
+
+	boolean degraded = l.isDegraded();
+	log.warn("Access log pattern " + (degraded ? "degraded" : "restored") + ": " + l.getStatistics());
+
+	CharArrayWriter marker = new CharArrayWriter();
+	l.writeMarker(marker, format.trim().toLowerCase(Locale.ENGLISH).endsWith(MessageEncoders.JSON), now);
+	try {
+	    p.log(marker, now, facility | level, Lane.HIGH, msgLength, true);
+	}
+	catch (MessageEncodingException | MessageLengthLimitException e) {
+	    log.error("Could not log the load shedding marker:", e);
+	}
+    }
+
+    /**
+     * Creates the transport of the protocol to the destination; the
+     * replay tool wraps it to count what is sent.
+     */
+    protected Transport createTransport(InetSocketAddress destination)
+	    throws IOException, GeneralSecurityException {
+	if ("udp".equals(protocol)) {
+	    return udpBatching
+		? new BatchingUdpTransport(destination, BatchingUdpTransport.DEFAULT_BATCH_BYTES)
+		: new UdpTransport(destination);
+	}
+	if ("relp".equals(protocol)) {
+	    return new RelpTransport(destination, relpWindowSize);
+	}
+	if ("file".equals(protocol)) {
+	    // XXX: local, routes to other destinations share the ring file
+	    if (ringFile == null) {
+		throw new IllegalArgumentException("Protocol file requires a ringFile");
+	    }
+	    return new RingFileTransport(new File(ringFile), ringFileSize);
+	}
+	if (!"tls".equals(protocol)) {
+	    throw new IllegalArgumentException("Unknown protocol " + protocol + ", expected udp, tls, relp or file");
+	}
+	if (socketFactory == null) {
+	    socketFactory = TlsTransport.createSocketFactory(keyStore, keyStorePassword,
+							     trustStore, trustStorePassword);
+	}
+	return new TlsTransport(destination, socketFactory,
+				"keyStore=" + keyStore + ", trustStore=" + trustStore);
+    }
+
+    /**
+     * Parses <code>host[:port]</code>, the port defaulting to the port of
+     * the valve. An IPv6 address followed by a port is bracketed, e.g.
+     * <code>[::1]:514</code>; a host with several colons and no brackets
+     * is an IPv6 address without port.
+     */
+    InetSocketAddress parseDestination(String destination) throws UnknownHostException {
+	String host = destination.trim();
+	String portPart = null;
+	if (host.startsWith("[")) {
+	    int close = host.indexOf(']');
+	    if (close < 0) {
+		throw new IllegalArgumentException("Unclosed '[' in destination " + destination);
+	    }
+	    String rest = host.substring(close + 1).trim();
+	    if (rest.length() > 0) {
+		if (rest.charAt(0) != ':') {
+		    throw new IllegalArgumentException("Expected ':' after ']' in destination " + destination);
+		}
+		portPart = rest.substring(1);
+	    }
+	    host = host.substring(1, close);
+	}
+	else {
+	    int colon = host.indexOf(':');
+	    if (colon >= 0 && colon == host.lastIndexOf(':')) {
+		portPart = host.substring(colon + 1);
+		host = host.substring(0, colon);
+	    }
+	}
+	return new InetSocketAddress(InetAddress.getByName(host.trim()),
+				     portPart == null ? port : Integer.parseInt(portPart.trim()));
+    }
+
+    private static String transportStatistics(Transport transport) {
+	if (transport instanceof RelpTransport) {
+	    return ((RelpTransport) transport).getStatistics();
+	}
+	if (transport instanceof TlsTransport) {
+	    return ((TlsTransport) transport).getStatistics();
+	}
+	if (transport instanceof BatchingUdpTransport) {
+	    return ((BatchingUdpTransport) transport).getStatistics();
+	}
+	if (transport instanceof RingFileTransport) {
+	    return ((RingFileTransport) transport).getStatistics();
+	}
+	return "";
+    }
+
+    private static void releaseRoutes(Map<String, AccessLogRoute> routesByMatch) {
+	for (AccessLogRoute route : routesByMatch.values()) {
+	    SenderRegistry.release(route.getSender());
+	}
+    }
+
     /**
        Returns the specified syslog facility as a lower-case String,
        e.g. "kern", "user", etc.
@@ -549,43 +1463,15 @@ public final class SyslogAccessLogValve extends AccessLogValve {
 	return localHostname;
     }
 
-    /**
-     * Gets HEADER portion of packet.
-     * @param timeStamp number of milliseconds after the standard base time.
-     * @return HEADER portion of packet, will be zero-length string if header is false.
-     * FORMAT [RFC 5424]:
-     *         SYSLOG-MSG      = HEADER SP STRUCTURED-DATA [SP MSG]
-     *
-     *         HEADER          = PRI VERSION SP TIMESTAMP SP HOSTNAME
-     *                           SP APP-NAME SP PROCID SP MSGID
-     */
-    private String getPacketHeader(final long timeStamp) {
-      if (header) {
-				// PRI is done at the caller
-				// dateFormat contains the VERSION 1 and the SP before and
-				// after the TIMESTAMP
-	  StringBuffer buf = new StringBuffer(dateFormat.format(new Date(timeStamp)));
-				// HOSTNAME SP
-	  buf.append(getLocalHostname());
-	  buf.append(' ');
-				// APP-NAME SP
-	  buf.append(Thread.currentThread().getName());
-	  buf.append(' ');
-				// PROCID SP
-	  buf.append(getPid());
-	  buf.append(' ');
-				// MSGID="" SP
-	  buf.append(' ');
-				// STRUCTURED-DATA="" SP
-	  buf.append(' ');
-
-	  return buf.toString();
-      }
-      return "";
-    }
-
-    private String getPid() {
-	return ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+    private MessageEncoder createEncoder() {
+	try {
+	    return MessageEncoders.create(format, getLocalHostname(), header, valueCache);
+	}
+	catch (IllegalArgumentException e) {
+	    log.error("Unknown format " + format + ". Will revert to "
+		      + MessageEncoders.RFC5424, e);
+	    return MessageEncoders.create(MessageEncoders.RFC5424, getLocalHostname(), header, valueCache);
+	}
     }
 
     private void setAddress() {
@@ -610,38 +1496,6 @@ public final class SyslogAccessLogValve extends AccessLogValve {
 			  ". All logging will fail here!", e);
 	    }
 	}
-
-	if (ds == null) {
-	    try {
-		ds = new DatagramSocket();
-	    }
-	    catch (SocketException e) {
-		log.error("Could not instantiate DatagramSocket. All logging will FAIL.", e);
-	    }
-	}
-    }
-
-    private void write(final String string) {
-	if(ds != null && address != null) {
-	    byte[] bytes = string.getBytes();
-				//
-				//  syslog packets must be less than 1024 bytes
-				//
-	    int bytesLength = bytes.length;
-	    if (bytesLength >= msgLength) {
-		bytesLength = msgLength;
-	    }
-
-	    DatagramPacket packet = new DatagramPacket(bytes, bytesLength,
-						       address, port);
-
-	    try {
-		ds.send(packet);
-	    }
-	    catch (IOException e) {
-		log.error("Could not send DatagramPacket:", e);
-	    }
-	}
     }
 
 }
@@ -1,24 +1,45 @@
 package org.apache.catalina.valves;
 
 import java.io.CharArrayWriter;
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Locale;
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.MessageEncodingException;
 import org.apache.catalina.MessageLengthLimitException;
 import org.apache.catalina.ValveParserConfigurationException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.deferred.CapturedEntry;
+import org.apache.catalina.valves.deferred.DeferredFormatter;
+import org.apache.catalina.valves.deferred.DeferredPattern;
+import org.apache.catalina.valves.deferred.UserAgentClassifier;
+import org.apache.catalina.valves.encoder.EncodedValueCache;
+import org.apache.catalina.valves.encoder.MessageEncoders;
+import org.apache.catalina.valves.transport.BatchingUdpTransport;
+import org.apache.catalina.valves.transport.ElasticsearchBulkTransport;
+import org.apache.catalina.valves.transport.Lane;
+import org.apache.catalina.valves.transport.MessageSender;
+import org.apache.catalina.valves.transport.RingFileTransport;
+import org.apache.catalina.valves.transport.SenderRegistry;
+import org.apache.catalina.valves.transport.Transport;
+import org.apache.catalina.valves.transport.UdpTransport;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
-import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
 
 public class UdpJSONAccessLogValve extends AbstractAccessLogValve {
 
   private static final Log LOG = LogFactory.getLog(UdpJSONAccessLogValve.class);
 
+  // XXX: lane of the entry being logged by the current thread, see log(Request, Response, long)
+  private static final ThreadLocal<Lane> CURRENT_LANE = new ThreadLocal<Lane>();
+
+  // XXX: user.info, only used by the syslog framings
+  private static final int SYSLOG_PRIORITY = 14;
+
   private static final String DEFAULT_JSON_FORMAT_PATTERN = "{"
       + "\"@timestamp\":\"%{yyyy-MM-dd'T'HH:mm:ss.SSSZ}t\","
       + "\"type\":\"tomcataccess\","
@@ -37,6 +58,24 @@ public class UdpJSONAccessLogValve extends AbstractAccessLogValve {
       + "\"x_forwarded_for\":\"%{X-Forwarded-For}i\""
       + "}";
 
+  // XXX: selected by degradedPattern="default"; without agent, query string and x_forwarded_for
+  private static final String DEFAULT_DEGRADED_PATTERN = "default";
+  private static final String DEGRADED_JSON_FORMAT_PATTERN = "{"
+      + "\"@timestamp\":\"%{yyyy-MM-dd'T'HH:mm:ss.SSSZ}t\","
+      + "\"type\":\"tomcataccess\","
+      + "\"auth\":\"%u\","
+      + "\"bytes\":%B,"
+      + "\"clientip\":\"%h\","
+      + "\"httpversion\":\"%H\","
+      + "\"ident\":\"%l\","
+      + "\"request\":\"%U\","
+      + "\"request_time\":%D,"
+      + "\"response\":%s,"
+      + "\"timestamp\":\"%{dd/MMM/yyyy:HH:mm:ss Z}t\","
+      + "\"verb\":\"%m\","
+      + "\"vhost\":\"%v\""
+      + "}";
+
   //------------------------------------------------------ Constructor
   public UdpJSONAccessLogValve() {
     super();
@@ -46,10 +85,35 @@ public class UdpJSONAccessLogValve extends AbstractAccessLogValve {
 
   private boolean forUnitTest = false;
 
-  private DatagramSocket datagramSocket;
+  private MessageSender messageSender;
+  private AccessLogPipeline accessLogPipeline;
+  private EncodedValueCache valueCache;
+  private DeferredFormatter deferredFormatter;
+  private LoadShedding loadShedding;
+  private AccessLogElement[] normalElements;
+  private AccessLogElement[] degradedElements;
   private InetAddress hostnameInetAddress;
   private int intPort;
   private int intMessageLengthLimit;
+  private boolean booleanAsync;
+  private int intQueueCapacity;
+  private long longSlowRequestThreshold;
+  private int intValueCacheSize;
+  private boolean booleanSequenceNumbers;
+  private boolean booleanDeferredFormatting;
+  private boolean booleanUdpBatching;
+  private boolean booleanUserAgentClassification;
+  private int intUserAgentCacheSize;
+  private int intRingFileSize;
+  private int intBulkMaxBytes;
+  private long longBulkLingerMillis;
+  private boolean booleanBulkGzip;
+  private int intBulkMaxInFlight;
+  private int intBulkMaxRetries;
+  private int intDegradeQueueDepth;
+  private int intRestoreQueueDepth;
+  private long longDegradeSendLatency;
+  private long longRestoreSendLatency;
 
   private String hostname;
   private String port;
@@ -57,6 +121,30 @@ public class UdpJSONAccessLogValve extends AbstractAccessLogValve {
   // XXX: adapted from fluentd message_length_limit: 32766
   private String messageLengthLimit = "32766";
 
+  private String format = MessageEncoders.JSON;
+  private String async = "false";
+  private String queueCapacity = "1024";
+  private String slowRequestThreshold = "1000";
+  private String valueCacheSize = "0";
+  private String sequenceNumbers = "false";
+  private String deferredFormatting = "false";
+  private String udpBatching = "false";
+  private String userAgentClassification = "false";
+  private String userAgentCacheSize = String.valueOf(UserAgentClassifier.DEFAULT_CACHE_SIZE);
+  private String ringFile;
+  private String ringFileSize = String.valueOf(RingFileTransport.DEFAULT_CAPACITY);
+  private String bulkUrl;
+  private String bulkMaxBytes = "5242880";
+  private String bulkLingerMillis = "1000";
+  private String bulkGzip = "false";
+  private String bulkMaxInFlight = "2";
+  private String bulkMaxRetries = "3";
+  private String degradedPattern;
+  private String degradeQueueDepth = "75";
+  private String restoreQueueDepth = "25";
+  private String degradeSendLatency = "50";
+  private String restoreSendLatency = "5";
+
   // ----------------------------------------------------- Getters/Setters
   protected void setForUnitTest(boolean forUnitTest) {
     this.forUnitTest = forUnitTest;
@@ -112,31 +200,518 @@ public class UdpJSONAccessLogValve extends AbstractAccessLogValve {
     this.messageLengthLimit = messageLengthLimit;
   }
 
+  /**
+   * Return the wire format of the logs.
+   */
+  public String getFormat() {
+    return format;
+  }
+
+  /**
+   * Set the wire format of the logs, e.g. "json", "cef" or "rfc5424+json"; see {@link MessageEncoders}.
+   *
+   * @param format The new format
+   */
+  public void setFormat(String format) {
+    this.format = format;
+  }
+
+  /**
+   * Return whether the logs are queued and sent by a background thread.
+   */
+  public String getAsync() {
+    return async;
+  }
+
+  /**
+   * Set whether the logs are queued and sent by a background thread instead of the request thread.
+   *
+   * @param async "true" or "false"
+   */
+  public void setAsync(String async) {
+    this.async = async;
+  }
+
+  /**
+   * Return the number of logs the async queue can hold.
+   */
+  public String getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * Set the number of logs the async queue can hold, shared by all of its lanes.
+   *
+   * @param queueCapacity The new queue capacity
+   */
+  public void setQueueCapacity(String queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Return the time in milliseconds from which a request is queued in the high priority lane.
+   */
+  public String getSlowRequestThreshold() {
+    return slowRequestThreshold;
+  }
+
+  /**
+   * Set the time in milliseconds from which a request is queued in the high priority lane, like
+   * server errors.
+   *
+   * @param slowRequestThreshold The new slow request threshold
+   */
+  public void setSlowRequestThreshold(String slowRequestThreshold) {
+    this.slowRequestThreshold = slowRequestThreshold;
+  }
+
+  /**
+   * Return the max number of encoded field values cached.
+   */
+  public String getValueCacheSize() {
+    return valueCacheSize;
+  }
+
+  /**
+   * Set the max number of encoded field values cached, so values repeating across entries are not
+   * escaped and encoded again; "0" disables the cache.
+   *
+   * @param valueCacheSize The new value cache size
+   */
+  public void setValueCacheSize(String valueCacheSize) {
+    this.valueCacheSize = valueCacheSize;
+  }
+
+  /**
+   * Return whether the logs are stamped with the sender id and a sequence number.
+   */
+  public String getSequenceNumbers() {
+    return sequenceNumbers;
+  }
+
+  /**
+   * Set whether the logs are stamped with the sender id and a sequence number, as the "sender_id" and
+   * "sequence_id" members of JSON logs, so that collectors can measure loss.
+   *
+   * @param sequenceNumbers "true" or "false"
+   */
+  public void setSequenceNumbers(String sequenceNumbers) {
+    this.sequenceNumbers = sequenceNumbers;
+  }
+
+  /**
+   * Return whether the pattern is rendered by a background thread.
+   */
+  public String getDeferredFormatting() {
+    return deferredFormatting;
+  }
+
+  /**
+   * Set whether the request thread only captures the fields the pattern needs and a background
+   * thread renders, encodes and sends the logs; up to queueCapacity requests wait to be rendered.
+   *
+   * @param deferredFormatting "true" or "false"
+   */
+  public void setDeferredFormatting(String deferredFormatting) {
+    this.deferredFormatting = deferredFormatting;
+  }
+
+  /**
+   * Return whether datagrams are sent in batches from a connected socket.
+   */
+  public String getUdpBatching() {
+    return udpBatching;
+  }
+
+  /**
+   * Set whether datagrams are sent in batches from a socket connected to hostname and port, rather
+   * than one by one to their address; batches form in async mode, and are sent with one
+   * sendmmsg(2) call where the JVM can, see {@link BatchingUdpTransport}.
+   *
+   * @param udpBatching "true" or "false"
+   */
+  public void setUdpBatching(String udpBatching) {
+    this.udpBatching = udpBatching;
+  }
+
+  /**
+   * Return whether the user agents of deferred entries are classified.
+   */
+  public String getUserAgentClassification() {
+    return userAgentClassification;
+  }
+
+  /**
+   * Set whether the formatter thread adds the browser, operating system, device and bot classes of
+   * the User-Agent header to the JSON logs, as "ua_browser", "ua_os", "ua_device" and "ua_bot";
+   * requires deferredFormatting.
+   *
+   * @param userAgentClassification "true" or "false"
+   */
+  public void setUserAgentClassification(String userAgentClassification) {
+    this.userAgentClassification = userAgentClassification;
+  }
+
+  /**
+   * Return the number of user agents whose classification is memoized.
+   */
+  public String getUserAgentCacheSize() {
+    return userAgentCacheSize;
+  }
+
+  /**
+   * Set the number of distinct user agents whose classification is memoized, least recently used
+   * evicted first.
+   *
+   * @param userAgentCacheSize a positive number
+   */
+  public void setUserAgentCacheSize(String userAgentCacheSize) {
+    this.userAgentCacheSize = userAgentCacheSize;
+  }
+
+  /**
+   * Return the counters of the user agent cache, empty if disabled.
+   */
+  public String getUserAgentStatistics() {
+    final DeferredFormatter formatter = this.deferredFormatter;
+    return formatter == null || formatter.getUserAgentClassifier() == null
+        ? ""
+        : formatter.getUserAgentClassifier().getStatistics();
+  }
+
+  /**
+   * Return the counters of the deferred formatter, empty if disabled.
+   */
+  public String getFormatterStatistics() {
+    final DeferredFormatter formatter = this.deferredFormatter;
+    return formatter == null ? "" : formatter.getStatistics();
+  }
+
+  /**
+   * Return the ring file the logs are appended to, null if sent over UDP.
+   */
+  public String getRingFile() {
+    return ringFile;
+  }
+
+  /**
+   * Set the memory-mapped ring file the logs are appended to instead of being sent to hostname and
+   * port over UDP, for a log shipper on the same host to tail, see {@link RingFileTransport}.
+   *
+   * @param ringFile the path of the ring file, created if it does not exist
+   */
+  public void setRingFile(String ringFile) {
+    this.ringFile = ringFile;
+  }
+
+  /**
+   * Return the size of the ring of the ring file.
+   */
+  public String getRingFileSize() {
+    return ringFileSize;
+  }
+
+  /**
+   * Set the size of the ring of the ring file in bytes; once it is full, the oldest logs are
+   * overwritten.
+   *
+   * @param ringFileSize a number of bytes
+   */
+  public void setRingFileSize(String ringFileSize) {
+    this.ringFileSize = ringFileSize;
+  }
+
+  /**
+   * Return the counters of the ring file transport, e.g. how far its reader is behind; empty if the
+   * logs are not appended to a ring file.
+   */
+  public String getRingFileStatistics() {
+    final MessageSender sender = this.messageSender;
+    return sender == null || !(sender.getTransport() instanceof RingFileTransport)
+        ? ""
+        : ((RingFileTransport) sender.getTransport()).getStatistics();
+  }
+
+  /**
+   * Return the Elasticsearch bulk endpoint the logs are indexed to, null if sent over UDP.
+   */
+  public String getBulkUrl() {
+    return bulkUrl;
+  }
+
+  /**
+   * Set the Elasticsearch bulk endpoint the logs are indexed to instead of being sent to hostname and
+   * port over UDP, including the index, e.g. "http://elasticsearch:9200/tomcat-access/_bulk".
+   *
+   * @param bulkUrl The new bulk endpoint
+   */
+  public void setBulkUrl(String bulkUrl) {
+    this.bulkUrl = bulkUrl;
+  }
+
+  /**
+   * Return the size in bytes from which a bulk request is posted.
+   */
+  public String getBulkMaxBytes() {
+    return bulkMaxBytes;
+  }
+
+  /**
+   * Set the size in bytes from which a bulk request is posted without waiting for the linger time.
+   *
+   * @param bulkMaxBytes The new bulk request size
+   */
+  public void setBulkMaxBytes(String bulkMaxBytes) {
+    this.bulkMaxBytes = bulkMaxBytes;
+  }
+
+  /**
+   * Return the time in milliseconds logs wait for more logs to be posted with.
+   */
+  public String getBulkLingerMillis() {
+    return bulkLingerMillis;
+  }
+
+  /**
+   * Set the time in milliseconds logs wait for more logs to be posted with.
+   *
+   * @param bulkLingerMillis The new linger time
+   */
+  public void setBulkLingerMillis(String bulkLingerMillis) {
+    this.bulkLingerMillis = bulkLingerMillis;
+  }
+
+  /**
+   * Return whether bulk requests are gzip compressed.
+   */
+  public String getBulkGzip() {
+    return bulkGzip;
+  }
+
+  /**
+   * Set whether bulk requests are gzip compressed.
+   *
+   * @param bulkGzip "true" or "false"
+   */
+  public void setBulkGzip(String bulkGzip) {
+    this.bulkGzip = bulkGzip;
+  }
+
+  /**
+   * Return the max number of bulk requests posted at the same time.
+   */
+  public String getBulkMaxInFlight() {
+    return bulkMaxInFlight;
+  }
+
+  /**
+   * Set the max number of bulk requests posted at the same time; once reached, logs wait in the
+   * async queue.
+   *
+   * @param bulkMaxInFlight The new number of bulk requests in flight
+   */
+  public void setBulkMaxInFlight(String bulkMaxInFlight) {
+    this.bulkMaxInFlight = bulkMaxInFlight;
+  }
+
+  /**
+   * Return the max number of times a log rejected by Elasticsearch is posted again.
+   */
+  public String getBulkMaxRetries() {
+    return bulkMaxRetries;
+  }
+
+  /**
+   * Set the max number of times a log rejected by Elasticsearch with 429 or 5xx is posted again.
+   *
+   * @param bulkMaxRetries The new number of retries
+   */
+  public void setBulkMaxRetries(String bulkMaxRetries) {
+    this.bulkMaxRetries = bulkMaxRetries;
+  }
+
+  /**
+   * Return the shorter pattern logged with while the send path is overloaded, null if disabled.
+   */
+  public String getDegradedPattern() {
+    return degradedPattern;
+  }
+
+  /**
+   * Set the shorter pattern logged with while the send path is overloaded, so every request is still
+   * logged with fewer fields; "default" selects the default pattern without agent, query string and
+   * x_forwarded_for.
+   *
+   * @param degradedPattern The new degraded pattern
+   */
+  public void setDegradedPattern(String degradedPattern) {
+    this.degradedPattern = degradedPattern;
+  }
+
+  /**
+   * Return the percentage of the async queue capacity from which the degraded pattern is logged.
+   */
+  public String getDegradeQueueDepth() {
+    return degradeQueueDepth;
+  }
+
+  /**
+   * Set the percentage of the async queue capacity from which the degraded pattern is logged.
+   *
+   * @param degradeQueueDepth The new queue depth, in percent
+   */
+  public void setDegradeQueueDepth(String degradeQueueDepth) {
+    this.degradeQueueDepth = degradeQueueDepth;
+  }
+
+  /**
+   * Return the percentage of the async queue capacity up to which the pattern is restored.
+   */
+  public String getRestoreQueueDepth() {
+    return restoreQueueDepth;
+  }
+
+  /**
+   * Set the percentage of the async queue capacity up to which the pattern is restored.
+   *
+   * @param restoreQueueDepth The new queue depth, in percent
+   */
+  public void setRestoreQueueDepth(String restoreQueueDepth) {
+    this.restoreQueueDepth = restoreQueueDepth;
+  }
+
+  /**
+   * Return the send latency in milliseconds from which the degraded pattern is logged.
+   */
+  public String getDegradeSendLatency() {
+    return degradeSendLatency;
+  }
+
+  /**
+   * Set the send latency in milliseconds from which the degraded pattern is logged.
+   *
+   * @param degradeSendLatency The new send latency
+   */
+  public void setDegradeSendLatency(String degradeSendLatency) {
+    this.degradeSendLatency = degradeSendLatency;
+  }
+
+  /**
+   * Return the send latency in milliseconds up to which the pattern is restored.
+   */
+  public String getRestoreSendLatency() {
+    return restoreSendLatency;
+  }
+
+  /**
+   * Set the send latency in milliseconds up to which the pattern is restored.
+   *
+   * @param restoreSendLatency The new send latency
+   */
+  public void setRestoreSendLatency(String restoreSendLatency) {
+    this.restoreSendLatency = restoreSendLatency;
+  }
+
+  /**
+   * Return the mode and last sample of the load shedding, empty if disabled.
+   */
+  public String getLoadSheddingStatistics() {
+    final LoadShedding shedding = this.loadShedding;
+    return shedding == null ? "" : shedding.getStatistics();
+  }
+
+  /**
+   * Return the counters of the value cache, empty if disabled.
+   */
+  public String getValueCacheStatistics() {
+    final EncodedValueCache cache = this.valueCache;
+    return cache == null ? "" : cache.getStatistics();
+  }
+
+  /**
+   * Return the counters of the sender, per lane if async.
+   */
+  public String getSenderStatistics() {
+    final MessageSender sender = this.messageSender;
+    return sender == null ? "" : sender.getStatistics();
+  }
+
   //------------------------------------------------------ Overrides
 
+  /**
+   * Classify the entry into its {@link Lane} before the pattern is rendered and handed to {@link
+   * #log(CharArrayWriter)}, or captured for the deferred formatter.
+   */
   @Override
-  protected void log(CharArrayWriter charArrayWriter) {
+  public void log(Request request, Response response, long time) {
+    if (this.loadShedding != null) {
+      shedLoad(System.currentTimeMillis());
+    }
+    if (this.deferredFormatter != null) {
+      if (getState().isAvailable() && getEnabled() && isLogged(request)) {
+        defer(request, response, time);
+      }
+      return;
+    }
+
+    CURRENT_LANE.set(Lane.classify(response.getStatus(), time, this.longSlowRequestThreshold));
     try {
-      byte[] logJSONBytes = convertToJSONBytes(charArrayWriter);
+      super.log(request, response, time);
+    } finally {
+      CURRENT_LANE.remove();
+    }
+  }
 
-      if (logJSONBytes.length > this.intMessageLengthLimit) {
-        final MessageLengthLimitException messageLengthLimitException = new MessageLengthLimitException(
-            logJSONBytes.length, this.intMessageLengthLimit);
-        LOG.error("Unable to log entry", messageLengthLimitException);
-        return;
-      }
+  @Override
+  protected void log(CharArrayWriter charArrayWriter) {
+    final Lane lane = CURRENT_LANE.get();
+    log(charArrayWriter, System.currentTimeMillis(), lane != null ? lane : Lane.NORMAL);
+  }
 
-      DatagramPacket datagramPacket = new DatagramPacket(
-          logJSONBytes,
-          0,
-          logJSONBytes.length,
-          this.hostnameInetAddress,
-          this.intPort
-      );
+  /**
+   * Capture the fields of the request the pattern needs, to be rendered by the deferred formatter.
+   */
+  void defer(Request request, Response response, long time) {
+    this.deferredFormatter.submit(
+        request,
+        response,
+        time,
+        System.currentTimeMillis(),
+        Lane.classify(response.getStatus(), time, this.longSlowRequestThreshold)
+    );
+  }
+
+  /**
+   * Sample the sender, which switches between the pattern and the degraded pattern once it crossed a
+   * threshold, and log a marker of the change.
+   */
+  private void shedLoad(long now) {
+    final LoadShedding shedding = this.loadShedding;
+    if (!shedding.update(now)) {
+      return;
+    }
 
-      this.datagramSocket.send(datagramPacket);
+    final boolean degraded = shedding.isDegraded();
+    LOG.warn("Access log pattern " + (degraded ? "degraded" : "restored") + ": " + shedding.getStatistics());
 
-    } catch (JSONException | IOException e) {
+    final CharArrayWriter marker = new CharArrayWriter();
+    shedding.writeMarker(marker, this.format.trim().toLowerCase(Locale.ENGLISH).endsWith(MessageEncoders.JSON), now);
+    log(marker, now, Lane.HIGH);
+  }
+
+  private void log(CharArrayWriter charArrayWriter, long timestamp, Lane lane) {
+    try {
+      this.accessLogPipeline.log(
+          charArrayWriter,
+          timestamp,
+          SYSLOG_PRIORITY,
+          lane,
+          this.intMessageLengthLimit,
+          false
+      );
+    } catch (MessageLengthLimitException e) {
+      LOG.error("Unable to log entry", e);
+    } catch (MessageEncodingException e) {
       LOG.error("Failed to log entry", e);
     }
   }
@@ -152,10 +727,52 @@ public class UdpJSONAccessLogValve extends AbstractAccessLogValve {
     try {
       configurePattern();
       parseIntConfigurations();
+      if (this.booleanUserAgentClassification && !this.booleanDeferredFormatting) {
+        throw new IllegalArgumentException("userAgentClassification requires deferredFormatting");
+      }
 
-      this.hostnameInetAddress = InetAddress.getByName(this.hostname);
-      this.datagramSocket = new DatagramSocket();
-    } catch (SocketException | UnknownHostException | ValveParserConfigurationException e) {
+      // XXX: valves logging to the same destination share one sender; bulk requests are always posted
+      // from the sender thread
+      this.messageSender = SenderRegistry.acquire(
+          createTransport(),
+          this.booleanAsync || this.bulkUrl != null ? this.intQueueCapacity : 0
+      );
+      this.valueCache = this.intValueCacheSize > 0 ? new EncodedValueCache(this.intValueCacheSize) : null;
+      this.accessLogPipeline = new AccessLogPipeline(
+          MessageEncoders.create(this.format, InetAddress.getLocalHost().getHostName(), true, this.valueCache),
+          this.messageSender,
+          this.booleanSequenceNumbers
+      );
+      final String resolvedDegradedPattern = this.degradedPattern != null ? compileDegradedPattern() : null;
+      if (this.booleanDeferredFormatting) {
+        this.deferredFormatter = createDeferredFormatter(resolvedDegradedPattern);
+        if (this.booleanUserAgentClassification) {
+          this.deferredFormatter.setUserAgentClassifier(new UserAgentClassifier(this.intUserAgentCacheSize));
+        }
+        this.deferredFormatter.start();
+      }
+      if (this.degradedPattern != null) {
+        this.loadShedding = new LoadShedding(
+            this.messageSender,
+            this.intDegradeQueueDepth,
+            this.intRestoreQueueDepth,
+            this.longDegradeSendLatency,
+            this.longRestoreSendLatency,
+            new LoadShedding.PatternSwitch() {
+              @Override
+              public void switchPattern(boolean degraded) {
+                if (UdpJSONAccessLogValve.this.deferredFormatter != null) {
+                  UdpJSONAccessLogValve.this.deferredFormatter.setDegraded(degraded);
+                } else {
+                  UdpJSONAccessLogValve.this.logElements = degraded
+                      ? UdpJSONAccessLogValve.this.degradedElements
+                      : UdpJSONAccessLogValve.this.normalElements;
+                }
+              }
+            }
+        );
+      }
+    } catch (IOException | IllegalArgumentException | ValveParserConfigurationException e) {
       throw new LifecycleException(e);
     }
 
@@ -164,7 +781,19 @@ public class UdpJSONAccessLogValve extends AbstractAccessLogValve {
             append("Starting component with valve params... hostname: ").append(this.hostname).
             append(", port: ").append(this.port).
             append(", pattern: ").append(this.getPattern()).
-            append(", messageLengthLimit: ").append(this.messageLengthLimit).toString()
+            append(", format: ").append(this.format).
+            append(", messageLengthLimit: ").append(this.messageLengthLimit).
+            append(", async: ").append(this.async).
+            append(", queueCapacity: ").append(this.queueCapacity).
+            append(", slowRequestThreshold: ").append(this.slowRequestThreshold).
+            append(", valueCacheSize: ").append(this.valueCacheSize).
+            append(", sequenceNumbers: ").append(this.sequenceNumbers).
+            append(", deferredFormatting: ").append(this.deferredFormatting).
+            append(", userAgentClassification: ").append(this.userAgentClassification).
+            append(", udpBatching: ").append(this.udpBatching).
+            append(", ringFile: ").append(this.ringFile).
+            append(", bulkUrl: ").append(this.bulkUrl).
+            append(", degradedPattern: ").append(this.degradedPattern).toString()
     );
     if (!this.forUnitTest) {
       super.startInternal();
@@ -186,29 +815,135 @@ public class UdpJSONAccessLogValve extends AbstractAccessLogValve {
       super.stopInternal();
     }
 
-    this.datagramSocket.disconnect();
-    this.datagramSocket.close();
+    // XXX: render the captured entries before the sender goes away
+    if (this.deferredFormatter != null) {
+      this.deferredFormatter.stop();
+    }
+    SenderRegistry.release(this.messageSender);
 
     LOG.info(
         new StringBuilder().
-            append("Shutdown completed; isDatagramSocketConnected: ").
-            append(this.datagramSocket.isConnected()).
-            append(", isDatagramSocketClosed: ").
-            append(this.datagramSocket.isClosed()).toString()
+            append("Shutdown completed; sender: ").
+            append(this.messageSender.getStatistics()).
+            append(", references: ").
+            append(SenderRegistry.getReferences(this.messageSender)).
+            append(", value cache: ").
+            append(getValueCacheStatistics()).
+            append(", formatter: ").
+            append(getFormatterStatistics()).
+            append(", user agents: ").
+            append(getUserAgentStatistics()).
+            append(", load shedding: ").
+            append(getLoadSheddingStatistics()).toString()
     );
+    this.deferredFormatter = null;
+    if (this.loadShedding != null) {
+      this.logElements = this.normalElements;
+      this.loadShedding = null;
+    }
   }
 
   //------------------------------------------------------ Protected
   protected void parseIntConfigurations() throws ValveParserConfigurationException {
     try {
-      this.intPort = Integer.parseInt(this.port);
+      if (this.bulkUrl == null && this.ringFile == null) {
+        this.intPort = Integer.parseInt(this.port);
+      }
+      this.intRingFileSize = Integer.parseInt(this.ringFileSize);
       this.intMessageLengthLimit = Integer.parseInt(this.messageLengthLimit);
+      this.booleanAsync = Boolean.parseBoolean(this.async);
+      this.intQueueCapacity = Integer.parseInt(this.queueCapacity);
+      this.longSlowRequestThreshold = Long.parseLong(this.slowRequestThreshold);
+      this.intValueCacheSize = Integer.parseInt(this.valueCacheSize);
+      this.booleanSequenceNumbers = Boolean.parseBoolean(this.sequenceNumbers);
+      this.booleanDeferredFormatting = Boolean.parseBoolean(this.deferredFormatting);
+      this.booleanUdpBatching = Boolean.parseBoolean(this.udpBatching);
+      this.booleanUserAgentClassification = Boolean.parseBoolean(this.userAgentClassification);
+      this.intUserAgentCacheSize = Integer.parseInt(this.userAgentCacheSize);
+      this.intBulkMaxBytes = Integer.parseInt(this.bulkMaxBytes);
+      this.longBulkLingerMillis = Long.parseLong(this.bulkLingerMillis);
+      this.booleanBulkGzip = Boolean.parseBoolean(this.bulkGzip);
+      this.intBulkMaxInFlight = Integer.parseInt(this.bulkMaxInFlight);
+      this.intBulkMaxRetries = Integer.parseInt(this.bulkMaxRetries);
+      this.intDegradeQueueDepth = Integer.parseInt(this.degradeQueueDepth);
+      this.intRestoreQueueDepth = Integer.parseInt(this.restoreQueueDepth);
+      this.longDegradeSendLatency = Long.parseLong(this.degradeSendLatency);
+      this.longRestoreSendLatency = Long.parseLong(this.restoreSendLatency);
     } catch (NumberFormatException e) {
       throw new ValveParserConfigurationException(e);
     }
   }
 
+  /**
+   * Create the transport to the configured destination; the replay tool wraps it to count what is
+   * sent.
+   */
+  protected Transport createTransport() throws IOException {
+    if (this.ringFile != null) {
+      return new RingFileTransport(new File(this.ringFile), this.intRingFileSize);
+    }
+    if (this.bulkUrl == null) {
+      this.hostnameInetAddress = InetAddress.getByName(this.hostname);
+      final InetSocketAddress address = new InetSocketAddress(this.hostnameInetAddress, this.intPort);
+      return this.booleanUdpBatching
+          ? new BatchingUdpTransport(address, BatchingUdpTransport.DEFAULT_BATCH_BYTES)
+          : new UdpTransport(address);
+    }
+
+    // XXX: Elasticsearch indexes plain JSON documents, without syslog framing
+    if (!MessageEncoders.JSON.equals(this.format)) {
+      throw new IllegalArgumentException("bulkUrl requires the json format, not " + this.format);
+    }
+    return new ElasticsearchBulkTransport(
+        new URL(this.bulkUrl),
+        this.intBulkMaxBytes,
+        this.longBulkLingerMillis,
+        this.booleanBulkGzip,
+        this.intBulkMaxInFlight,
+        this.intBulkMaxRetries
+    );
+  }
+
   //------------------------------------------------------ Private
+  private boolean isLogged(Request request) {
+    if (this.condition != null && request.getRequest().getAttribute(this.condition) != null) {
+      return false;
+    }
+    return this.conditionIf == null || request.getRequest().getAttribute(this.conditionIf) != null;
+  }
+
+  /**
+   * Compile the log elements of the degraded pattern next to those of the pattern.
+   *
+   * @return the degraded pattern, with "common" and "combined" expanded
+   */
+  private String compileDegradedPattern() {
+    final String normalPattern = getPattern();
+    setPattern(DEFAULT_DEGRADED_PATTERN.equals(this.degradedPattern) ? DEGRADED_JSON_FORMAT_PATTERN : this.degradedPattern);
+    final String resolvedDegradedPattern = getPattern();
+    this.degradedElements = this.logElements;
+    setPattern(normalPattern);
+    this.normalElements = this.logElements;
+    return resolvedDegradedPattern;
+  }
+
+  private DeferredFormatter createDeferredFormatter(String resolvedDegradedPattern) {
+    return new DeferredFormatter(
+        "UdpJSONAccessLogValve",
+        DeferredPattern.compile(getPattern(), getRequestAttributesEnabled(), this.locale),
+        resolvedDegradedPattern == null
+            ? null
+            : DeferredPattern.compile(resolvedDegradedPattern, getRequestAttributesEnabled(), this.locale),
+        this.intQueueCapacity,
+        new DeferredFormatter.Sink() {
+          @Override
+          public void log(CharArrayWriter message, CapturedEntry entry) {
+            UdpJSONAccessLogValve.this.log(message, entry.getTimestamp(), entry.getLane());
+          }
+        }
+    );
+  }
+
   private void configurePattern() {
     String configuredPattern = this.getPattern();
 
@@ -217,10 +952,4 @@ public class UdpJSONAccessLogValve extends AbstractAccessLogValve {
       return;
     }
   }
-
-  private byte[] convertToJSONBytes(CharArrayWriter charArrayWriter) throws JSONException {
-    String logString = charArrayWriter.toString();
-    JSONObject logJSONObject = new JSONObject(logString);
-    return logJSONObject.toString().getBytes();
-  }
 }
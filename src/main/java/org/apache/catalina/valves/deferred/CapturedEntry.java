@@ -0,0 +1,56 @@
+package org.apache.catalina.valves.deferred;
+
+import java.util.Arrays;
+import org.apache.catalina.valves.transport.Lane;
+
+/**
+ * The fields of one request a {@link DeferredPattern} needs to render its access log entry later,
+ * after the request and response objects have been recycled.
+ *
+ * Entries are pooled by {@link DeferredFormatter}: the request thread copies primitives and
+ * references to Strings the request already holds, the formatter thread renders and clears them.
+ */
+public final class CapturedEntry {
+
+  long startTime;
+  long time;
+  long commitTime;
+  int status;
+  long bytesSent;
+  final String[] values;
+  DeferredPattern pattern;
+  String userAgent;
+
+  private long timestamp;
+  private Lane lane;
+
+  CapturedEntry(int valueCount) {
+    this.values = new String[valueCount];
+  }
+
+  /**
+   * @return the time the entry was logged at, in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the priority lane of the entry
+   */
+  public Lane getLane() {
+    return lane;
+  }
+
+  void setLogged(long timestamp, Lane lane) {
+    this.timestamp = timestamp;
+    this.lane = lane;
+  }
+
+  void clear() {
+    Arrays.fill(this.values, null);
+    this.pattern = null;
+    this.userAgent = null;
+    this.lane = null;
+  }
+}
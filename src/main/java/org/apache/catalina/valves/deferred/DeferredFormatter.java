@@ -0,0 +1,284 @@
+package org.apache.catalina.valves.deferred;
+
+import java.io.CharArrayWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.transport.Lane;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.collections.SynchronizedStack;
+
+/**
+ * Moves the rendering of access log patterns off the request threads.
+ *
+ * The request thread only copies the fields of its request a {@link DeferredPattern} needs into a
+ * pre-allocated {@link CapturedEntry}; a dedicated formatter thread renders the entries in order,
+ * hands them to a {@link Sink} for encoding and sending, and recycles them. When all entries are
+ * in use, further requests are not logged and counted as dropped.
+ *
+ * A formatter can be given a second, shorter pattern to capture requests with while it is {@link
+ * #setDegraded(boolean) degraded}; entries are rendered with the pattern they were captured with.
+ *
+ * With a {@link UserAgentClassifier}, the request thread also keeps the User-Agent header, and the
+ * formatter thread adds its classification to entries rendered as JSON objects; not while degraded.
+ */
+public class DeferredFormatter {
+
+  private static final Log LOG = LogFactory.getLog(DeferredFormatter.class);
+
+  private static final long POLL_TIMEOUT_MILLIS = 100;
+  private static final long STOP_TIMEOUT_MILLIS = 5000;
+  private static final int INITIAL_MESSAGE_CAPACITY = 512;
+
+  /**
+   * Receives the rendered entries, on the formatter thread.
+   */
+  public interface Sink {
+
+    /**
+     * @param message the rendered pattern, only valid until this method returns
+     * @param entry the entry it was rendered from
+     */
+    void log(CharArrayWriter message, CapturedEntry entry);
+  }
+
+  private final String name;
+  private final DeferredPattern pattern;
+  private final DeferredPattern degradedPattern;
+  private final Sink sink;
+  private final ArrayBlockingQueue<CapturedEntry> queue;
+  private final SynchronizedStack<CapturedEntry> freeEntries;
+
+  private final AtomicLong formatted = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  // XXX: submits between reading running and queueing their entry, the formatter waits for them to stop
+  private final AtomicInteger submitting = new AtomicInteger();
+
+  private volatile boolean running;
+  private volatile boolean degraded;
+  private UserAgentClassifier userAgentClassifier;
+  private Thread formatterThread;
+
+  /**
+   * @param name used for the formatter thread and in log messages
+   * @param pattern the pattern entries are captured for and rendered with
+   * @param capacity number of entries captured but not rendered yet
+   * @param sink receives the rendered entries
+   */
+  public DeferredFormatter(String name, DeferredPattern pattern, int capacity, Sink sink) {
+    this(name, pattern, null, capacity, sink);
+  }
+
+  /**
+   * @param name used for the formatter thread and in log messages
+   * @param pattern the pattern entries are captured for and rendered with
+   * @param degradedPattern the pattern used instead while degraded, or null
+   * @param capacity number of entries captured but not rendered yet
+   * @param sink receives the rendered entries
+   */
+  public DeferredFormatter(String name, DeferredPattern pattern, DeferredPattern degradedPattern, int capacity,
+      Sink sink) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be positive, was: " + capacity);
+    }
+    this.name = name;
+    this.pattern = pattern;
+    this.degradedPattern = degradedPattern;
+    this.sink = sink;
+    this.queue = new ArrayBlockingQueue<CapturedEntry>(capacity);
+    this.freeEntries = new SynchronizedStack<CapturedEntry>(capacity, capacity);
+    final int valueCount = degradedPattern == null
+        ? pattern.getValueCount()
+        : Math.max(pattern.getValueCount(), degradedPattern.getValueCount());
+    for (int i = 0; i < capacity; i++) {
+      this.freeEntries.push(new CapturedEntry(valueCount));
+    }
+  }
+
+  public synchronized void start() {
+    this.running = true;
+    this.formatterThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "DeferredFormatter[" + this.name + "]");
+    this.formatterThread.setDaemon(true);
+    this.formatterThread.start();
+  }
+
+  /**
+   * Capture the fields of the request and queue them for rendering.
+   *
+   * @param time the time taken to process the request, in milliseconds
+   * @param timestamp the time the entry is logged at, in milliseconds since the epoch
+   * @param lane the priority lane of the entry
+   * @return false if the entry was dropped
+   */
+  public boolean submit(Request request, Response response, long time, long timestamp, Lane lane) {
+    this.submitting.incrementAndGet();
+    try {
+      final CapturedEntry entry = this.running ? this.freeEntries.pop() : null;
+      if (entry == null) {
+        this.dropped.incrementAndGet();
+        return false;
+      }
+      final DeferredPattern capturing =
+          this.degraded && this.degradedPattern != null ? this.degradedPattern : this.pattern;
+      try {
+        capturing.capture(request, response, time, entry);
+      } catch (RuntimeException e) {
+        entry.clear();
+        this.freeEntries.push(entry);
+        throw e;
+      }
+      entry.pattern = capturing;
+      if (this.userAgentClassifier != null && capturing == this.pattern) {
+        entry.userAgent = request.getHeader("User-Agent");
+      }
+      entry.setLogged(timestamp, lane);
+      // XXX: never full, there are no more entries than the queue can hold
+      this.queue.offer(entry);
+      return true;
+    } finally {
+      this.submitting.decrementAndGet();
+    }
+  }
+
+  /**
+   * Stop the formatter thread after it has rendered the queued entries, including those of submits
+   * running concurrently.
+   */
+  public synchronized void stop() {
+    this.running = false;
+    if (this.formatterThread == null) {
+      return;
+    }
+    try {
+      this.formatterThread.join(STOP_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.formatterThread = null;
+  }
+
+  public DeferredPattern getPattern() {
+    return pattern;
+  }
+
+  /**
+   * Capture further requests with the degraded pattern, or again with the pattern.
+   */
+  public void setDegraded(boolean degraded) {
+    this.degraded = degraded;
+  }
+
+  public boolean isDegraded() {
+    return degraded;
+  }
+
+  /**
+   * Classify the user agents of the entries, see {@link UserAgentClassifier}; set before {@link
+   * #start()}.
+   */
+  public void setUserAgentClassifier(UserAgentClassifier userAgentClassifier) {
+    this.userAgentClassifier = userAgentClassifier;
+  }
+
+  public UserAgentClassifier getUserAgentClassifier() {
+    return userAgentClassifier;
+  }
+
+  /**
+   * Number of entries rendered.
+   */
+  public long getFormatted() {
+    return formatted.get();
+  }
+
+  /**
+   * Number of entries not logged because all entries were in use.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Counters of this formatter, e.g. {@code formatted=1200, dropped=0, queued=3}
+   */
+  public String getStatistics() {
+    return new StringBuilder().
+        append("formatted=").append(getFormatted()).
+        append(", dropped=").append(getDropped()).
+        append(", queued=").append(this.queue.size()).toString();
+  }
+
+  @Override
+  public String toString() {
+    return this.name;
+  }
+
+  private void drain() {
+    final MessageWriter message = new MessageWriter(INITIAL_MESSAGE_CAPACITY);
+    while (true) {
+      final CapturedEntry entry;
+      try {
+        entry = this.queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      if (entry == null) {
+        // XXX: a submit that saw running before it was cleared may not have queued its entry yet
+        if (!this.running && this.submitting.get() == 0 && this.queue.isEmpty()) {
+          return;
+        }
+        continue;
+      }
+
+      try {
+        entry.pattern.render(entry, message);
+        if (entry.userAgent != null) {
+          message.appendMembers(this.userAgentClassifier.classify(entry.userAgent));
+        }
+        this.formatted.incrementAndGet();
+        this.sink.log(message, entry);
+      } catch (RuntimeException e) {
+        LOG.error("Could not render access log entry of " + this.name, e);
+      } finally {
+        message.reset();
+        entry.clear();
+        this.freeEntries.push(entry);
+      }
+    }
+  }
+
+  /**
+   * Writer of the rendered entries, which can add members to the JSON object rendered into it.
+   */
+  private static final class MessageWriter extends CharArrayWriter {
+
+    MessageWriter(int initialSize) {
+      super(initialSize);
+    }
+
+    /**
+     * Add the members before the closing brace, if a JSON object was rendered.
+     */
+    void appendMembers(char[] members) {
+      if (this.count < 2 || this.buf[0] != '{' || this.buf[this.count - 1] != '}') {
+        return;
+      }
+      this.count--;
+      if (this.buf[this.count - 1] != '{') {
+        write(',');
+      }
+      write(members, 0, members.length);
+      write('}');
+    }
+  }
+}
@@ -0,0 +1,837 @@
+package org.apache.catalina.valves.deferred;
+
+import java.io.CharArrayWriter;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpSession;
+import org.apache.catalina.AccessLog;
+import org.apache.catalina.Globals;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.coyote.RequestInfo;
+
+/**
+ * An access log pattern split into what has to be read from the request and response while they
+ * are still in use, and what can be rendered from those fields later, on another thread.
+ *
+ * Patterns are parsed like {@link org.apache.catalina.valves.AbstractAccessLogValve} parses them
+ * and render to the same text; {@link #capture} is thread-safe, {@link #render} must only be called
+ * by one thread at a time, since date formats are reused.
+ */
+public class DeferredPattern {
+
+  private static final String CLF_FORMAT = "dd/MMM/yyyy:HH:mm:ss Z";
+
+  private static final String LOCAL_ADDR_VALUE = localAddress();
+
+  private final String pattern;
+  private final boolean requestAttributesEnabled;
+  private final Locale locale;
+  private final Element[] elements;
+  private final int valueCount;
+
+  // XXX: next free slot of CapturedEntry.values, only used while compiling
+  private int slots;
+
+  private DeferredPattern(String pattern, boolean requestAttributesEnabled, Locale locale) {
+    this.pattern = pattern;
+    this.requestAttributesEnabled = requestAttributesEnabled;
+    this.locale = locale;
+    this.elements = parse(pattern);
+    this.valueCount = this.slots;
+  }
+
+  /**
+   * @param pattern the access log pattern, with "common" and "combined" already expanded
+   * @param requestAttributesEnabled whether %a, %h, %H and %p prefer the {@link AccessLog}
+   * request attributes set by e.g. RemoteIpValve
+   * @param locale the locale of %{format}t dates
+   */
+  public static DeferredPattern compile(String pattern, boolean requestAttributesEnabled, Locale locale) {
+    return new DeferredPattern(pattern, requestAttributesEnabled, locale);
+  }
+
+  /**
+   * @return an entry with room for the fields of this pattern
+   */
+  public CapturedEntry newEntry() {
+    return new CapturedEntry(this.valueCount);
+  }
+
+  int getValueCount() {
+    return valueCount;
+  }
+
+  /**
+   * Copy the fields the pattern needs from the request and response.
+   *
+   * @param time the time taken to process the request, in milliseconds
+   */
+  public void capture(Request request, Response response, long time, CapturedEntry entry) {
+    entry.startTime = request.getCoyoteRequest().getStartTime();
+    entry.time = time;
+    entry.commitTime = response.getCoyoteResponse().getCommitTime();
+    entry.status = response.getStatus();
+    entry.bytesSent = bytesSent(request, response);
+    for (Element element : this.elements) {
+      element.capture(request, response, entry);
+    }
+  }
+
+  /**
+   * Render a captured entry, as the access log valve would have rendered its request.
+   */
+  public void render(CapturedEntry entry, CharArrayWriter out) {
+    for (Element element : this.elements) {
+      element.render(entry, out);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return this.pattern;
+  }
+
+  private static long bytesSent(Request request, Response response) {
+    long length = response.getBytesWritten(false);
+    if (length <= 0) {
+      // XXX: sendfile responses are written by the connector, see AbstractAccessLogValve.ByteSentElement
+      final Object start = request.getAttribute(Globals.SENDFILE_FILE_START_ATTR);
+      if (start instanceof Long) {
+        final Object end = request.getAttribute(Globals.SENDFILE_FILE_END_ATTR);
+        if (end instanceof Long) {
+          length = ((Long) end).longValue() - ((Long) start).longValue();
+        }
+      }
+    }
+    return length;
+  }
+
+  private static String localAddress() {
+    try {
+      return InetAddress.getLocalHost().getHostAddress();
+    } catch (Throwable e) {
+      return "127.0.0.1";
+    }
+  }
+
+  // ----------------------------------------------------- Parsing
+
+  private Element[] parse(String pattern) {
+    final List<Element> list = new ArrayList<Element>();
+    boolean replace = false;
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < pattern.length(); i++) {
+      final char ch = pattern.charAt(i);
+      if (replace) {
+        if ('{' == ch) {
+          final StringBuilder name = new StringBuilder();
+          int j = i + 1;
+          for (; j < pattern.length() && '}' != pattern.charAt(j); j++) {
+            name.append(pattern.charAt(j));
+          }
+          if (j + 1 < pattern.length()) {
+            j++;
+            list.add(createElement(name.toString(), pattern.charAt(j)));
+            i = j;
+          } else {
+            list.add(createElement(ch));
+          }
+        } else {
+          list.add(createElement(ch));
+        }
+        replace = false;
+      } else if (ch == '%') {
+        replace = true;
+        list.add(new Literal(buf.toString()));
+        buf = new StringBuilder();
+      } else {
+        buf.append(ch);
+      }
+    }
+    if (buf.length() > 0) {
+      list.add(new Literal(buf.toString()));
+    }
+    return list.toArray(new Element[list.size()]);
+  }
+
+  private Element createElement(String name, char code) {
+    switch (code) {
+      case 'i':
+        return new RequestHeader(nextSlot(), name);
+      case 'c':
+        return new CookieValue(nextSlot(), name);
+      case 'o':
+        return new ResponseHeader(nextSlot(), name);
+      case 'p':
+        return "remote".equals(name) ? new RemotePort(nextSlot()) : new LocalPort(nextSlot());
+      case 'r':
+        return new RequestAttribute(nextSlot(), name);
+      case 's':
+        return new SessionAttribute(nextSlot(), name);
+      case 't':
+        return new DateAndTime(name);
+      default:
+        return new Literal("???");
+    }
+  }
+
+  private Element createElement(char code) {
+    switch (code) {
+      case 'a':
+        return new RemoteAddr(nextSlot());
+      case 'A':
+        return new Literal(LOCAL_ADDR_VALUE);
+      case 'b':
+        return new BytesSent(true);
+      case 'B':
+        return new BytesSent(false);
+      case 'D':
+        return new ElapsedTime(true);
+      case 'F':
+        return new FirstByteTime();
+      case 'h':
+        return new RemoteHost(nextSlot());
+      case 'H':
+        return new Protocol(nextSlot());
+      case 'I':
+        return new ThreadName(nextSlot());
+      case 'l':
+        return new Literal("-");
+      case 'm':
+        return new Method(nextSlot());
+      case 'p':
+        return new LocalPort(nextSlot());
+      case 'q':
+        return new Query(nextSlot());
+      case 'r':
+        return new RequestLine(nextSlot(), nextSlot(), nextSlot(), nextSlot());
+      case 's':
+        return new Status();
+      case 'S':
+        return new SessionId(nextSlot());
+      case 't':
+        return new DateAndTime("");
+      case 'T':
+        return new ElapsedTime(false);
+      case 'u':
+        return new RemoteUser(nextSlot());
+      case 'U':
+        return new RequestURI(nextSlot());
+      case 'v':
+        return new ServerName(nextSlot());
+      default:
+        return new Literal("???" + code + "???");
+    }
+  }
+
+  private int nextSlot() {
+    return this.slots++;
+  }
+
+  // ----------------------------------------------------- Elements
+
+  private interface Element {
+
+    void capture(Request request, Response response, CapturedEntry entry);
+
+    void render(CapturedEntry entry, CharArrayWriter out);
+  }
+
+  private static final class Literal implements Element {
+
+    private final String text;
+
+    Literal(String text) {
+      this.text = text;
+    }
+
+    @Override
+    public void capture(Request request, Response response, CapturedEntry entry) {
+    }
+
+    @Override
+    public void render(CapturedEntry entry, CharArrayWriter out) {
+      out.append(this.text);
+    }
+  }
+
+  /**
+   * A String read from the request or response into one slot of the entry.
+   */
+  private abstract static class Value implements Element {
+
+    final int slot;
+
+    Value(int slot) {
+      this.slot = slot;
+    }
+
+    abstract String read(Request request, Response response);
+
+    @Override
+    public void capture(Request request, Response response, CapturedEntry entry) {
+      entry.values[this.slot] = read(request, response);
+    }
+
+    @Override
+    public void render(CapturedEntry entry, CharArrayWriter out) {
+      out.append(entry.values[this.slot]);
+    }
+  }
+
+  /**
+   * A value rendered as "-" when missing.
+   */
+  private abstract static class OptionalValue extends Value {
+
+    OptionalValue(int slot) {
+      super(slot);
+    }
+
+    @Override
+    public void render(CapturedEntry entry, CharArrayWriter out) {
+      final String value = entry.values[this.slot];
+      if (value == null) {
+        out.append('-');
+      } else {
+        out.append(value);
+      }
+    }
+  }
+
+  private final class RemoteAddr extends Value {
+
+    RemoteAddr(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      if (requestAttributesEnabled) {
+        final Object addr = request.getAttribute(AccessLog.REMOTE_ADDR_ATTRIBUTE);
+        if (addr != null) {
+          return addr.toString();
+        }
+      }
+      return request.getRemoteAddr();
+    }
+  }
+
+  private final class RemoteHost extends OptionalValue {
+
+    RemoteHost(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      String value = null;
+      if (requestAttributesEnabled) {
+        final Object host = request.getAttribute(AccessLog.REMOTE_HOST_ATTRIBUTE);
+        if (host != null) {
+          value = host.toString();
+        }
+      }
+      if (value == null || value.length() == 0) {
+        value = request.getRemoteHost();
+      }
+      return value == null || value.length() == 0 ? null : value;
+    }
+  }
+
+  private final class Protocol extends Value {
+
+    Protocol(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      if (requestAttributesEnabled) {
+        final Object protocol = request.getAttribute(AccessLog.PROTOCOL_ATTRIBUTE);
+        if (protocol != null) {
+          return protocol.toString();
+        }
+      }
+      return request.getProtocol();
+    }
+  }
+
+  private final class LocalPort extends Value {
+
+    LocalPort(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      if (requestAttributesEnabled) {
+        final Object port = request.getAttribute(AccessLog.SERVER_PORT_ATTRIBUTE);
+        if (port != null) {
+          return port.toString();
+        }
+      }
+      return Integer.toString(request.getServerPort());
+    }
+  }
+
+  private static final class RemotePort extends Value {
+
+    RemotePort(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      return Integer.toString(request.getRemotePort());
+    }
+  }
+
+  private static final class Method extends Value {
+
+    Method(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      return request.getMethod();
+    }
+  }
+
+  private static final class RequestURI extends Value {
+
+    RequestURI(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      return request.getRequestURI();
+    }
+  }
+
+  private static final class ServerName extends Value {
+
+    ServerName(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      return request.getServerName();
+    }
+  }
+
+  private static final class RemoteUser extends OptionalValue {
+
+    RemoteUser(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      return request.getRemoteUser();
+    }
+  }
+
+  private static final class SessionId extends OptionalValue {
+
+    SessionId(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      final Session session = request.getSessionInternal(false);
+      return session == null ? null : session.getIdInternal();
+    }
+  }
+
+  private static final class ThreadName extends Value {
+
+    ThreadName(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      final RequestInfo requestInfo = request.getCoyoteRequest().getRequestProcessor();
+      return requestInfo == null ? "-" : requestInfo.getWorkerThreadName();
+    }
+  }
+
+  private static final class Query extends Value {
+
+    Query(int slot) {
+      super(slot);
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      return request.getQueryString();
+    }
+
+    @Override
+    public void render(CapturedEntry entry, CharArrayWriter out) {
+      final String query = entry.values[this.slot];
+      if (query != null) {
+        out.append('?').append(query);
+      }
+    }
+  }
+
+  private static final class RequestLine implements Element {
+
+    private final int methodSlot;
+    private final int uriSlot;
+    private final int querySlot;
+    private final int protocolSlot;
+
+    RequestLine(int methodSlot, int uriSlot, int querySlot, int protocolSlot) {
+      this.methodSlot = methodSlot;
+      this.uriSlot = uriSlot;
+      this.querySlot = querySlot;
+      this.protocolSlot = protocolSlot;
+    }
+
+    @Override
+    public void capture(Request request, Response response, CapturedEntry entry) {
+      entry.values[this.methodSlot] = request.getMethod();
+      entry.values[this.uriSlot] = request.getRequestURI();
+      entry.values[this.querySlot] = request.getQueryString();
+      entry.values[this.protocolSlot] = request.getProtocol();
+    }
+
+    @Override
+    public void render(CapturedEntry entry, CharArrayWriter out) {
+      final String method = entry.values[this.methodSlot];
+      if (method == null) {
+        out.append('-');
+        return;
+      }
+      out.append(method).append(' ').append(entry.values[this.uriSlot]);
+      final String query = entry.values[this.querySlot];
+      if (query != null) {
+        out.append('?').append(query);
+      }
+      out.append(' ').append(entry.values[this.protocolSlot]);
+    }
+  }
+
+  private static final class RequestHeader extends OptionalValue {
+
+    private final String header;
+
+    RequestHeader(int slot, String header) {
+      super(slot);
+      this.header = header;
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      final Enumeration<String> values = request.getHeaders(this.header);
+      if (!values.hasMoreElements()) {
+        return null;
+      }
+      final String first = values.nextElement();
+      if (!values.hasMoreElements()) {
+        return first;
+      }
+      final StringBuilder joined = new StringBuilder(first);
+      while (values.hasMoreElements()) {
+        joined.append(',').append(values.nextElement());
+      }
+      return joined.toString();
+    }
+  }
+
+  private static final class ResponseHeader extends OptionalValue {
+
+    private final String header;
+
+    ResponseHeader(int slot, String header) {
+      super(slot);
+      this.header = header;
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      final Collection<String> values = response.getHeaders(this.header);
+      final Iterator<String> iterator = values.iterator();
+      if (!iterator.hasNext()) {
+        return null;
+      }
+      final String first = iterator.next();
+      if (!iterator.hasNext()) {
+        return first;
+      }
+      final StringBuilder joined = new StringBuilder(first);
+      while (iterator.hasNext()) {
+        joined.append(',').append(iterator.next());
+      }
+      return joined.toString();
+    }
+  }
+
+  private static final class CookieValue extends Value {
+
+    private final String name;
+
+    CookieValue(int slot, String name) {
+      super(slot);
+      this.name = name;
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      final Cookie[] cookies = request.getCookies();
+      if (cookies != null) {
+        for (Cookie cookie : cookies) {
+          if (this.name.equals(cookie.getName())) {
+            return cookie.getValue();
+          }
+        }
+      }
+      return "-";
+    }
+  }
+
+  private static final class RequestAttribute extends OptionalValue {
+
+    private final String name;
+
+    RequestAttribute(int slot, String name) {
+      super(slot);
+      this.name = name;
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      final Object value = request.getAttribute(this.name);
+      return value == null ? null : value.toString();
+    }
+  }
+
+  private static final class SessionAttribute extends OptionalValue {
+
+    private final String name;
+
+    SessionAttribute(int slot, String name) {
+      super(slot);
+      this.name = name;
+    }
+
+    @Override
+    String read(Request request, Response response) {
+      final HttpSession session = request.getSession(false);
+      final Object value = session == null ? null : session.getAttribute(this.name);
+      return value == null ? null : value.toString();
+    }
+  }
+
+  private static final class Status implements Element {
+
+    @Override
+    public void capture(Request request, Response response, CapturedEntry entry) {
+    }
+
+    @Override
+    public void render(CapturedEntry entry, CharArrayWriter out) {
+      out.append(Integer.toString(entry.status));
+    }
+  }
+
+  private static final class BytesSent implements Element {
+
+    private final boolean conversion;
+
+    BytesSent(boolean conversion) {
+      this.conversion = conversion;
+    }
+
+    @Override
+    public void capture(Request request, Response response, CapturedEntry entry) {
+    }
+
+    @Override
+    public void render(CapturedEntry entry, CharArrayWriter out) {
+      if (this.conversion && entry.bytesSent <= 0) {
+        out.append('-');
+      } else {
+        out.append(Long.toString(entry.bytesSent));
+      }
+    }
+  }
+
+  private static final class ElapsedTime implements Element {
+
+    private final boolean millis;
+
+    ElapsedTime(boolean millis) {
+      this.millis = millis;
+    }
+
+    @Override
+    public void capture(Request request, Response response, CapturedEntry entry) {
+    }
+
+    @Override
+    public void render(CapturedEntry entry, CharArrayWriter out) {
+      if (this.millis) {
+        out.append(Long.toString(entry.time));
+        return;
+      }
+      // XXX: seconds with three decimals
+      out.append(Long.toString(entry.time / 1000)).append('.');
+      final long remains = entry.time % 1000;
+      if (remains < 100) {
+        out.append('0');
+      }
+      if (remains < 10) {
+        out.append('0');
+      }
+      out.append(Long.toString(remains));
+    }
+  }
+
+  private static final class FirstByteTime implements Element {
+
+    @Override
+    public void capture(Request request, Response response, CapturedEntry entry) {
+    }
+
+    @Override
+    public void render(CapturedEntry entry, CharArrayWriter out) {
+      if (entry.commitTime == -1) {
+        out.append('-');
+      } else {
+        out.append(Long.toString(entry.commitTime - entry.startTime));
+      }
+    }
+  }
+
+  /**
+   * %t and %{format}t; the formatted second is reused while entries of the same second follow.
+   */
+  private final class DateAndTime implements Element {
+
+    private final boolean usesBegin;
+    private final char type;
+    private final SimpleDateFormat format;
+    private final boolean usesMillis;
+    private final Date date = new Date();
+
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedText;
+
+    DateAndTime(String header) {
+      boolean begin = false;
+      if (header.equals("begin") || header.startsWith("begin:")) {
+        begin = true;
+        header = header.length() > 5 ? header.substring(6) : "";
+      } else if (header.equals("end") || header.startsWith("end:")) {
+        header = header.length() > 3 ? header.substring(4) : "";
+      }
+      this.usesBegin = begin;
+
+      if (header.length() == 0) {
+        this.type = 'c';
+        this.format = new SimpleDateFormat(CLF_FORMAT, Locale.US);
+      } else if (header.equals("sec")) {
+        this.type = 's';
+        this.format = null;
+      } else if (header.equals("msec")) {
+        this.type = 'm';
+        this.format = null;
+      } else if (header.equals("msec_frac")) {
+        this.type = 'f';
+        this.format = null;
+      } else {
+        this.type = 'd';
+        this.format = new SimpleDateFormat(header, locale);
+      }
+      if (this.format != null) {
+        this.format.setTimeZone(TimeZone.getDefault());
+      }
+      this.usesMillis = this.format != null && usesMillis(this.format.toPattern());
+    }
+
+    @Override
+    public void capture(Request request, Response response, CapturedEntry entry) {
+    }
+
+    @Override
+    public void render(CapturedEntry entry, CharArrayWriter out) {
+      long timestamp = entry.startTime + entry.time;
+      if (this.usesBegin) {
+        timestamp -= entry.time;
+      }
+      switch (this.type) {
+        case 's':
+          out.append(Long.toString(timestamp / 1000));
+          return;
+        case 'm':
+          out.append(Long.toString(timestamp));
+          return;
+        case 'f':
+          final long frac = timestamp % 1000;
+          if (frac < 100) {
+            out.append('0');
+          }
+          if (frac < 10) {
+            out.append('0');
+          }
+          out.append(Long.toString(frac));
+          return;
+        default:
+          if (this.type == 'c') {
+            out.append('[').append(format(timestamp)).append(']');
+          } else {
+            out.append(format(timestamp));
+          }
+      }
+    }
+
+    private String format(long timestamp) {
+      if (this.usesMillis) {
+        this.date.setTime(timestamp);
+        return this.format.format(this.date);
+      }
+      final long second = timestamp / 1000;
+      if (second != this.cachedSecond) {
+        this.date.setTime(timestamp);
+        this.cachedText = this.format.format(this.date);
+        this.cachedSecond = second;
+      }
+      return this.cachedText;
+    }
+
+    /**
+     * @return whether the pattern has an unquoted 'S'
+     */
+    private boolean usesMillis(String pattern) {
+      boolean quoted = false;
+      for (int i = 0; i < pattern.length(); i++) {
+        final char ch = pattern.charAt(i);
+        if (ch == '\'') {
+          quoted = !quoted;
+        } else if (ch == 'S' && !quoted) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
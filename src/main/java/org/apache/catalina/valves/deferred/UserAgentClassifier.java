@@ -0,0 +1,195 @@
+package org.apache.catalina.valves.deferred;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classifies User-Agent headers into browser, operating system and device classes, and tells bots
+ * and HTTP libraries apart, so collectors can aggregate by them without parsing user agents.
+ *
+ * The rules are a short ordered list of tokens per class, the first token found wins; they know the
+ * common browsers and crawlers, anything else is "other". The distinct user agents are few compared
+ * with the requests, so classifications are memoized in an LRU map keyed by the raw header,
+ * already rendered as the JSON members {@link DeferredFormatter} adds to the entry, e.g.
+ * {@code "ua_browser":"chrome","ua_os":"android","ua_device":"mobile","ua_bot":false}.
+ *
+ * Not thread-safe: a classifier is only used by the formatter thread; its counters can be read by
+ * any thread.
+ */
+public class UserAgentClassifier {
+
+  public static final int DEFAULT_CACHE_SIZE = 1024;
+
+  // XXX: user agents longer than this are classified but not cached, they are mostly forged
+  private static final int MAX_CACHED_LENGTH = 512;
+
+  private static final String OTHER = "other";
+
+  // XXX: checked first; the token, then the class
+  private static final String[][] BOTS = {
+      {"Googlebot", "googlebot"},
+      {"bingbot", "bingbot"},
+      {"YandexBot", "yandexbot"},
+      {"Baiduspider", "baiduspider"},
+      {"DuckDuckBot", "duckduckbot"},
+      {"Slurp", "yahoo"},
+      {"facebookexternalhit", "facebook"},
+      {"Twitterbot", "twitterbot"},
+      {"AhrefsBot", "ahrefsbot"},
+      {"SemrushBot", "semrushbot"},
+      {"HeadlessChrome", "headlesschrome"},
+      {"curl/", "curl"},
+      {"Wget/", "wget"},
+      {"python-requests/", "python-requests"},
+      {"Go-http-client/", "go-http-client"},
+      {"okhttp/", "okhttp"},
+      {"Apache-HttpClient/", "apache-httpclient"},
+      {"Java/", "java"},
+      {"bot", OTHER},
+      {"Bot", OTHER},
+      {"crawler", OTHER},
+      {"spider", OTHER}
+  };
+
+  // XXX: Chromium based browsers before Chrome, Chrome before Safari, all of them claim to be Safari
+  private static final String[][] BROWSERS = {
+      {"Edg/", "edge"},
+      {"Edge/", "edge"},
+      {"OPR/", "opera"},
+      {"Opera", "opera"},
+      {"SamsungBrowser/", "samsung"},
+      {"UCBrowser/", "uc"},
+      {"YaBrowser/", "yandex"},
+      {"Firefox/", "firefox"},
+      {"FxiOS/", "firefox"},
+      {"CriOS/", "chrome"},
+      {"Chrome/", "chrome"},
+      {"Chromium/", "chrome"},
+      {"MSIE ", "ie"},
+      {"Trident/", "ie"},
+      {"Safari/", "safari"}
+  };
+
+  // XXX: Android before Linux, iOS before macOS, iPads may claim to be Macs
+  private static final String[][] OPERATING_SYSTEMS = {
+      {"Windows", "windows"},
+      {"iPhone", "ios"},
+      {"iPad", "ios"},
+      {"iPod", "ios"},
+      {"Android", "android"},
+      {"CrOS", "chromeos"},
+      {"Mac OS X", "macos"},
+      {"Macintosh", "macos"},
+      {"Linux", "linux"}
+  };
+
+  private final int cacheSize;
+  private final Map<String, char[]> cache;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param cacheSize the maximum number of memoized user agents
+   */
+  public UserAgentClassifier(final int cacheSize) {
+    if (cacheSize < 1) {
+      throw new IllegalArgumentException("User agent cache size must be positive, was: " + cacheSize);
+    }
+    this.cacheSize = cacheSize;
+    this.cache = new LinkedHashMap<String, char[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, char[]> eldest) {
+        if (size() <= cacheSize) {
+          return false;
+        }
+        UserAgentClassifier.this.evictions.incrementAndGet();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @param userAgent the raw User-Agent header
+   * @return the JSON members classifying it, without surrounding braces or commas
+   */
+  public char[] classify(String userAgent) {
+    char[] members = this.cache.get(userAgent);
+    if (members != null) {
+      this.hits.incrementAndGet();
+      return members;
+    }
+    this.misses.incrementAndGet();
+    members = render(userAgent);
+    if (userAgent.length() <= MAX_CACHED_LENGTH) {
+      this.cache.put(userAgent, members);
+    }
+    return members;
+  }
+
+  public int getCacheSize() {
+    return cacheSize;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Counters of the cache, e.g. {@code capacity=1024, hits=1180, misses=20, evictions=0}
+   */
+  public String getStatistics() {
+    return new StringBuilder().
+        append("capacity=").append(getCacheSize()).
+        append(", hits=").append(getHits()).
+        append(", misses=").append(getMisses()).
+        append(", evictions=").append(getEvictions()).toString();
+  }
+
+  static char[] render(String userAgent) {
+    final String bot = match(userAgent, BOTS);
+    final String os = match(userAgent, OPERATING_SYSTEMS);
+    final String browser = bot != null ? bot : match(userAgent, BROWSERS);
+    final String device = bot != null ? "bot" : device(userAgent, os);
+    return new StringBuilder().
+        append("\"ua_browser\":\"").append(browser != null ? browser : OTHER).
+        append("\",\"ua_os\":\"").append(os != null ? os : OTHER).
+        append("\",\"ua_device\":\"").append(device).
+        append("\",\"ua_bot\":").append(bot != null).toString().toCharArray();
+  }
+
+  private static String device(String userAgent, String os) {
+    if (userAgent.contains("iPad") || userAgent.contains("Tablet")
+        || "android".equals(os) && !userAgent.contains("Mobile")) {
+      return "tablet";
+    }
+    if (userAgent.contains("Mobi") || "ios".equals(os) || "android".equals(os)) {
+      return "mobile";
+    }
+    if (os != null) {
+      return "desktop";
+    }
+    return OTHER;
+  }
+
+  private static String match(String userAgent, String[][] rules) {
+    for (String[] rule : rules) {
+      if (userAgent.contains(rule[0])) {
+        return rule[1];
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,129 @@
+package org.apache.catalina.valves.encoder;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * One access log entry handed to a {@link MessageEncoder}: the rendered pattern plus the metadata
+ * of the message.
+ *
+ * Records are mutable and meant to be pooled. The body is not copied; it references the chars of
+ * the writer or array it was set from, which must not change until the record is encoded.
+ */
+public final class AccessLogRecord {
+
+  private final Writer bodyCapture = new Writer() {
+    @Override
+    public void write(char[] chars, int offset, int length) {
+      body = chars;
+      bodyOffset = offset;
+      bodyLength = length;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  };
+
+  private char[] body;
+  private int bodyOffset;
+  private int bodyLength;
+  private long timestamp;
+  private int priority;
+  private byte[] senderId;
+  private long sequenceId;
+
+  /**
+   * Reference the chars of the rendered pattern without copying them.
+   */
+  public void setBody(CharArrayWriter charArrayWriter) {
+    try {
+      // XXX: CharArrayWriter hands its internal buffer to a single write(char[], int, int) call
+      charArrayWriter.writeTo(this.bodyCapture);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void setBody(char[] body, int offset, int length) {
+    this.body = body;
+    this.bodyOffset = offset;
+    this.bodyLength = length;
+  }
+
+  public char[] getBody() {
+    return body;
+  }
+
+  public int getBodyOffset() {
+    return bodyOffset;
+  }
+
+  public int getBodyLength() {
+    return bodyLength;
+  }
+
+  /**
+   * @return the time of the entry in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * @return the syslog PRI value, facility | severity
+   */
+  public int getPriority() {
+    return priority;
+  }
+
+  public void setPriority(int priority) {
+    this.priority = priority;
+  }
+
+  /**
+   * Stamp the message with the instance id of its sender and its sequence number at that sender.
+   *
+   * @param senderId the US-ASCII instance id of the sender
+   * @param sequenceId the sequence number, from 1
+   */
+  public void setSequence(byte[] senderId, long sequenceId) {
+    this.senderId = senderId;
+    this.sequenceId = sequenceId;
+  }
+
+  /**
+   * @return whether the message is stamped with a sender id and sequence number
+   */
+  public boolean hasSequence() {
+    return senderId != null;
+  }
+
+  public byte[] getSenderId() {
+    return senderId;
+  }
+
+  public long getSequenceId() {
+    return sequenceId;
+  }
+
+  /**
+   * Drop the reference to the body so the record can be pooled.
+   */
+  public void clear() {
+    this.body = null;
+    this.bodyOffset = 0;
+    this.bodyLength = 0;
+    this.senderId = null;
+    this.sequenceId = 0;
+  }
+}
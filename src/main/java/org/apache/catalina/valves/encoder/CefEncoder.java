@@ -0,0 +1,90 @@
+package org.apache.catalina.valves.encoder;
+
+import java.nio.ByteBuffer;
+import org.apache.catalina.util.ServerInfo;
+
+/**
+ * Writes the entry as an ArcSight Common Event Format (CEF) event; the rendered pattern becomes the
+ * {@code msg} extension.
+ *
+ * <pre>
+ * CEF:0|Apache|Tomcat|8.0.49.0|access|HTTP access|3|rt=1524812940982 msg=...
+ * </pre>
+ *
+ * The CEF severity is derived from the syslog severity of the record.
+ */
+public class CefEncoder implements MessageEncoder {
+
+  // XXX: syslog severity emerg..debug mapped to CEF severity 10 (highest) .. 0
+  private static final byte[][] SEVERITIES = {
+      Utf8.bytes("10"), Utf8.bytes("9"), Utf8.bytes("8"), Utf8.bytes("7"),
+      Utf8.bytes("5"), Utf8.bytes("4"), Utf8.bytes("3"), Utf8.bytes("1")
+  };
+
+  private static final byte[] RECEIPT_TIME = Utf8.bytes("|rt=");
+  private static final byte[] MESSAGE = Utf8.bytes(" msg=");
+
+  private final byte[] header;
+
+  public CefEncoder() {
+    this.header = Utf8.bytes(new StringBuilder().
+        append("CEF:0|Apache|Tomcat|").
+        append(escapeHeaderField(ServerInfo.getServerNumber())).
+        append("|access|HTTP access|").toString());
+  }
+
+  @Override
+  public boolean encode(AccessLogRecord record, ByteBuffer out) {
+    if (!Utf8.put(this.header, out)
+        || !Utf8.put(SEVERITIES[record.getPriority() & 0x07], out)
+        || !Utf8.put(RECEIPT_TIME, out)
+        || !Utf8.putDecimal(record.getTimestamp(), out)
+        || !Utf8.put(MESSAGE, out)) {
+      return false;
+    }
+
+    final char[] chars = record.getBody();
+    final int end = record.getBodyOffset() + record.getBodyLength();
+    int runStart = record.getBodyOffset();
+    for (int i = runStart; i < end; i++) {
+      final byte escaped = escape(chars[i]);
+      if (escaped != 0) {
+        if (!Utf8.encode(chars, runStart, i - runStart, out) || !putEscaped(escaped, out)) {
+          return false;
+        }
+        runStart = i + 1;
+      }
+    }
+    return Utf8.encode(chars, runStart, end - runStart, out);
+  }
+
+  /**
+   * @return the char to write after a backslash, or 0 if c needs no escaping in an extension value
+   */
+  private static byte escape(char c) {
+    switch (c) {
+      case '\\':
+      case '=':
+        return (byte) c;
+      case '\n':
+        return (byte) 'n';
+      case '\r':
+        return (byte) 'r';
+      default:
+        return 0;
+    }
+  }
+
+  private static boolean putEscaped(byte b, ByteBuffer out) {
+    if (out.remaining() < 2) {
+      return false;
+    }
+    out.put((byte) '\\');
+    out.put(b);
+    return true;
+  }
+
+  private static String escapeHeaderField(String field) {
+    return field.replace("\\", "\\\\").replace("|", "\\|");
+  }
+}
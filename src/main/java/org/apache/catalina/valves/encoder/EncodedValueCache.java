@@ -0,0 +1,178 @@
+package org.apache.catalina.valves.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, concurrent cache mapping raw field values to their escaped UTF-8 encoding, so values that
+ * repeat across millions of lines (user agents, virtual hosts, methods, protocols, common URIs) are
+ * copied rather than re-encoded.
+ *
+ * The cache is 4-way set associative with CLOCK eviction inside each set: a hit marks the entry
+ * referenced, and the clock hand of a full set skips (and clears) referenced entries before
+ * replacing one. A value is only admitted the second time it is seen within a short window, so
+ * one-off values such as timestamps or unique URIs neither allocate nor displace repeating ones.
+ *
+ * Lookups are lock-free; races between concurrent inserts only lose an insert.
+ */
+public class EncodedValueCache {
+
+  public static final int MIN_VALUE_LENGTH = 3;
+  public static final int MAX_VALUE_LENGTH = 512;
+
+  private static final int WAYS = 4;
+
+  private final int setMask;
+  private final AtomicReferenceArray<Entry> entries;
+  private final AtomicIntegerArray clockHands;
+  private final int[] doorkeeper;
+  private final int doorkeeperShift;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxEntries the maximum number of cached values, rounded up to a power of two
+   */
+  public EncodedValueCache(int maxEntries) {
+    int sets = 1;
+    while (sets * WAYS < maxEntries) {
+      sets <<= 1;
+    }
+    this.setMask = sets - 1;
+    this.entries = new AtomicReferenceArray<Entry>(sets * WAYS);
+    this.clockHands = new AtomicIntegerArray(sets);
+    this.doorkeeper = new int[sets * WAYS];
+    this.doorkeeperShift = 32 - Integer.numberOfTrailingZeros(sets * WAYS);
+  }
+
+  /**
+   * @return whether values of this length are worth caching
+   */
+  public static boolean isCacheable(int length) {
+    return length >= MIN_VALUE_LENGTH && length <= MAX_VALUE_LENGTH;
+  }
+
+  public static int hash(char[] chars, int offset, int length) {
+    int hash = 0;
+    for (int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + chars[i];
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * @return the encoded bytes of the value, or null if it is not cached
+   */
+  public byte[] get(char[] chars, int offset, int length, int hash) {
+    final int base = (hash & this.setMask) * WAYS;
+    for (int way = 0; way < WAYS; way++) {
+      final Entry entry = this.entries.get(base + way);
+      if (entry != null && entry.hash == hash && entry.matches(chars, offset, length)) {
+        if (!entry.referenced) {
+          entry.referenced = true;
+        }
+        this.hits.incrementAndGet();
+        return entry.value;
+      }
+    }
+    this.misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Offer the encoding of a value that missed the cache, the bytes of out between encodedStart and
+   * encodedEnd; it is only copied and stored if the value was seen recently.
+   */
+  public void admit(char[] chars, int offset, int length, int hash, ByteBuffer out, int encodedStart,
+      int encodedEnd) {
+    // XXX: Fibonacci hashing, so the slot is not taken from the same bits as the set
+    final int doorkeeperIndex = hash * 0x9e3779b9 >>> this.doorkeeperShift;
+    if (this.doorkeeper[doorkeeperIndex] != hash) {
+      this.doorkeeper[doorkeeperIndex] = hash;
+      return;
+    }
+
+    final byte[] value = new byte[encodedEnd - encodedStart];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = out.get(encodedStart + i);
+    }
+    final char[] key = new char[length];
+    System.arraycopy(chars, offset, key, 0, length);
+    final Entry entry = new Entry(key, hash, value);
+
+    final int set = hash & this.setMask;
+    final int base = set * WAYS;
+    for (int sweep = 0; sweep < 2 * WAYS; sweep++) {
+      final int index = base + (this.clockHands.getAndIncrement(set) & (WAYS - 1));
+      final Entry current = this.entries.get(index);
+      if (current == null) {
+        this.entries.set(index, entry);
+        return;
+      }
+      if (current.referenced) {
+        current.referenced = false;
+        continue;
+      }
+      this.entries.set(index, entry);
+      this.evictions.incrementAndGet();
+      return;
+    }
+  }
+
+  public int getCapacity() {
+    return this.entries.length();
+  }
+
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  public long getEvictions() {
+    return this.evictions.get();
+  }
+
+  /**
+   * Counters of the cache, e.g. {@code capacity=1024, hits=12, misses=3, evictions=0}
+   */
+  public String getStatistics() {
+    return new StringBuilder().
+        append("capacity=").append(getCapacity()).
+        append(", hits=").append(getHits()).
+        append(", misses=").append(getMisses()).
+        append(", evictions=").append(getEvictions()).toString();
+  }
+
+  private static final class Entry {
+
+    private final char[] key;
+    private final int hash;
+    private final byte[] value;
+    private volatile boolean referenced;
+
+    Entry(char[] key, int hash, byte[] value) {
+      this.key = key;
+      this.hash = hash;
+      this.value = value;
+    }
+
+    boolean matches(char[] chars, int offset, int length) {
+      if (this.key.length != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (this.key[i] != chars[offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,400 @@
+package org.apache.catalina.valves.encoder;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import org.apache.catalina.MessageEncodingException;
+
+/**
+ * Writes a rendered pattern that forms a JSON object, validating it on the way.
+ *
+ * The document is copied in a single pass in its original member order with insignificant
+ * whitespace removed. Unquoted values that are not JSON literals, e.g. {@code -} rendered by
+ * {@code %b}, are written as strings; anything else that is not a JSON object is rejected.
+ *
+ * With an {@link EncodedValueCache}, the encoding of quoted names and values is looked up before
+ * being escaped and encoded again.
+ *
+ * Stamped records get two more members, {@code "sender_id":"5f0c3a9e12b47d68","sequence_id":42},
+ * at the end of the top level object.
+ */
+public class JsonEncoder implements MessageEncoder {
+
+  private static final int MAX_DEPTH = 64;
+
+  private static final byte[] HEX = Utf8.bytes("0123456789abcdef");
+  private static final byte[] SENDER_ID = Utf8.bytes("\"sender_id\":\"");
+  private static final byte[] SEQUENCE_ID = Utf8.bytes("\",\"sequence_id\":");
+
+  private final EncodedValueCache valueCache;
+
+  public JsonEncoder() {
+    this(null);
+  }
+
+  /**
+   * @param valueCache the cache of encoded strings, or null
+   */
+  public JsonEncoder(EncodedValueCache valueCache) {
+    this.valueCache = valueCache;
+  }
+
+  public EncodedValueCache getValueCache() {
+    return valueCache;
+  }
+
+  @Override
+  public boolean encode(AccessLogRecord record, ByteBuffer out) throws MessageEncodingException {
+    final char[] chars = record.getBody();
+    final int end = record.getBodyOffset() + record.getBodyLength();
+
+    try {
+      int i = skipWhitespace(chars, record.getBodyOffset(), end);
+      if (i >= end || chars[i] != '{') {
+        throw new MessageEncodingException("expected '{'", i);
+      }
+      i = skipWhitespace(chars, object(chars, i, end, out, 1), end);
+      if (i != end) {
+        throw new MessageEncodingException("unexpected trailing content", i);
+      }
+      return !record.hasSequence() || putSequence(record, out);
+    } catch (BufferOverflowException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Reopen the top level object and append the sender id and sequence number.
+   */
+  private static boolean putSequence(AccessLogRecord record, ByteBuffer out) {
+    out.position(out.position() - 1);
+    if (out.get(out.position() - 1) != '{') {
+      out.put((byte) ',');
+    }
+    if (Utf8.put(SENDER_ID, out)
+        && Utf8.put(record.getSenderId(), out)
+        && Utf8.put(SEQUENCE_ID, out)
+        && Utf8.putDecimal(record.getSequenceId(), out)
+        && out.hasRemaining()) {
+      out.put((byte) '}');
+      return true;
+    }
+    return false;
+  }
+
+  private int value(char[] chars, int start, int end, ByteBuffer out, int depth)
+      throws MessageEncodingException {
+    if (start >= end) {
+      throw new MessageEncodingException("expected a value", start);
+    }
+    switch (chars[start]) {
+      case '{':
+        return object(chars, start, end, out, depth + 1);
+      case '[':
+        return array(chars, start, end, out, depth + 1);
+      case '"':
+        return string(chars, start, end, out);
+      default:
+        return bareword(chars, start, end, out);
+    }
+  }
+
+  private int object(char[] chars, int start, int end, ByteBuffer out, int depth)
+      throws MessageEncodingException {
+    if (depth > MAX_DEPTH) {
+      throw new MessageEncodingException("nesting too deep", start);
+    }
+    out.put((byte) '{');
+    int i = skipWhitespace(chars, start + 1, end);
+    if (i < end && chars[i] == '}') {
+      out.put((byte) '}');
+      return i + 1;
+    }
+
+    while (true) {
+      if (i >= end || chars[i] != '"') {
+        throw new MessageEncodingException("expected a member name", i);
+      }
+      i = skipWhitespace(chars, string(chars, i, end, out), end);
+      if (i >= end || chars[i] != ':') {
+        throw new MessageEncodingException("expected ':'", i);
+      }
+      out.put((byte) ':');
+      i = skipWhitespace(chars, value(chars, skipWhitespace(chars, i + 1, end), end, out, depth), end);
+
+      if (i < end && chars[i] == ',') {
+        out.put((byte) ',');
+        i = skipWhitespace(chars, i + 1, end);
+      } else if (i < end && chars[i] == '}') {
+        out.put((byte) '}');
+        return i + 1;
+      } else {
+        throw new MessageEncodingException("expected ',' or '}'", i);
+      }
+    }
+  }
+
+  private int array(char[] chars, int start, int end, ByteBuffer out, int depth)
+      throws MessageEncodingException {
+    if (depth > MAX_DEPTH) {
+      throw new MessageEncodingException("nesting too deep", start);
+    }
+    out.put((byte) '[');
+    int i = skipWhitespace(chars, start + 1, end);
+    if (i < end && chars[i] == ']') {
+      out.put((byte) ']');
+      return i + 1;
+    }
+
+    while (true) {
+      i = skipWhitespace(chars, value(chars, i, end, out, depth), end);
+
+      if (i < end && chars[i] == ',') {
+        out.put((byte) ',');
+        i = skipWhitespace(chars, i + 1, end);
+      } else if (i < end && chars[i] == ']') {
+        out.put((byte) ']');
+        return i + 1;
+      } else {
+        throw new MessageEncodingException("expected ',' or ']'", i);
+      }
+    }
+  }
+
+  /**
+   * Copy a quoted string, from the value cache if it holds its encoding.
+   */
+  private int string(char[] chars, int start, int end, ByteBuffer out) throws MessageEncodingException {
+    final int close = this.valueCache == null ? -1 : closingQuote(chars, start, end);
+    final int length = close - start - 1;
+    if (close < 0 || !EncodedValueCache.isCacheable(length)) {
+      return copyString(chars, start, end, out);
+    }
+
+    final int hash = EncodedValueCache.hash(chars, start + 1, length);
+    final byte[] encoded = this.valueCache.get(chars, start + 1, length, hash);
+    if (encoded != null) {
+      out.put((byte) '"');
+      out.put(encoded);
+      out.put((byte) '"');
+      return close + 1;
+    }
+
+    final int encodedStart = out.position() + 1;
+    final int next = copyString(chars, start, end, out);
+    this.valueCache.admit(chars, start + 1, length, hash, out, encodedStart, out.position() - 1);
+    return next;
+  }
+
+  /**
+   * @return the index of the quote closing the string, or -1 if it is unterminated; escape sequences
+   * are validated by {@link #copyString(char[], int, int, ByteBuffer)}
+   */
+  private static int closingQuote(char[] chars, int start, int end) {
+    int i = start + 1;
+    while (i < end) {
+      final char c = chars[i];
+      if (c == '"') {
+        return i;
+      }
+      i += c == '\\' ? 2 : 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Copy a quoted string, keeping valid escape sequences and escaping raw control characters.
+   */
+  private static int copyString(char[] chars, int start, int end, ByteBuffer out) throws MessageEncodingException {
+    out.put((byte) '"');
+    int i = start + 1;
+    int runStart = i;
+
+    while (i < end) {
+      final char c = chars[i];
+      if (c == '"') {
+        putRun(chars, runStart, i, out);
+        out.put((byte) '"');
+        return i + 1;
+      }
+      if (c == '\\') {
+        if (i + 1 >= end || !isEscape(chars, i + 1, end)) {
+          throw new MessageEncodingException("invalid escape sequence", i);
+        }
+        i += chars[i + 1] == 'u' ? 6 : 2;
+      } else if (c < 0x20) {
+        putRun(chars, runStart, i, out);
+        putControl(c, out);
+        i++;
+        runStart = i;
+      } else {
+        i++;
+      }
+    }
+    throw new MessageEncodingException("unterminated string", start);
+  }
+
+  /**
+   * Copy a number or true/false/null, or write any other unquoted token as a string.
+   */
+  private static int bareword(char[] chars, int start, int end, ByteBuffer out) throws MessageEncodingException {
+    int i = start;
+    while (i < end && !isDelimiter(chars[i])) {
+      i++;
+    }
+    if (i == start) {
+      throw new MessageEncodingException("expected a value", start);
+    }
+
+    if (isNumber(chars, start, i) || isLiteral(chars, start, i)) {
+      putRun(chars, start, i, out);
+      return i;
+    }
+
+    out.put((byte) '"');
+    for (int j = start; j < i; j++) {
+      final char c = chars[j];
+      if (c == '"' || c == '\\') {
+        out.put((byte) '\\');
+        out.put((byte) c);
+      } else if (c < 0x20) {
+        putControl(c, out);
+      } else {
+        putRun(chars, j, j + 1, out);
+      }
+    }
+    out.put((byte) '"');
+    return i;
+  }
+
+  private static void putRun(char[] chars, int start, int end, ByteBuffer out) {
+    if (!Utf8.encode(chars, start, end - start, out)) {
+      throw new BufferOverflowException();
+    }
+  }
+
+  private static void putControl(char c, ByteBuffer out) {
+    out.put((byte) '\\');
+    switch (c) {
+      case '\n':
+        out.put((byte) 'n');
+        break;
+      case '\r':
+        out.put((byte) 'r');
+        break;
+      case '\t':
+        out.put((byte) 't');
+        break;
+      default:
+        out.put((byte) 'u');
+        out.put((byte) '0');
+        out.put((byte) '0');
+        out.put(HEX[c >> 4]);
+        out.put(HEX[c & 0xf]);
+    }
+  }
+
+  private static boolean isEscape(char[] chars, int i, int end) {
+    switch (chars[i]) {
+      case '"':
+      case '\\':
+      case '/':
+      case 'b':
+      case 'f':
+      case 'n':
+      case 'r':
+      case 't':
+        return true;
+      case 'u':
+        if (i + 4 >= end) {
+          return false;
+        }
+        for (int j = i + 1; j <= i + 4; j++) {
+          if (Character.digit(chars[j], 16) < 0) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isDelimiter(char c) {
+    return c == ',' || c == '}' || c == ']' || c == ':' || isWhitespace(c);
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+  }
+
+  private static int skipWhitespace(char[] chars, int start, int end) {
+    int i = start;
+    while (i < end && isWhitespace(chars[i])) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isLiteral(char[] chars, int start, int end) {
+    return matches(chars, start, end, "true") || matches(chars, start, end, "false")
+        || matches(chars, start, end, "null");
+  }
+
+  private static boolean matches(char[] chars, int start, int end, String literal) {
+    if (end - start != literal.length()) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (chars[i] != literal.charAt(i - start)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * -? (0 | [1-9][0-9]*) (. [0-9]+)? ([eE] [+-]? [0-9]+)?
+   */
+  private static boolean isNumber(char[] chars, int start, int end) {
+    int i = start;
+    if (i < end && chars[i] == '-') {
+      i++;
+    }
+    if (i >= end || !isDigit(chars[i])) {
+      return false;
+    }
+    if (chars[i] == '0') {
+      i++;
+    } else {
+      while (i < end && isDigit(chars[i])) {
+        i++;
+      }
+    }
+    if (i < end && chars[i] == '.') {
+      i++;
+      if (i >= end || !isDigit(chars[i])) {
+        return false;
+      }
+      while (i < end && isDigit(chars[i])) {
+        i++;
+      }
+    }
+    if (i < end && (chars[i] == 'e' || chars[i] == 'E')) {
+      i++;
+      if (i < end && (chars[i] == '+' || chars[i] == '-')) {
+        i++;
+      }
+      if (i >= end || !isDigit(chars[i])) {
+        return false;
+      }
+      while (i < end && isDigit(chars[i])) {
+        i++;
+      }
+    }
+    return i == end;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
@@ -0,0 +1,25 @@
+package org.apache.catalina.valves.encoder;
+
+import java.nio.ByteBuffer;
+import org.apache.catalina.MessageEncodingException;
+
+/**
+ * Encodes an access log entry into the wire format of a log collector.
+ *
+ * Encoders write directly into a caller-supplied buffer and must not allocate per message. They
+ * are shared by all request threads and therefore stateless; any encoder can be paired with any
+ * {@link org.apache.catalina.valves.transport.Transport}.
+ */
+public interface MessageEncoder {
+
+  /**
+   * Encode the record into the buffer, starting at its position and never writing past its limit.
+   *
+   * @param record the access log entry
+   * @param out the buffer to write to; its position is advanced past the written bytes
+   * @return true if the whole message was written, false if it was cut at the buffer's limit
+   * @throws MessageEncodingException if the entry cannot be represented in this format, e.g. a body
+   * that is not a JSON document
+   */
+  boolean encode(AccessLogRecord record, ByteBuffer out) throws MessageEncodingException;
+}
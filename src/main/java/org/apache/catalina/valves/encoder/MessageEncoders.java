@@ -0,0 +1,68 @@
+package org.apache.catalina.valves.encoder;
+
+import java.util.Locale;
+
+/**
+ * Creates encoders from the {@code format} attribute of the valves.
+ *
+ * A format is either a body format, {@code text}, {@code json} or {@code cef}, or a syslog framing,
+ * {@code rfc5424} or {@code rfc3164}, optionally followed by '+' and the body format it carries,
+ * e.g. {@code rfc5424+json}. A framing without body format carries {@code text}.
+ */
+public final class MessageEncoders {
+
+  public static final String TEXT = "text";
+  public static final String JSON = "json";
+  public static final String CEF = "cef";
+  public static final String RFC5424 = "rfc5424";
+  public static final String RFC3164 = "rfc3164";
+
+  private MessageEncoders() {
+  }
+
+  /**
+   * @param format the format, case-insensitive
+   * @param hostname the HOSTNAME of syslog framings
+   * @param syslogHeader whether the RFC 5424 framing writes its header, see {@link Rfc5424Encoder}
+   * @throws IllegalArgumentException if the format is unknown
+   */
+  public static MessageEncoder create(String format, String hostname, boolean syslogHeader) {
+    return create(format, hostname, syslogHeader, null);
+  }
+
+  /**
+   * @param format the format, case-insensitive
+   * @param hostname the HOSTNAME of syslog framings
+   * @param syslogHeader whether the RFC 5424 framing writes its header, see {@link Rfc5424Encoder}
+   * @param valueCache the cache of encoded field values of the {@code json} body format, or null
+   * @throws IllegalArgumentException if the format is unknown
+   */
+  public static MessageEncoder create(String format, String hostname, boolean syslogHeader,
+      EncodedValueCache valueCache) {
+    final String normalized = format.trim().toLowerCase(Locale.ENGLISH);
+    final int plus = normalized.indexOf('+');
+    final String framing = plus < 0 ? normalized : normalized.substring(0, plus);
+
+    if (RFC5424.equals(framing) || RFC3164.equals(framing)) {
+      final MessageEncoder bodyEncoder = createBody(plus < 0 ? TEXT : normalized.substring(plus + 1), format, valueCache);
+      return RFC5424.equals(framing)
+          ? new Rfc5424Encoder(hostname, syslogHeader, bodyEncoder)
+          : new Rfc3164Encoder(hostname, bodyEncoder);
+    }
+    if (plus >= 0) {
+      throw new IllegalArgumentException("Unknown syslog framing in format: " + format);
+    }
+    return createBody(normalized, format, valueCache);
+  }
+
+  private static MessageEncoder createBody(String bodyFormat, String format, EncodedValueCache valueCache) {
+    if (TEXT.equals(bodyFormat)) {
+      return new TextEncoder();
+    } else if (JSON.equals(bodyFormat)) {
+      return new JsonEncoder(valueCache);
+    } else if (CEF.equals(bodyFormat)) {
+      return new CefEncoder();
+    }
+    throw new IllegalArgumentException("Unknown format: " + format);
+  }
+}
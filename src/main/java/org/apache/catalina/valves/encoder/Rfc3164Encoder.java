@@ -0,0 +1,42 @@
+package org.apache.catalina.valves.encoder;
+
+import java.nio.ByteBuffer;
+import org.apache.catalina.MessageEncodingException;
+
+/**
+ * RFC 3164 (BSD) syslog framing, for collectors that predate RFC 5424.
+ *
+ * <pre>
+ * &lt;PRI&gt;Mmm dd hh:mm:ss HOSTNAME TAG[PID]: MSG
+ * </pre>
+ *
+ * The timestamp is written in local time and TAG is the name of the logging thread, restricted to
+ * 32 alphanumeric characters.
+ */
+public class Rfc3164Encoder extends SyslogEncoder {
+
+  private static final int TAG_MAX_LENGTH = 32;
+  private static final byte[] PID_END = Utf8.bytes("]: ");
+
+  public Rfc3164Encoder(String hostname, MessageEncoder bodyEncoder) {
+    super(hostname, bodyEncoder);
+  }
+
+  @Override
+  public boolean encode(AccessLogRecord record, ByteBuffer out) throws MessageEncodingException {
+    if (!putPri(record.getPriority(), out)
+        || !Timestamps.putRfc3164(record.getTimestamp(), out)
+        || !putSpace(out)
+        || !Utf8.put(this.hostname, out)
+        || !putSpace(out)
+        || !putField(Thread.currentThread().getName(), TAG_MAX_LENGTH, true, out)
+        || !out.hasRemaining()) {
+      return false;
+    }
+    out.put((byte) '[');
+    if (!Utf8.put(PROCID, out) || !Utf8.put(PID_END, out)) {
+      return false;
+    }
+    return putBody(record, out);
+  }
+}
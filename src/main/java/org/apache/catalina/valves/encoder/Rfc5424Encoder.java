@@ -0,0 +1,76 @@
+package org.apache.catalina.valves.encoder;
+
+import java.nio.ByteBuffer;
+import org.apache.catalina.MessageEncodingException;
+
+/**
+ * RFC 5424 syslog framing.
+ *
+ * <pre>
+ * SYSLOG-MSG = PRI VERSION SP TIMESTAMP SP HOSTNAME SP APP-NAME SP PROCID SP MSGID SP STRUCTURED-DATA [SP MSG]
+ * </pre>
+ *
+ * The timestamp is written in UTC, APP-NAME is the name of the logging thread and PROCID the process
+ * id of the JVM; MSGID is left empty. STRUCTURED-DATA carries the sender id and sequence number of
+ * stamped records, e.g. {@code [sequence@32473 senderId="5f0c3a9e12b47d68" sequenceId="42"]}, and is
+ * empty otherwise. Without header only the PRI part is written before the message.
+ */
+public class Rfc5424Encoder extends SyslogEncoder {
+
+  private static final int APP_NAME_MAX_LENGTH = 48;
+  private static final byte[] VERSION = Utf8.bytes("1 ");
+  private static final byte[] NO_MSGID_NO_STRUCTURED_DATA = Utf8.bytes(" - - ");
+  private static final byte[] NO_MSGID = Utf8.bytes(" - ");
+
+  /**
+   * SD-ID of the sequence element, under the example enterprise number of RFC 5612.
+   */
+  public static final String SEQUENCE_SD_ID = "sequence@32473";
+
+  private static final byte[] SEQUENCE_SENDER_ID = Utf8.bytes("[" + SEQUENCE_SD_ID + " senderId=\"");
+  private static final byte[] SEQUENCE_SEQUENCE_ID = Utf8.bytes("\" sequenceId=\"");
+  private static final byte[] SEQUENCE_END = Utf8.bytes("\"] ");
+
+  private final boolean header;
+
+  public Rfc5424Encoder(String hostname, boolean header, MessageEncoder bodyEncoder) {
+    super(hostname, bodyEncoder);
+    this.header = header;
+  }
+
+  public boolean isHeader() {
+    return header;
+  }
+
+  @Override
+  public boolean encode(AccessLogRecord record, ByteBuffer out) throws MessageEncodingException {
+    if (!putPri(record.getPriority(), out)) {
+      return false;
+    }
+    if (this.header && !putHeader(record, out)) {
+      return false;
+    }
+    return putBody(record, out);
+  }
+
+  private boolean putHeader(AccessLogRecord record, ByteBuffer out) {
+    return Utf8.put(VERSION, out)
+        && Timestamps.putRfc3339(record.getTimestamp(), out)
+        && putSpace(out)
+        && Utf8.put(this.hostname, out)
+        && putSpace(out)
+        && putField(Thread.currentThread().getName(), APP_NAME_MAX_LENGTH, false, out)
+        && putSpace(out)
+        && Utf8.put(PROCID, out)
+        && (record.hasSequence() ? putSequence(record, out) : Utf8.put(NO_MSGID_NO_STRUCTURED_DATA, out));
+  }
+
+  private static boolean putSequence(AccessLogRecord record, ByteBuffer out) {
+    return Utf8.put(NO_MSGID, out)
+        && Utf8.put(SEQUENCE_SENDER_ID, out)
+        && Utf8.put(record.getSenderId(), out)
+        && Utf8.put(SEQUENCE_SEQUENCE_ID, out)
+        && Utf8.putDecimal(record.getSequenceId(), out)
+        && Utf8.put(SEQUENCE_END, out);
+  }
+}
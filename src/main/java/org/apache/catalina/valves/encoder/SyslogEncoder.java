@@ -0,0 +1,83 @@
+package org.apache.catalina.valves.encoder;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import org.apache.catalina.MessageEncodingException;
+
+/**
+ * Base of the syslog framings; the message part is written by a body encoder, so any body format,
+ * e.g. JSON, can travel inside syslog.
+ */
+public abstract class SyslogEncoder implements MessageEncoder {
+
+  // XXX: facility 0..23 times severity 0..7
+  private static final byte[][] PRI = new byte[24 * 8][];
+
+  static {
+    for (int i = 0; i < PRI.length; i++) {
+      PRI[i] = Utf8.bytes("<" + i + ">");
+    }
+  }
+
+  protected static final byte[] NILVALUE = Utf8.bytes("-");
+  protected static final byte[] PROCID = Utf8.bytes(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+
+  protected final byte[] hostname;
+  protected final MessageEncoder bodyEncoder;
+
+  /**
+   * @param hostname the HOSTNAME field identifying this machine
+   * @param bodyEncoder writes the MSG part
+   */
+  protected SyslogEncoder(String hostname, MessageEncoder bodyEncoder) {
+    this.hostname = Utf8.bytes(hostname);
+    this.bodyEncoder = bodyEncoder;
+  }
+
+  public MessageEncoder getBodyEncoder() {
+    return bodyEncoder;
+  }
+
+  /**
+   * Write the PRI part, e.g. {@code <14>}; out-of-range priorities are written as user.notice.
+   */
+  protected static boolean putPri(int priority, ByteBuffer out) {
+    return Utf8.put(PRI[priority >= 0 && priority < PRI.length ? priority : 13], out);
+  }
+
+  /**
+   * Write a header field restricted to a character set and length, replacing any other character
+   * with '_'; an empty value is written as the NILVALUE '-'.
+   *
+   * @param alphanumericOnly restrict to [A-Za-z0-9._-] rather than printable US-ASCII
+   */
+  protected static boolean putField(CharSequence value, int maxLength, boolean alphanumericOnly, ByteBuffer out) {
+    final int length = Math.min(value.length(), maxLength);
+    if (length == 0) {
+      return Utf8.put(NILVALUE, out);
+    }
+    if (out.remaining() < length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      final boolean allowed = alphanumericOnly
+          ? (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '_' || c == '-'
+          : c >= 33 && c <= 126;
+      out.put(allowed ? (byte) c : (byte) '_');
+    }
+    return true;
+  }
+
+  protected static boolean putSpace(ByteBuffer out) {
+    if (!out.hasRemaining()) {
+      return false;
+    }
+    out.put((byte) ' ');
+    return true;
+  }
+
+  protected boolean putBody(AccessLogRecord record, ByteBuffer out) throws MessageEncodingException {
+    return this.bodyEncoder.encode(record, out);
+  }
+}
@@ -0,0 +1,14 @@
+package org.apache.catalina.valves.encoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the rendered pattern as is, UTF-8 encoded.
+ */
+public class TextEncoder implements MessageEncoder {
+
+  @Override
+  public boolean encode(AccessLogRecord record, ByteBuffer out) {
+    return Utf8.encode(record.getBody(), record.getBodyOffset(), record.getBodyLength(), out);
+  }
+}
@@ -0,0 +1,114 @@
+package org.apache.catalina.valves.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.TimeZone;
+
+/**
+ * Allocation-free rendering of syslog timestamps.
+ */
+final class Timestamps {
+
+  private static final long MILLIS_PER_DAY = 86400000L;
+
+  // XXX: TimeZone.getDefault() returns a fresh clone on every call
+  private static final TimeZone LOCAL_TIME_ZONE = TimeZone.getDefault();
+
+  private static final byte[][] MONTHS = {
+      Utf8.bytes("Jan"), Utf8.bytes("Feb"), Utf8.bytes("Mar"), Utf8.bytes("Apr"),
+      Utf8.bytes("May"), Utf8.bytes("Jun"), Utf8.bytes("Jul"), Utf8.bytes("Aug"),
+      Utf8.bytes("Sep"), Utf8.bytes("Oct"), Utf8.bytes("Nov"), Utf8.bytes("Dec")
+  };
+
+  static final int RFC3339_LENGTH = 24;
+  static final int RFC3164_LENGTH = 15;
+
+  private Timestamps() {
+  }
+
+  /**
+   * Write an RFC 3339 UTC timestamp with millisecond precision, e.g. {@code 2018-04-27T07:09:00.982Z}.
+   */
+  static boolean putRfc3339(long millis, ByteBuffer out) {
+    if (out.remaining() < RFC3339_LENGTH) {
+      return false;
+    }
+    final long days = floorDiv(millis, MILLIS_PER_DAY);
+    final int millisOfDay = (int) (millis - days * MILLIS_PER_DAY);
+    final long date = civilFromDays(days);
+
+    putDigits((int) (date >> 9), 4, out);
+    out.put((byte) '-');
+    putDigits((int) ((date >> 5) & 0xf), 2, out);
+    out.put((byte) '-');
+    putDigits((int) (date & 0x1f), 2, out);
+    out.put((byte) 'T');
+    putTime(millisOfDay, out);
+    out.put((byte) '.');
+    putDigits(millisOfDay % 1000, 3, out);
+    out.put((byte) 'Z');
+    return true;
+  }
+
+  /**
+   * Write an RFC 3164 timestamp in local time, e.g. {@code Apr  7 07:09:00}.
+   */
+  static boolean putRfc3164(long millis, ByteBuffer out) {
+    if (out.remaining() < RFC3164_LENGTH) {
+      return false;
+    }
+    final long localMillis = millis + LOCAL_TIME_ZONE.getOffset(millis);
+    final long days = floorDiv(localMillis, MILLIS_PER_DAY);
+    final int millisOfDay = (int) (localMillis - days * MILLIS_PER_DAY);
+    final long date = civilFromDays(days);
+
+    out.put(MONTHS[(int) ((date >> 5) & 0xf) - 1]);
+    out.put((byte) ' ');
+    final int day = (int) (date & 0x1f);
+    out.put(day < 10 ? (byte) ' ' : (byte) ('0' + day / 10));
+    out.put((byte) ('0' + day % 10));
+    out.put((byte) ' ');
+    putTime(millisOfDay, out);
+    return true;
+  }
+
+  private static void putTime(int millisOfDay, ByteBuffer out) {
+    final int secondOfDay = millisOfDay / 1000;
+    putDigits(secondOfDay / 3600, 2, out);
+    out.put((byte) ':');
+    putDigits(secondOfDay / 60 % 60, 2, out);
+    out.put((byte) ':');
+    putDigits(secondOfDay % 60, 2, out);
+  }
+
+  private static void putDigits(int value, int digits, ByteBuffer out) {
+    final int position = out.position();
+    int rest = value;
+    for (int i = digits - 1; i >= 0; i--) {
+      out.put(position + i, (byte) ('0' + rest % 10));
+      rest /= 10;
+    }
+    out.position(position + digits);
+  }
+
+  /**
+   * Convert days since the epoch to a proleptic Gregorian date, packed as {@code year << 9 | month
+   * << 5 | day}; see Howard Hinnant's civil_from_days algorithm.
+   */
+  private static long civilFromDays(long epochDays) {
+    final long z = epochDays + 719468;
+    final long era = (z >= 0 ? z : z - 146096) / 146097;
+    final long dayOfEra = z - era * 146097;
+    final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    final long shiftedMonth = (5 * dayOfYear + 2) / 153;
+    final long day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    final long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    return year << 9 | month << 5 | day;
+  }
+
+  private static long floorDiv(long dividend, long divisor) {
+    final long quotient = dividend / divisor;
+    return (dividend % divisor != 0 && (dividend < 0) != (divisor < 0)) ? quotient - 1 : quotient;
+  }
+}
@@ -0,0 +1,149 @@
+package org.apache.catalina.valves.encoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Allocation-free UTF-8 encoding into a {@link ByteBuffer}.
+ *
+ * The methods write as much as fits between the buffer's position and limit and never split the
+ * encoding of a character; they return false when the input had to be cut.
+ */
+public final class Utf8 {
+
+  private static final byte REPLACEMENT = (byte) '?';
+
+  private Utf8() {
+  }
+
+  public static boolean encode(char[] chars, int offset, int length, ByteBuffer out) {
+    final int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      final char c = chars[i];
+      if (c < 0x80) {
+        if (!out.hasRemaining()) {
+          return false;
+        }
+        out.put((byte) c);
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+        if (!putCodePoint(Character.toCodePoint(c, chars[++i]), out)) {
+          return false;
+        }
+      } else if (!putCodePoint(c, out)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static boolean encode(CharSequence chars, ByteBuffer out) {
+    final int end = chars.length();
+    for (int i = 0; i < end; i++) {
+      final char c = chars.charAt(i);
+      if (c < 0x80) {
+        if (!out.hasRemaining()) {
+          return false;
+        }
+        out.put((byte) c);
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+        if (!putCodePoint(Character.toCodePoint(c, chars.charAt(++i)), out)) {
+          return false;
+        }
+      } else if (!putCodePoint(c, out)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Copy pre-encoded bytes, as many as fit.
+   */
+  public static boolean put(byte[] bytes, ByteBuffer out) {
+    final int length = Math.min(bytes.length, out.remaining());
+    out.put(bytes, 0, length);
+    return length == bytes.length;
+  }
+
+  /**
+   * Write the decimal representation of a non-negative value.
+   */
+  public static boolean putDecimal(long value, ByteBuffer out) {
+    int digits = 1;
+    for (long rest = value / 10; rest > 0; rest /= 10) {
+      digits++;
+    }
+    if (out.remaining() < digits) {
+      return false;
+    }
+    final int position = out.position();
+    long rest = value;
+    for (int i = digits - 1; i >= 0; i--) {
+      out.put(position + i, (byte) ('0' + rest % 10));
+      rest /= 10;
+    }
+    out.position(position + digits);
+    return true;
+  }
+
+  /**
+   * @return the number of bytes the chars take in UTF-8
+   */
+  public static int encodedLength(char[] chars, int offset, int length) {
+    final int end = offset + length;
+    int encodedLength = 0;
+    for (int i = offset; i < end; i++) {
+      final char c = chars[i];
+      if (c < 0x80) {
+        encodedLength += 1;
+      } else if (c < 0x800) {
+        encodedLength += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+        encodedLength += 4;
+        i++;
+      } else {
+        encodedLength += 3;
+      }
+    }
+    return encodedLength;
+  }
+
+  /**
+   * Encode once, e.g. constant header fields, to copy with {@link #put(byte[], ByteBuffer)} later.
+   */
+  public static byte[] bytes(String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static boolean putCodePoint(int codePoint, ByteBuffer out) {
+    if (Character.isSurrogate((char) codePoint) && codePoint <= Character.MAX_VALUE) {
+      // XXX: unpaired surrogate, not representable in UTF-8
+      if (!out.hasRemaining()) {
+        return false;
+      }
+      out.put(REPLACEMENT);
+    } else if (codePoint < 0x800) {
+      if (out.remaining() < 2) {
+        return false;
+      }
+      out.put((byte) (0xc0 | (codePoint >> 6)));
+      out.put((byte) (0x80 | (codePoint & 0x3f)));
+    } else if (codePoint < 0x10000) {
+      if (out.remaining() < 3) {
+        return false;
+      }
+      out.put((byte) (0xe0 | (codePoint >> 12)));
+      out.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+      out.put((byte) (0x80 | (codePoint & 0x3f)));
+    } else {
+      if (out.remaining() < 4) {
+        return false;
+      }
+      out.put((byte) (0xf0 | (codePoint >> 18)));
+      out.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+      out.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+      out.put((byte) (0x80 | (codePoint & 0x3f)));
+    }
+    return true;
+  }
+}
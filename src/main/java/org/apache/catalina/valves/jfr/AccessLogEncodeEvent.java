@@ -0,0 +1,39 @@
+package org.apache.catalina.valves.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Encoding of one access log entry on the request thread, until it is handed to the sender.
+ */
+@Name("org.apache.catalina.valves.AccessLogEncode")
+@Label("Access Log Encode")
+@Description("Encoding of an access log entry by a valve")
+@Category({"Apache Tomcat", "Access Log"})
+@Threshold("1 ms")
+@StackTrace(false)
+class AccessLogEncodeEvent extends jdk.jfr.Event {
+
+  @Label("Destination")
+  String destination;
+
+  @Label("Lane")
+  String lane;
+
+  @Label("Bytes")
+  @DataAmount
+  int bytes;
+
+  @Label("Truncated")
+  @Description("Whether the message was cut at the message length limit")
+  boolean truncated;
+
+  @Label("Drop Reason")
+  @Description("Why the sender did not accept the message, null if it did")
+  String dropReason;
+}
@@ -0,0 +1,95 @@
+package org.apache.catalina.valves.jfr;
+
+import org.apache.catalina.valves.transport.Lane;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Java Flight Recorder events of the valves: {@code org.apache.catalina.valves.AccessLogEncode} and
+ * {@code org.apache.catalina.valves.AccessLogSend}, both with a 1 ms default threshold that a
+ * recording's settings can lower or raise.
+ *
+ * While no recording is running, every method returns after reading one volatile flag, and on JVMs
+ * without jdk.jfr nothing is ever recorded. Events are handed around as {@code Object} so that
+ * callers do not link against jdk.jfr.
+ */
+public final class AccessLogEvents {
+
+  private static final Log LOG = LogFactory.getLog(AccessLogEvents.class);
+
+  private static volatile boolean recording;
+
+  static {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder");
+      FlightRecorderSupport.register();
+    } catch (ClassNotFoundException e) {
+      // XXX: JVM without Flight Recorder
+    } catch (RuntimeException | LinkageError e) {
+      LOG.warn("Flight Recorder events of the access log valves are disabled", e);
+    }
+  }
+
+  private AccessLogEvents() {
+  }
+
+  /**
+   * Start timing the encoding of an entry.
+   *
+   * @return the event, or null if it is not recorded
+   */
+  public static Object beginEncode() {
+    return recording ? FlightRecorderSupport.beginEncode() : null;
+  }
+
+  /**
+   * Stop timing the encoding of an entry; the event is committed once the sender took it.
+   */
+  public static void endEncode(Object encodeEvent) {
+    if (encodeEvent != null) {
+      FlightRecorderSupport.endEncode(encodeEvent);
+    }
+  }
+
+  /**
+   * @param encodeEvent the event of {@link #beginEncode()}, null is ignored
+   * @param dropReason why the sender did not accept the message, null if it did
+   */
+  public static void commitEncode(Object encodeEvent, String destination, Lane lane, int bytes, boolean truncated,
+      String dropReason) {
+    if (encodeEvent != null) {
+      FlightRecorderSupport.commitEncode(encodeEvent, destination, lane, bytes, truncated, dropReason);
+    }
+  }
+
+  /**
+   * Start timing the delivery of a message to its transport.
+   *
+   * @return the event, or null if it is not recorded
+   */
+  public static Object beginSend() {
+    return recording ? FlightRecorderSupport.beginSend() : null;
+  }
+
+  /**
+   * @param sendEvent the event of {@link #beginSend()}, null is ignored
+   * @param queueWaitNanos the time the message was queued, 0 if sent synchronously
+   */
+  public static void commitSend(Object sendEvent, String destination, Lane lane, int bytes, long queueWaitNanos,
+      boolean failed) {
+    if (sendEvent != null) {
+      FlightRecorderSupport.commitSend(sendEvent, destination, lane, bytes, queueWaitNanos, failed);
+    }
+  }
+
+  /**
+   * @return whether a recording is running
+   */
+  public static boolean isRecording() {
+    return recording;
+  }
+
+  static void setRecording(boolean recording) {
+    AccessLogEvents.recording = recording;
+  }
+}
@@ -0,0 +1,40 @@
+package org.apache.catalina.valves.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Delivery of one access log message to its transport, on the request thread or the sender thread.
+ */
+@Name("org.apache.catalina.valves.AccessLogSend")
+@Label("Access Log Send")
+@Description("Delivery of an access log message to its transport")
+@Category({"Apache Tomcat", "Access Log"})
+@Threshold("1 ms")
+@StackTrace(false)
+class AccessLogSendEvent extends jdk.jfr.Event {
+
+  @Label("Destination")
+  String destination;
+
+  @Label("Lane")
+  String lane;
+
+  @Label("Bytes")
+  @DataAmount
+  int bytes;
+
+  @Label("Queue Wait")
+  @Description("Time the message spent in the async queue, 0 if sent synchronously")
+  @Timespan(Timespan.NANOSECONDS)
+  long queueWait;
+
+  @Label("Failed")
+  boolean failed;
+}
@@ -0,0 +1,95 @@
+package org.apache.catalina.valves.jfr;
+
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.apache.catalina.valves.transport.Lane;
+
+/**
+ * The part of {@link AccessLogEvents} that links against jdk.jfr, only loaded once it is known to be
+ * available.
+ */
+final class FlightRecorderSupport {
+
+  private static final EventType ENCODE_EVENT_TYPE = EventType.getEventType(AccessLogEncodeEvent.class);
+  private static final EventType SEND_EVENT_TYPE = EventType.getEventType(AccessLogSendEvent.class);
+
+  private FlightRecorderSupport() {
+  }
+
+  /**
+   * Track whether a recording is running, starting with the recordings of -XX:StartFlightRecording.
+   */
+  static void register() {
+    FlightRecorder.addListener(new FlightRecorderListener() {
+      @Override
+      public void recorderInitialized(FlightRecorder recorder) {
+        update(recorder);
+      }
+
+      @Override
+      public void recordingStateChanged(Recording recording) {
+        update(FlightRecorder.getFlightRecorder());
+      }
+    });
+  }
+
+  static Object beginEncode() {
+    if (!ENCODE_EVENT_TYPE.isEnabled()) {
+      return null;
+    }
+    final AccessLogEncodeEvent event = new AccessLogEncodeEvent();
+    event.begin();
+    return event;
+  }
+
+  static void endEncode(Object encodeEvent) {
+    ((AccessLogEncodeEvent) encodeEvent).end();
+  }
+
+  static void commitEncode(Object encodeEvent, String destination, Lane lane, int bytes, boolean truncated,
+      String dropReason) {
+    final AccessLogEncodeEvent event = (AccessLogEncodeEvent) encodeEvent;
+    if (event.shouldCommit()) {
+      event.destination = destination;
+      event.lane = lane.toLowerCaseName();
+      event.bytes = bytes;
+      event.truncated = truncated;
+      event.dropReason = dropReason;
+      event.commit();
+    }
+  }
+
+  static Object beginSend() {
+    if (!SEND_EVENT_TYPE.isEnabled()) {
+      return null;
+    }
+    final AccessLogSendEvent event = new AccessLogSendEvent();
+    event.begin();
+    return event;
+  }
+
+  static void commitSend(Object sendEvent, String destination, Lane lane, int bytes, long queueWaitNanos,
+      boolean failed) {
+    final AccessLogSendEvent event = (AccessLogSendEvent) sendEvent;
+    event.end();
+    if (event.shouldCommit()) {
+      event.destination = destination;
+      event.lane = lane.toLowerCaseName();
+      event.bytes = bytes;
+      event.queueWait = queueWaitNanos;
+      event.failed = failed;
+      event.commit();
+    }
+  }
+
+  private static void update(FlightRecorder recorder) {
+    boolean running = false;
+    for (final Recording recording : recorder.getRecordings()) {
+      running |= recording.getState() == RecordingState.RUNNING;
+    }
+    AccessLogEvents.setRecording(running);
+  }
+}
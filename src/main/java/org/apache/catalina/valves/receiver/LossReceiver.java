@@ -0,0 +1,148 @@
+package org.apache.catalina.valves.receiver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.catalina.valves.encoder.Rfc5424Encoder;
+
+/**
+ * Measures the loss of messages stamped by valves with {@code sequenceNumbers} enabled, from the
+ * RFC 5424 structured data element {@code [sequence@32473 senderId="..." sequenceId="..."]} or the
+ * {@code "sender_id"} and {@code "sequence_id"} members of JSON messages.
+ *
+ * Run it in place of, or next to, a collector to measure the loss of a UDP path:
+ *
+ * <pre>
+ * java -cp SyslogValve.jar org.apache.catalina.valves.receiver.LossReceiver --port 5140 --interval 10
+ * </pre>
+ */
+public class LossReceiver {
+
+  private static final String SD_SENDER_ID = Rfc5424Encoder.SEQUENCE_SD_ID + " senderId=\"";
+  private static final String SD_SEQUENCE_ID = "sequenceId=\"";
+  private static final String JSON_SENDER_ID = "\"sender_id\":\"";
+  private static final String JSON_SEQUENCE_ID = "\"sequence_id\":";
+
+  private final Map<String, SequenceTracker> trackers = new LinkedHashMap<String, SequenceTracker>();
+  private long unstamped;
+
+  /**
+   * Account for one received message.
+   *
+   * @return false if the message carries no sender id and sequence number
+   */
+  public synchronized boolean receive(String message) {
+    String senderId = valueAfter(message, SD_SENDER_ID, '"');
+    String sequenceId = senderId == null ? null : valueAfter(message, SD_SEQUENCE_ID, '"');
+    if (sequenceId == null) {
+      senderId = valueAfter(message, JSON_SENDER_ID, '"');
+      sequenceId = senderId == null ? null : valueAfter(message, JSON_SEQUENCE_ID, '}');
+    }
+    if (sequenceId == null) {
+      this.unstamped++;
+      return false;
+    }
+
+    final long sequence;
+    try {
+      sequence = Long.parseLong(sequenceId.trim());
+    } catch (NumberFormatException e) {
+      this.unstamped++;
+      return false;
+    }
+    SequenceTracker tracker = this.trackers.get(senderId);
+    if (tracker == null) {
+      tracker = new SequenceTracker();
+      this.trackers.put(senderId, tracker);
+    }
+    tracker.record(sequence);
+    return true;
+  }
+
+  /**
+   * @return the tracker of a sender instance, null if nothing was received from it
+   */
+  public synchronized SequenceTracker getTracker(String senderId) {
+    return this.trackers.get(senderId);
+  }
+
+  /**
+   * One line per sender instance, e.g. {@code 5f0c3a9e12b47d68 received=998 lost=2 loss=0.200%
+   * duplicates=0}, then the number of messages without sequence.
+   */
+  public synchronized String getReport() {
+    final StringBuilder report = new StringBuilder();
+    for (final Map.Entry<String, SequenceTracker> entry : this.trackers.entrySet()) {
+      final SequenceTracker tracker = entry.getValue();
+      report.
+          append(entry.getKey()).
+          append(" received=").append(tracker.getReceived()).
+          append(" lost=").append(tracker.getLost()).
+          append(" loss=").append(String.format(Locale.ROOT, "%.3f%%", tracker.getLossRate() * 100)).
+          append(" duplicates=").append(tracker.getDuplicates()).
+          append('\n');
+    }
+    return report.append("unstamped=").append(this.unstamped).toString();
+  }
+
+  private static String valueAfter(String message, String key, char terminator) {
+    final int start = message.indexOf(key);
+    if (start < 0) {
+      return null;
+    }
+    final int valueStart = start + key.length();
+    int end = valueStart;
+    while (end < message.length() && message.charAt(end) != terminator && message.charAt(end) != ',') {
+      end++;
+    }
+    return end < message.length() && end > valueStart ? message.substring(valueStart, end) : null;
+  }
+
+  //------------------------------------------------------ Command line
+
+  public static void main(String[] args) throws IOException {
+    String host = "0.0.0.0";
+    int port = 514;
+    long intervalMillis = TimeUnit.SECONDS.toMillis(10);
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("--host".equals(args[i])) {
+        host = args[i + 1];
+      } else if ("--port".equals(args[i])) {
+        port = Integer.parseInt(args[i + 1]);
+      } else if ("--interval".equals(args[i])) {
+        intervalMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(args[i + 1]));
+      } else {
+        System.err.println("Usage: java -cp SyslogValve.jar " + LossReceiver.class.getName()
+            + " [--host host] [--port port] [--interval seconds]");
+        System.exit(2);
+      }
+    }
+
+    final LossReceiver receiver = new LossReceiver();
+    final DatagramPacket packet = new DatagramPacket(new byte[65535], 65535);
+    try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(host, port))) {
+      socket.setReceiveBufferSize(8 * 1024 * 1024);
+      socket.setSoTimeout((int) intervalMillis);
+      long nextReport = System.currentTimeMillis() + intervalMillis;
+      while (true) {
+        try {
+          socket.receive(packet);
+          receiver.receive(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+        } catch (SocketTimeoutException e) {
+          // XXX: report even when nothing arrives
+        }
+        if (System.currentTimeMillis() >= nextReport) {
+          System.out.println(receiver.getReport());
+          nextReport += intervalMillis;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package org.apache.catalina.valves.receiver;
+
+import java.util.Arrays;
+
+/**
+ * Counts the messages received from one sender instance against the range of sequence numbers seen,
+ * tolerating reordering, e.g. by the priority lanes of the async queue, and duplicates.
+ *
+ * Sequence numbers within {@link #WINDOW} of the highest one are tracked individually; older
+ * stragglers are counted as received without duplicate detection.
+ */
+public class SequenceTracker {
+
+  public static final int WINDOW = 1 << 16;
+
+  private final long[] seen = new long[WINDOW / 64];
+
+  private long lowest = -1;
+  private long highest = -1;
+  private long received;
+  private long duplicates;
+
+  /**
+   * @param sequenceId the sequence number of a received message, from 1
+   */
+  public synchronized void record(long sequenceId) {
+    if (this.highest < 0) {
+      this.lowest = sequenceId;
+      this.highest = sequenceId;
+      mark(sequenceId);
+      this.received++;
+      return;
+    }
+
+    if (sequenceId > this.highest) {
+      if (sequenceId - this.highest >= WINDOW) {
+        Arrays.fill(this.seen, 0);
+      } else {
+        for (long s = this.highest + 1; s < sequenceId; s++) {
+          unmark(s);
+        }
+      }
+      this.highest = sequenceId;
+    } else if (sequenceId <= this.highest - WINDOW) {
+      this.lowest = Math.min(this.lowest, sequenceId);
+      this.received++;
+      return;
+    } else if (isMarked(sequenceId) && sequenceId >= this.lowest) {
+      this.duplicates++;
+      return;
+    }
+
+    this.lowest = Math.min(this.lowest, sequenceId);
+    mark(sequenceId);
+    this.received++;
+  }
+
+  /**
+   * @return the number of distinct messages received
+   */
+  public synchronized long getReceived() {
+    return received;
+  }
+
+  public synchronized long getDuplicates() {
+    return duplicates;
+  }
+
+  /**
+   * @return the number of messages from the lowest to the highest sequence number received
+   */
+  public synchronized long getExpected() {
+    return this.highest < 0 ? 0 : this.highest - this.lowest + 1;
+  }
+
+  /**
+   * @return the number of messages in the sequence range that were not received
+   */
+  public synchronized long getLost() {
+    return Math.max(0, getExpected() - this.received);
+  }
+
+  /**
+   * @return the fraction of the sequence range that was not received, 0 to 1
+   */
+  public synchronized double getLossRate() {
+    final long expected = getExpected();
+    return expected == 0 ? 0 : getLost() / (double) expected;
+  }
+
+  private void mark(long sequenceId) {
+    final int bit = (int) (sequenceId & (WINDOW - 1));
+    this.seen[bit >>> 6] |= 1L << bit;
+  }
+
+  private void unmark(long sequenceId) {
+    final int bit = (int) (sequenceId & (WINDOW - 1));
+    this.seen[bit >>> 6] &= ~(1L << bit);
+  }
+
+  private boolean isMarked(long sequenceId) {
+    final int bit = (int) (sequenceId & (WINDOW - 1));
+    return (this.seen[bit >>> 6] & (1L << bit)) != 0;
+  }
+}
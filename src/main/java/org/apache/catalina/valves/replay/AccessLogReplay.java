@@ -0,0 +1,329 @@
+package org.apache.catalina.valves.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.CharBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.valves.AbstractAccessLogValve;
+import org.apache.catalina.valves.SyslogAccessLogValve;
+import org.apache.catalina.valves.UdpJSONAccessLogValve;
+import org.apache.catalina.valves.transport.Transport;
+import org.apache.tomcat.util.IntrospectionUtils;
+
+/**
+ * Replays Tomcat access log files, in the common or combined log format, through a {@code
+ * SyslogAccessLogValve} or {@code UdpJSONAccessLogValve}; for backfills, capacity planning and as a
+ * throughput benchmark.
+ *
+ * The valve is configured with the attributes it has in server.xml and renders its own pattern:
+ * each line is rebuilt into the request and response it was logged from, see {@link
+ * ReplayedExchange}, and handed to {@code log(Request, Response, long)}, so the pattern, encoder,
+ * sender and transport are those of production. As in production, the messages carry the time they
+ * are sent at, the rendered pattern the time of the entry. Replay runs as fast as possible or at a
+ * fixed rate.
+ *
+ * <pre>
+ * java -cp SyslogValve.jar org.apache.catalina.valves.replay.AccessLogReplay \
+ *     --valve json --host logs.example.com --port 5140 --rate 20000 localhost_access_log.2018-04-27.txt
+ * </pre>
+ */
+public class AccessLogReplay {
+
+  public static final String SYSLOG_VALVE = "syslog";
+  public static final String JSON_VALVE = "json";
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final AbstractAccessLogValve valve;
+  private final long rate;
+  private final List<CountingTransport> transports = new CopyOnWriteArrayList<CountingTransport>();
+
+  private final CombinedLogLine line = new CombinedLogLine();
+  private final ReplayedExchange exchange = new ReplayedExchange();
+
+  private long startNanos;
+  private long lines;
+  private long entries;
+  private long skipped;
+
+  /**
+   * @param valve {@link #SYSLOG_VALVE} or {@link #JSON_VALVE}, the valve the lines are logged with
+   * @param rate entries per second, 0 for as fast as possible
+   */
+  public AccessLogReplay(String valve, long rate) {
+    if (SYSLOG_VALVE.equals(valve)) {
+      this.valve = new SyslogAccessLogValve() {
+        @Override
+        protected Transport createTransport(InetSocketAddress destination)
+            throws IOException, GeneralSecurityException {
+          return count(super.createTransport(destination));
+        }
+      };
+    } else if (JSON_VALVE.equals(valve)) {
+      this.valve = new UdpJSONAccessLogValve() {
+        @Override
+        protected Transport createTransport() throws IOException {
+          return count(super.createTransport());
+        }
+      };
+    } else {
+      throw new IllegalArgumentException("Unknown valve: " + valve);
+    }
+    this.rate = rate;
+  }
+
+  /**
+   * Set an attribute of the valve, as in server.xml; call before {@link #start()}.
+   *
+   * @return false if the valve has no such attribute
+   */
+  public boolean setProperty(String name, String value) {
+    return IntrospectionUtils.setProperty(this.valve, name, value);
+  }
+
+  /**
+   * Start the valve, opening its sender.
+   *
+   * @throws LifecycleException if the valve fails to start
+   */
+  public void start() throws LifecycleException {
+    // XXX: valves register with JMX under their container
+    final StandardEngine engine = new StandardEngine();
+    engine.setName("AccessLogReplay");
+    this.valve.setContainer(engine);
+    this.valve.start();
+  }
+
+  /**
+   * Stop the valve; an asynchronous sender first drains its queue, so the counters cover every
+   * message sent.
+   *
+   * @throws LifecycleException if the valve fails to stop
+   */
+  public void stop() throws LifecycleException {
+    this.valve.stop();
+    this.valve.destroy();
+  }
+
+  /**
+   * Replay every line of the file.
+   *
+   * @throws IOException if the file cannot be read
+   */
+  public void replay(File file) throws IOException {
+    if (this.startNanos == 0) {
+      this.startNanos = System.nanoTime();
+    }
+
+    try (MappedLineReader reader = new MappedLineReader(file)) {
+      CharBuffer next;
+      while ((next = reader.nextLine()) != null) {
+        if (next.hasRemaining()) {
+          this.lines++;
+          replay(next);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the nanoseconds since the first file was replayed
+   */
+  public long getElapsedNanos() {
+    return this.startNanos == 0 ? 0 : System.nanoTime() - this.startNanos;
+  }
+
+  public long getLines() {
+    return lines;
+  }
+
+  /**
+   * Number of entries logged with the valve.
+   */
+  public long getEntries() {
+    return entries;
+  }
+
+  /**
+   * Number of lines not in the common or combined log format.
+   */
+  public long getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * Number of messages handed to the transports of the valve.
+   */
+  public long getMessages() {
+    long messages = 0;
+    for (final CountingTransport transport : this.transports) {
+      messages += transport.getMessages();
+    }
+    return messages;
+  }
+
+  /**
+   * Number of bytes handed to the transports of the valve.
+   */
+  public long getBytes() {
+    long bytes = 0;
+    for (final CountingTransport transport : this.transports) {
+      bytes += transport.getBytes();
+    }
+    return bytes;
+  }
+
+  private Transport count(Transport transport) {
+    final CountingTransport counting = new CountingTransport(transport);
+    this.transports.add(counting);
+    return counting;
+  }
+
+  private void replay(CharBuffer next) {
+    if (!this.line.parse(next)) {
+      this.skipped++;
+      return;
+    }
+
+    this.exchange.fill(this.line);
+    pace();
+    this.valve.log(this.exchange.getRequest(), this.exchange.getResponse(), 0);
+    this.entries++;
+  }
+
+  /**
+   * Wait until the next entry is due at the configured rate.
+   */
+  private void pace() {
+    if (this.rate <= 0) {
+      return;
+    }
+    final long due = this.startNanos + this.entries * NANOS_PER_SECOND / this.rate;
+    final long wait = due - System.nanoTime();
+    if (wait > 0) {
+      LockSupport.parkNanos(wait);
+    }
+  }
+
+  //------------------------------------------------------ Command line
+
+  public static void main(String[] args) throws IOException, LifecycleException {
+    String valve = SYSLOG_VALVE;
+    long rate = 0;
+    final List<String[]> properties = new ArrayList<String[]>();
+    properties.add(new String[] {"hostname", "localhost"});
+    properties.add(new String[] {"port", "514"});
+    final List<File> files = new ArrayList<File>();
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        final String arg = args[i];
+        if ("--valve".equals(arg)) {
+          valve = args[++i];
+        } else if ("--host".equals(arg)) {
+          properties.add(new String[] {"hostname", args[++i]});
+        } else if ("--port".equals(arg)) {
+          properties.add(new String[] {"port", args[++i]});
+        } else if ("--format".equals(arg)) {
+          properties.add(new String[] {"format", args[++i]});
+        } else if ("--rate".equals(arg)) {
+          rate = Long.parseLong(args[++i]);
+        } else if ("--async".equals(arg)) {
+          properties.add(new String[] {"async", "true"});
+        } else if ("--queueCapacity".equals(arg)) {
+          properties.add(new String[] {"queueCapacity", args[++i]});
+        } else if ("--msgLength".equals(arg)) {
+          properties.add(new String[] {null, args[++i]});
+        } else if ("--set".equals(arg)) {
+          final String property = args[++i];
+          final int equals = property.indexOf('=');
+          if (equals <= 0) {
+            throw new IllegalArgumentException("Expected --set attribute=value, not " + property);
+          }
+          properties.add(new String[] {property.substring(0, equals), property.substring(equals + 1)});
+        } else if (arg.startsWith("--")) {
+          throw new IllegalArgumentException("Unknown option: " + arg);
+        } else {
+          files.add(new File(arg));
+        }
+      }
+      if (files.isEmpty()) {
+        throw new IllegalArgumentException("No access log file given");
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      usage("Missing option value");
+      return;
+    } catch (IllegalArgumentException e) {
+      usage(e.getMessage());
+      return;
+    }
+
+    final AccessLogReplay replay;
+    try {
+      replay = new AccessLogReplay(valve, rate);
+      for (final String[] property : properties) {
+        // XXX: the valves name the maximum message length differently
+        final String name = property[0] != null
+            ? property[0]
+            : JSON_VALVE.equals(valve) ? "messageLengthLimit" : "msgLength";
+        if (!replay.setProperty(name, property[1])) {
+          throw new IllegalArgumentException("Unknown attribute of the " + valve + " valve: " + name);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      usage(e.getMessage());
+      return;
+    }
+
+    replay.start();
+    try {
+      for (final File file : files) {
+        replay.replay(file);
+      }
+    } finally {
+      // XXX: drains the async queue, so the elapsed time covers every message sent
+      replay.stop();
+    }
+
+    System.out.println(report(replay));
+  }
+
+  static String report(AccessLogReplay replay) {
+    final double seconds = Math.max(replay.getElapsedNanos(), 1) / (double) NANOS_PER_SECOND;
+    return new StringBuilder().
+        append("Replayed ").append(replay.getLines()).append(" lines in ").
+        append(String.format("%.3f", seconds)).append(" s: ").
+        append(replay.getEntries()).append(" entries logged, ").
+        append(replay.getMessages()).append(" messages sent, ").
+        append(Math.round(replay.getMessages() / seconds)).append(" messages/s, ").
+        append(Math.round(replay.getBytes() / seconds)).append(" bytes/s; ").
+        append(replay.getSkipped()).append(" lines skipped").toString();
+  }
+
+  private static void usage(String error) {
+    System.err.println(error);
+    System.err.println(
+        new StringBuilder().
+            append("Usage: java -cp SyslogValve.jar ").append(AccessLogReplay.class.getName()).
+            append(" [options] file...\n").
+            append("  --valve syslog|json   valve the lines are logged with (default syslog)\n").
+            append("  --host host           destination host, the hostname attribute (default localhost)\n").
+            append("  --port port           destination port, the port attribute (default 514)\n").
+            append("  --format format       wire format, the format attribute\n").
+            append("  --rate n              entries per second, 0 for as fast as possible (default 0)\n").
+            append("  --async               send from a background thread through the lane queue\n").
+            append("  --queueCapacity n     messages the async queue can hold\n").
+            append("  --msgLength n         maximum message length in bytes, msgLength or messageLengthLimit\n").
+            append("  --set attribute=value any other attribute of the valve, e.g. --set pattern=combined").toString()
+    );
+    System.exit(2);
+  }
+}
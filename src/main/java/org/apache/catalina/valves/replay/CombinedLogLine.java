@@ -0,0 +1,286 @@
+package org.apache.catalina.valves.replay;
+
+import java.nio.CharBuffer;
+
+/**
+ * A line of the common or combined log format, {@code %h %l %u %t "%r" %s %b} optionally followed
+ * by {@code "%{Referer}i" "%{User-Agent}i"}, parsed in place: fields are ranges of the line's chars.
+ *
+ * Instances are reused from one line to the next.
+ */
+public class CombinedLogLine {
+
+  static final int HOST = 0;
+  static final int IDENT = 1;
+  static final int USER = 2;
+  static final int TIME = 3;
+  static final int REQUEST = 4;
+  static final int STATUS = 5;
+  static final int BYTES = 6;
+  static final int REFERER = 7;
+  static final int AGENT = 8;
+  static final int METHOD = 9;
+  static final int URI = 10;
+  static final int PROTOCOL = 11;
+
+  private static final int FIELDS = 12;
+
+  // XXX: length of "10/Oct/2000:13:55:36 -0700"
+  private static final int TIME_LENGTH = 26;
+
+  private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+  private final int[] starts = new int[FIELDS];
+  private final int[] ends = new int[FIELDS];
+  private char[] chars;
+  private long timestamp;
+  private int status;
+  private long bytes;
+
+  /**
+   * @param line the line, backed by an array
+   * @return false if the line is not in the common or combined log format
+   */
+  public boolean parse(CharBuffer line) {
+    this.chars = line.array();
+    final int end = line.arrayOffset() + line.limit();
+    int i = line.arrayOffset() + line.position();
+
+    i = token(HOST, i, end);
+    i = token(IDENT, i, end);
+    i = token(USER, i, end);
+    i = delimited(TIME, i, end, '[', ']');
+    i = delimited(REQUEST, i, end, '"', '"');
+    i = token(STATUS, i, end);
+    i = token(BYTES, i, end);
+    if (i < 0 || (this.status = parseStatus()) < 0 || (this.bytes = parseBytes()) < 0 || !parseTime()) {
+      return false;
+    }
+
+    if (i < end) {
+      i = delimited(REFERER, i, end, '"', '"');
+      i = delimited(AGENT, i, end, '"', '"');
+      if (i < 0) {
+        return false;
+      }
+    } else {
+      empty(REFERER, end);
+      empty(AGENT, end);
+    }
+    splitRequest();
+    return true;
+  }
+
+  /**
+   * @return the time of the entry in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * @return the bytes sent, 0 for "-"
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  char[] getChars() {
+    return chars;
+  }
+
+  int getStart(int field) {
+    return starts[field];
+  }
+
+  int getEnd(int field) {
+    return ends[field];
+  }
+
+  String getString(int field) {
+    return new String(this.chars, this.starts[field], this.ends[field] - this.starts[field]);
+  }
+
+  /**
+   * @return true if the field is "-", the access log's empty value
+   */
+  boolean isDash(int field) {
+    final int start = this.starts[field];
+    return this.ends[field] - start == 1 && this.chars[start] == '-';
+  }
+
+  private int token(int field, int start, int end) {
+    if (start < 0 || start >= end) {
+      return -1;
+    }
+    int i = start;
+    while (i < end && this.chars[i] != ' ') {
+      i++;
+    }
+    this.starts[field] = start;
+    this.ends[field] = i;
+    return skipSpaces(i, end);
+  }
+
+  private int delimited(int field, int start, int end, char open, char close) {
+    if (start < 0 || start >= end || this.chars[start] != open) {
+      return -1;
+    }
+    int i = start + 1;
+    while (i < end && this.chars[i] != close) {
+      i += this.chars[i] == '\\' ? 2 : 1;
+    }
+    if (i >= end) {
+      return -1;
+    }
+    this.starts[field] = start + 1;
+    this.ends[field] = i;
+    return skipSpaces(i + 1, end);
+  }
+
+  private void empty(int field, int end) {
+    this.starts[field] = end;
+    this.ends[field] = end;
+  }
+
+  private int skipSpaces(int start, int end) {
+    int i = start;
+    while (i < end && this.chars[i] == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Split "%r" into method, URI and protocol; a request without spaces is all URI.
+   */
+  private void splitRequest() {
+    final int start = this.starts[REQUEST];
+    final int end = this.ends[REQUEST];
+    int firstSpace = -1;
+    int lastSpace = -1;
+    for (int i = start; i < end; i++) {
+      if (this.chars[i] == ' ') {
+        if (firstSpace < 0) {
+          firstSpace = i;
+        }
+        lastSpace = i;
+      }
+    }
+    if (firstSpace < 0) {
+      setRange(METHOD, start, start);
+      setRange(URI, start, end);
+      setRange(PROTOCOL, end, end);
+    } else if (firstSpace == lastSpace) {
+      setRange(METHOD, start, firstSpace);
+      setRange(URI, firstSpace + 1, end);
+      setRange(PROTOCOL, end, end);
+    } else {
+      setRange(METHOD, start, firstSpace);
+      setRange(URI, firstSpace + 1, lastSpace);
+      setRange(PROTOCOL, lastSpace + 1, end);
+    }
+  }
+
+  private void setRange(int field, int start, int end) {
+    this.starts[field] = start;
+    this.ends[field] = end;
+  }
+
+  private int parseStatus() {
+    final int start = this.starts[STATUS];
+    if (this.ends[STATUS] - start != 3) {
+      return -1;
+    }
+    final int status = parseDigits(start, 3);
+    return status >= 100 ? status : -1;
+  }
+
+  private long parseBytes() {
+    final int start = this.starts[BYTES];
+    final int end = this.ends[BYTES];
+    if (isDash(BYTES)) {
+      return 0;
+    }
+    if (end - start > 18) {
+      return -1;
+    }
+    long bytes = 0;
+    for (int i = start; i < end; i++) {
+      final char c = this.chars[i];
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      bytes = bytes * 10 + c - '0';
+    }
+    return bytes;
+  }
+
+  /**
+   * Parse {@code dd/MMM/yyyy:HH:mm:ss Z}.
+   */
+  private boolean parseTime() {
+    final int t = this.starts[TIME];
+    if (this.ends[TIME] - t != TIME_LENGTH) {
+      return false;
+    }
+    final int day = parseDigits(t, 2);
+    final int month = monthIndex(t + 3) + 1;
+    final int year = parseDigits(t + 7, 4);
+    final int hour = parseDigits(t + 12, 2);
+    final int minute = parseDigits(t + 15, 2);
+    final int second = parseDigits(t + 18, 2);
+    final int offsetHours = parseDigits(t + 22, 2);
+    final int offsetMinutes = parseDigits(t + 24, 2);
+    final char sign = this.chars[t + 21];
+    if ((day | month - 1 | year | hour | minute | second | offsetHours | offsetMinutes) < 0
+        || (sign != '+' && sign != '-')) {
+      return false;
+    }
+
+    final long offsetSeconds = (sign == '-' ? -1 : 1) * (offsetHours * 3600L + offsetMinutes * 60L);
+    final long seconds = daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second;
+    this.timestamp = (seconds - offsetSeconds) * 1000L;
+    return true;
+  }
+
+  private int monthIndex(int start) {
+    for (int month = 0; month < 12; month++) {
+      if (MONTHS.charAt(month * 3) == this.chars[start]
+          && MONTHS.charAt(month * 3 + 1) == this.chars[start + 1]
+          && MONTHS.charAt(month * 3 + 2) == this.chars[start + 2]) {
+        return month;
+      }
+    }
+    return -1;
+  }
+
+  private int parseDigits(int start, int count) {
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      final char c = this.chars[i];
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + c - '0';
+    }
+    return value;
+  }
+
+  /**
+   * Days since the epoch of a proleptic Gregorian date; see Howard Hinnant's days_from_civil
+   * algorithm.
+   */
+  private static long daysFromCivil(int year, int month, int day) {
+    final int y = month <= 2 ? year - 1 : year;
+    final int era = (y >= 0 ? y : y - 399) / 400;
+    final int yearOfEra = y - era * 400;
+    final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+}
@@ -0,0 +1,72 @@
+package org.apache.catalina.valves.replay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.catalina.valves.transport.DeliveryListener;
+import org.apache.catalina.valves.transport.Transport;
+
+/**
+ * Counts the messages and bytes handed to a {@link Transport}.
+ */
+public class CountingTransport implements Transport {
+
+  private final Transport transport;
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+
+  public CountingTransport(Transport transport) {
+    this.transport = transport;
+  }
+
+  @Override
+  public void open() throws IOException {
+    this.transport.open();
+  }
+
+  @Override
+  public void send(ByteBuffer message) throws IOException {
+    final int length = message.remaining();
+    this.transport.send(message);
+    this.messages.incrementAndGet();
+    this.bytes.addAndGet(length);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    this.transport.flush();
+  }
+
+  @Override
+  public void close() {
+    this.transport.close();
+  }
+
+  public long getMessages() {
+    return this.messages.get();
+  }
+
+  public long getBytes() {
+    return this.bytes.get();
+  }
+
+  @Override
+  public boolean isBuffering() {
+    return this.transport.isBuffering();
+  }
+
+  @Override
+  public boolean reportDeliveries(DeliveryListener listener) {
+    return this.transport.reportDeliveries(listener);
+  }
+
+  @Override
+  public String getSettings() {
+    return this.transport.getSettings();
+  }
+
+  @Override
+  public String toString() {
+    return this.transport.toString();
+  }
+}
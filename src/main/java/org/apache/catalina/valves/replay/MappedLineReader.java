@@ -0,0 +1,130 @@
+package org.apache.catalina.valves.replay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the lines of a file through a window memory-mapped over it, so files of any size are
+ * streamed without copying them onto the heap.
+ *
+ * Lines are decoded as UTF-8, malformed input replaced, into a reused buffer; the window is moved
+ * forward whenever the next line does not end inside it.
+ */
+public class MappedLineReader implements Closeable {
+
+  private static final long DEFAULT_WINDOW_SIZE = 64L * 1024 * 1024;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long size;
+  private final long windowSize;
+
+  private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder().
+      onMalformedInput(CodingErrorAction.REPLACE).
+      onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private CharBuffer line = CharBuffer.allocate(4096);
+
+  private MappedByteBuffer window;
+  private long windowStart;
+
+  public MappedLineReader(File file) throws IOException {
+    this(file, DEFAULT_WINDOW_SIZE);
+  }
+
+  MappedLineReader(File file, long windowSize) throws IOException {
+    this.file = new RandomAccessFile(file, "r");
+    this.channel = this.file.getChannel();
+    this.size = this.channel.size();
+    this.windowSize = windowSize;
+    map(0, windowSize);
+  }
+
+  /**
+   * @return the next line without its terminator, valid until the next call, or null at the end of
+   * the file
+   * @throws IOException if the file cannot be mapped
+   */
+  public CharBuffer nextLine() throws IOException {
+    int start = this.window.position();
+    int end = indexOfNewline(start);
+    while (end < 0 && this.windowStart + this.window.limit() < this.size) {
+      // XXX: the line runs past the window; map from its start, larger if it fills a whole window
+      final long lineStart = this.windowStart + start;
+      final int windowLength = this.window.limit() - start;
+      map(lineStart, windowLength < this.windowSize ? this.windowSize : 2L * windowLength);
+      start = 0;
+      end = indexOfNewline(start);
+    }
+    final int next;
+    if (end < 0) {
+      if (start == this.window.limit()) {
+        return null;
+      }
+      end = this.window.limit();
+      next = end;
+    } else {
+      next = end + 1;
+    }
+    if (end > start && this.window.get(end - 1) == '\r') {
+      end--;
+    }
+
+    final int limit = this.window.limit();
+    this.window.limit(end);
+    decode();
+    this.window.limit(limit);
+    this.window.position(next);
+    return this.line;
+  }
+
+  /**
+   * @return the offset of the file the next line starts at
+   */
+  public long getPosition() {
+    return this.windowStart + this.window.position();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.file.close();
+  }
+
+  private void map(long start, long length) throws IOException {
+    this.windowStart = start;
+    this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, start,
+        Math.min(Math.min(length, Integer.MAX_VALUE), this.size - start));
+  }
+
+  private int indexOfNewline(int start) {
+    for (int i = start; i < this.window.limit(); i++) {
+      if (this.window.get(i) == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void decode() {
+    final int start = this.window.position();
+    while (true) {
+      this.decoder.reset();
+      this.line.clear();
+      final CoderResult result = this.decoder.decode(this.window, this.line, true);
+      if (!result.isOverflow() && !this.decoder.flush(this.line).isOverflow()) {
+        this.line.flip();
+        return;
+      }
+      this.line = CharBuffer.allocate(this.line.capacity() * 2);
+      this.window.position(start);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package org.apache.catalina.valves.replay;
+
+import java.security.Principal;
+import org.apache.catalina.connector.OutputBuffer;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * The request and response a {@link CombinedLogLine} was logged from, rebuilt so a valve renders
+ * the entry with its own pattern: client, user, start time, request line, status, bytes and the
+ * Referer and User-Agent headers. Fields the log does not have are missing, e.g. the virtual host
+ * is "-" and the request time 0.
+ *
+ * Instances are reused from one line to the next.
+ */
+class ReplayedExchange {
+
+  private static final String UNKNOWN = "-";
+
+  private final org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+  private final Request request = new Request();
+  private final ReplayedResponse response = new ReplayedResponse();
+  private final ReplayedUser user = new ReplayedUser();
+
+  ReplayedExchange() {
+    this.request.setCoyoteRequest(this.coyoteRequest);
+    this.coyoteRequest.serverName().setString(UNKNOWN);
+    this.response.setCoyoteResponse(new org.apache.coyote.Response());
+  }
+
+  Request getRequest() {
+    return request;
+  }
+
+  Response getResponse() {
+    return response;
+  }
+
+  /**
+   * Rebuild the request and response of the line.
+   */
+  void fill(CombinedLogLine line) {
+    final String host = line.getString(CombinedLogLine.HOST);
+    this.request.setRemoteAddr(host);
+    this.request.setRemoteHost(host);
+    if (line.isDash(CombinedLogLine.USER)) {
+      this.request.setUserPrincipal(null);
+    } else {
+      this.user.name = line.getString(CombinedLogLine.USER);
+      this.request.setUserPrincipal(this.user);
+    }
+    this.coyoteRequest.setStartTime(line.getTimestamp());
+
+    set(this.coyoteRequest.method(), line, CombinedLogLine.METHOD);
+    set(this.coyoteRequest.protocol(), line, CombinedLogLine.PROTOCOL);
+    final char[] chars = line.getChars();
+    final int uriStart = line.getStart(CombinedLogLine.URI);
+    final int uriEnd = line.getEnd(CombinedLogLine.URI);
+    int question = uriStart;
+    while (question < uriEnd && chars[question] != '?') {
+      question++;
+    }
+    this.coyoteRequest.requestURI().setChars(chars, uriStart, question - uriStart);
+    this.coyoteRequest.queryString().recycle();
+    if (question < uriEnd) {
+      this.coyoteRequest.queryString().setChars(chars, question + 1, uriEnd - question - 1);
+    }
+
+    this.coyoteRequest.getMimeHeaders().recycle();
+    addHeader("Referer", line, CombinedLogLine.REFERER);
+    addHeader("User-Agent", line, CombinedLogLine.AGENT);
+
+    this.response.getCoyoteResponse().setStatus(line.getStatus());
+    this.response.bytes = line.getBytes();
+  }
+
+  private void addHeader(String name, CombinedLogLine line, int field) {
+    if (line.getEnd(field) > line.getStart(field) && !line.isDash(field)) {
+      set(this.coyoteRequest.getMimeHeaders().addValue(name), line, field);
+    }
+  }
+
+  private static void set(MessageBytes bytes, CombinedLogLine line, int field) {
+    final int start = line.getStart(field);
+    bytes.setChars(line.getChars(), start, line.getEnd(field) - start);
+  }
+
+  /**
+   * A response without a connection, writing the bytes of the line.
+   */
+  private static final class ReplayedResponse extends Response {
+
+    private long bytes;
+
+    ReplayedResponse() {
+      this.outputBuffer = new OutputBuffer();
+    }
+
+    @Override
+    public long getBytesWritten(boolean flush) {
+      return this.bytes;
+    }
+  }
+
+  private static final class ReplayedUser implements Principal {
+
+    private String name;
+
+    @Override
+    public String getName() {
+      return this.name;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Sends every message as one UDP datagram, like {@link UdpTransport}, but hands the datagrams to
+ * the kernel in batches where it can: on 64-bit Linux with the Foreign Function &amp; Memory API,
+ * {@link #send(ByteBuffer)} stages them in a native buffer and {@link #flush()} sends the batch
+ * with one sendmmsg(2) call, see {@link SendmmsgEngine}, so a burst drained from the asynchronous
+ * queue costs one system call per {@value #MAX_BATCH_DATAGRAMS} datagrams rather than one each.
+ *
+ * Elsewhere every datagram is written as it is sent, on a channel connected to the collector,
+ * which lets the kernel keep the route of the socket rather than look it up for every datagram; if
+ * it cannot be connected, datagrams are sent to the collector's address, as {@link UdpTransport}
+ * does. A connected socket learns of ICMP port unreachable errors: the datagrams they fail are
+ * counted and dropped, as an unconnected socket would have silently dropped them.
+ */
+public class BatchingUdpTransport implements Transport {
+
+  private static final Log LOG = LogFactory.getLog(BatchingUdpTransport.class);
+
+  // XXX: the vlen of one sendmmsg(2) call, and the message headers kept for it
+  static final int MAX_BATCH_DATAGRAMS = 64;
+
+  public static final int DEFAULT_BATCH_BYTES = 65536;
+
+  private final InetSocketAddress address;
+  private final int batchBytes;
+  private final boolean sendmmsg;
+  private final int[] ends = new int[MAX_BATCH_DATAGRAMS];
+  private int count;
+
+  // XXX: the engine and its batch buffer, or the channel writing datagrams one by one
+  private SendmmsgEngine engine;
+  private ByteBuffer batch;
+  private DatagramChannel datagramChannel;
+  private boolean connected;
+
+  private final AtomicLong datagrams = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong unreachable = new AtomicLong();
+
+  /**
+   * @param address the collector
+   * @param batchBytes size of the native buffer datagrams are staged in
+   */
+  public BatchingUdpTransport(InetSocketAddress address, int batchBytes) {
+    this(address, batchBytes, SendmmsgEngine.isAvailable());
+  }
+
+  /**
+   * @param sendmmsg whether to send batches with sendmmsg(2), which must be available, rather than
+   * write datagrams one by one
+   */
+  BatchingUdpTransport(InetSocketAddress address, int batchBytes, boolean sendmmsg) {
+    this.address = address;
+    this.batchBytes = batchBytes;
+    this.sendmmsg = sendmmsg;
+  }
+
+  @Override
+  public void open() throws IOException {
+    if (this.sendmmsg) {
+      try {
+        this.engine = SendmmsgEngine.open(this.address, this.batchBytes);
+        this.batch = this.engine.getBatch();
+        this.connected = true;
+        return;
+      } catch (IOException e) {
+        LOG.warn("Could not open a sendmmsg(2) socket to " + this + ", writing datagrams one by one instead", e);
+      }
+    }
+    this.datagramChannel = DatagramChannel.open();
+    try {
+      this.datagramChannel.connect(this.address);
+      this.connected = true;
+    } catch (IOException | SecurityException e) {
+      LOG.warn("Could not connect to " + this + ", sending to its address instead", e);
+      this.connected = false;
+    }
+  }
+
+  /**
+   * Stage the message, or write it without sendmmsg(2); a message that does not fit into the rest of
+   * the batch flushes it first, a message larger than the batch buffer is sent on its own.
+   */
+  @Override
+  public void send(ByteBuffer message) throws IOException {
+    if (this.engine == null) {
+      sendDatagram(message);
+      return;
+    }
+    final int length = message.remaining();
+    if (this.count == MAX_BATCH_DATAGRAMS || length > this.batch.remaining()) {
+      flush();
+    }
+    if (length > this.batch.capacity()) {
+      sent(1, this.engine.sendLarge(message));
+      return;
+    }
+    this.batch.put(message);
+    this.ends[this.count++] = this.batch.position();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (this.count == 0) {
+      return;
+    }
+    final int staged = this.count;
+    // XXX: the batch is given up if it cannot be sent, rather than sent again in part
+    this.count = 0;
+    try {
+      sent(staged, this.engine.send(this.ends, staged));
+    } finally {
+      this.batch.clear();
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      flush();
+    } catch (IOException e) {
+      LOG.warn("Could not send the last datagrams to " + this, e);
+    }
+    if (this.engine != null) {
+      this.engine.close();
+      this.engine = null;
+    }
+    if (this.datagramChannel != null) {
+      try {
+        this.datagramChannel.close();
+      } catch (IOException e) {
+        // XXX: nothing left to release
+      }
+    }
+  }
+
+  /**
+   * Whether batches are sent with sendmmsg(2), rather than datagrams written one by one.
+   */
+  public boolean isSendmmsg() {
+    return this.engine != null;
+  }
+
+  /**
+   * Whether the socket is connected to the collector, rather than sending to its address.
+   */
+  public boolean isConnected() {
+    return connected;
+  }
+
+  /**
+   * Number of datagrams handed to the socket.
+   */
+  public long getDatagrams() {
+    return datagrams.get();
+  }
+
+  /**
+   * Number of batches handed to sendmmsg(2), including messages too large for the batch sent on their
+   * own; 0 without sendmmsg(2).
+   */
+  public long getBatches() {
+    return batches.get();
+  }
+
+  /**
+   * Number of datagrams dropped because the collector's port was reported unreachable.
+   */
+  public long getUnreachable() {
+    return unreachable.get();
+  }
+
+  /**
+   * Counters of this transport, e.g. {@code sendmmsg=true, connected=true, datagrams=1200, batches=31,
+   * unreachable=0}
+   */
+  public String getStatistics() {
+    return new StringBuilder().
+        append("sendmmsg=").append(isSendmmsg()).
+        append(", connected=").append(isConnected()).
+        append(", datagrams=").append(getDatagrams()).
+        append(", batches=").append(getBatches()).
+        append(", unreachable=").append(getUnreachable()).toString();
+  }
+
+  @Override
+  public boolean isBuffering() {
+    return this.sendmmsg;
+  }
+
+  @Override
+  public boolean reportDeliveries(DeliveryListener listener) {
+    return false;
+  }
+
+  @Override
+  public String getSettings() {
+    return "batchBytes=" + this.batchBytes;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().append("udp://").append(this.address.getHostString()).append(':')
+        .append(this.address.getPort()).toString();
+  }
+
+  private void sent(int datagrams, int dropped) {
+    this.datagrams.addAndGet(datagrams - dropped);
+    this.unreachable.addAndGet(dropped);
+    this.batches.incrementAndGet();
+  }
+
+  private void sendDatagram(ByteBuffer datagram) throws IOException {
+    if (!this.connected) {
+      this.datagramChannel.send(datagram, this.address);
+      this.datagrams.incrementAndGet();
+      return;
+    }
+    try {
+      this.datagramChannel.write(datagram);
+      this.datagrams.incrementAndGet();
+    } catch (PortUnreachableException e) {
+      // XXX: reported for an earlier datagram; the collector is not listening (yet)
+      this.unreachable.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package org.apache.catalina.valves.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upper bound on the bytes of the buffers holding the queued messages of one or more {@link
+ * LaneQueue}s.
+ */
+public class BufferBudget {
+
+  private final long maxBytes;
+  private final AtomicLong reservedBytes = new AtomicLong();
+
+  /**
+   * @param maxBytes the maximum number of bytes buffered at any time
+   */
+  public BufferBudget(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return a budget that never runs out
+   */
+  public static BufferBudget unlimited() {
+    return new BufferBudget(Long.MAX_VALUE);
+  }
+
+  /**
+   * @return false if the bytes would exceed the budget, in which case nothing is reserved
+   */
+  public boolean tryReserve(int bytes) {
+    while (true) {
+      final long reserved = this.reservedBytes.get();
+      if (reserved + bytes > this.maxBytes) {
+        return false;
+      }
+      if (this.reservedBytes.compareAndSet(reserved, reserved + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  public void release(int bytes) {
+    this.reservedBytes.addAndGet(-bytes);
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getReservedBytes() {
+    return this.reservedBytes.get();
+  }
+}
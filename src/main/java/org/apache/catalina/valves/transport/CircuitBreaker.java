@@ -0,0 +1,239 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Stops a {@link MessageSender} from sending, and from logging every failure, while its destination
+ * is down.
+ *
+ * The circuit opens after a number of failures in a row, with no success in between: a message
+ * accepted by a transport that does not buffer, a flush of a buffering one, see {@link
+ * Transport#isBuffering()}, or a delivery a transport reported. While it is open, messages are
+ * skipped before they are encoded into the queue or the transport is locked; once the retry
+ * interval has passed, the next message is sent as a probe (half-open): if it gets through, the
+ * circuit closes, else it stays open for another interval.
+ *
+ * Failures are logged rate-limited: the first of a quiet period with its stack trace, the ones
+ * after it, and the skipped messages, as one summary line per {@value #REPORT_INTERVAL_MILLIS} ms.
+ * Opening and closing the circuit are always logged.
+ *
+ * {@link #allow}, {@link #recordSuccess} and {@link #recordFailure} are called under the transport
+ * lock of the sender, the latter two also by the threads of a transport reporting its deliveries,
+ * {@link #skip} by any thread; while the circuit is closed and nothing fails, none of them lock.
+ */
+public final class CircuitBreaker {
+
+  private static final Log LOG = LogFactory.getLog(CircuitBreaker.class);
+
+  static final long REPORT_INTERVAL_MILLIS = 10000;
+
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static final long DEFAULT_RETRY_INTERVAL_MILLIS = 1000;
+
+  private enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String name;
+  private final int failureThreshold;
+  private final long retryIntervalMillis;
+
+  private volatile State state = State.CLOSED;
+  private volatile long retryAtMillis;
+  private volatile int consecutiveFailures;
+
+  // XXX: rate limiting of the failure log, guarded by this
+  private long nextReportMillis;
+  private long reportedFailures;
+  private long reportedSkipped;
+  private long failures;
+  private IOException lastFailure;
+  private long openedAtMillis;
+  private long skippedAtOpen;
+
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong opened = new AtomicLong();
+
+  /**
+   * @param name the destination, used in log messages
+   * @param failureThreshold failures in a row that open the circuit; 0 never opens it, failures are
+   * still logged rate-limited
+   * @param retryIntervalMillis time between probes while the circuit is open
+   */
+  public CircuitBreaker(String name, int failureThreshold, long retryIntervalMillis) {
+    if (failureThreshold < 0 || retryIntervalMillis < 0) {
+      throw new IllegalArgumentException("Failure threshold and retry interval must not be negative, were: "
+          + failureThreshold + " and " + retryIntervalMillis + " ms");
+    }
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.retryIntervalMillis = retryIntervalMillis;
+  }
+
+  /**
+   * Whether a message submitted now is to be skipped, without locking: true while the circuit is
+   * open and no probe is due.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   */
+  public boolean skip(long now) {
+    if (this.state != State.OPEN || now >= this.retryAtMillis) {
+      return false;
+    }
+    this.skipped.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Whether the message about to be sent may be, turning the circuit half-open if a probe is due.
+   * Messages queued before the circuit opened are skipped here.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   */
+  boolean allow(long now) {
+    if (this.state == State.CLOSED) {
+      return true;
+    }
+    synchronized (this) {
+      report(now);
+      if (this.state != State.OPEN) {
+        return true;
+      }
+      if (now < this.retryAtMillis) {
+        this.skipped.incrementAndGet();
+        return false;
+      }
+      this.state = State.HALF_OPEN;
+      return true;
+    }
+  }
+
+  /**
+   * Whether sends and flushes are held back: the circuit is open, and the message that would probe
+   * it has not been allowed yet.
+   */
+  boolean isOpen() {
+    return this.state == State.OPEN;
+  }
+
+  /**
+   * Record that a message was delivered, or the messages since the last flush of a buffering
+   * transport; closes the circuit.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   */
+  void recordSuccess(long now) {
+    // XXX: the common case, nothing failed since the last success
+    if (this.consecutiveFailures == 0) {
+      return;
+    }
+    synchronized (this) {
+      this.consecutiveFailures = 0;
+      if (this.state != State.CLOSED) {
+        this.state = State.CLOSED;
+        LOG.info(new StringBuilder().
+            append("Circuit to ").append(this.name).
+            append(" closed after ").append(now - this.openedAtMillis).
+            append(" ms, ").append(this.skipped.get() - this.skippedAtOpen).
+            append(" messages skipped").toString());
+      }
+      report(now);
+    }
+  }
+
+  /**
+   * Record a failed send or flush; opens the circuit once the failure threshold is reached, and
+   * reopens it if the failure was a probe's.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   * @param action what failed, e.g. "send message", for the log
+   */
+  synchronized void recordFailure(long now, String action, IOException e) {
+    this.failures++;
+    this.lastFailure = e;
+    this.consecutiveFailures++;
+
+    if (this.state == State.HALF_OPEN) {
+      this.state = State.OPEN;
+      this.retryAtMillis = now + this.retryIntervalMillis;
+    } else if (this.state == State.CLOSED && this.failureThreshold > 0
+        && this.consecutiveFailures >= this.failureThreshold) {
+      this.state = State.OPEN;
+      this.retryAtMillis = now + this.retryIntervalMillis;
+      this.opened.incrementAndGet();
+      this.openedAtMillis = now;
+      this.skippedAtOpen = this.skipped.get();
+      LOG.error(new StringBuilder().
+          append("Circuit to ").append(this.name).
+          append(" opened after ").append(this.consecutiveFailures).
+          append(" failures in a row, skipping messages and probing every ").append(this.retryIntervalMillis).
+          append(" ms; last: ").append(e).toString());
+    }
+
+    if (now >= this.nextReportMillis && this.failures - this.reportedFailures == 1) {
+      // XXX: first failure of a quiet period, logged in full
+      LOG.error("Could not " + action + " to " + this.name, e);
+      this.reportedFailures = this.failures;
+      this.nextReportMillis = now + REPORT_INTERVAL_MILLIS;
+      return;
+    }
+    report(now);
+  }
+
+  /**
+   * Log the summary of the failures and skipped messages not logged yet, whether or not the report
+   * interval has passed, e.g. when the sender closes.
+   */
+  synchronized void flushReport() {
+    this.nextReportMillis = 0;
+    report(0);
+  }
+
+  /**
+   * Number of times the circuit opened.
+   */
+  public long getOpened() {
+    return opened.get();
+  }
+
+  /**
+   * Number of messages skipped while the circuit was open.
+   */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  /**
+   * State and counters, e.g. {@code state=open, opened=2, skipped=1500}
+   */
+  public String getStatistics() {
+    return new StringBuilder().
+        append("state=").append(this.state.name().toLowerCase(Locale.ENGLISH).replace('_', '-')).
+        append(", opened=").append(getOpened()).
+        append(", skipped=").append(getSkipped()).toString();
+  }
+
+  private void report(long now) {
+    if (now < this.nextReportMillis) {
+      return;
+    }
+    final long failed = this.failures - this.reportedFailures;
+    final long skippedMessages = this.skipped.get() - this.reportedSkipped;
+    if (failed == 0 && skippedMessages == 0) {
+      return;
+    }
+    LOG.warn(new StringBuilder().
+        append(failed).append(" failures and ").append(skippedMessages).
+        append(" skipped messages of ").append(this.name).
+        append(" in the last ").append(TimeUnit.MILLISECONDS.toSeconds(REPORT_INTERVAL_MILLIS)).append(" s").
+        append(failed > 0 ? ", last: " + this.lastFailure : "").toString());
+    this.reportedFailures = this.failures;
+    this.reportedSkipped += skippedMessages;
+    this.nextReportMillis = now + REPORT_INTERVAL_MILLIS;
+  }
+}
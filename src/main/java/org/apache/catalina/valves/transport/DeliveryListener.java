@@ -0,0 +1,23 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+
+/**
+ * Told the outcome of the deliveries of a {@link Transport} that delivers on threads of its own, after
+ * {@link Transport#send(java.nio.ByteBuffer)} and {@link Transport#flush()} returned, see {@link
+ * Transport#reportDeliveries(DeliveryListener)}. Called by any thread.
+ */
+public interface DeliveryListener {
+
+  /**
+   * A delivery reached the destination.
+   */
+  void delivered();
+
+  /**
+   * A delivery failed; the transport may retry it.
+   *
+   * @param action what failed, e.g. "post bulk request", for the log
+   */
+  void failed(String action, IOException e);
+}
@@ -0,0 +1,520 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Indexes JSON messages into Elasticsearch through its {@code _bulk} API, without a logstash hop.
+ *
+ * Messages are appended to an NDJSON body, each after an {@code {"index":{"_id":"..."}}} action
+ * line, so the index is taken from the URL, e.g. {@code http://elasticsearch:9200/tomcat-access/_bulk}.
+ * The id is random per transport followed by the number of the message, and kept when the message is
+ * posted again: a request that timed out after Elasticsearch indexed it overwrites its documents
+ * when retried instead of duplicating them, at the cost of the id lookup auto ids skip. A body is
+ * posted once it reaches {@code maxBatchBytes}, or on a {@link #flush()} once its first message is
+ * {@code lingerMillis} old; the asynchronous {@link MessageSender} flushes every time its queue runs
+ * empty and at least every 100 ms while idle.
+ *
+ * Bodies are posted by up to {@code maxInFlight} worker threads over the keep-alive connections of
+ * {@link HttpURLConnection}, gzip compressed if enabled; once all workers are busy, the sender thread
+ * waits, so the async queue absorbs and eventually sheds the backlog. Rejected requests (429, 5xx or
+ * I/O errors) are retried as a whole; when the bulk response reports failed items, only the items
+ * rejected with 429 or 5xx are retried, up to {@code maxRetries} times with exponential backoff.
+ * Requests rejected with other statuses, e.g. 400 or 413, would be rejected again: their messages
+ * are logged and counted as failed without retrying.
+ *
+ * Requests are posted after {@link #send(ByteBuffer)} and {@link #flush()} returned, so their
+ * outcomes are reported to the sender instead, see {@link #reportDeliveries(DeliveryListener)}:
+ * while the cluster is down, its circuit breaker opens and logs the failed requests as periodic
+ * summaries, rather than each of them with its stack trace.
+ */
+public class ElasticsearchBulkTransport implements Transport {
+
+  private static final Log LOG = LogFactory.getLog(ElasticsearchBulkTransport.class);
+
+  private static final byte[] INDEX_ACTION_START = "{\"index\":{\"_id\":\"".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] INDEX_ACTION_END = "\"}}\n".getBytes(StandardCharsets.UTF_8);
+  private static final byte NEWLINE = '\n';
+  // XXX: 16 hex digits, '-' and up to 19 decimal digits
+  private static final int MAX_ID_LENGTH = 36;
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int READ_TIMEOUT_MILLIS = 60000;
+  private static final long INITIAL_BACKOFF_MILLIS = 100;
+  private static final long CLOSE_TIMEOUT_MILLIS = 30000;
+
+  private final URL url;
+  private final int maxBatchBytes;
+  private final long lingerMillis;
+  private final boolean gzip;
+  private final int maxInFlight;
+  private final int maxRetries;
+
+  private final Semaphore inFlight;
+  private final byte[] idPrefix =
+      (String.format("%016x", new SecureRandom().nextLong()) + '-').getBytes(StandardCharsets.UTF_8);
+  private long nextId;
+  private ExecutorService workers;
+  private Batch batch;
+  private volatile DeliveryListener deliveryListener;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong indexed = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * @param url the {@code _bulk} endpoint, including the index
+   * @param maxBatchBytes size from which a body is posted without waiting for the linger time
+   * @param lingerMillis age from which a body is posted on flush
+   * @param gzip whether to compress the bodies
+   * @param maxInFlight maximum number of bodies being posted at the same time
+   * @param maxRetries maximum number of times a rejected message is posted again
+   */
+  public ElasticsearchBulkTransport(URL url, int maxBatchBytes, long lingerMillis, boolean gzip, int maxInFlight,
+      int maxRetries) {
+    this.url = url;
+    this.maxBatchBytes = maxBatchBytes;
+    this.lingerMillis = lingerMillis;
+    this.gzip = gzip;
+    this.maxInFlight = maxInFlight;
+    this.maxRetries = maxRetries;
+    this.inFlight = new Semaphore(maxInFlight);
+  }
+
+  @Override
+  public void open() {
+    final AtomicInteger threadNumber = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(this.maxInFlight, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, new StringBuilder().
+            append("ElasticsearchBulk[").append(url).append("]-").append(threadNumber.incrementAndGet()).toString());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @Override
+  public void send(ByteBuffer message) throws IOException {
+    if (this.batch == null) {
+      this.batch = new Batch(this.idPrefix, Math.min(this.maxBatchBytes, 64 * 1024), System.currentTimeMillis());
+    }
+    this.batch.add(message, ++this.nextId, 0);
+    if (this.batch.size >= this.maxBatchBytes) {
+      post();
+    }
+  }
+
+  /**
+   * Post the pending body if it is older than the linger time.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (this.batch != null && System.currentTimeMillis() - this.batch.createdMillis >= this.lingerMillis) {
+      post();
+    }
+  }
+
+  /**
+   * Post the pending body and wait for the bodies in flight.
+   */
+  @Override
+  public void close() {
+    if (this.workers == null) {
+      return;
+    }
+    try {
+      if (this.batch != null) {
+        post();
+      }
+      this.workers.shutdown();
+      if (!this.workers.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        LOG.warn("Bulk requests to " + this.url + " still in flight after " + CLOSE_TIMEOUT_MILLIS + " ms");
+      }
+    } catch (IOException e) {
+      LOG.error("Could not post the last bulk request to " + this.url, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.workers = null;
+  }
+
+  /**
+   * Number of bulk requests posted, retries included.
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Number of messages Elasticsearch accepted.
+   */
+  public long getIndexed() {
+    return indexed.get();
+  }
+
+  /**
+   * Number of times a message was posted again.
+   */
+  public long getRetried() {
+    return retried.get();
+  }
+
+  /**
+   * Number of messages given up on, rejected for good or out of retries.
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Counters of this transport, e.g. {@code requests=3, indexed=1200, retried=2, failed=0}
+   */
+  public String getStatistics() {
+    return new StringBuilder().
+        append("requests=").append(getRequests()).
+        append(", indexed=").append(getIndexed()).
+        append(", retried=").append(getRetried()).
+        append(", failed=").append(getFailed()).toString();
+  }
+
+  @Override
+  public boolean isBuffering() {
+    return true;
+  }
+
+  @Override
+  public boolean reportDeliveries(DeliveryListener listener) {
+    this.deliveryListener = listener;
+    return true;
+  }
+
+  @Override
+  public String getSettings() {
+    return new StringBuilder().
+        append("maxBatchBytes=").append(this.maxBatchBytes).
+        append(", lingerMillis=").append(this.lingerMillis).
+        append(", gzip=").append(this.gzip).
+        append(", maxInFlight=").append(this.maxInFlight).
+        append(", maxRetries=").append(this.maxRetries).toString();
+  }
+
+  @Override
+  public String toString() {
+    return this.url.toString();
+  }
+
+  /**
+   * Hand the pending body to a worker, waiting for one to be free.
+   */
+  private void post() throws IOException {
+    final Batch posted = this.batch;
+    this.batch = null;
+    try {
+      this.inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      this.failed.addAndGet(posted.count);
+      throw new IOException("Interrupted waiting to post to " + this.url, e);
+    }
+    this.workers.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          deliver(posted);
+        } finally {
+          inFlight.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Post the body, then what is left of it to retry, until everything is accepted or out of retries.
+   */
+  private void deliver(Batch first) {
+    Batch current = first;
+    int attempt = 0;
+    while (current != null) {
+      if (attempt > 0) {
+        try {
+          Thread.sleep(INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 10));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          this.failed.addAndGet(current.count);
+          return;
+        }
+      }
+      current = attempt(current);
+      attempt++;
+    }
+  }
+
+  /**
+   * @return the messages to retry, null if none
+   */
+  private Batch attempt(Batch batch) {
+    this.requests.incrementAndGet();
+    final String response;
+    try {
+      response = post(batch);
+    } catch (RejectedException e) {
+      delivered();
+      LOG.error("Bulk request to " + this.url + " rejected, dropping " + batch.count + " messages: "
+          + e.getMessage());
+      this.failed.addAndGet(batch.count);
+      return null;
+    } catch (IOException e) {
+      // XXX: rejected with 429 or 5xx, or not answered at all
+      final DeliveryListener listener = this.deliveryListener;
+      if (listener != null) {
+        listener.failed("post bulk request", e);
+      } else {
+        LOG.warn("Bulk request to " + this.url + " failed", e);
+      }
+      return retryAll(batch);
+    }
+    delivered();
+
+    // XXX: skip parsing the items when none failed
+    if (!response.contains("\"errors\":true")) {
+      this.indexed.addAndGet(batch.count);
+      return null;
+    }
+    return retryItems(batch, response);
+  }
+
+  private void delivered() {
+    final DeliveryListener listener = this.deliveryListener;
+    if (listener != null) {
+      listener.delivered();
+    }
+  }
+
+  private Batch retryAll(Batch batch) {
+    final Batch retry = new Batch(this.idPrefix, batch.size, batch.createdMillis);
+    for (int i = 0; i < batch.count; i++) {
+      retryItem(batch, i, retry);
+    }
+    return retry.count > 0 ? retry : null;
+  }
+
+  private Batch retryItems(Batch batch, String response) {
+    final JSONArray items;
+    try {
+      items = new JSONObject(response).getJSONArray("items");
+    } catch (JSONException e) {
+      LOG.error("Unexpected bulk response from " + this.url + ": " + response, e);
+      this.failed.addAndGet(batch.count);
+      return null;
+    }
+
+    final Batch retry = new Batch(this.idPrefix, Math.min(batch.size, 64 * 1024), batch.createdMillis);
+    String firstError = null;
+    for (int i = 0; i < batch.count; i++) {
+      final JSONObject result = i < items.length() ? itemResult(items.optJSONObject(i)) : null;
+      final int status = result == null ? 500 : result.optInt("status", 500);
+      if (status < 300) {
+        this.indexed.incrementAndGet();
+      } else if (status == 429 || status >= 500) {
+        retryItem(batch, i, retry);
+      } else {
+        this.failed.incrementAndGet();
+        if (firstError == null) {
+          firstError = String.valueOf(result.opt("error"));
+        }
+      }
+    }
+    if (firstError != null) {
+      LOG.error("Elasticsearch " + this.url + " rejected messages, e.g. " + firstError);
+    }
+    return retry.count > 0 ? retry : null;
+  }
+
+  private void retryItem(Batch batch, int item, Batch retry) {
+    if (batch.attempts[item] >= this.maxRetries) {
+      this.failed.incrementAndGet();
+      return;
+    }
+    this.retried.incrementAndGet();
+    retry.add(ByteBuffer.wrap(batch.bytes, batch.starts[item], batch.ends[item] - batch.starts[item]),
+        batch.ids[item], batch.attempts[item] + 1);
+  }
+
+  /**
+   * @return the action result of a bulk response item, e.g. the value of {@code "index"}
+   */
+  private static JSONObject itemResult(JSONObject item) {
+    if (item == null || item.length() == 0) {
+      return null;
+    }
+    return item.optJSONObject((String) item.keys().next());
+  }
+
+  /**
+   * @return the response body
+   * @throws RetryableException if Elasticsearch rejected the whole request with 429 or 5xx
+   * @throws RejectedException if Elasticsearch rejected the whole request with another status
+   */
+  private String post(Batch batch) throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/x-ndjson");
+
+    byte[] body = batch.bytes;
+    int length = batch.size;
+    if (this.gzip) {
+      final ByteArrayOutputStream compressed = new ByteArrayOutputStream(batch.size / 4 + 64);
+      try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed)) {
+        gzipOutputStream.write(batch.bytes, 0, batch.size);
+      }
+      body = compressed.toByteArray();
+      length = body.length;
+      connection.setRequestProperty("Content-Encoding", "gzip");
+    }
+    connection.setFixedLengthStreamingMode(length);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body, 0, length);
+    }
+
+    final int status = connection.getResponseCode();
+    // XXX: read the whole response, so the connection goes back to the keep-alive cache
+    final String response = read(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+    if (status == 429 || status >= 500) {
+      throw new RetryableException("HTTP " + status + " " + response);
+    }
+    if (status >= 300) {
+      throw new RejectedException("HTTP " + status + " " + response);
+    }
+    return response;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    if (in == null) {
+      return "";
+    }
+    try (InputStream input = in) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static final class RetryableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    RetryableException(String message) {
+      super(message);
+    }
+  }
+
+  private static final class RejectedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    RejectedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * An NDJSON body and where each message's line starts and ends in it.
+   */
+  private static final class Batch {
+
+    private final byte[] idPrefix;
+    private final long createdMillis;
+    private byte[] bytes;
+    private int size;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private long[] ids = new long[64];
+    private int[] attempts = new int[64];
+    private int count;
+
+    Batch(byte[] idPrefix, int capacity, long createdMillis) {
+      this.idPrefix = idPrefix;
+      this.bytes = new byte[Math.max(capacity, 1024)];
+      this.createdMillis = createdMillis;
+    }
+
+    void add(ByteBuffer message, long id, int attempt) {
+      final int length = message.remaining();
+      ensureCapacity(this.size + INDEX_ACTION_START.length + MAX_ID_LENGTH + INDEX_ACTION_END.length + length + 1);
+      if (this.count == this.starts.length) {
+        this.starts = Arrays.copyOf(this.starts, this.count * 2);
+        this.ends = Arrays.copyOf(this.ends, this.count * 2);
+        this.ids = Arrays.copyOf(this.ids, this.count * 2);
+        this.attempts = Arrays.copyOf(this.attempts, this.count * 2);
+      }
+
+      put(INDEX_ACTION_START);
+      put(this.idPrefix);
+      putDecimal(id);
+      put(INDEX_ACTION_END);
+      this.starts[this.count] = this.size;
+      message.get(this.bytes, this.size, length);
+      this.size += length;
+      this.ends[this.count] = this.size;
+      this.bytes[this.size++] = NEWLINE;
+      this.ids[this.count] = id;
+      this.attempts[this.count] = attempt;
+      this.count++;
+    }
+
+    private void put(byte[] bytes) {
+      System.arraycopy(bytes, 0, this.bytes, this.size, bytes.length);
+      this.size += bytes.length;
+    }
+
+    private void putDecimal(long value) {
+      int digits = 1;
+      for (long rest = value / 10; rest > 0; rest /= 10) {
+        digits++;
+      }
+      long rest = value;
+      for (int i = this.size + digits - 1; i >= this.size; i--) {
+        this.bytes[i] = (byte) ('0' + rest % 10);
+        rest /= 10;
+      }
+      this.size += digits;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > this.bytes.length) {
+        this.bytes = Arrays.copyOf(this.bytes, Math.max(capacity, this.bytes.length * 2));
+      }
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package org.apache.catalina.valves.transport;
+
+import java.util.Locale;
+
+/**
+ * Priority lanes of the outgoing message queue, highest priority first.
+ *
+ * The sender always drains {@link #HIGH} before {@link #NORMAL} before {@link #LOW}; when the queue
+ * is saturated, entries are shed from the lowest lanes only.
+ */
+public enum Lane {
+
+  /**
+   * Server errors and slow requests; the traffic needed most during an incident.
+   */
+  HIGH,
+
+  /**
+   * Client errors and anything not classified otherwise.
+   */
+  NORMAL,
+
+  /**
+   * Fast successful and redirect responses, e.g. static assets.
+   */
+  LOW;
+
+  /**
+   * Classify an access log entry.
+   *
+   * @param status the HTTP status code of the response
+   * @param timeMillis the time taken to process the request
+   * @param slowRequestThresholdMillis requests taking at least this long go to {@link #HIGH}
+   * @return the lane of the entry
+   */
+  public static Lane classify(int status, long timeMillis, long slowRequestThresholdMillis) {
+    if (status >= 500 || timeMillis >= slowRequestThresholdMillis) {
+      return HIGH;
+    }
+    if (status >= 400 || status < 100) {
+      return NORMAL;
+    }
+    return LOW;
+  }
+
+  public String toLowerCaseName() {
+    return name().toLowerCase(Locale.ENGLISH);
+  }
+}
@@ -0,0 +1,197 @@
+package org.apache.catalina.valves.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.tomcat.util.collections.SynchronizedStack;
+
+/**
+ * Bounded outgoing message queue with one FIFO lane per {@link Lane}.
+ *
+ * All lanes share a fixed pool of pre-allocated message slots and a {@link BufferBudget}, which may
+ * be shared with other queues. A queued message is charged the capacity of the buffer holding it: the
+ * pre-allocated {@value #INITIAL_SLOT_CAPACITY} bytes of its slot, or a buffer of its own if larger, so
+ * the budget bounds the memory held by queued messages; idle slots hold their pre-allocated buffers
+ * only. When either is exhausted, the oldest entry
+ * of the lowest non-empty lane below the incoming one is shed to make room; if there is none, the
+ * incoming entry itself is dropped. Higher-priority traffic therefore always displaces
+ * lower-priority traffic, never the other way round.
+ */
+public class LaneQueue {
+
+  private static final Lane[] LANES = Lane.values();
+  private static final int INITIAL_SLOT_CAPACITY = 512;
+
+  private final int capacity;
+  private final BufferBudget bufferBudget;
+  private final ArrayBlockingQueue<OutboundMessage>[] lanes;
+  private final SynchronizedStack<OutboundMessage> freeSlots;
+
+  private final AtomicLongArray enqueued = new AtomicLongArray(LANES.length);
+  private final AtomicLongArray sent = new AtomicLongArray(LANES.length);
+  private final AtomicLongArray shed = new AtomicLongArray(LANES.length);
+  private final AtomicLongArray dropped = new AtomicLongArray(LANES.length);
+
+  public LaneQueue(int capacity) {
+    this(capacity, BufferBudget.unlimited());
+  }
+
+  /**
+   * @param capacity the number of messages the queue can hold
+   * @param bufferBudget bounds the bytes of the queued messages
+   */
+  @SuppressWarnings("unchecked")
+  public LaneQueue(int capacity, BufferBudget bufferBudget) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be positive, was: " + capacity);
+    }
+    this.capacity = capacity;
+    this.bufferBudget = bufferBudget;
+    this.lanes = new ArrayBlockingQueue[LANES.length];
+    for (int i = 0; i < LANES.length; i++) {
+      this.lanes[i] = new ArrayBlockingQueue<OutboundMessage>(capacity);
+    }
+    this.freeSlots = new SynchronizedStack<OutboundMessage>(capacity, capacity);
+    for (int i = 0; i < capacity; i++) {
+      this.freeSlots.push(new OutboundMessage(INITIAL_SLOT_CAPACITY));
+    }
+  }
+
+  /**
+   * Queue a copy of the bytes between the position and limit of the message.
+   *
+   * @return false if the message was dropped because no slot or bytes could be freed for it
+   */
+  public boolean offer(Lane lane, ByteBuffer message) {
+    OutboundMessage slot = this.freeSlots.pop();
+    while (slot == null || !this.bufferBudget.tryReserve(slot.capacityFor(message.remaining()))) {
+      final OutboundMessage victim = shedBelow(lane);
+      if (victim == null) {
+        if (slot != null) {
+          this.freeSlots.push(slot);
+        }
+        this.dropped.incrementAndGet(lane.ordinal());
+        return false;
+      }
+      if (slot == null) {
+        slot = victim;
+      } else {
+        this.freeSlots.push(victim);
+      }
+    }
+
+    slot.fill(lane, message);
+    // XXX: never fails, every lane can hold all slots
+    this.lanes[lane.ordinal()].offer(slot);
+    this.enqueued.incrementAndGet(lane.ordinal());
+    return true;
+  }
+
+  /**
+   * Take the next message, highest lane first.
+   *
+   * @return the message or null when all lanes are empty; hand it back with {@link #release}
+   */
+  OutboundMessage poll() {
+    for (int i = 0; i < this.lanes.length; i++) {
+      final OutboundMessage slot = this.lanes[i].poll();
+      if (slot != null) {
+        return slot;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return a slot obtained from {@link #poll()} to the pool once its message is handled.
+   *
+   * @param sent whether the transport accepted the message; failed and skipped messages are not
+   *     counted as sent
+   */
+  void release(OutboundMessage slot, boolean sent) {
+    if (sent) {
+      this.sent.incrementAndGet(slot.getLane().ordinal());
+    }
+    this.bufferBudget.release(slot.getCapacity());
+    slot.recycle();
+    this.freeSlots.push(slot);
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Number of messages currently queued across all lanes.
+   */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < this.lanes.length; i++) {
+      size += this.lanes[i].size();
+    }
+    return size;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public long getEnqueued(Lane lane) {
+    return this.enqueued.get(lane.ordinal());
+  }
+
+  /**
+   * Number of messages of the lane the transport accepted.
+   */
+  public long getSent(Lane lane) {
+    return this.sent.get(lane.ordinal());
+  }
+
+  /**
+   * Number of queued messages of the lane evicted in favour of higher-priority traffic.
+   */
+  public long getShed(Lane lane) {
+    return this.shed.get(lane.ordinal());
+  }
+
+  /**
+   * Number of messages of the lane rejected because the queue was full.
+   */
+  public long getDropped(Lane lane) {
+    return this.dropped.get(lane.ordinal());
+  }
+
+  /**
+   * Per-lane counters, e.g. {@code high[queued=0, enqueued=12, sent=12, shed=0, dropped=0] ...}
+   */
+  public String getStatistics() {
+    final StringBuilder statistics = new StringBuilder();
+    for (Lane lane : LANES) {
+      if (statistics.length() > 0) {
+        statistics.append(' ');
+      }
+      statistics.
+          append(lane.toLowerCaseName()).
+          append("[queued=").append(this.lanes[lane.ordinal()].size()).
+          append(", enqueued=").append(getEnqueued(lane)).
+          append(", sent=").append(getSent(lane)).
+          append(", shed=").append(getShed(lane)).
+          append(", dropped=").append(getDropped(lane)).
+          append(']');
+    }
+    return statistics.toString();
+  }
+
+  private OutboundMessage shedBelow(Lane lane) {
+    for (int i = this.lanes.length - 1; i > lane.ordinal(); i--) {
+      final OutboundMessage victim = this.lanes[i].poll();
+      if (victim != null) {
+        this.bufferBudget.release(victim.getCapacity());
+        victim.recycle();
+        this.shed.incrementAndGet(i);
+        return victim;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,344 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.catalina.valves.jfr.AccessLogEvents;
+
+/**
+ * Hands encoded messages to a {@link Transport}.
+ *
+ * In synchronous mode every message is sent on the calling thread. In asynchronous mode messages
+ * are copied into a {@link LaneQueue} and a dedicated sender thread drains it, highest lane first,
+ * flushing the transport whenever the queue runs empty.
+ *
+ * While a Flight Recorder recording is running, every delivery to the transport is timed, see
+ * {@link AccessLogEvents}.
+ *
+ * Failures go through a {@link CircuitBreaker}: while the destination is down, messages are skipped
+ * without touching the queue or the transport, and failures are logged as periodic summaries. A
+ * transport delivering on threads of its own reports its deliveries to the circuit breaker, see
+ * {@link Transport#reportDeliveries(DeliveryListener)}; its sends and flushes then do not count as
+ * successes.
+ */
+public class MessageSender {
+
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+  private final String name;
+  private final Transport transport;
+  private final boolean buffering;
+  private final boolean deliveriesReported;
+  private final LaneQueue laneQueue;
+  private final CircuitBreaker circuitBreaker;
+
+  private final String instanceId = String.format("%016x", new SecureRandom().nextLong());
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  // XXX: only written under the transport lock, read by any thread
+  private volatile long sendLatencyNanos;
+  // XXX: guarded by the transport lock
+  private boolean acceptedSinceFlush;
+  private boolean failedSinceFlush;
+
+  private volatile boolean running;
+  private volatile boolean senderParked;
+  private Thread senderThread;
+
+  /**
+   * @param name used for the sender thread and in log messages
+   * @param transport the transport to deliver to
+   * @param queueCapacity number of queued messages in asynchronous mode; 0 sends synchronously
+   */
+  public MessageSender(String name, Transport transport, int queueCapacity) {
+    this(name, transport, queueCapacity, BufferBudget.unlimited());
+  }
+
+  /**
+   * @param name used for the sender thread and in log messages
+   * @param transport the transport to deliver to
+   * @param queueCapacity number of queued messages in asynchronous mode; 0 sends synchronously
+   * @param bufferBudget bounds the bytes queued in asynchronous mode
+   */
+  public MessageSender(String name, Transport transport, int queueCapacity, BufferBudget bufferBudget) {
+    this(name, transport, queueCapacity, bufferBudget, new CircuitBreaker(transport.toString(),
+        CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, CircuitBreaker.DEFAULT_RETRY_INTERVAL_MILLIS));
+  }
+
+  /**
+   * @param name used for the sender thread and in log messages
+   * @param transport the transport to deliver to
+   * @param queueCapacity number of queued messages in asynchronous mode; 0 sends synchronously
+   * @param bufferBudget bounds the bytes queued in asynchronous mode
+   * @param circuitBreaker guards the transport, not shared with other senders
+   */
+  public MessageSender(String name, Transport transport, int queueCapacity, BufferBudget bufferBudget,
+      CircuitBreaker circuitBreaker) {
+    this.name = name;
+    this.transport = transport;
+    this.buffering = transport.isBuffering();
+    this.laneQueue = queueCapacity > 0 ? new LaneQueue(queueCapacity, bufferBudget) : null;
+    this.circuitBreaker = circuitBreaker;
+    this.deliveriesReported = transport.reportDeliveries(new DeliveryListener() {
+      @Override
+      public void delivered() {
+        MessageSender.this.circuitBreaker.recordSuccess(System.currentTimeMillis());
+      }
+
+      @Override
+      public void failed(String action, IOException e) {
+        MessageSender.this.circuitBreaker.recordFailure(System.currentTimeMillis(), action, e);
+      }
+    });
+  }
+
+  /**
+   * Open the transport and, in asynchronous mode, start the sender thread.
+   *
+   * @throws IOException if the transport cannot be opened
+   */
+  public synchronized void open() throws IOException {
+    this.transport.open();
+    this.running = true;
+
+    if (this.laneQueue != null) {
+      this.senderThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      }, "MessageSender[" + this.name + "]");
+      this.senderThread.setDaemon(true);
+      this.senderThread.start();
+    }
+  }
+
+  /**
+   * Send the bytes between the position and limit of the message, or queue a copy of them in
+   * asynchronous mode. The message buffer can be reused once this method returns.
+   *
+   * @param lane the priority of the message, only used in asynchronous mode
+   * @param message the encoded message
+   * @return false if the message was dropped, skipped while the circuit is open, or could not be sent
+   */
+  public boolean submit(Lane lane, ByteBuffer message) {
+    if (!this.running || this.circuitBreaker.skip(System.currentTimeMillis())) {
+      return false;
+    }
+
+    if (this.laneQueue == null) {
+      final Object sendEvent = AccessLogEvents.beginSend();
+      final int bytes = message.remaining();
+      final boolean sent;
+      synchronized (this.transport) {
+        sent = sendAndFlush(message);
+      }
+      AccessLogEvents.commitSend(sendEvent, this.name, lane, bytes, 0, !sent);
+      return sent;
+    }
+
+    final boolean queued = this.laneQueue.offer(lane, message);
+    if (this.senderParked) {
+      LockSupport.unpark(this.senderThread);
+    }
+    return queued;
+  }
+
+  /**
+   * Stop the sender thread after it has drained the queue, then close the transport.
+   */
+  public synchronized void close() {
+    this.running = false;
+
+    if (this.senderThread != null) {
+      LockSupport.unpark(this.senderThread);
+      try {
+        this.senderThread.join(STOP_TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.senderThread = null;
+    }
+
+    synchronized (this.transport) {
+      this.transport.close();
+    }
+    this.circuitBreaker.flushReport();
+  }
+
+  public boolean isAsync() {
+    return this.laneQueue != null;
+  }
+
+  public Transport getTransport() {
+    return transport;
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * @return the queue of the asynchronous mode, null in synchronous mode
+   */
+  public LaneQueue getLaneQueue() {
+    return laneQueue;
+  }
+
+  /**
+   * Moving average of the time the transport took to accept a message, e.g. waiting for a TCP window
+   * or for RELP acknowledgements.
+   *
+   * @return the send latency in nanoseconds
+   */
+  public long getSendLatencyNanos() {
+    return sendLatencyNanos;
+  }
+
+  /**
+   * Random id of this sender, 16 hex digits, so receivers can tell the sequences of senders, and of
+   * restarts of the same sender, apart.
+   */
+  public String getInstanceId() {
+    return instanceId;
+  }
+
+  /**
+   * @return the next sequence number of this sender, from 1
+   */
+  public long nextSequenceId() {
+    return this.sequence.incrementAndGet();
+  }
+
+  /**
+   * Number of messages the transport failed to send.
+   */
+  public long getFailed() {
+    return this.failed.get();
+  }
+
+  /**
+   * Counters of this sender, e.g. {@code failed=0 circuit[state=closed, ...] high[queued=0, enqueued=12, ...] ...}
+   */
+  public String getStatistics() {
+    final StringBuilder statistics = new StringBuilder().
+        append("failed=").append(getFailed()).
+        append(" circuit[").append(this.circuitBreaker.getStatistics()).append(']');
+    if (this.laneQueue != null) {
+      statistics.append(' ').append(this.laneQueue.getStatistics());
+    }
+    return statistics.toString();
+  }
+
+  @Override
+  public String toString() {
+    return this.name;
+  }
+
+  private void drain() {
+    while (true) {
+      final OutboundMessage slot = this.laneQueue.poll();
+
+      if (slot != null) {
+        final Object sendEvent = AccessLogEvents.beginSend();
+        final long queueWaitNanos = sendEvent == null ? 0 : System.nanoTime() - slot.getEnqueuedNanos();
+        final boolean sent;
+        synchronized (this.transport) {
+          sent = send(slot.getBuffer());
+          // XXX: after a failed send, flush the next accepted message at once, so a buffering transport
+          // tells whether the destination is down or the failure was a passing one
+          if (sent && this.failedSinceFlush) {
+            flush();
+          }
+        }
+        AccessLogEvents.commitSend(sendEvent, this.name, slot.getLane(), slot.getLength(), queueWaitNanos, !sent);
+        this.laneQueue.release(slot, sent);
+        continue;
+      }
+
+      synchronized (this.transport) {
+        flush();
+      }
+      if (!this.running) {
+        return;
+      }
+
+      this.senderParked = true;
+      // XXX: re-check after publishing senderParked so a concurrent submit cannot be missed
+      if (this.laneQueue.isEmpty() && this.running) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+      this.senderParked = false;
+    }
+  }
+
+  private boolean sendAndFlush(ByteBuffer message) {
+    if (!send(message)) {
+      return false;
+    }
+    return flush();
+  }
+
+  /**
+   * Send the message; if the transport does not buffer, every accepted message counts as a success to
+   * the circuit breaker.
+   */
+  private boolean send(ByteBuffer message) {
+    final long now = System.currentTimeMillis();
+    if (!this.circuitBreaker.allow(now)) {
+      return false;
+    }
+    final long start = System.nanoTime();
+    try {
+      this.transport.send(message);
+      if (this.deliveriesReported) {
+        // XXX: accepted, not delivered yet
+      } else if (this.buffering) {
+        this.acceptedSinceFlush = true;
+      } else {
+        this.circuitBreaker.recordSuccess(now);
+      }
+      return true;
+    } catch (IOException e) {
+      this.failed.incrementAndGet();
+      this.failedSinceFlush = true;
+      this.circuitBreaker.recordFailure(System.currentTimeMillis(), "send message", e);
+      return false;
+    } finally {
+      // XXX: exponential moving average over about the last 8 sends
+      this.sendLatencyNanos += (System.nanoTime() - start - this.sendLatencyNanos) >> 3;
+    }
+  }
+
+  /**
+   * Flush the transport; a flush of a buffering transport counts as a success to the circuit breaker
+   * if the transport accepted a message since the last one, as it only then delivered something.
+   */
+  private boolean flush() {
+    // XXX: not a probe, an idle flush would close the circuit of a transport with nothing to flush
+    if (this.circuitBreaker.isOpen()) {
+      this.acceptedSinceFlush = false;
+      this.failedSinceFlush = false;
+      return false;
+    }
+    try {
+      this.transport.flush();
+      if (this.acceptedSinceFlush) {
+        this.circuitBreaker.recordSuccess(System.currentTimeMillis());
+      }
+      return true;
+    } catch (IOException e) {
+      this.failed.incrementAndGet();
+      this.circuitBreaker.recordFailure(System.currentTimeMillis(), "flush messages", e);
+      return false;
+    } finally {
+      this.acceptedSinceFlush = false;
+      this.failedSinceFlush = false;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package org.apache.catalina.valves.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A queued message; slots are pooled by {@link LaneQueue} and recycled once sent or shed.
+ *
+ * A message larger than the pre-allocated buffer of the slot is copied into a buffer of its own,
+ * dropped again when the slot is recycled, so idle slots only hold their pre-allocated buffers.
+ */
+final class OutboundMessage {
+
+  private final ByteBuffer initialBuffer;
+  private ByteBuffer buffer;
+  private int length;
+  private Lane lane;
+  private long enqueuedNanos;
+
+  OutboundMessage(int initialCapacity) {
+    this.initialBuffer = ByteBuffer.allocate(initialCapacity);
+    this.buffer = this.initialBuffer;
+  }
+
+  /**
+   * @return the bytes of the buffer a message of the given length is copied into
+   */
+  int capacityFor(int length) {
+    return Math.max(length, this.initialBuffer.capacity());
+  }
+
+  /**
+   * Copy the bytes between the position and limit of the message into this slot.
+   */
+  void fill(Lane lane, ByteBuffer message) {
+    final int length = message.remaining();
+    if (length > this.initialBuffer.capacity()) {
+      this.buffer = ByteBuffer.allocate(length);
+    }
+    final int position = message.position();
+    this.buffer.clear();
+    this.buffer.put(message);
+    this.buffer.flip();
+    message.position(position);
+
+    this.length = length;
+    this.lane = lane;
+    this.enqueuedNanos = System.nanoTime();
+  }
+
+  /**
+   * Drop the buffer of a message larger than the pre-allocated one.
+   */
+  void recycle() {
+    this.buffer = this.initialBuffer;
+  }
+
+  ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @return the length of the message, regardless of how much of the buffer a transport consumed
+   */
+  int getLength() {
+    return length;
+  }
+
+  /**
+   * @return the bytes of the buffer holding the message
+   */
+  int getCapacity() {
+    return this.buffer.capacity();
+  }
+
+  Lane getLane() {
+    return lane;
+  }
+
+  long getEnqueuedNanos() {
+    return enqueuedNanos;
+  }
+}
@@ -0,0 +1,607 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Sends messages to a syslog collector with RELP, the Reliable Event Logging Protocol of rsyslog:
+ * every message goes out as a {@code TXNR syslog DATALEN DATA} frame the collector acknowledges
+ * with a {@code TXNR rsp 6 200 OK} frame.
+ *
+ * Frames are pipelined: up to a window of frames are sent without waiting for their
+ * acknowledgements, which a reader thread collects as they come. Only once the window is full does
+ * a send wait, for the oldest frames to be acknowledged. Frames still unacknowledged when the
+ * connection fails are kept and retransmitted, in order, once the connection is reopened by the
+ * next send or flush; the collector may therefore see a message twice, never lose one it did not
+ * acknowledge.
+ *
+ * The frames of the window and their buffers are pooled: a send copies its message into a free frame,
+ * an acknowledgement hands the frame back, so sending allocates nothing once the buffers have grown
+ * to the size of the messages.
+ */
+public class RelpTransport implements Transport {
+
+  private static final Log LOG = LogFactory.getLog(RelpTransport.class);
+
+  // XXX: transaction numbers wrap after 999999999, see the RELP specification
+  static final int MAX_TXNR = 999999999;
+
+  private static final int BUFFER_SIZE = 16384;
+  private static final int INITIAL_FRAME_CAPACITY = 512;
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final long ACKNOWLEDGE_TIMEOUT_MILLIS = 10000;
+  private static final long RECONNECT_DELAY_MILLIS = 1000;
+  private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+  private static final int STATUS_OK = 200;
+  private static final byte[] NO_DATA = new byte[0];
+  private static final byte[] OFFERS =
+      "relp_version=0\nrelp_software=SyslogValve\ncommands=syslog".getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * A message sent but not acknowledged yet, or a free frame of the pool.
+   */
+  private static final class Frame {
+
+    private byte[] message = new byte[INITIAL_FRAME_CAPACITY];
+    private int length;
+    private int txnr;
+
+    /**
+     * Copy the bytes between the position and limit of the message; the buffer grows when the
+     * message does not fit and keeps its size for the next messages.
+     */
+    private void fill(ByteBuffer source) {
+      this.length = source.remaining();
+      if (this.length > this.message.length) {
+        this.message = new byte[Math.max(this.length, this.message.length * 2)];
+      }
+      source.get(this.message, 0, this.length);
+    }
+  }
+
+  private final InetSocketAddress address;
+  private final int windowSize;
+  // XXX: both guarded by the window, shared with the reader thread
+  private final ArrayDeque<Frame> window;
+  private final ArrayDeque<Frame> freeFrames;
+  private final byte[] digits = new byte[10];
+
+  private volatile Socket socket;
+  private OutputStream out;
+  private volatile boolean closedByPeer;
+  private int txnr;
+  private long nextConnectMillis;
+
+  private final AtomicLong connects = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong acknowledged = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong retransmitted = new AtomicLong();
+
+  /**
+   * @param address the collector, usually on port 2514
+   * @param windowSize number of frames sent but not acknowledged yet
+   */
+  public RelpTransport(InetSocketAddress address, int windowSize) {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("RELP window size must be positive, was: " + windowSize);
+    }
+    this.address = address;
+    this.windowSize = windowSize;
+    this.window = new ArrayDeque<Frame>(windowSize);
+    this.freeFrames = new ArrayDeque<Frame>(windowSize);
+    for (int i = 0; i < windowSize; i++) {
+      this.freeFrames.push(new Frame());
+    }
+  }
+
+  /**
+   * Open a session with the collector; if it cannot be reached, messages are dropped until a later
+   * send connects.
+   */
+  @Override
+  public void open() {
+    try {
+      connect();
+    } catch (IOException e) {
+      LOG.warn("Could not connect to " + this + ", will retry on the next message", e);
+    }
+  }
+
+  /**
+   * Send the message as the next frame of the window, waiting for acknowledgements while the window
+   * is full.
+   *
+   * @throws IOException if the collector cannot be reached or acknowledges nothing for 10 seconds;
+   * the frames in the window are kept for retransmission
+   */
+  @Override
+  public void send(ByteBuffer message) throws IOException {
+    ensureConnected();
+    awaitWindow();
+
+    final Frame frame;
+    synchronized (this.window) {
+      // XXX: never null, awaitWindow made room and frames only move between the pool and the window
+      frame = this.freeFrames.pop();
+    }
+    // XXX: filled outside the lock, the frame is neither free nor in the window meanwhile
+    frame.fill(message);
+    synchronized (this.window) {
+      frame.txnr = nextTxnr();
+      this.window.addLast(frame);
+    }
+    this.sent.incrementAndGet();
+
+    try {
+      writeFrame(this.out, frame.txnr, "syslog", frame.message, frame.length);
+    } catch (IOException e) {
+      LOG.warn("Connection to " + this + " failed, reconnecting", e);
+      disconnect();
+      // XXX: retransmits the frame along with the rest of the window
+      ensureConnected();
+    }
+  }
+
+  /**
+   * Push out the frames of the window; reopens a failed connection if frames are left to
+   * retransmit.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (this.socket == null || this.closedByPeer) {
+      if (getWindowOccupancy() > 0) {
+        ensureConnected();
+      }
+      return;
+    }
+    try {
+      this.out.flush();
+    } catch (IOException e) {
+      disconnect();
+      throw e;
+    }
+  }
+
+  /**
+   * Wait a while for the window to be acknowledged, then close the session.
+   */
+  @Override
+  public void close() {
+    try {
+      flush();
+      final long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+      synchronized (this.window) {
+        long remaining;
+        while (!this.window.isEmpty() && this.socket != null && !this.closedByPeer
+            && (remaining = deadline - System.currentTimeMillis()) > 0) {
+          this.window.wait(remaining);
+        }
+      }
+      if (this.socket != null && !this.closedByPeer) {
+        writeFrame(this.out, nextTxnr(), "close", NO_DATA, 0);
+        this.out.flush();
+      }
+    } catch (IOException e) {
+      LOG.warn("Could not close the session with " + this, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    final int unacknowledged = getWindowOccupancy();
+    if (unacknowledged > 0) {
+      LOG.warn(unacknowledged + " messages were not acknowledged by " + this);
+    }
+    disconnect();
+  }
+
+  /**
+   * Number of frames sent but not acknowledged yet.
+   */
+  public int getWindowOccupancy() {
+    synchronized (this.window) {
+      return this.window.size();
+    }
+  }
+
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * Number of sessions opened.
+   */
+  public long getConnects() {
+    return connects.get();
+  }
+
+  /**
+   * Number of frames acknowledged with status 200.
+   */
+  public long getAcknowledged() {
+    return acknowledged.get();
+  }
+
+  /**
+   * Number of frames the collector answered with an error status; they are not retransmitted.
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * Number of frames sent again after a reconnect.
+   */
+  public long getRetransmitted() {
+    return retransmitted.get();
+  }
+
+  /**
+   * Counters of this transport, e.g.
+   * {@code connects=2, sent=1200, acknowledged=1190, rejected=0, retransmitted=14, window=10/128}
+   */
+  public String getStatistics() {
+    return new StringBuilder().
+        append("connects=").append(getConnects()).
+        append(", sent=").append(this.sent.get()).
+        append(", acknowledged=").append(getAcknowledged()).
+        append(", rejected=").append(getRejected()).
+        append(", retransmitted=").append(getRetransmitted()).
+        append(", window=").append(getWindowOccupancy()).append('/').append(getWindowSize()).toString();
+  }
+
+  @Override
+  public boolean isBuffering() {
+    // XXX: frames are written to a buffered stream, pushed out by a full buffer or flush
+    return true;
+  }
+
+  @Override
+  public boolean reportDeliveries(DeliveryListener listener) {
+    return false;
+  }
+
+  @Override
+  public String getSettings() {
+    return "windowSize=" + this.windowSize;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().append("relp://").append(this.address.getHostString()).append(':')
+        .append(this.address.getPort()).toString();
+  }
+
+  private void ensureConnected() throws IOException {
+    if (this.socket != null && this.closedByPeer) {
+      disconnect();
+    }
+    if (this.socket == null) {
+      connect();
+    }
+  }
+
+  /**
+   * Wait until the window has room for another frame, reconnecting if the collector closes the
+   * connection meanwhile.
+   */
+  private void awaitWindow() throws IOException {
+    synchronized (this.window) {
+      if (this.window.size() < this.windowSize) {
+        return;
+      }
+    }
+    // XXX: the collector cannot acknowledge frames still in the buffer
+    this.out.flush();
+
+    final long deadline = System.currentTimeMillis() + ACKNOWLEDGE_TIMEOUT_MILLIS;
+    while (true) {
+      synchronized (this.window) {
+        if (this.window.size() < this.windowSize) {
+          return;
+        }
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+        if (!this.closedByPeer) {
+          try {
+            this.window.wait(remaining);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for acknowledgements of " + this);
+          }
+          continue;
+        }
+      }
+      // XXX: closed by the collector, retransmit the window on a new connection and wait again
+      ensureConnected();
+    }
+
+    disconnect();
+    throw new IOException("No acknowledgement from " + this + " within " + ACKNOWLEDGE_TIMEOUT_MILLIS + " ms, "
+        + this.windowSize + " messages unacknowledged");
+  }
+
+  /**
+   * Open a session and retransmit the frames left unacknowledged by the previous one.
+   */
+  private void connect() throws IOException {
+    final long now = System.currentTimeMillis();
+    if (now < this.nextConnectMillis) {
+      throw new IOException("Not connected to " + this + ", next attempt in " + (this.nextConnectMillis - now) + " ms");
+    }
+
+    final Socket newSocket = new Socket();
+    final OutputStream newOut;
+    final FrameReader responses;
+    try {
+      newSocket.setTcpNoDelay(true);
+      newSocket.setKeepAlive(true);
+      newSocket.connect(this.address, CONNECT_TIMEOUT_MILLIS);
+      newSocket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+      newOut = new BufferedOutputStream(newSocket.getOutputStream(), BUFFER_SIZE);
+      responses = new FrameReader(new BufferedInputStream(newSocket.getInputStream()));
+
+      // XXX: every session starts over at transaction number 1, the open command
+      writeFrame(newOut, 1, "open", OFFERS, OFFERS.length);
+      newOut.flush();
+      if (!responses.next()) {
+        throw new EOFException("Connection closed by " + this + " while opening the session");
+      }
+      if (responses.txnr != 1 || !"rsp".equals(responses.command) || responses.status() != STATUS_OK) {
+        throw new IOException("Session refused by " + this + ": " + responses.data);
+      }
+      newSocket.setSoTimeout(0);
+    } catch (IOException e) {
+      closeQuietly(newSocket);
+      // XXX: while the collector is unreachable, messages are dropped rather than each waiting to connect
+      this.nextConnectMillis = now + RECONNECT_DELAY_MILLIS;
+      throw e;
+    }
+
+    final Frame[] unacknowledged;
+    synchronized (this.window) {
+      this.socket = newSocket;
+      this.out = newOut;
+      this.closedByPeer = false;
+      this.txnr = 1;
+      // XXX: renumbered under the lock, acknowledgements of the old session are ignored from here on
+      unacknowledged = this.window.toArray(new Frame[this.window.size()]);
+      for (Frame frame : unacknowledged) {
+        frame.txnr = nextTxnr();
+      }
+    }
+    this.connects.incrementAndGet();
+    startReader(newSocket, responses);
+
+    if (unacknowledged.length > 0) {
+      LOG.info("Retransmitting " + unacknowledged.length + " unacknowledged messages to " + this);
+      try {
+        for (Frame frame : unacknowledged) {
+          writeFrame(newOut, frame.txnr, "syslog", frame.message, frame.length);
+        }
+        newOut.flush();
+      } catch (IOException e) {
+        disconnect();
+        throw e;
+      }
+      this.retransmitted.addAndGet(unacknowledged.length);
+    }
+  }
+
+  /**
+   * Collect the acknowledgements of a session until the connection is closed.
+   */
+  private void startReader(final Socket readSocket, final FrameReader responses) {
+    final Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (responses.next()) {
+            if ("rsp".equals(responses.command)) {
+              acknowledge(readSocket, responses.txnr, responses.status(), responses.data);
+            } else if ("serverclose".equals(responses.command)) {
+              break;
+            }
+          }
+        } catch (IOException e) {
+          // XXX: the connection failed or was closed by disconnect()
+        }
+        synchronized (window) {
+          if (readSocket == socket) {
+            closedByPeer = true;
+          }
+          window.notifyAll();
+        }
+      }
+    }, "RelpTransport[" + this + "]-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void acknowledge(Socket readSocket, int acknowledgedTxnr, int status, String data) {
+    synchronized (this.window) {
+      if (readSocket != this.socket) {
+        return;
+      }
+      // XXX: collectors acknowledge in order, the frame is almost always the head of the window
+      for (Iterator<Frame> frames = this.window.iterator(); frames.hasNext(); ) {
+        final Frame frame = frames.next();
+        if (frame.txnr == acknowledgedTxnr) {
+          frames.remove();
+          this.freeFrames.push(frame);
+          this.window.notifyAll();
+          break;
+        }
+      }
+    }
+    if (status == STATUS_OK) {
+      this.acknowledged.incrementAndGet();
+    } else {
+      this.rejected.incrementAndGet();
+      LOG.warn("Message rejected by " + this + ": " + data);
+    }
+  }
+
+  private int nextTxnr() {
+    this.txnr = this.txnr >= MAX_TXNR ? 1 : this.txnr + 1;
+    return this.txnr;
+  }
+
+  private void writeFrame(OutputStream stream, int frameTxnr, String command, byte[] data, int length)
+      throws IOException {
+    writeNumber(stream, frameTxnr);
+    stream.write(' ');
+    for (int i = 0; i < command.length(); i++) {
+      stream.write(command.charAt(i));
+    }
+    stream.write(' ');
+    writeNumber(stream, length);
+    if (length > 0) {
+      stream.write(' ');
+      stream.write(data, 0, length);
+    }
+    stream.write('\n');
+  }
+
+  private void writeNumber(OutputStream stream, int number) throws IOException {
+    int position = this.digits.length;
+    do {
+      this.digits[--position] = (byte) ('0' + number % 10);
+      number /= 10;
+    } while (number > 0);
+    stream.write(this.digits, position, this.digits.length - position);
+  }
+
+  private void disconnect() {
+    final Socket closing;
+    synchronized (this.window) {
+      closing = this.socket;
+      this.socket = null;
+      this.out = null;
+      this.window.notifyAll();
+    }
+    if (closing != null) {
+      closeQuietly(closing);
+    }
+  }
+
+  private static void closeQuietly(Socket closing) {
+    try {
+      closing.close();
+    } catch (IOException e) {
+      // XXX: nothing left to release
+    }
+  }
+
+  /**
+   * Parses RELP frames, {@code TXNR SP COMMAND SP DATALEN [SP DATA] LF}.
+   */
+  static final class FrameReader {
+
+    private final InputStream in;
+    private final StringBuilder token = new StringBuilder();
+
+    int txnr;
+    String command;
+    String data;
+
+    FrameReader(InputStream in) {
+      this.in = in;
+    }
+
+    /**
+     * @return false once the collector closed the connection between frames
+     */
+    boolean next() throws IOException {
+      final int first = this.in.read();
+      if (first < 0) {
+        return false;
+      }
+      this.token.setLength(0);
+      this.token.append((char) first);
+      readToken();
+      this.txnr = parseNumber();
+
+      this.token.setLength(0);
+      readToken();
+      this.command = this.token.toString();
+
+      this.token.setLength(0);
+      final int delimiter = readToken();
+      final byte[] bytes = new byte[parseNumber()];
+      if (delimiter == ' ') {
+        int read = 0;
+        while (read < bytes.length) {
+          final int count = this.in.read(bytes, read, bytes.length - read);
+          if (count < 0) {
+            throw new EOFException("Connection closed within a frame");
+          }
+          read += count;
+        }
+        if (this.in.read() != '\n') {
+          throw new IOException("Frame " + this.txnr + " does not end with a line feed");
+        }
+      } else if (bytes.length > 0) {
+        throw new IOException("Frame " + this.txnr + " has no data of its length " + bytes.length);
+      }
+      this.data = new String(bytes, StandardCharsets.UTF_8);
+      return true;
+    }
+
+    /**
+     * @return the status code of a rsp frame, -1 if there is none
+     */
+    int status() {
+      if (this.data.length() < 3) {
+        return -1;
+      }
+      try {
+        return Integer.parseInt(this.data.substring(0, 3));
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+
+    /**
+     * Append to the token up to the next space or line feed.
+     *
+     * @return the delimiter
+     */
+    private int readToken() throws IOException {
+      while (true) {
+        final int c = this.in.read();
+        if (c < 0) {
+          throw new EOFException("Connection closed within a frame");
+        }
+        if (c == ' ' || c == '\n') {
+          return c;
+        }
+        this.token.append((char) c);
+      }
+    }
+
+    private int parseNumber() throws IOException {
+      try {
+        return Integer.parseInt(this.token.toString());
+      } catch (NumberFormatException e) {
+        throw new IOException("Not a number in a frame: " + this.token, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package org.apache.catalina.valves.transport;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Memory fences between the plain accesses of {@link RingFileTransport} and {@link RingFileReader}
+ * to a mapped ring file, so a reader sees a frame before the write cursor that covers it, and a
+ * frame it copied before the claim cursor that tells whether it was overwritten meanwhile.
+ *
+ * On Java 9 and later these are the fences of {@link VarHandle}, which order the accesses on the CPU
+ * as well as in the JIT, and so for readers in other processes too. Older JVMs have no public fences:
+ * frames are then only ordered as the CPU happens to order them, and a frame a reader copied torn is
+ * dropped by its CRC32.
+ */
+final class RingFileFences {
+
+  private static final boolean AVAILABLE;
+
+  static {
+    boolean available = false;
+    try {
+      Class.forName("java.lang.invoke.VarHandle");
+      VarHandleFences.releaseFence();
+      available = true;
+    } catch (ClassNotFoundException e) {
+      // XXX: Java 8 or older
+    } catch (LinkageError e) {
+      // XXX: a JVM with VarHandle but without its fences
+    }
+    AVAILABLE = available;
+  }
+
+  private RingFileFences() {
+  }
+
+  /**
+   * Keep the loads and stores before from moving past the stores after, e.g. a frame past the cursor
+   * publishing it.
+   */
+  static void releaseFence() {
+    if (AVAILABLE) {
+      VarHandleFences.releaseFence();
+    }
+  }
+
+  /**
+   * Keep the loads before from moving past the loads and stores after, e.g. a cursor past the frame
+   * it covers.
+   */
+  static void acquireFence() {
+    if (AVAILABLE) {
+      VarHandleFences.acquireFence();
+    }
+  }
+
+  /**
+   * The part linking against {@link VarHandle}, only loaded once it is known to be available.
+   */
+  private static final class VarHandleFences {
+
+    private VarHandleFences() {
+    }
+
+    static void releaseFence() {
+      VarHandle.releaseFence();
+    }
+
+    static void acquireFence() {
+      VarHandle.acquireFence();
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the messages of a ring file written by {@link RingFileTransport}, in order, and stores its
+ * position in the read cursor of the file so the writer can report its lag.
+ *
+ * A reader resumes at the stored read cursor if those frames were not overwritten yet, else it
+ * starts at the write cursor. When the writer laps it, the overwritten frames are lost: the reader
+ * counts their bytes and continues at the write cursor. Frames are checked against the claim cursor
+ * after they are copied, so a frame overwritten while it was read is never returned, and against
+ * their CRC32; the cursors and frames are read with fences in between, see {@link RingFileFences}.
+ *
+ * Run it to print the messages of a ring file as lines, e.g. piped into a log shipper:
+ *
+ * <pre>
+ * java -cp SyslogValve.jar org.apache.catalina.valves.transport.RingFileReader --file /var/log/tomcat/access.ring
+ * </pre>
+ */
+public class RingFileReader implements Closeable {
+
+  private static final long IDLE_SLEEP_MILLIS = 10;
+
+  private final File file;
+  private final CRC32 crc32 = new CRC32();
+
+  private MappedByteBuffer header;
+  private ByteBuffer ring;
+  private int capacity;
+  private long readCursor;
+
+  private long records;
+  private long lapped;
+  private long lostBytes;
+  private long corrupt;
+
+  public RingFileReader(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Map the ring file.
+   *
+   * @throws IOException if the file cannot be mapped or was not written by {@link RingFileTransport}
+   */
+  public void open() throws IOException {
+    final RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw");
+    try {
+      if (randomAccessFile.length() < RingFileTransport.HEADER_SIZE) {
+        throw new IOException(this.file + " is not a ring file");
+      }
+      this.header = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+    } finally {
+      randomAccessFile.close();
+    }
+    if (this.header.getInt(RingFileTransport.MAGIC_OFFSET) != RingFileTransport.MAGIC
+        || this.header.getInt(RingFileTransport.VERSION_OFFSET) != RingFileTransport.VERSION
+        || this.header.getLong(RingFileTransport.CAPACITY_OFFSET)
+        != this.header.capacity() - RingFileTransport.HEADER_SIZE) {
+      throw new IOException(this.file + " is not a ring file of version " + RingFileTransport.VERSION);
+    }
+    this.capacity = this.header.capacity() - RingFileTransport.HEADER_SIZE;
+    this.header.position(RingFileTransport.HEADER_SIZE);
+    this.ring = this.header.slice();
+    this.header.position(0);
+
+    final long writeCursor = this.header.getLong(RingFileTransport.WRITE_CURSOR_OFFSET);
+    final long storedCursor = this.header.getLong(RingFileTransport.READ_CURSOR_OFFSET);
+    this.readCursor = storedCursor <= writeCursor && writeCursor - storedCursor <= this.capacity
+        ? storedCursor
+        : writeCursor;
+    this.header.putLong(RingFileTransport.READ_CURSOR_OFFSET, this.readCursor);
+  }
+
+  /**
+   * @return the next message, or null if the reader caught up with the writer
+   */
+  public byte[] poll() {
+    while (true) {
+      final long writeCursor = this.header.getLong(RingFileTransport.WRITE_CURSOR_OFFSET);
+      RingFileFences.acquireFence();
+      if (writeCursor == this.readCursor) {
+        return null;
+      }
+      if (writeCursor - this.readCursor > this.capacity || writeCursor < this.readCursor) {
+        skipTo(writeCursor);
+        continue;
+      }
+
+      final int offset = (int) (this.readCursor % this.capacity);
+      final int length = this.ring.getInt(offset);
+      final int checksum = this.ring.getInt(offset + 4);
+      byte[] message = null;
+      if (length >= 0 && length <= this.capacity - offset - RingFileTransport.FRAME_HEADER_SIZE) {
+        message = new byte[length];
+        this.ring.position(offset + RingFileTransport.FRAME_HEADER_SIZE);
+        this.ring.get(message);
+      }
+
+      RingFileFences.acquireFence();
+      final long claimCursor = this.header.getLong(RingFileTransport.CLAIM_CURSOR_OFFSET);
+      if (claimCursor - this.readCursor > this.capacity) {
+        // XXX: the writer lapped the reader while it copied the frame
+        skipTo(this.header.getLong(RingFileTransport.WRITE_CURSOR_OFFSET));
+        continue;
+      }
+
+      if (length == RingFileTransport.PADDING) {
+        commit(this.readCursor + this.capacity - offset);
+        continue;
+      }
+      if (message == null || checksum != crc32(message)) {
+        this.corrupt++;
+        this.lostBytes += writeCursor - this.readCursor;
+        commit(writeCursor);
+        continue;
+      }
+      commit(this.readCursor + RingFileTransport.frameSize(length));
+      this.records++;
+      return message;
+    }
+  }
+
+  @Override
+  public void close() {
+    this.header = null;
+    this.ring = null;
+  }
+
+  /**
+   * Number of messages read.
+   */
+  public long getRecords() {
+    return records;
+  }
+
+  /**
+   * Number of times the writer lapped the reader.
+   */
+  public long getLapped() {
+    return lapped;
+  }
+
+  /**
+   * Bytes of frames overwritten before they were read.
+   */
+  public long getLostBytes() {
+    return lostBytes;
+  }
+
+  /**
+   * Number of frames whose length or CRC32 did not match, never expected.
+   */
+  public long getCorrupt() {
+    return corrupt;
+  }
+
+  /**
+   * Counters of this reader, e.g. {@code records=1200, lapped=0, lostBytes=0, corrupt=0}
+   */
+  public String getStatistics() {
+    return new StringBuilder().
+        append("records=").append(getRecords()).
+        append(", lapped=").append(getLapped()).
+        append(", lostBytes=").append(getLostBytes()).
+        append(", corrupt=").append(getCorrupt()).toString();
+  }
+
+  private void skipTo(long writeCursor) {
+    if (writeCursor > this.readCursor) {
+      this.lapped++;
+      this.lostBytes += writeCursor - this.readCursor;
+    }
+    commit(writeCursor);
+  }
+
+  private void commit(long readCursor) {
+    this.readCursor = readCursor;
+    this.header.putLong(RingFileTransport.READ_CURSOR_OFFSET, readCursor);
+  }
+
+  private int crc32(byte[] message) {
+    this.crc32.reset();
+    this.crc32.update(message, 0, message.length);
+    return (int) this.crc32.getValue();
+  }
+
+  //------------------------------------------------------ Command line
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    String file = null;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("--file".equals(args[i])) {
+        file = args[i + 1];
+      }
+    }
+    if (file == null) {
+      System.err.println("Usage: java -cp SyslogValve.jar " + RingFileReader.class.getName() + " --file ring-file");
+      System.exit(1);
+    }
+
+    final RingFileReader reader = new RingFileReader(new File(file));
+    reader.open();
+    while (true) {
+      final byte[] message = reader.poll();
+      if (message == null) {
+        System.out.flush();
+        Thread.sleep(IDLE_SLEEP_MILLIS);
+        continue;
+      }
+      System.out.println(new String(message, StandardCharsets.UTF_8));
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.zip.CRC32;
+
+/**
+ * Appends messages to a memory-mapped ring file, for a log shipper running on the same host to
+ * tail, e.g. with {@link RingFileReader}; writing a message is a copy into the page cache, without
+ * a system call.
+ *
+ * The file is a 64 byte header followed by the ring of {@code capacity} bytes:
+ *
+ * <pre>
+ * header: int magic "RING", int version 1, long capacity, long write cursor, long read cursor, long claim cursor
+ * frame:  int length, int CRC32 of the message, the message, zero to seven bytes to the next multiple of 8
+ * </pre>
+ *
+ * Cursors count the bytes written since the file was created, so a frame starts at {@code cursor %
+ * capacity}. A frame never wraps: if it does not fit before the end of the ring, a length of -1 marks
+ * the rest of the ring as padding and the frame starts at offset 0. The writer publishes the claim
+ * cursor before it writes a frame and the write cursor once the frame is complete, with fences in
+ * between, see {@link RingFileFences}; frames up to the write cursor can be read, frames a reader
+ * copied while the claim cursor was more than {@code capacity} ahead of them may have been
+ * overwritten.
+ *
+ * The writer never waits for readers: once the ring is full, the oldest frames are overwritten. A
+ * reader that falls more than {@code capacity} behind loses the overwritten frames and continues at
+ * the write cursor. Readers store their position in the read cursor, so the writer can report how
+ * far behind they are, see {@link #getReaderLag()}.
+ *
+ * One writer per file: valves logging to the same file with the same capacity share one sender, see
+ * {@link SenderRegistry}, and the writer holds a lock on the file so a second one, in this or another
+ * process, fails to open it. A writer reopening a file of the same capacity continues at its write
+ * cursor.
+ */
+public class RingFileTransport implements Transport {
+
+  public static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+  static final int MAGIC = 0x52494e47;
+  static final int VERSION = 1;
+
+  static final int MAGIC_OFFSET = 0;
+  static final int VERSION_OFFSET = 4;
+  static final int CAPACITY_OFFSET = 8;
+  static final int WRITE_CURSOR_OFFSET = 16;
+  static final int READ_CURSOR_OFFSET = 24;
+  static final int CLAIM_CURSOR_OFFSET = 32;
+  static final int HEADER_SIZE = 64;
+
+  static final int FRAME_HEADER_SIZE = 8;
+  static final int PADDING = -1;
+
+  private final File file;
+  private final int capacity;
+  private final CRC32 crc32 = new CRC32();
+
+  private RandomAccessFile randomAccessFile;
+  private MappedByteBuffer mapped;
+  private ByteBuffer ring;
+  private long writeCursor;
+
+  // XXX: the write cursor, for the statistics read by other threads
+  private volatile long published;
+
+  private volatile long records;
+  private volatile long wraps;
+
+  /**
+   * @param file the ring file, created if it does not exist
+   * @param capacity the size of the ring in bytes, rounded down to a multiple of 8
+   */
+  public RingFileTransport(File file, int capacity) {
+    if (capacity < 64) {
+      throw new IllegalArgumentException("Ring file capacity must be at least 64 bytes, was: " + capacity);
+    }
+    this.file = file;
+    this.capacity = capacity & ~7;
+  }
+
+  /**
+   * @return the size of the frame of a message of the given length
+   */
+  static int frameSize(int length) {
+    return (FRAME_HEADER_SIZE + length + 7) & ~7;
+  }
+
+  @Override
+  public void open() throws IOException {
+    final RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw");
+    try {
+      if (lock(randomAccessFile.getChannel()) == null) {
+        throw new IOException(this.file + " is written by another writer");
+      }
+      randomAccessFile.setLength(HEADER_SIZE + (long) this.capacity);
+      this.mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + this.capacity);
+    } catch (IOException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+    // XXX: kept open for the lock, closing it releases the lock
+    this.randomAccessFile = randomAccessFile;
+
+    if (this.mapped.getInt(MAGIC_OFFSET) == MAGIC
+        && this.mapped.getInt(VERSION_OFFSET) == VERSION
+        && this.mapped.getLong(CAPACITY_OFFSET) == this.capacity) {
+      this.writeCursor = this.mapped.getLong(WRITE_CURSOR_OFFSET);
+    } else {
+      this.mapped.putInt(MAGIC_OFFSET, 0);
+      this.mapped.putInt(VERSION_OFFSET, VERSION);
+      this.mapped.putLong(CAPACITY_OFFSET, this.capacity);
+      this.mapped.putLong(WRITE_CURSOR_OFFSET, 0);
+      this.mapped.putLong(READ_CURSOR_OFFSET, 0);
+      this.writeCursor = 0;
+      this.mapped.putInt(MAGIC_OFFSET, MAGIC);
+    }
+    // XXX: a frame claimed but not completed before a crash was never published
+    this.mapped.putLong(CLAIM_CURSOR_OFFSET, this.writeCursor);
+
+    this.mapped.position(HEADER_SIZE);
+    this.ring = this.mapped.slice();
+    this.mapped.position(0);
+  }
+
+  @Override
+  public void send(ByteBuffer message) throws IOException {
+    final int length = message.remaining();
+    final int frameSize = frameSize(length);
+    if (frameSize > this.capacity) {
+      throw new IOException("Message of " + length + " bytes does not fit into the ring of " + this.capacity
+          + " bytes of " + this.file);
+    }
+
+    long cursor = this.writeCursor;
+    int offset = (int) (cursor % this.capacity);
+    final boolean wrap = offset + frameSize > this.capacity;
+    final long end = wrap ? cursor + this.capacity - offset + frameSize : cursor + frameSize;
+    this.mapped.putLong(CLAIM_CURSOR_OFFSET, end);
+    RingFileFences.releaseFence();
+
+    if (wrap) {
+      this.ring.putInt(offset, PADDING);
+      cursor += this.capacity - offset;
+      offset = 0;
+      this.wraps++;
+    }
+    this.ring.putInt(offset + 4, crc32(message));
+    this.ring.position(offset + FRAME_HEADER_SIZE);
+    this.ring.put(message);
+    this.ring.putInt(offset, length);
+
+    RingFileFences.releaseFence();
+    this.mapped.putLong(WRITE_CURSOR_OFFSET, end);
+    this.writeCursor = end;
+    this.published = end;
+    this.records++;
+  }
+
+  /**
+   * Nothing to do, the frames are in the page cache once sent.
+   */
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() {
+    // XXX: unmapped once garbage collected, there is no public way to unmap before Java 9
+    this.mapped = null;
+    this.ring = null;
+    if (this.randomAccessFile != null) {
+      try {
+        this.randomAccessFile.close();
+      } catch (IOException e) {
+        // XXX: nothing was written through the file, the lock is released anyway
+      }
+      this.randomAccessFile = null;
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Number of messages written.
+   */
+  public long getRecords() {
+    return records;
+  }
+
+  /**
+   * Number of times the writer wrapped around to the start of the ring.
+   */
+  public long getWraps() {
+    return wraps;
+  }
+
+  /**
+   * Bytes written but not read yet by the reader that stores its position in the file; more than the
+   * capacity if it lost frames, the write cursor if there never was a reader.
+   */
+  public long getReaderLag() {
+    final MappedByteBuffer header = this.mapped;
+    return header == null ? 0 : Math.max(0, this.published - header.getLong(READ_CURSOR_OFFSET));
+  }
+
+  /**
+   * Counters of this transport, e.g. {@code records=1200, wraps=3, writeCursor=51234568, readerLag=1024}
+   */
+  public String getStatistics() {
+    return new StringBuilder().
+        append("records=").append(getRecords()).
+        append(", wraps=").append(getWraps()).
+        append(", writeCursor=").append(this.published).
+        append(", readerLag=").append(getReaderLag()).toString();
+  }
+
+  @Override
+  public boolean isBuffering() {
+    return false;
+  }
+
+  @Override
+  public boolean reportDeliveries(DeliveryListener listener) {
+    return false;
+  }
+
+  @Override
+  public String getSettings() {
+    return "capacity=" + this.capacity;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().append("file://").append(this.file.getAbsolutePath()).toString();
+  }
+
+  /**
+   * Lock the header of the file, readers do not lock it.
+   *
+   * @return null if another writer holds the lock
+   */
+  private static FileLock lock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock(0, HEADER_SIZE, false);
+    } catch (OverlappingFileLockException e) {
+      // XXX: held by a writer of this JVM
+      return null;
+    }
+  }
+
+  private int crc32(ByteBuffer message) {
+    this.crc32.reset();
+    if (message.hasArray()) {
+      this.crc32.update(message.array(), message.arrayOffset() + message.position(), message.remaining());
+    } else {
+      final byte[] bytes = new byte[message.remaining()];
+      message.duplicate().get(bytes);
+      this.crc32.update(bytes, 0, bytes.length);
+    }
+    return (int) this.crc32.getValue();
+  }
+}
@@ -0,0 +1,125 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * JVM-wide registry of {@link MessageSender}s, so valves logging to the same destination, e.g. one
+ * per Host, share one transport, queue and sender thread instead of opening their own.
+ *
+ * Senders are reference counted: the first {@link #acquire} opens one, the last {@link #release}
+ * closes it. All asynchronous senders share one {@link BufferBudget}, sized by the system property
+ * {@value #MAX_BUFFERED_BYTES_PROPERTY} (default 64 MiB), so the memory held by queued messages stays
+ * flat however many valves are configured.
+ *
+ * Every sender has its own {@link CircuitBreaker}, opening after {@value #CIRCUIT_BREAKER_FAILURES_PROPERTY}
+ * failures in a row (default 5, 0 never opens it) and probing every {@value
+ * #CIRCUIT_BREAKER_RETRY_INTERVAL_PROPERTY} ms (default 1000).
+ */
+public final class SenderRegistry {
+
+  private static final Log LOG = LogFactory.getLog(SenderRegistry.class);
+
+  public static final String MAX_BUFFERED_BYTES_PROPERTY =
+      "org.apache.catalina.valves.transport.maxBufferedBytes";
+
+  public static final String CIRCUIT_BREAKER_FAILURES_PROPERTY =
+      "org.apache.catalina.valves.transport.circuitBreakerFailures";
+
+  public static final String CIRCUIT_BREAKER_RETRY_INTERVAL_PROPERTY =
+      "org.apache.catalina.valves.transport.circuitBreakerRetryInterval";
+
+  private static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+
+  private static final BufferBudget BUFFER_BUDGET = new BufferBudget(
+      Long.getLong(MAX_BUFFERED_BYTES_PROPERTY, DEFAULT_MAX_BUFFERED_BYTES));
+
+  private static final Map<String, Registration> REGISTRATIONS = new HashMap<String, Registration>();
+
+  private SenderRegistry() {
+  }
+
+  /**
+   * Get the sender for the transport's destination, opening it if no valve uses it yet.
+   *
+   * Senders are keyed by the destination and settings of the transport, see {@link
+   * Transport#getSettings()}, and the mode; valves configuring the same destination differently get
+   * senders of their own. When the sender already exists, the given transport is discarded and its
+   * queue capacity is ignored.
+   *
+   * @param transport the transport to the destination, not opened yet
+   * @param queueCapacity number of queued messages in asynchronous mode; 0 sends synchronously
+   * @throws IOException if a new sender's transport cannot be opened
+   */
+  public static MessageSender acquire(Transport transport, int queueCapacity) throws IOException {
+    final String settings = transport.getSettings();
+    final String key = transport.toString() + (settings.isEmpty() ? "" : " [" + settings + "]")
+        + (queueCapacity > 0 ? " (async)" : "");
+
+    synchronized (REGISTRATIONS) {
+      Registration registration = REGISTRATIONS.get(key);
+      if (registration == null) {
+        final MessageSender sender = new MessageSender(key, transport, queueCapacity, BUFFER_BUDGET,
+            new CircuitBreaker(key,
+                Integer.getInteger(CIRCUIT_BREAKER_FAILURES_PROPERTY, CircuitBreaker.DEFAULT_FAILURE_THRESHOLD),
+                Long.getLong(CIRCUIT_BREAKER_RETRY_INTERVAL_PROPERTY, CircuitBreaker.DEFAULT_RETRY_INTERVAL_MILLIS)));
+        sender.open();
+        registration = new Registration(sender);
+        REGISTRATIONS.put(key, registration);
+      } else if (registration.sender.isAsync()
+          && registration.sender.getLaneQueue().getCapacity() != queueCapacity) {
+        LOG.warn(new StringBuilder().
+            append("Sharing sender ").append(key).
+            append(" with queue capacity ").append(registration.sender.getLaneQueue().getCapacity()).
+            append(", ignoring ").append(queueCapacity).toString());
+      }
+      registration.references++;
+      return registration.sender;
+    }
+  }
+
+  /**
+   * Give back a sender obtained from {@link #acquire}; the last release closes it.
+   */
+  public static void release(MessageSender sender) {
+    final Registration registration;
+    synchronized (REGISTRATIONS) {
+      registration = REGISTRATIONS.get(sender.toString());
+      if (registration == null || registration.sender != sender || --registration.references > 0) {
+        return;
+      }
+      REGISTRATIONS.remove(sender.toString());
+    }
+    registration.sender.close();
+  }
+
+  /**
+   * @return the number of valves sharing the sender, 0 once it is closed
+   */
+  public static int getReferences(MessageSender sender) {
+    synchronized (REGISTRATIONS) {
+      final Registration registration = REGISTRATIONS.get(sender.toString());
+      return registration == null || registration.sender != sender ? 0 : registration.references;
+    }
+  }
+
+  /**
+   * @return the budget shared by the queues of all asynchronous senders
+   */
+  public static BufferBudget getBufferBudget() {
+    return BUFFER_BUDGET;
+  }
+
+  private static final class Registration {
+
+    private final MessageSender sender;
+    private int references;
+
+    Registration(MessageSender sender) {
+      this.sender = sender;
+    }
+  }
+}
@@ -0,0 +1,411 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Optional;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Hands the datagrams staged by {@link BatchingUdpTransport} to the kernel with one sendmmsg(2) call
+ * per batch, through the Foreign Function &amp; Memory API.
+ *
+ * The API is looked up reflectively, so this class links on every JVM the valves run on; it is only
+ * available on 64-bit Linux with java.lang.foreign, i.e. Java 22 and later, or Java 21 where it is a
+ * preview API, see {@link #isAvailable()}. Elsewhere the transport writes the datagrams one by one.
+ * The JVM warns once about the native access unless it is started with {@code
+ * --enable-native-access=ALL-UNNAMED}.
+ *
+ * The engine owns a socket connected to the collector. The staging buffer, the message headers and
+ * their I/O vectors live in native memory; the headers point at their I/O vectors once, a batch
+ * only writes the offsets and lengths of its datagrams.
+ */
+final class SendmmsgEngine {
+
+  private static final Log LOG = LogFactory.getLog(SendmmsgEngine.class);
+
+  // XXX: struct iovec, struct mmsghdr and struct sockaddr_in6 of LP64 Linux
+  private static final int IOVEC_SIZE = 16;
+  private static final int MMSGHDR_SIZE = 64;
+  private static final int MSG_IOV_OFFSET = 16;
+  private static final int MSG_IOVLEN_OFFSET = 24;
+  private static final int SOCKADDR_IN_SIZE = 16;
+  private static final int SOCKADDR_IN6_SIZE = 28;
+
+  private static final int AF_INET = 2;
+  private static final int AF_INET6 = 10;
+  private static final int SOCK_DGRAM = 2;
+  private static final int SOCK_CLOEXEC = 02000000;
+  private static final int EINTR = 4;
+  private static final int ECONNREFUSED = 111;
+
+  private static final boolean AVAILABLE;
+
+  static {
+    boolean available = false;
+    final String os = System.getProperty("os.name", "");
+    final String arch = System.getProperty("os.arch", "");
+    if (os.toLowerCase(Locale.ENGLISH).startsWith("linux")
+        && ("amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch))) {
+      try {
+        Class.forName("java.lang.foreign.Linker");
+        available = Native.SENDMMSG != null;
+      } catch (ClassNotFoundException e) {
+        // XXX: Java 20 or older
+      } catch (RuntimeException | LinkageError e) {
+        LOG.warn("sendmmsg(2) is not available, batched datagrams are written one by one", e);
+      }
+    }
+    AVAILABLE = available;
+  }
+
+  private final InetSocketAddress address;
+  private final Object arena;
+  private final Object callState;
+  private final ByteBuffer errno;
+  private final ByteBuffer iovecs;
+  private final long iovecsAddress;
+  private final long headersAddress;
+  private final ByteBuffer batch;
+  private final long batchAddress;
+  private final int fd;
+
+  private ByteBuffer large;
+  private long largeAddress;
+
+  private SendmmsgEngine(InetSocketAddress address, int batchBytes) throws IOException {
+    this.address = address;
+    this.arena = Native.invoke(Native.ARENA_OF_SHARED, null);
+    boolean opened = false;
+    try {
+      this.callState = allocate(Native.CALL_STATE_SIZE);
+      this.errno = byteBuffer(this.callState);
+      final Object iovecSegment = allocate(BatchingUdpTransport.MAX_BATCH_DATAGRAMS * IOVEC_SIZE);
+      this.iovecs = byteBuffer(iovecSegment);
+      this.iovecsAddress = address(iovecSegment);
+      final Object headerSegment = allocate(BatchingUdpTransport.MAX_BATCH_DATAGRAMS * MMSGHDR_SIZE);
+      final ByteBuffer headers = byteBuffer(headerSegment);
+      this.headersAddress = address(headerSegment);
+      for (int i = 0; i < BatchingUdpTransport.MAX_BATCH_DATAGRAMS; i++) {
+        // XXX: no name, the socket is connected; one I/O vector per datagram, no control data
+        headers.putLong(i * MMSGHDR_SIZE + MSG_IOV_OFFSET, this.iovecsAddress + i * IOVEC_SIZE);
+        headers.putLong(i * MMSGHDR_SIZE + MSG_IOVLEN_OFFSET, 1);
+      }
+      final Object batchSegment = allocate(batchBytes);
+      this.batch = byteBuffer(batchSegment);
+      this.batchAddress = address(batchSegment);
+      this.fd = connect(address);
+      opened = true;
+    } finally {
+      if (!opened) {
+        try {
+          Native.invoke(Native.ARENA_CLOSE, this.arena);
+        } catch (IOException e) {
+          // XXX: reporting why the engine could not be opened instead
+        }
+      }
+    }
+  }
+
+  /**
+   * Whether this JVM can call sendmmsg(2).
+   */
+  static boolean isAvailable() {
+    return AVAILABLE;
+  }
+
+  /**
+   * Open a socket connected to the collector.
+   *
+   * @param batchBytes size of the native buffer datagrams are staged in
+   * @throws IOException if the socket cannot be opened or connected, e.g. to an unresolved address
+   */
+  static SendmmsgEngine open(InetSocketAddress address, int batchBytes) throws IOException {
+    if (!AVAILABLE) {
+      throw new IOException("sendmmsg(2) is not available on this JVM");
+    }
+    if (address.isUnresolved()) {
+      throw new IOException("Could not resolve " + address.getHostString());
+    }
+    return new SendmmsgEngine(address, batchBytes);
+  }
+
+  /**
+   * @return the native buffer to stage datagrams in
+   */
+  ByteBuffer getBatch() {
+    return batch;
+  }
+
+  /**
+   * Send the datagrams staged in the batch buffer.
+   *
+   * @param ends the position in the batch buffer after each datagram
+   * @param count the number of datagrams
+   * @return the number of datagrams dropped because the collector's port was reported unreachable
+   * @throws IOException if the datagrams could not be sent
+   */
+  int send(int[] ends, int count) throws IOException {
+    int start = 0;
+    for (int i = 0; i < count; i++) {
+      this.iovecs.putLong(i * IOVEC_SIZE, this.batchAddress + start);
+      this.iovecs.putLong(i * IOVEC_SIZE + 8, ends[i] - start);
+      start = ends[i];
+    }
+    return sendmmsg(count);
+  }
+
+  /**
+   * Send a datagram larger than the batch buffer on its own, copied into a native buffer kept for
+   * the next one.
+   *
+   * @return 1 if the datagram was dropped because the collector's port was reported unreachable, else 0
+   * @throws IOException if the datagram could not be sent
+   */
+  int sendLarge(ByteBuffer datagram) throws IOException {
+    final int length = datagram.remaining();
+    if (this.large == null || this.large.capacity() < length) {
+      // XXX: the previous buffer is freed with the arena, larger messages are rare
+      final Object largeSegment = allocate(Math.max(length, this.large == null ? 0 : this.large.capacity() * 2));
+      this.large = byteBuffer(largeSegment);
+      this.largeAddress = address(largeSegment);
+    }
+    this.large.clear();
+    this.large.put(datagram);
+    this.iovecs.putLong(0, this.largeAddress);
+    this.iovecs.putLong(8, length);
+    return sendmmsg(1);
+  }
+
+  /**
+   * Close the socket and free the native memory.
+   */
+  void close() {
+    try {
+      // XXX: invoked exactly, with the int result of close(2)
+      final int closed = (int) Native.CLOSE.invokeExact(this.callState, this.fd);
+    } catch (Throwable e) {
+      // XXX: nothing left to release but the memory
+    }
+    try {
+      Native.invoke(Native.ARENA_CLOSE, this.arena);
+    } catch (IOException e) {
+      LOG.warn("Could not free the native memory of " + this.address, e);
+    }
+  }
+
+  private int sendmmsg(int count) throws IOException {
+    int dropped = 0;
+    int next = 0;
+    while (next < count) {
+      final int sent;
+      try {
+        sent = (int) Native.SENDMMSG.invokeExact(this.callState, this.fd,
+            this.headersAddress + (long) next * MMSGHDR_SIZE, count - next, 0);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new IOException(e);
+      }
+      if (sent > 0) {
+        next += sent;
+        continue;
+      }
+      final int error = this.errno.getInt(Native.ERRNO_OFFSET);
+      if (sent < 0 && error == EINTR) {
+        continue;
+      }
+      if (sent < 0 && error == ECONNREFUSED) {
+        // XXX: reported for an earlier datagram, the collector is not listening (yet); like a connected
+        // channel, the datagram at hand is given up
+        dropped++;
+        next++;
+        continue;
+      }
+      throw new IOException("sendmmsg(2) to " + this.address + " failed with errno " + error);
+    }
+    return dropped;
+  }
+
+  private int connect(InetSocketAddress address) throws IOException {
+    final InetAddress inetAddress = address.getAddress();
+    final boolean inet6 = inetAddress instanceof Inet6Address;
+    final Object sockaddrSegment = allocate(SOCKADDR_IN6_SIZE);
+    final ByteBuffer sockaddr = byteBuffer(sockaddrSegment);
+    sockaddr.putShort(0, (short) (inet6 ? AF_INET6 : AF_INET));
+    sockaddr.order(ByteOrder.BIG_ENDIAN).putShort(2, (short) address.getPort()).order(ByteOrder.nativeOrder());
+    final byte[] bytes = inetAddress.getAddress();
+    for (int i = 0; i < bytes.length; i++) {
+      sockaddr.put((inet6 ? 8 : 4) + i, bytes[i]);
+    }
+    if (inet6) {
+      sockaddr.putInt(24, ((Inet6Address) inetAddress).getScopeId());
+    }
+
+    final int socket;
+    final int connected;
+    try {
+      socket = (int) Native.SOCKET.invokeExact(this.callState, inet6 ? AF_INET6 : AF_INET,
+          SOCK_DGRAM | SOCK_CLOEXEC, 0);
+      if (socket < 0) {
+        throw new IOException("Could not open a socket for " + address + ", errno "
+            + this.errno.getInt(Native.ERRNO_OFFSET));
+      }
+      connected = (int) Native.CONNECT.invokeExact(this.callState, socket, address(sockaddrSegment),
+          inet6 ? SOCKADDR_IN6_SIZE : SOCKADDR_IN_SIZE);
+    } catch (IOException | RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IOException(e);
+    }
+    if (connected < 0) {
+      final int error = this.errno.getInt(Native.ERRNO_OFFSET);
+      try {
+        final int closed = (int) Native.CLOSE.invokeExact(this.callState, socket);
+      } catch (Throwable e) {
+        // XXX: reporting the connect error instead
+      }
+      throw new IOException("Could not connect to " + address + ", errno " + error);
+    }
+    return socket;
+  }
+
+  private Object allocate(long size) throws IOException {
+    // XXX: zeroed, aligned for the longs of the structs
+    return Native.invoke(Native.ARENA_ALLOCATE, this.arena, size, 8L);
+  }
+
+  private static ByteBuffer byteBuffer(Object segment) throws IOException {
+    return ((ByteBuffer) Native.invoke(Native.SEGMENT_AS_BYTE_BUFFER, segment)).order(ByteOrder.nativeOrder());
+  }
+
+  private static long address(Object segment) throws IOException {
+    return (Long) Native.invoke(Native.SEGMENT_ADDRESS, segment);
+  }
+
+  /**
+   * The handles of java.lang.foreign and libc, only loaded once java.lang.foreign is known to be
+   * available. Segments are typed as Object, so that callers do not link against it.
+   */
+  private static final class Native {
+
+    // XXX: (Object callState, int domain, int type, int protocol) int
+    static final MethodHandle SOCKET;
+    // XXX: (Object callState, int fd, long sockaddr, int length) int
+    static final MethodHandle CONNECT;
+    // XXX: (Object callState, int fd, long mmsghdrs, int vlen, int flags) int
+    static final MethodHandle SENDMMSG;
+    // XXX: (Object callState, int fd) int
+    static final MethodHandle CLOSE;
+
+    static final Method ARENA_OF_SHARED;
+    static final Method ARENA_ALLOCATE;
+    static final Method ARENA_CLOSE;
+    static final Method SEGMENT_ADDRESS;
+    static final Method SEGMENT_AS_BYTE_BUFFER;
+
+    static final long CALL_STATE_SIZE;
+    static final int ERRNO_OFFSET;
+
+    static {
+      try {
+        final Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+        final Class<?> optionClass = Class.forName("java.lang.foreign.Linker$Option");
+        final Class<?> memoryLayoutClass = Class.forName("java.lang.foreign.MemoryLayout");
+        final Class<?> pathElementClass = Class.forName("java.lang.foreign.MemoryLayout$PathElement");
+        final Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+        final Class<?> arenaClass = Class.forName("java.lang.foreign.Arena");
+
+        final Object linker = linkerClass.getMethod("nativeLinker").invoke(null);
+        final Object lookup = linkerClass.getMethod("defaultLookup").invoke(linker);
+        final Object captureErrno = optionClass.getMethod("captureCallState", String[].class)
+            .invoke(null, (Object) new String[]{"errno"});
+        final Object callStateLayout = optionClass.getMethod("captureStateLayout").invoke(null);
+
+        SOCKET = downcall(linker, lookup, captureErrno, "socket", int.class, int.class, int.class);
+        CONNECT = downcall(linker, lookup, captureErrno, "connect", int.class, long.class, int.class);
+        SENDMMSG = downcall(linker, lookup, captureErrno, "sendmmsg", int.class, long.class, int.class, int.class);
+        CLOSE = downcall(linker, lookup, captureErrno, "close", int.class);
+
+        ARENA_OF_SHARED = arenaClass.getMethod("ofShared");
+        ARENA_ALLOCATE = arenaClass.getMethod("allocate", long.class, long.class);
+        ARENA_CLOSE = arenaClass.getMethod("close");
+        SEGMENT_ADDRESS = segmentClass.getMethod("address");
+        SEGMENT_AS_BYTE_BUFFER = segmentClass.getMethod("asByteBuffer");
+
+        final Object errnoPath = Array.newInstance(pathElementClass, 1);
+        Array.set(errnoPath, 0, pathElementClass.getMethod("groupElement", String.class).invoke(null, "errno"));
+        CALL_STATE_SIZE = (Long) memoryLayoutClass.getMethod("byteSize").invoke(callStateLayout);
+        ERRNO_OFFSET = ((Long) memoryLayoutClass.getMethod("byteOffset", errnoPath.getClass())
+            .invoke(callStateLayout, errnoPath)).intValue();
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Could not look up the Foreign Function & Memory API", e);
+      }
+    }
+
+    private Native() {
+    }
+
+    /**
+     * A downcall handle to the libc function of the given name, returning an int and capturing errno,
+     * typed with Object for the call state segment.
+     */
+    private static MethodHandle downcall(Object linker, Object lookup, Object captureErrno, String name,
+        Class<?>... parameterTypes) throws ReflectiveOperationException {
+      final Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+      final Class<?> optionClass = Class.forName("java.lang.foreign.Linker$Option");
+      final Class<?> symbolLookupClass = Class.forName("java.lang.foreign.SymbolLookup");
+      final Class<?> memoryLayoutClass = Class.forName("java.lang.foreign.MemoryLayout");
+      final Class<?> valueLayoutClass = Class.forName("java.lang.foreign.ValueLayout");
+      final Class<?> descriptorClass = Class.forName("java.lang.foreign.FunctionDescriptor");
+      final Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+
+      final Object symbol = ((Optional<?>) symbolLookupClass.getMethod("find", String.class)
+          .invoke(lookup, name)).orElse(null);
+      if (symbol == null) {
+        throw new IllegalStateException(name + " not found in libc");
+      }
+      // XXX: pointers are passed as longs, the same registers on LP64
+      final Object intLayout = valueLayoutClass.getField("JAVA_INT").get(null);
+      final Object longLayout = valueLayoutClass.getField("JAVA_LONG").get(null);
+      final Object argumentLayouts = Array.newInstance(memoryLayoutClass, parameterTypes.length);
+      for (int i = 0; i < parameterTypes.length; i++) {
+        Array.set(argumentLayouts, i, parameterTypes[i] == long.class ? longLayout : intLayout);
+      }
+      final Object descriptor = descriptorClass.getMethod("of", memoryLayoutClass, argumentLayouts.getClass())
+          .invoke(null, intLayout, argumentLayouts);
+      final Object options = Array.newInstance(optionClass, 1);
+      Array.set(options, 0, captureErrno);
+      final MethodHandle handle = (MethodHandle) linkerClass
+          .getMethod("downcallHandle", segmentClass, descriptorClass, options.getClass())
+          .invoke(linker, symbol, descriptor, options);
+      return handle.asType(handle.type().changeParameterType(0, Object.class));
+    }
+
+    static Object invoke(Method method, Object target, Object... arguments) throws IOException {
+      try {
+        return method.invoke(target, arguments);
+      } catch (InvocationTargetException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IOException(cause);
+      } catch (IllegalAccessException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+}
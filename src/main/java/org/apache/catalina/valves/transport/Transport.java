@@ -0,0 +1,69 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Delivers encoded log messages to a destination.
+ *
+ * A transport is driven by a single thread at a time; {@link MessageSender} serializes access to it.
+ */
+public interface Transport {
+
+  /**
+   * Open the underlying connection or socket.
+   *
+   * @throws IOException if the destination cannot be reached
+   */
+  void open() throws IOException;
+
+  /**
+   * Send one message; the bytes between the buffer's position and limit.
+   *
+   * The transport may batch it until the next {@link #flush()}; the buffer can be reused once this
+   * method returns.
+   *
+   * @param message the encoded message
+   * @throws IOException if the message could not be sent
+   */
+  void send(ByteBuffer message) throws IOException;
+
+  /**
+   * Push out anything batched by {@link #send(ByteBuffer)}; called once the sender has no more
+   * messages at hand.
+   *
+   * @throws IOException if the batched messages could not be sent
+   */
+  void flush() throws IOException;
+
+  /**
+   * Release the underlying connection or socket.
+   */
+  void close();
+
+  /**
+   * Describe the settings changing how messages are delivered besides the destination of {@link
+   * #toString()}, e.g. {@code windowSize=128}; transports share a sender only if their destinations
+   * and settings are equal, see {@link SenderRegistry}.
+   *
+   * @return the settings, empty if there are none
+   */
+  String getSettings();
+
+  /**
+   * Whether {@link #send(ByteBuffer)} may accept messages that are only delivered, or found
+   * undeliverable, by a later send or {@link #flush()}; the {@link CircuitBreaker} of a buffering
+   * transport counts its flushes as successes, that of any other transport its sends.
+   */
+  boolean isBuffering();
+
+  /**
+   * Have the transport report the outcome of its deliveries to the listener, if it delivers on threads
+   * of its own after {@link #send(ByteBuffer)} and {@link #flush()} returned, so its failures never
+   * reach their callers; called before {@link #open()}.
+   *
+   * @return whether the transport reports its deliveries; false if it delivers on the calling thread
+   * and ignores the listener
+   */
+  boolean reportDeliveries(DeliveryListener listener);
+}
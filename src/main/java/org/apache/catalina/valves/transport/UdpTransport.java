@@ -0,0 +1,66 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends every message as one UDP datagram.
+ */
+public class UdpTransport implements Transport {
+
+  private final InetSocketAddress address;
+  private DatagramChannel datagramChannel;
+
+  public UdpTransport(InetSocketAddress address) {
+    this.address = address;
+  }
+
+  @Override
+  public void open() throws IOException {
+    this.datagramChannel = DatagramChannel.open();
+  }
+
+  @Override
+  public void send(ByteBuffer message) throws IOException {
+    this.datagramChannel.send(message, this.address);
+  }
+
+  @Override
+  public void flush() {
+    // XXX: every datagram goes out on send
+  }
+
+  @Override
+  public void close() {
+    if (this.datagramChannel != null) {
+      try {
+        this.datagramChannel.close();
+      } catch (IOException e) {
+        // XXX: nothing left to release
+      }
+    }
+  }
+
+  @Override
+  public boolean isBuffering() {
+    return false;
+  }
+
+  @Override
+  public boolean reportDeliveries(DeliveryListener listener) {
+    return false;
+  }
+
+  @Override
+  public String getSettings() {
+    return "";
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().append("udp://").append(this.address.getHostString()).append(':')
+        .append(this.address.getPort()).toString();
+  }
+}
@@ -3,9 +3,24 @@ package org.apache.log4j;
 import org.apache.log4j.helpers.PidPatternParser;
 import org.apache.log4j.helpers.PatternParser;
 
+/**
+ * PatternLayout understanding <code>%P</code> (process id) and
+ * <code>%H</code> (local host name).
+ *
+ * Both are resolved once and fused with the surrounding literal text at
+ * parse time, see {@link PidPatternParser}; each event is rendered into the
+ * buffer reused by {@link PatternLayout#format(org.apache.log4j.spi.LoggingEvent)}.
+ */
 public class PidPatternLayout extends PatternLayout {
+    public PidPatternLayout() {
+	super();
+    }
+
+    public PidPatternLayout(String pattern) {
+	super(pattern);
+    }
+
     protected PatternParser createPatternParser(String pattern) {
 	return new PidPatternParser(pattern);
     }
 }
-
@@ -1,18 +1,59 @@
 package org.apache.log4j.helpers;
 
 import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import org.apache.log4j.spi.LoggingEvent;
 
+/**
+ * PatternParser adding <code>%P</code> (process id) and <code>%H</code>
+ * (local host name) to the log4j conversion characters.
+ *
+ * Both values are resolved once per JVM. After parsing, runs of adjacent
+ * constant converters (literals, <code>%P</code> and <code>%H</code>) are
+ * fused into a single pre-rendered segment, so formatting an event only
+ * appends one char array into the layout's reused buffer for each of them.
+ *
+ * log4j's literal converter is private, it is recognized by its class name.
+ * Should a log4j version name it differently, literals are left as they are
+ * and only adjacent <code>%P</code> and <code>%H</code> converters are
+ * fused; the output is the same either way.
+ */
 public class PidPatternParser extends PatternParser {
+    static final String PID =
+	ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+    static final String HOSTNAME = resolveHostname();
+
+    // XXX: log4j keeps its literal converter private to PatternParser
+    private static final Class LITERAL_CONVERTER_CLASS =
+	findClass("org.apache.log4j.helpers.PatternParser$LiteralPatternConverter");
+
     public PidPatternParser(String pattern) {
 	super(pattern);
     }
 
+    public PatternConverter parse() {
+	return parse(LITERAL_CONVERTER_CLASS);
+    }
+
+    /**
+     * @param literalConverterClass the class of log4j's literal converter,
+     * null if it could not be found
+     */
+    PatternConverter parse(Class literalConverterClass) {
+	return fuseConstants(super.parse(), literalConverterClass);
+    }
+
     protected void finalizeConverter(char c) {
 	PatternConverter pc = null;
 	switch(c) {
 	case 'P':
-	    pc = new PidPatternConverter();
+	    pc = new ConstantPatternConverter(formattingInfo, PID);
+	    currentLiteral.setLength(0);
+	    break;
+	case 'H':
+	    pc = new ConstantPatternConverter(formattingInfo, HOSTNAME);
 	    currentLiteral.setLength(0);
 	    break;
 	default:
@@ -24,9 +65,107 @@ public class PidPatternParser extends PatternParser {
 	}
     }
 
-    private class PidPatternConverter extends PatternConverter {
+    /**
+     * Replaces every run of constant converters in the chain starting at
+     * head with one FusedPatternConverter holding the rendered output.
+     */
+    static PatternConverter fuseConstants(PatternConverter head,
+					  Class literalConverterClass) {
+	PatternConverter fusedHead = null;
+	PatternConverter fusedTail = null;
+	PatternConverter pc = head;
+
+	while (pc != null) {
+	    PatternConverter next;
+	    PatternConverter item;
+
+	    if (isConstant(pc, literalConverterClass)) {
+		StringBuffer rendered = new StringBuffer();
+		next = pc;
+		while (next != null && isConstant(next, literalConverterClass)) {
+		    // XXX: constant converters never look at the event
+		    next.format(rendered, null);
+		    next = next.next;
+		}
+		item = new FusedPatternConverter(rendered.toString());
+	    } else {
+		next = pc.next;
+		item = pc;
+	    }
+
+	    item.next = null;
+	    if (fusedHead == null) {
+		fusedHead = item;
+	    } else {
+		fusedTail.next = item;
+	    }
+	    fusedTail = item;
+	    pc = next;
+	}
+	return fusedHead;
+    }
+
+    private static boolean isConstant(PatternConverter pc,
+				      Class literalConverterClass) {
+	return (literalConverterClass != null
+		&& pc.getClass() == literalConverterClass)
+	    || pc instanceof ConstantPatternConverter
+	    || pc instanceof FusedPatternConverter;
+    }
+
+    private static String resolveHostname() {
+	try {
+	    return InetAddress.getLocalHost().getHostName();
+	}
+	catch (UnknownHostException uhe) {
+	    return "UNKNOWN_HOST";
+	}
+    }
+
+    private static Class findClass(String className) {
+	try {
+	    return Class.forName(className);
+	}
+	catch (ClassNotFoundException cnfe) {
+	    return null;
+	}
+    }
+
+    /**
+     * A converter whose value is fixed for the lifetime of the JVM, still
+     * honouring the min/max/alignment options of its conversion specifier.
+     */
+    private static class ConstantPatternConverter extends PatternConverter {
+	private final String value;
+
+	ConstantPatternConverter(FormattingInfo formattingInfo, String value) {
+	    super(formattingInfo);
+	    this.value = value;
+	}
+
+	public String convert(LoggingEvent event) {
+	    return value;
+	}
+    }
+
+    /**
+     * Pre-rendered output of one or more adjacent constant converters.
+     */
+    private static class FusedPatternConverter extends PatternConverter {
+	private final String value;
+	private final char[] chars;
+
+	FusedPatternConverter(String value) {
+	    this.value = value;
+	    this.chars = value.toCharArray();
+	}
+
+	public final void format(StringBuffer sbuf, LoggingEvent event) {
+	    sbuf.append(chars);
+	}
+
 	public String convert(LoggingEvent event) {
-	    return ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+	    return value;
 	}
     }
 }
@@ -0,0 +1,209 @@
+package org.apache.catalina.valves;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.MessageEncodingException;
+import org.apache.catalina.valves.encoder.AccessLogRecord;
+import org.apache.catalina.valves.encoder.EncodedValueCache;
+import org.apache.catalina.valves.encoder.MessageEncoder;
+import org.apache.catalina.valves.encoder.MessageEncoders;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Guards the bytes allocated per {@code log(CharArrayWriter)} call, since they drive the GC pause
+ * budget of the hosting Tomcat.
+ *
+ * Budgets are in bytes per message and can be overridden with the system properties
+ * {@code allocation.budget.syslog}, {@code allocation.budget.json} and {@code
+ * allocation.budget.encoder} (see the surefire configuration in pom.xml).
+ */
+public class AllocationBudgetTest {
+
+  private static final int WARMUP_ITERATIONS = 20000;
+  private static final int MEASURED_ITERATIONS = 10000;
+
+  private static final String SYSLOG_MESSAGE =
+      "172.17.0.1 - - [27/Apr/2018:07:09:00 +0000] \"GET /?pretty=wow HTTP/1.1\" 200 11250";
+
+  private static final String JSON_MESSAGE =
+      "{\"@timestamp\":\"2018-04-27T07:09:00.982+0000\",\"type\":\"tomcataccess\",\"agent\":\"curl/7.47.0\","
+          + "\"auth\":\"-\",\"bytes\":11250,\"clientip\":\"172.17.0.1\",\"httpversion\":\"HTTP/1.1\","
+          + "\"ident\":\"-\",\"request\":\"/?pretty=wow\",\"request_time\":4,\"response\":200,"
+          + "\"timestamp\":\"27/Apr/2018:07:09:00 +0000\",\"verb\":\"GET\",\"vhost\":\"localhost\","
+          + "\"x_forwarded_for\":\"-\"}";
+
+  private com.sun.management.ThreadMXBean threadMXBean;
+  private DatagramSocket datagramServerSocket;
+
+  @Before
+  public void setUp() throws SocketException {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+    // XXX: nothing reads from it; datagrams are simply dropped once the receive buffer is full
+    datagramServerSocket = new DatagramSocket();
+  }
+
+  @After
+  public void tearDown() {
+    if (datagramServerSocket != null) {
+      datagramServerSocket.close();
+    }
+  }
+
+  @Test
+  public void syslogLogShouldStayWithinAllocationBudget() {
+    // Given
+    final SyslogAccessLogValve syslogAccessLogValve = new SyslogAccessLogValve();
+    syslogAccessLogValve.setHostname(datagramServerSocket.getLocalAddress().getHostName());
+    syslogAccessLogValve.setPort(String.valueOf(datagramServerSocket.getLocalPort()));
+    syslogAccessLogValve.open();
+
+    final CharArrayWriter charArrayWriter = new CharArrayWriter();
+    charArrayWriter.append(SYSLOG_MESSAGE);
+
+    try {
+      // When
+      final long bytesPerMessage = measureBytesPerMessage(new Runnable() {
+        @Override
+        public void run() {
+          syslogAccessLogValve.log(charArrayWriter);
+        }
+      });
+
+      // Then
+      Assert.assertThat("SyslogAccessLogValve.log bytes/message", bytesPerMessage,
+          Matchers.lessThanOrEqualTo(budget("allocation.budget.syslog", 64)));
+    } finally {
+      syslogAccessLogValve.close();
+    }
+  }
+
+  @Test
+  public void udpJSONLogShouldStayWithinAllocationBudget() throws LifecycleException {
+    // Given
+    final UdpJSONAccessLogValve udpJSONAccessLogValve = new UdpJSONAccessLogValve();
+    udpJSONAccessLogValve.setHostname(datagramServerSocket.getLocalAddress().getHostName());
+    udpJSONAccessLogValve.setPort(String.valueOf(datagramServerSocket.getLocalPort()));
+    udpJSONAccessLogValve.setForUnitTest(true);
+    udpJSONAccessLogValve.startInternal();
+
+    final CharArrayWriter charArrayWriter = new CharArrayWriter();
+    charArrayWriter.append(JSON_MESSAGE);
+
+    try {
+      // When
+      final long bytesPerMessage = measureBytesPerMessage(new Runnable() {
+        @Override
+        public void run() {
+          udpJSONAccessLogValve.log(charArrayWriter);
+        }
+      });
+
+      // Then
+      Assert.assertThat("UdpJSONAccessLogValve.log bytes/message", bytesPerMessage,
+          Matchers.lessThanOrEqualTo(budget("allocation.budget.json", 64)));
+    } finally {
+      udpJSONAccessLogValve.stopInternal();
+    }
+  }
+
+  @Test
+  public void encodersShouldStayWithinAllocationBudget() {
+    final String[][] formatsAndBodies = {
+        {"text", SYSLOG_MESSAGE},
+        {"json", JSON_MESSAGE},
+        {"cef", SYSLOG_MESSAGE},
+        {"rfc5424", SYSLOG_MESSAGE},
+        {"rfc3164", SYSLOG_MESSAGE},
+        {"rfc5424+json", JSON_MESSAGE},
+        {"rfc3164+cef", SYSLOG_MESSAGE}
+    };
+
+    for (final String[] formatAndBody : formatsAndBodies) {
+      // Given
+      final MessageEncoder encoder = MessageEncoders.create(formatAndBody[0], "localhost", true);
+      final AccessLogRecord record = new AccessLogRecord();
+      final char[] body = formatAndBody[1].toCharArray();
+      record.setBody(body, 0, body.length);
+      record.setPriority(14);
+      final ByteBuffer out = ByteBuffer.allocate(4096);
+
+      // When
+      final long bytesPerMessage = measureBytesPerMessage(new Runnable() {
+        @Override
+        public void run() {
+          out.clear();
+          record.setTimestamp(System.currentTimeMillis());
+          try {
+            encoder.encode(record, out);
+          } catch (MessageEncodingException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      });
+
+      // Then
+      Assert.assertThat(formatAndBody[0] + " encoder bytes/message", bytesPerMessage,
+          Matchers.lessThanOrEqualTo(budget("allocation.budget.encoder", 0)));
+    }
+  }
+
+  @Test
+  public void cachedJsonEncoderShouldStayWithinAllocationBudget() {
+    // Given
+    final MessageEncoder encoder = MessageEncoders.create("json", "localhost", true, new EncodedValueCache(256));
+    final AccessLogRecord record = new AccessLogRecord();
+    final char[] body = JSON_MESSAGE.toCharArray();
+    record.setBody(body, 0, body.length);
+    final ByteBuffer out = ByteBuffer.allocate(4096);
+
+    // When
+    final long bytesPerMessage = measureBytesPerMessage(new Runnable() {
+      @Override
+      public void run() {
+        out.clear();
+        try {
+          encoder.encode(record, out);
+        } catch (MessageEncodingException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    });
+
+    // Then
+    Assert.assertThat("cached json encoder bytes/message", bytesPerMessage,
+        Matchers.lessThanOrEqualTo(budget("allocation.budget.encoder", 0)));
+  }
+
+  private long measureBytesPerMessage(Runnable logCall) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      logCall.run();
+    }
+
+    final long threadId = Thread.currentThread().getId();
+    final long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      logCall.run();
+    }
+    final long allocatedAfter = threadMXBean.getThreadAllocatedBytes(threadId);
+
+    return (allocatedAfter - allocatedBefore) / MEASURED_ITERATIONS;
+  }
+
+  private static Long budget(String propertyName, long defaultBudget) {
+    return Long.getLong(propertyName, defaultBudget);
+  }
+}
@@ -0,0 +1,191 @@
+package org.apache.catalina.valves;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import org.apache.catalina.valves.transport.DeliveryListener;
+import org.apache.catalina.valves.transport.Lane;
+import org.apache.catalina.valves.transport.MessageSender;
+import org.apache.catalina.valves.transport.Transport;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadSheddingTest {
+
+  private final StubTransport transport = new StubTransport();
+  private final RecordingPatternSwitch patternSwitch = new RecordingPatternSwitch();
+  private MessageSender messageSender;
+
+  @After
+  public void tearDown() {
+    transport.permits.release(1000);
+    transport.latencyMillis = 0;
+    messageSender.close();
+  }
+
+  @Test
+  public void shouldDegradeAndRestoreByQueueDepthWithHysteresis() throws IOException, InterruptedException {
+    // Given
+    messageSender = new MessageSender("test", transport, 10);
+    messageSender.open();
+    final LoadShedding loadShedding = new LoadShedding(messageSender, 75, 25, 60000, 60000, patternSwitch);
+    long now = 0;
+
+    // When
+    for (int i = 0; i < 9; i++) {
+      messageSender.submit(Lane.NORMAL, ByteBuffer.wrap(new byte[]{'x'}));
+    }
+    awaitQueueSize(8);
+
+    // Then
+    Assert.assertThat(loadShedding.update(now), Matchers.is(true));
+    Assert.assertThat(loadShedding.isDegraded(), Matchers.is(true));
+    Assert.assertThat(patternSwitch.switches, Matchers.is("degraded"));
+
+    // When
+    transport.permits.release(4);
+    awaitQueueSize(4);
+
+    // Then
+    // XXX: 40% is below the degrade but above the restore threshold
+    Assert.assertThat(loadShedding.update(now += LoadShedding.CHECK_INTERVAL_MILLIS), Matchers.is(false));
+    Assert.assertThat(loadShedding.isDegraded(), Matchers.is(true));
+
+    // When
+    transport.permits.release(5);
+    awaitQueueSize(0);
+
+    // Then
+    Assert.assertThat(loadShedding.update(now += LoadShedding.CHECK_INTERVAL_MILLIS), Matchers.is(true));
+    Assert.assertThat(loadShedding.isDegraded(), Matchers.is(false));
+    Assert.assertThat(loadShedding.getDegradations(), Matchers.is(1L));
+    Assert.assertThat(patternSwitch.switches, Matchers.is("degraded restored"));
+  }
+
+  @Test
+  public void shouldDegradeAndRestoreBySendLatency() throws IOException {
+    // Given
+    messageSender = new MessageSender("test", transport, 0);
+    messageSender.open();
+    transport.permits.release(1000);
+    final LoadShedding loadShedding = new LoadShedding(messageSender, 75, 25, 10, 2, patternSwitch);
+
+    // When
+    transport.latencyMillis = 20;
+    for (int i = 0; i < 20; i++) {
+      messageSender.submit(Lane.NORMAL, ByteBuffer.wrap(new byte[]{'x'}));
+    }
+
+    // Then
+    Assert.assertThat(loadShedding.update(0), Matchers.is(true));
+    Assert.assertThat(loadShedding.isDegraded(), Matchers.is(true));
+    Assert.assertThat(loadShedding.getStatistics(), Matchers.startsWith("mode=degraded, queueDepth=0%, sendLatency="));
+
+    // When
+    transport.latencyMillis = 0;
+    for (int i = 0; i < 50; i++) {
+      messageSender.submit(Lane.NORMAL, ByteBuffer.wrap(new byte[]{'x'}));
+    }
+
+    // Then
+    // XXX: sampled at most once per check interval
+    Assert.assertThat(loadShedding.update(LoadShedding.CHECK_INTERVAL_MILLIS - 1), Matchers.is(false));
+    Assert.assertThat(loadShedding.update(LoadShedding.CHECK_INTERVAL_MILLIS), Matchers.is(true));
+    Assert.assertThat(loadShedding.isDegraded(), Matchers.is(false));
+  }
+
+  @Test
+  public void shouldWriteJSONAndTextMarkers() throws IOException {
+    // Given
+    messageSender = new MessageSender("test", transport, 10);
+    final LoadShedding loadShedding = new LoadShedding(messageSender, 0, 0, 0, 0, patternSwitch);
+    loadShedding.update(0);
+    final CharArrayWriter json = new CharArrayWriter();
+    final CharArrayWriter text = new CharArrayWriter();
+
+    // When
+    loadShedding.writeMarker(json, true, 0);
+    loadShedding.writeMarker(text, false, 0);
+
+    // Then
+    Assert.assertThat(json.toString(), Matchers.startsWith("{\"@timestamp\":\"19"));
+    Assert.assertThat(json.toString(), Matchers.endsWith(
+        "\",\"type\":\"tomcataccess_mode\",\"mode\":\"degraded\",\"queue_depth\":0,\"send_latency_ms\":0}"));
+    Assert.assertThat(text.toString(), Matchers.is("Access log pattern degraded: queue depth 0%, send latency 0 ms"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectRestoreThresholdsAboveDegradeThresholds() {
+    messageSender = new MessageSender("test", transport, 10);
+    new LoadShedding(messageSender, 25, 75, 50, 5, patternSwitch);
+  }
+
+  private void awaitQueueSize(int size) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (messageSender.getLaneQueue().size() != size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertThat(messageSender.getLaneQueue().size(), Matchers.is(size));
+  }
+
+  /**
+   * Sends once a permit is available, taking latencyMillis per message.
+   */
+  private static final class RecordingPatternSwitch implements LoadShedding.PatternSwitch {
+
+    private String switches = "";
+
+    @Override
+    public void switchPattern(boolean degraded) {
+      this.switches += (this.switches.isEmpty() ? "" : " ") + (degraded ? "degraded" : "restored");
+    }
+  }
+
+  private static final class StubTransport implements Transport {
+
+    private final Semaphore permits = new Semaphore(0);
+    private volatile long latencyMillis;
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void send(ByteBuffer message) throws IOException {
+      try {
+        permits.acquire();
+        if (latencyMillis > 0) {
+          Thread.sleep(latencyMillis);
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isBuffering() {
+      return false;
+    }
+
+    @Override
+    public boolean reportDeliveries(DeliveryListener listener) {
+      return false;
+    }
+
+    @Override
+    public String getSettings() {
+      return "";
+    }
+  }
+}
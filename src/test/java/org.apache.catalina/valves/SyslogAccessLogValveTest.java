@@ -0,0 +1,128 @@
+package org.apache.catalina.valves;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardHost;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SyslogAccessLogValveTest {
+
+  // XXX: local3.info and local7.notice
+  private static final int LOCAL3_INFO = 19 * 8 + 6;
+  private static final int LOCAL7_NOTICE = 23 * 8 + 5;
+
+  private DatagramSocket defaultSocket;
+  private DatagramSocket paymentsSocket;
+  private SyslogAccessLogValve syslogAccessLogValve;
+
+  @Before
+  public void setUp() throws IOException {
+    defaultSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    defaultSocket.setSoTimeout(5000);
+    paymentsSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    paymentsSocket.setSoTimeout(5000);
+
+    syslogAccessLogValve = new SyslogAccessLogValve();
+    syslogAccessLogValve.setHostname(InetAddress.getLoopbackAddress().getHostAddress());
+    syslogAccessLogValve.setPort(String.valueOf(defaultSocket.getLocalPort()));
+    syslogAccessLogValve.setRoutes(
+        "/payments=local3.info@" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + paymentsSocket.getLocalPort()
+            + ", static.example.com=local7.notice, not-a-route");
+    syslogAccessLogValve.open();
+  }
+
+  @After
+  public void tearDown() {
+    syslogAccessLogValve.close();
+    defaultSocket.close();
+    paymentsSocket.close();
+  }
+
+  @Test
+  public void shouldRouteByContextPathThenHostName() {
+    // Given
+    final Request paymentsOnStaticHost = request("/payments", "static.example.com");
+    final Request otherOnStaticHost = request("/other", "static.example.com");
+    final Request otherOnDefaultHost = request("/other", "localhost");
+
+    // When
+    final AccessLogRoute paymentsRoute = syslogAccessLogValve.route(paymentsOnStaticHost);
+    final AccessLogRoute staticRoute = syslogAccessLogValve.route(otherOnStaticHost);
+    final AccessLogRoute noRoute = syslogAccessLogValve.route(otherOnDefaultHost);
+
+    // Then
+    Assert.assertThat(paymentsRoute.getPriority(), Matchers.is(LOCAL3_INFO));
+    Assert.assertThat(paymentsRoute.getSender().toString(), Matchers.endsWith(":" + paymentsSocket.getLocalPort()));
+    Assert.assertThat(staticRoute.getPriority(), Matchers.is(LOCAL7_NOTICE));
+    Assert.assertThat(staticRoute.getSender().toString(), Matchers.endsWith(":" + defaultSocket.getLocalPort()));
+    Assert.assertThat(noRoute, Matchers.nullValue());
+  }
+
+  @Test
+  public void shouldSendWithPriorityAndDestinationOfRoute() throws IOException {
+    // Given
+    final CharArrayWriter charArrayWriter = new CharArrayWriter();
+    charArrayWriter.append("GET /payments/checkout 200");
+
+    // When
+    syslogAccessLogValve.log(charArrayWriter, syslogAccessLogValve.route(request("/payments", "localhost")));
+    syslogAccessLogValve.log(charArrayWriter, null);
+
+    // Then
+    Assert.assertThat(receive(paymentsSocket), Matchers.startsWith("<" + LOCAL3_INFO + ">1 "));
+    Assert.assertThat(receive(defaultSocket), Matchers.startsWith("<14>1 "));
+  }
+
+  @Test
+  public void shouldParseIPv6DestinationsOnlyBracketedWithPort() throws IOException {
+    // Given
+    final InetAddress ipv6Loopback = InetAddress.getByName("::1");
+    final int defaultPort = defaultSocket.getLocalPort();
+
+    // When
+    final InetSocketAddress bracketedWithPort = syslogAccessLogValve.parseDestination("[::1]:1514");
+    final InetSocketAddress bracketed = syslogAccessLogValve.parseDestination("[::1]");
+    final InetSocketAddress bare = syslogAccessLogValve.parseDestination("::1");
+    final InetSocketAddress ipv4WithPort = syslogAccessLogValve.parseDestination("127.0.0.1:1514");
+
+    // Then
+    Assert.assertThat(bracketedWithPort, Matchers.is(new InetSocketAddress(ipv6Loopback, 1514)));
+    Assert.assertThat(bracketed, Matchers.is(new InetSocketAddress(ipv6Loopback, defaultPort)));
+    Assert.assertThat(bare, Matchers.is(new InetSocketAddress(ipv6Loopback, defaultPort)));
+    Assert.assertThat(ipv4WithPort, Matchers.is(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 1514)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectUnclosedIPv6Brackets() throws IOException {
+    syslogAccessLogValve.parseDestination("[::1:1514");
+  }
+
+  private static Request request(String contextPath, String hostName) {
+    final StandardContext context = new StandardContext();
+    context.setPath(contextPath);
+    final StandardHost host = new StandardHost();
+    host.setName(hostName);
+
+    final Request request = new Request();
+    request.getMappingData().context = context;
+    request.getMappingData().host = host;
+    return request;
+  }
+
+  private static String receive(DatagramSocket datagramSocket) throws IOException {
+    final DatagramPacket packet = new DatagramPacket(new byte[65507], 65507);
+    datagramSocket.receive(packet);
+    return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+  }
+}
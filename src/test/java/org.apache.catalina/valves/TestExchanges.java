@@ -0,0 +1,53 @@
+package org.apache.catalina.valves;
+
+import org.apache.catalina.connector.OutputBuffer;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+
+/**
+ * Requests and responses for rendering access log patterns without a connector.
+ */
+public final class TestExchanges {
+
+  private TestExchanges() {
+  }
+
+  /**
+   * @param queryString the query string, null for none
+   */
+  public static org.apache.coyote.Request coyoteRequest(String method, String uri, String queryString) {
+    final org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+    coyoteRequest.method().setString(method);
+    coyoteRequest.requestURI().setString(uri);
+    if (queryString != null) {
+      coyoteRequest.queryString().setString(queryString);
+    }
+    return coyoteRequest;
+  }
+
+  public static Request request(org.apache.coyote.Request coyoteRequest) {
+    final Request request = new Request();
+    request.setCoyoteRequest(coyoteRequest);
+    return request;
+  }
+
+  /**
+   * A response with an output buffer but no connection, having written the given bytes.
+   */
+  public static Response response(int status, final long bytesWritten) {
+    final org.apache.coyote.Response coyoteResponse = new org.apache.coyote.Response();
+    coyoteResponse.setStatus(status);
+    final Response response = new Response() {
+      {
+        this.outputBuffer = new OutputBuffer();
+      }
+
+      @Override
+      public long getBytesWritten(boolean flush) {
+        return bytesWritten;
+      }
+    };
+    response.setCoyoteResponse(coyoteResponse);
+    return response;
+  }
+}
@@ -8,6 +8,8 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.ValveParserConfigurationException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
 import org.hamcrest.Matchers;
 import org.hamcrest.core.IsInstanceOf;
 import org.junit.After;
@@ -55,8 +57,124 @@ public class UdpJSONAccessLogValveTest {
     // Then
     Assert.assertThat(datagramServerThread.getReceiveIOException(),
         Matchers.nullValue(IOException.class));
+    // XXX: the document is validated and sent as rendered, in its original member order
     Assert.assertThat(datagramServerThread.getReceivedString(), Matchers
-        .is("{\"request\":\"\\/?pretty=wow\",\"agent\":\"curl\\/7.47.0\",\"ident\":\"-\",\"verb\":\"GET\",\"type\":\"tomcataccess\",\"x_forwarded_for\":\"-\",\"request_time\":4,\"@timestamp\":\"2018-04-27T07:09:00.982+0000\",\"bytes\":11250,\"response\":200,\"clientip\":\"172.17.0.1\",\"httpversion\":\"HTTP\\/1.1\",\"timestamp\":\"27\\/Apr\\/2018:07:09:00 +0000\",\"vhost\":\"localhost\"}"));
+        .is("{\"request\":\"/?pretty=wow\",\"agent\":\"curl/7.47.0\",\"ident\":\"-\",\"verb\":\"GET\",\"type\":\"tomcataccess\",\"x_forwarded_for\":\"-\",\"request_time\":4,\"@timestamp\":\"2018-04-27T07:09:00.982+0000\",\"bytes\":11250,\"response\":200,\"clientip\":\"172.17.0.1\",\"httpversion\":\"HTTP/1.1\",\"timestamp\":\"27/Apr/2018:07:09:00 +0000\",\"vhost\":\"localhost\"}"));
+  }
+
+  @Test
+  public void shouldLogAsynchronously() throws LifecycleException, InterruptedException {
+    // Given
+    udpJSONAccessLogValve.stopInternal();
+    udpJSONAccessLogValve.setAsync("true");
+    udpJSONAccessLogValve.startInternal();
+
+    final CharArrayWriter charArrayWriter = new CharArrayWriter();
+    charArrayWriter.append("{\"name\":\"John\",\"age\":25}");
+
+    // When
+    udpJSONAccessLogValve.log(charArrayWriter);
+    datagramServerThread.join();
+
+    // Then
+    Assert.assertThat(datagramServerThread.getReceiveIOException(),
+        Matchers.nullValue(IOException.class));
+    Assert.assertThat(datagramServerThread.getReceivedString(), Matchers.notNullValue(String.class));
+    Assert.assertThat(udpJSONAccessLogValve.getSenderStatistics(), Matchers.containsString("enqueued=1"));
+  }
+
+  @Test
+  public void shouldStampSequenceNumbers() throws LifecycleException, InterruptedException {
+    // Given
+    udpJSONAccessLogValve.stopInternal();
+    udpJSONAccessLogValve.setSequenceNumbers("true");
+    udpJSONAccessLogValve.startInternal();
+
+    final CharArrayWriter charArrayWriter = new CharArrayWriter();
+    charArrayWriter.append("{\"name\":\"John\",\"age\":25}");
+
+    // When
+    udpJSONAccessLogValve.log(charArrayWriter);
+    datagramServerThread.join();
+
+    // Then
+    final String receivedString = datagramServerThread.getReceivedString();
+    Assert.assertThat(receivedString, Matchers.startsWith("{\"name\":\"John\",\"age\":25,\"sender_id\":\""));
+    Assert.assertThat(receivedString, Matchers.endsWith("\",\"sequence_id\":1}"));
+  }
+
+  @Test
+  public void shouldRenderDeferredEntriesOnTheFormatterThread() throws LifecycleException, InterruptedException {
+    // Given
+    udpJSONAccessLogValve.stopInternal();
+    udpJSONAccessLogValve.setPattern("{\"verb\":\"%m\",\"request\":\"%U%q\",\"response\":%s,\"bytes\":%B}");
+    udpJSONAccessLogValve.setDeferredFormatting("true");
+    udpJSONAccessLogValve.startInternal();
+
+    final Request request = TestExchanges.request(TestExchanges.coyoteRequest("GET", "/search", "q=tomcat"));
+    final Response response = TestExchanges.response(200, 11250);
+
+    // When
+    udpJSONAccessLogValve.defer(request, response, 4);
+    // XXX: the request is recycled once logged; the entry holds what the pattern needs
+    request.recycle();
+    datagramServerThread.join();
+
+    // Then
+    Assert.assertThat(datagramServerThread.getReceivedString(),
+        Matchers.is("{\"verb\":\"GET\",\"request\":\"/search?q=tomcat\",\"response\":200,\"bytes\":11250}"));
+    Assert.assertThat(udpJSONAccessLogValve.getFormatterStatistics(), Matchers.is("formatted=1, dropped=0, queued=0"));
+  }
+
+  @Test
+  public void shouldClassifyUserAgentsOfDeferredEntries() throws LifecycleException, InterruptedException {
+    // Given
+    udpJSONAccessLogValve.stopInternal();
+    udpJSONAccessLogValve.setPattern("{\"verb\":\"%m\",\"response\":%s}");
+    udpJSONAccessLogValve.setDeferredFormatting("true");
+    udpJSONAccessLogValve.setUserAgentClassification("true");
+    udpJSONAccessLogValve.startInternal();
+
+    final org.apache.coyote.Request coyoteRequest = TestExchanges.coyoteRequest("GET", "/", null);
+    coyoteRequest.getMimeHeaders().addValue("User-Agent").setString(
+        "Mozilla/5.0 (iPhone; CPU iPhone OS 17_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) "
+            + "CriOS/120.0.6099.119 Mobile/15E148 Safari/604.1");
+    final Request request = TestExchanges.request(coyoteRequest);
+    final Response response = TestExchanges.response(200, 0);
+
+    // When
+    udpJSONAccessLogValve.defer(request, response, 4);
+    request.recycle();
+    datagramServerThread.join();
+
+    // Then
+    Assert.assertThat(datagramServerThread.getReceivedString(), Matchers.is(
+        "{\"verb\":\"GET\",\"response\":200,"
+            + "\"ua_browser\":\"chrome\",\"ua_os\":\"ios\",\"ua_device\":\"mobile\",\"ua_bot\":false}"));
+    Assert.assertThat(udpJSONAccessLogValve.getUserAgentStatistics(),
+        Matchers.is("capacity=1024, hits=0, misses=1, evictions=0"));
+  }
+
+  @Test
+  public void shouldLogAMarkerWhenDegradingThePattern() throws LifecycleException, InterruptedException {
+    // Given
+    udpJSONAccessLogValve.stopInternal();
+    udpJSONAccessLogValve.setDegradedPattern("default");
+    // XXX: an empty queue and no latency already cross the thresholds
+    udpJSONAccessLogValve.setDegradeQueueDepth("0");
+    udpJSONAccessLogValve.setRestoreQueueDepth("0");
+    udpJSONAccessLogValve.setDegradeSendLatency("0");
+    udpJSONAccessLogValve.setRestoreSendLatency("0");
+    udpJSONAccessLogValve.startInternal();
+
+    // When
+    udpJSONAccessLogValve.log(new Request(), TestExchanges.response(200, 0), 4);
+    datagramServerThread.join();
+
+    // Then
+    Assert.assertThat(datagramServerThread.getReceivedString(), Matchers.containsString(
+        "\",\"type\":\"tomcataccess_mode\",\"mode\":\"degraded\",\"queue_depth\":0,\"send_latency_ms\":0}"));
+    Assert.assertThat(udpJSONAccessLogValve.getLoadSheddingStatistics(), Matchers.startsWith("mode=degraded"));
   }
 
   @Test
@@ -0,0 +1,76 @@
+package org.apache.catalina.valves.deferred;
+
+import java.io.CharArrayWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.valves.TestExchanges;
+import org.apache.catalina.valves.transport.Lane;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeferredFormatterTest {
+
+  @Test
+  public void shouldRenderTheEntryOfASubmitRacingWithStop() throws InterruptedException {
+    // Given
+    final List<String> logged = new CopyOnWriteArrayList<String>();
+    final DeferredFormatter formatter = new DeferredFormatter("test", DeferredPattern.compile("%s %{slow}r", false,
+        Locale.getDefault()), 4, new DeferredFormatter.Sink() {
+      @Override
+      public void log(CharArrayWriter message, CapturedEntry entry) {
+        logged.add(message.toString());
+      }
+    });
+    formatter.start();
+    final CountDownLatch capturing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicBoolean accepted = new AtomicBoolean();
+    final Thread submitter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // XXX: blocks in capture, after reading running and before queueing the entry
+        final Request request = new Request() {
+          @Override
+          public Object getAttribute(String name) {
+            capturing.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return "captured";
+          }
+        };
+        request.setCoyoteRequest(new org.apache.coyote.Request());
+        accepted.set(formatter.submit(request, TestExchanges.response(200, 512), 3, 0, Lane.LOW));
+      }
+    });
+    submitter.start();
+    Assert.assertThat(capturing.await(5, TimeUnit.SECONDS), Matchers.is(true));
+
+    // When
+    final Thread stopper = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        formatter.stop();
+      }
+    });
+    stopper.start();
+    // XXX: longer than the formatter polls, so it sees the queue empty after the stop
+    Thread.sleep(300);
+    release.countDown();
+    submitter.join();
+    stopper.join();
+
+    // Then
+    Assert.assertThat(accepted.get(), Matchers.is(true));
+    Assert.assertThat(logged, Matchers.contains("200 captured"));
+    Assert.assertThat(formatter.getStatistics(), Matchers.is("formatted=1, dropped=0, queued=0"));
+  }
+}
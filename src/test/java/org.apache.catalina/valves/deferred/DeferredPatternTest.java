@@ -0,0 +1,229 @@
+package org.apache.catalina.valves.deferred;
+
+import java.io.CharArrayWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.Date;
+import java.util.Locale;
+import org.apache.catalina.AccessLog;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.session.StandardManager;
+import org.apache.catalina.session.StandardSession;
+import org.apache.catalina.valves.AbstractAccessLogValve;
+import org.apache.catalina.valves.TestExchanges;
+import org.apache.tomcat.util.http.Rfc6265CookieProcessor;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeferredPatternTest {
+
+  private static final String PATTERN = "%a %A %h %H %l %m %p %{remote}p %q %r %s %S %u %U %v %b %B %D %T %F %I "
+      + "%t %{yyyy-MM-dd'T'HH:mm:ss.SSSZ}t %{begin:msec}t %{end:sec}t %{msec_frac}t "
+      + "\"%{User-Agent}i\" \"%{Accept}i\" \"%{X-Missing}i\" %{X-Cache}o %{X-Missing}o %{theme}c %{org.example.attr}r %Z %{x}Z 100%";
+
+  private static final String[] ELEMENTS = {
+      "%a", "%A", "%b", "%B", "%D", "%F", "%h", "%H", "%I", "%l", "%m", "%p", "%{local}p", "%{remote}p", "%q",
+      "%r", "%s", "%S", "%t", "%T", "%u", "%U", "%v", "%{User-Agent}i", "%{Accept}i", "%{X-Missing}i",
+      "%{X-Cache}o", "%{X-Missing}o", "%{theme}c", "%{missing}c", "%{org.example.attr}r", "%{missing}r",
+      "%{cart}s", "%{missing}s", "%{begin}t", "%{end}t", "%{sec}t", "%{msec}t", "%{msec_frac}t",
+      "%{begin:msec}t", "%{end:msec_frac}t", "%{begin:yyyy-MM-dd HH:mm:ss}t", "%{HH:mm:ss.SSS}t", "%Z", "%{x}Z"
+  };
+
+  @Test
+  public void shouldRenderLikeTheAccessLogValve() {
+    // Given
+    final Request request = request();
+    final Response response = response();
+    final DeferredPattern deferredPattern = DeferredPattern.compile(PATTERN, false, Locale.getDefault());
+    final CapturedEntry entry = deferredPattern.newEntry();
+    final CharArrayWriter rendered = new CharArrayWriter();
+
+    // When
+    deferredPattern.capture(request, response, 1234, entry);
+    request.recycle();
+    deferredPattern.render(entry, rendered);
+
+    // Then
+    Assert.assertThat(rendered.toString(), Matchers.is(new ValveRendering(PATTERN).render(request(), response(), 1234)));
+    Assert.assertThat(rendered.toString(), Matchers.containsString(
+        "GET /search?q=tomcat HTTP/1.1 404 - - /search www.example.com 11250 11250 1234 1.234 "));
+  }
+
+  @Test
+  public void shouldRenderTheDefaultJsonPattern() {
+    // Given
+    final String pattern = "{\"@timestamp\":\"%{yyyy-MM-dd'T'HH:mm:ss.SSSZ}t\",\"agent\":\"%{User-Agent}i\","
+        + "\"bytes\":%B,\"clientip\":\"%h\",\"request\":\"%U%q\",\"request_time\":%D,\"response\":%s,"
+        + "\"timestamp\":\"%{dd/MMM/yyyy:HH:mm:ss Z}t\",\"verb\":\"%m\"}";
+    final DeferredPattern deferredPattern = DeferredPattern.compile(pattern, false, Locale.getDefault());
+    final CapturedEntry entry = deferredPattern.newEntry();
+    final CharArrayWriter rendered = new CharArrayWriter();
+
+    // When
+    deferredPattern.capture(request(), response(), 7, entry);
+    deferredPattern.render(entry, rendered);
+
+    // Then
+    Assert.assertThat(rendered.toString(), Matchers.is(new ValveRendering(pattern).render(request(), response(), 7)));
+  }
+
+  @Test
+  public void shouldRenderEachElementLikeTheAccessLogValve() {
+    for (String element : ELEMENTS) {
+      assertRendersLikeTheValve(element, false, false, 1234);
+      assertRendersLikeTheValve(element, false, true, 1234);
+      assertRendersLikeTheValve(element, true, false, 5);
+      assertRendersLikeTheValve(element, true, true, 0);
+    }
+  }
+
+  /**
+   * @param bare whether the request has no query, headers or cookies, a session and a user, and the
+   *     response no body
+   * @param requestAttributesEnabled whether the {@link AccessLog} request attributes are set and used
+   */
+  private static void assertRendersLikeTheValve(String element, boolean bare, boolean requestAttributesEnabled,
+      long time) {
+    final DeferredPattern deferredPattern = DeferredPattern.compile(element, requestAttributesEnabled,
+        Locale.getDefault());
+    final CapturedEntry entry = deferredPattern.newEntry();
+    final CharArrayWriter rendered = new CharArrayWriter();
+    final Request request = bare ? bareRequest(requestAttributesEnabled) : request(requestAttributesEnabled);
+    final Response response = bare ? bareResponse() : response();
+
+    deferredPattern.capture(request, response, time, entry);
+    request.recycle();
+    deferredPattern.render(entry, rendered);
+
+    // XXX: the same response, its commit time is taken when committed
+    final ValveRendering valveRendering = new ValveRendering(element, requestAttributesEnabled);
+    final String expected = valveRendering.render(
+        bare ? bareRequest(requestAttributesEnabled) : request(requestAttributesEnabled), response, time);
+    Assert.assertThat(element + (bare ? " of a bare request" : "")
+        + (requestAttributesEnabled ? " with request attributes" : ""), rendered.toString(), Matchers.is(expected));
+  }
+
+  private static Request request(boolean requestAttributesEnabled) {
+    final Request request = request();
+    if (requestAttributesEnabled) {
+      setAccessLogAttributes(request);
+    }
+    return request;
+  }
+
+  private static Request bareRequest(boolean requestAttributesEnabled) {
+    final org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+    coyoteRequest.setStartTime(1524812941007L);
+    coyoteRequest.method().setString("POST");
+    coyoteRequest.requestURI().setString("/");
+    coyoteRequest.decodedURI().setString("/");
+    coyoteRequest.protocol().setString("HTTP/1.0");
+    coyoteRequest.serverName().setString("localhost");
+    coyoteRequest.setServerPort(80);
+
+    final StandardContext context = new StandardContext();
+    context.setCookieProcessor(new Rfc6265CookieProcessor());
+    final StandardManager manager = new StandardManager();
+    manager.setContext(context);
+    final StandardSession session = new StandardSession(manager);
+    session.setValid(true);
+    session.setId("5F0C3A9E12B47D68", false);
+    session.setAttribute("cart", Integer.valueOf(3));
+
+    final Request request = new Request() {
+      {
+        this.session = session;
+        this.remotePort = 51234;
+      }
+    };
+    request.setCoyoteRequest(coyoteRequest);
+    request.getMappingData().context = context;
+    request.setRemoteAddr("10.0.0.7");
+    request.setRemoteHost("10.0.0.7");
+    request.setUserPrincipal(new Principal() {
+      @Override
+      public String getName() {
+        return "alice";
+      }
+    });
+    if (requestAttributesEnabled) {
+      setAccessLogAttributes(request);
+    }
+    return request;
+  }
+
+  private static void setAccessLogAttributes(Request request) {
+    request.setAttribute(AccessLog.REMOTE_ADDR_ATTRIBUTE, "203.0.113.9");
+    request.setAttribute(AccessLog.REMOTE_HOST_ATTRIBUTE, "proxied.example.com");
+    request.setAttribute(AccessLog.PROTOCOL_ATTRIBUTE, "HTTP/2.0");
+    request.setAttribute(AccessLog.SERVER_PORT_ATTRIBUTE, Integer.valueOf(443));
+  }
+
+  private static Response bareResponse() {
+    final Response response = TestExchanges.response(204, 0);
+    response.getCoyoteResponse().setCommitted(true);
+    return response;
+  }
+
+  private static Request request() {
+    final org.apache.coyote.Request coyoteRequest = TestExchanges.coyoteRequest("GET", "/search", "q=tomcat");
+    coyoteRequest.setStartTime(1524812940982L);
+    coyoteRequest.decodedURI().setString("/search");
+    coyoteRequest.protocol().setString("HTTP/1.1");
+    coyoteRequest.serverName().setString("www.example.com");
+    coyoteRequest.setServerPort(8080);
+    coyoteRequest.getMimeHeaders().addValue("User-Agent").setString("curl/7.47.0");
+    coyoteRequest.getMimeHeaders().addValue("Accept").setString("text/html");
+    coyoteRequest.getMimeHeaders().addValue("Accept").setString("*/*");
+    final byte[] cookie = "theme=dark; lang=en".getBytes(StandardCharsets.ISO_8859_1);
+    coyoteRequest.getMimeHeaders().addValue("Cookie").setBytes(cookie, 0, cookie.length);
+
+    final Request request = TestExchanges.request(coyoteRequest);
+    final StandardContext context = new StandardContext();
+    context.setCookieProcessor(new Rfc6265CookieProcessor());
+    request.getMappingData().context = context;
+    request.setRemoteAddr("172.17.0.1");
+    request.setRemoteHost("client.example.com");
+    request.setAttribute("org.example.attr", Integer.valueOf(42));
+    return request;
+  }
+
+  private static Response response() {
+    final Response response = TestExchanges.response(404, 11250);
+    response.getCoyoteResponse().addHeader("X-Cache", "HIT");
+    response.getCoyoteResponse().addHeader("X-Cache", "STALE");
+    return response;
+  }
+
+  /**
+   * Renders a pattern with the elements of the access log valve, as its log(Request, Response, long) does.
+   */
+  private static final class ValveRendering extends AbstractAccessLogValve {
+
+    ValveRendering(String pattern) {
+      this(pattern, false);
+    }
+
+    ValveRendering(String pattern, boolean requestAttributesEnabled) {
+      setPattern(pattern);
+      setRequestAttributesEnabled(requestAttributesEnabled);
+      this.logElements = createLogElements();
+    }
+
+    String render(Request request, Response response, long time) {
+      final CharArrayWriter rendered = new CharArrayWriter();
+      final Date date = new Date(request.getCoyoteRequest().getStartTime() + time);
+      for (AccessLogElement element : this.logElements) {
+        element.addElement(rendered, date, request, response, time);
+      }
+      return rendered.toString();
+    }
+
+    @Override
+    protected void log(CharArrayWriter message) {
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.apache.catalina.valves.deferred;
+
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UserAgentClassifierTest {
+
+  @Test
+  public void shouldClassifyCommonBrowsersAndDevices() {
+    Assert.assertThat(classify(
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36"),
+        Matchers.is("\"ua_browser\":\"chrome\",\"ua_os\":\"windows\",\"ua_device\":\"desktop\",\"ua_bot\":false"));
+    Assert.assertThat(classify(
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36 Edg/120.0.0.0"),
+        Matchers.is("\"ua_browser\":\"edge\",\"ua_os\":\"windows\",\"ua_device\":\"desktop\",\"ua_bot\":false"));
+    Assert.assertThat(classify(
+        "Mozilla/5.0 (iPhone; CPU iPhone OS 17_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1 Mobile/15E148 Safari/604.1"),
+        Matchers.is("\"ua_browser\":\"safari\",\"ua_os\":\"ios\",\"ua_device\":\"mobile\",\"ua_bot\":false"));
+    Assert.assertThat(classify(
+        "Mozilla/5.0 (Linux; Android 14; Pixel 8) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Mobile Safari/537.36"),
+        Matchers.is("\"ua_browser\":\"chrome\",\"ua_os\":\"android\",\"ua_device\":\"mobile\",\"ua_bot\":false"));
+    Assert.assertThat(classify(
+        "Mozilla/5.0 (Linux; Android 13; SM-X700) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36"),
+        Matchers.is("\"ua_browser\":\"chrome\",\"ua_os\":\"android\",\"ua_device\":\"tablet\",\"ua_bot\":false"));
+    Assert.assertThat(classify(
+        "Mozilla/5.0 (Macintosh; Intel Mac OS X 14.1; rv:120.0) Gecko/20100101 Firefox/120.0"),
+        Matchers.is("\"ua_browser\":\"firefox\",\"ua_os\":\"macos\",\"ua_device\":\"desktop\",\"ua_bot\":false"));
+    Assert.assertThat(classify("-"),
+        Matchers.is("\"ua_browser\":\"other\",\"ua_os\":\"other\",\"ua_device\":\"other\",\"ua_bot\":false"));
+  }
+
+  @Test
+  public void shouldClassifyBotsAndHttpLibraries() {
+    Assert.assertThat(classify(
+        "Mozilla/5.0 AppleWebKit/537.36 (KHTML, like Gecko; compatible; Googlebot/2.1; +http://www.google.com/bot.html) Chrome/120.0.0.0 Safari/537.36"),
+        Matchers.is("\"ua_browser\":\"googlebot\",\"ua_os\":\"other\",\"ua_device\":\"bot\",\"ua_bot\":true"));
+    Assert.assertThat(classify("curl/7.47.0"),
+        Matchers.is("\"ua_browser\":\"curl\",\"ua_os\":\"other\",\"ua_device\":\"bot\",\"ua_bot\":true"));
+    Assert.assertThat(classify("Mozilla/5.0 (compatible; ExampleCrawlerBot/1.0)"),
+        Matchers.is("\"ua_browser\":\"other\",\"ua_os\":\"other\",\"ua_device\":\"bot\",\"ua_bot\":true"));
+  }
+
+  @Test
+  public void shouldMemoizeTheLeastRecentlyUsedUserAgents() {
+    // Given
+    final UserAgentClassifier userAgentClassifier = new UserAgentClassifier(2);
+    final char[] curl = userAgentClassifier.classify("curl/7.47.0");
+
+    // When
+    userAgentClassifier.classify("Wget/1.21");
+    Assert.assertThat(userAgentClassifier.classify("curl/7.47.0"), Matchers.sameInstance(curl));
+    userAgentClassifier.classify("okhttp/4.12.0");
+
+    // Then
+    // XXX: Wget was the least recently used
+    Assert.assertThat(userAgentClassifier.classify("curl/7.47.0"), Matchers.sameInstance(curl));
+    Assert.assertThat(userAgentClassifier.getStatistics(), Matchers.is("capacity=2, hits=2, misses=3, evictions=1"));
+    userAgentClassifier.classify("Wget/1.21");
+    Assert.assertThat(userAgentClassifier.getMisses(), Matchers.is(4L));
+  }
+
+  private static String classify(String userAgent) {
+    return new String(new UserAgentClassifier(UserAgentClassifier.DEFAULT_CACHE_SIZE).classify(userAgent));
+  }
+}
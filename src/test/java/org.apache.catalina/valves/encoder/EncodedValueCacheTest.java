@@ -0,0 +1,94 @@
+package org.apache.catalina.valves.encoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.apache.catalina.MessageEncodingException;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EncodedValueCacheTest {
+
+  private static final String JSON_MESSAGE =
+      "{\"agent\":\"Mozilla/5.0 (X11; Linux x86_64)\",\"tab\":\"a\tb\",\"verb\":\"GET\",\"bytes\":42}";
+
+  @Test
+  public void shouldEncodeLikeUncachedEncoder() throws MessageEncodingException {
+    // Given
+    final EncodedValueCache cache = new EncodedValueCache(64);
+    final JsonEncoder cachedEncoder = new JsonEncoder(cache);
+    final String expected = encode(new JsonEncoder(), JSON_MESSAGE);
+
+    // When
+    final String first = encode(cachedEncoder, JSON_MESSAGE);
+    final String second = encode(cachedEncoder, JSON_MESSAGE);
+    final String third = encode(cachedEncoder, JSON_MESSAGE);
+
+    // Then
+    Assert.assertThat(first, Matchers.is(expected));
+    Assert.assertThat(second, Matchers.is(expected));
+    Assert.assertThat(third, Matchers.is(expected));
+    // XXX: 7 cacheable strings, admitted on their second occurrence
+    Assert.assertThat(cache.getMisses(), Matchers.is(14L));
+    Assert.assertThat(cache.getHits(), Matchers.is(7L));
+    Assert.assertThat(cache.getEvictions(), Matchers.is(0L));
+  }
+
+  @Test
+  public void shouldEvictUnreferencedValuesFirst() {
+    // Given
+    final EncodedValueCache cache = new EncodedValueCache(4);
+    for (final String value : new String[]{"aaa", "bbb", "ccc", "ddd"}) {
+      admitTwice(cache, value);
+    }
+    Assert.assertThat(get(cache, "aaa"), Matchers.notNullValue());
+
+    // When
+    admitTwice(cache, "eee");
+
+    // Then
+    Assert.assertThat(get(cache, "aaa"), Matchers.is("aaa".getBytes(StandardCharsets.UTF_8)));
+    Assert.assertThat(get(cache, "bbb"), Matchers.nullValue());
+    Assert.assertThat(get(cache, "eee"), Matchers.is("eee".getBytes(StandardCharsets.UTF_8)));
+    Assert.assertThat(cache.getEvictions(), Matchers.is(1L));
+    Assert.assertThat(cache.getStatistics(), Matchers.is("capacity=4, hits=3, misses=1, evictions=1"));
+  }
+
+  @Test
+  public void shouldNotAdmitValuesSeenOnce() {
+    // Given
+    final EncodedValueCache cache = new EncodedValueCache(16);
+
+    // When
+    admit(cache, "once");
+
+    // Then
+    Assert.assertThat(get(cache, "once"), Matchers.nullValue());
+  }
+
+  private static void admitTwice(EncodedValueCache cache, String value) {
+    admit(cache, value);
+    admit(cache, value);
+  }
+
+  private static void admit(EncodedValueCache cache, String value) {
+    final char[] chars = value.toCharArray();
+    final ByteBuffer out = ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    out.position(out.limit());
+    cache.admit(chars, 0, chars.length, EncodedValueCache.hash(chars, 0, chars.length), out, 0, out.position());
+  }
+
+  private static byte[] get(EncodedValueCache cache, String value) {
+    final char[] chars = value.toCharArray();
+    return cache.get(chars, 0, chars.length, EncodedValueCache.hash(chars, 0, chars.length));
+  }
+
+  private static String encode(MessageEncoder encoder, String body) throws MessageEncodingException {
+    final AccessLogRecord record = new AccessLogRecord();
+    final char[] chars = body.toCharArray();
+    record.setBody(chars, 0, chars.length);
+    final ByteBuffer out = ByteBuffer.allocate(1024);
+    Assert.assertThat(encoder.encode(record, out), Matchers.is(true));
+    return new String(out.array(), 0, out.position(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,150 @@
+package org.apache.catalina.valves.encoder;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import org.apache.catalina.MessageEncodingException;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageEncodersTest {
+
+  // XXX: 2018-04-27T07:09:00.982Z
+  private static final long TIMESTAMP = 1524812940982L;
+  private static final int USER_INFO = 14;
+  private static final String PID = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+  @Test
+  public void shouldEncodeRfc5424() throws MessageEncodingException {
+    final String encoded = encode(MessageEncoders.create("rfc5424", "myhost", true), "hello world");
+
+    Assert.assertThat(encoded, Matchers.is(
+        "<14>1 2018-04-27T07:09:00.982Z myhost " + Thread.currentThread().getName() + " " + PID
+            + " - - hello world"));
+  }
+
+  @Test
+  public void shouldEncodeRfc5424WithoutHeader() throws MessageEncodingException {
+    final String encoded = encode(MessageEncoders.create("rfc5424", "myhost", false), "hello world");
+
+    Assert.assertThat(encoded, Matchers.is("<14>hello world"));
+  }
+
+  @Test
+  public void shouldEncodeRfc3164() throws MessageEncodingException {
+    final String encoded = encode(MessageEncoders.create("RFC3164", "myhost", true), "hello world");
+
+    final String timestamp = new SimpleDateFormat("MMM dd HH:mm:ss", Locale.US).format(new Date(TIMESTAMP));
+    Assert.assertThat(encoded, Matchers.is(
+        "<14>" + timestamp + " myhost " + Thread.currentThread().getName() + "[" + PID + "]: hello world"));
+  }
+
+  @Test
+  public void shouldCopyJsonInOriginalOrder() throws MessageEncodingException {
+    final String encoded = encode(new JsonEncoder(),
+        " { \"b\" : - , \"a\":1.5e3,\"c\":[true, null, {}],\"d\":\"x\ty\\\"\\u00e9/\" } ");
+
+    Assert.assertThat(encoded, Matchers.is("{\"b\":\"-\",\"a\":1.5e3,\"c\":[true,null,{}],\"d\":\"x\\ty\\\"\\u00e9/\"}"));
+  }
+
+  @Test(expected = MessageEncodingException.class)
+  public void shouldRejectNonJsonBody() throws MessageEncodingException {
+    encode(new JsonEncoder(), "not-a-json-doc");
+  }
+
+  @Test(expected = MessageEncodingException.class)
+  public void shouldRejectTrailingContent() throws MessageEncodingException {
+    encode(new JsonEncoder(), "{\"a\":1} {\"b\":2}");
+  }
+
+  @Test(expected = MessageEncodingException.class)
+  public void shouldRejectUnterminatedString() throws MessageEncodingException {
+    encode(new JsonEncoder(), "{\"a\":\"1}");
+  }
+
+  @Test
+  public void shouldEncodeJsonInsideSyslogFraming() throws MessageEncodingException {
+    final String encoded = encode(MessageEncoders.create("rfc5424+json", "myhost", false), "{ \"a\" : 1 }");
+
+    Assert.assertThat(encoded, Matchers.is("<14>{\"a\":1}"));
+  }
+
+  @Test
+  public void shouldEncodeCef() throws MessageEncodingException {
+    final String encoded = encode(MessageEncoders.create("cef", "myhost", true), "a=b\\c\nd|e");
+
+    Assert.assertThat(encoded, Matchers.startsWith("CEF:0|Apache|Tomcat|"));
+    Assert.assertThat(encoded, Matchers.endsWith("|access|HTTP access|3|rt=1524812940982 msg=a\\=b\\\\c\\nd|e"));
+  }
+
+  @Test
+  public void shouldReportTruncationWithoutSplittingCharacters() throws MessageEncodingException {
+    final AccessLogRecord record = record("abcé");
+    final ByteBuffer out = ByteBuffer.allocate(4);
+
+    final boolean complete = new TextEncoder().encode(record, out);
+
+    Assert.assertThat(complete, Matchers.is(false));
+    Assert.assertThat(out.position(), Matchers.is(3));
+  }
+
+  @Test
+  public void shouldReportTruncatedJson() throws MessageEncodingException {
+    final boolean complete = new JsonEncoder().encode(record("{\"name\":\"John\"}"), ByteBuffer.allocate(8));
+
+    Assert.assertThat(complete, Matchers.is(false));
+  }
+
+  @Test
+  public void shouldStampSequenceInRfc5424StructuredData() throws MessageEncodingException {
+    final AccessLogRecord record = record("hello world");
+    record.setSequence(Utf8.bytes("5f0c3a9e12b47d68"), 42);
+
+    final String encoded = encode(MessageEncoders.create("rfc5424", "myhost", true), record);
+
+    Assert.assertThat(encoded, Matchers.is(
+        "<14>1 2018-04-27T07:09:00.982Z myhost " + Thread.currentThread().getName() + " " + PID
+            + " - [sequence@32473 senderId=\"5f0c3a9e12b47d68\" sequenceId=\"42\"] hello world"));
+  }
+
+  @Test
+  public void shouldAppendSequenceToJson() throws MessageEncodingException {
+    final AccessLogRecord record = record(" {\"name\":\"John\"} ");
+    record.setSequence(Utf8.bytes("5f0c3a9e12b47d68"), 7);
+    final AccessLogRecord empty = record("{}");
+    empty.setSequence(Utf8.bytes("5f0c3a9e12b47d68"), 8);
+
+    Assert.assertThat(encode(new JsonEncoder(), record),
+        Matchers.is("{\"name\":\"John\",\"sender_id\":\"5f0c3a9e12b47d68\",\"sequence_id\":7}"));
+    Assert.assertThat(encode(new JsonEncoder(), empty),
+        Matchers.is("{\"sender_id\":\"5f0c3a9e12b47d68\",\"sequence_id\":8}"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectUnknownFormat() {
+    MessageEncoders.create("rfc5424+xml", "myhost", true);
+  }
+
+  private static AccessLogRecord record(String body) {
+    final AccessLogRecord record = new AccessLogRecord();
+    final char[] chars = body.toCharArray();
+    record.setBody(chars, 0, chars.length);
+    record.setTimestamp(TIMESTAMP);
+    record.setPriority(USER_INFO);
+    return record;
+  }
+
+  private static String encode(MessageEncoder encoder, String body) throws MessageEncodingException {
+    return encode(encoder, record(body));
+  }
+
+  private static String encode(MessageEncoder encoder, AccessLogRecord record) throws MessageEncodingException {
+    final ByteBuffer out = ByteBuffer.allocate(1024);
+    Assert.assertThat(encoder.encode(record, out), Matchers.is(true));
+    return new String(out.array(), 0, out.position(), StandardCharsets.UTF_8);
+  }
+}
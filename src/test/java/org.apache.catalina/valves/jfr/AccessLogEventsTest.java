@@ -0,0 +1,98 @@
+package org.apache.catalina.valves.jfr;
+
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.catalina.MessageEncodingException;
+import org.apache.catalina.MessageLengthLimitException;
+import org.apache.catalina.valves.AccessLogPipeline;
+import org.apache.catalina.valves.encoder.MessageEncoders;
+import org.apache.catalina.valves.transport.Lane;
+import org.apache.catalina.valves.transport.MessageSender;
+import org.apache.catalina.valves.transport.UdpTransport;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AccessLogEventsTest {
+
+  private static final String ENCODE_EVENT = "org.apache.catalina.valves.AccessLogEncode";
+  private static final String SEND_EVENT = "org.apache.catalina.valves.AccessLogSend";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void shouldRecordEncodeAndSendEvents() throws Exception {
+    // Given
+    final MessageSender sender = new MessageSender("test", new UdpTransport(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 9)), 0);
+    final AccessLogPipeline pipeline =
+        new AccessLogPipeline(MessageEncoders.create(MessageEncoders.RFC5424, "localhost", true), sender);
+    sender.open();
+    Assert.assertThat(AccessLogEvents.isRecording(), Matchers.is(false));
+
+    final Recording recording = new Recording();
+    recording.enable(ENCODE_EVENT).withoutThreshold();
+    recording.enable(SEND_EVENT).withoutThreshold();
+    recording.start();
+    awaitRecording(true);
+
+    // When
+    log(pipeline, "hello world", 1024);
+    log(pipeline, "a message cut at the limit", 32);
+    recording.stop();
+    awaitRecording(false);
+    sender.close();
+
+    // Then
+    final File dump = this.temporaryFolder.newFile("valves.jfr");
+    recording.dump(dump.toPath());
+    recording.close();
+    final List<RecordedEvent> encodeEvents = new ArrayList<RecordedEvent>();
+    final List<RecordedEvent> sendEvents = new ArrayList<RecordedEvent>();
+    for (final RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+      if (ENCODE_EVENT.equals(event.getEventType().getName())) {
+        encodeEvents.add(event);
+      } else if (SEND_EVENT.equals(event.getEventType().getName())) {
+        sendEvents.add(event);
+      }
+    }
+
+    Assert.assertThat(encodeEvents.size(), Matchers.is(2));
+    Assert.assertThat(encodeEvents.get(0).getString("destination"), Matchers.is("test"));
+    Assert.assertThat(encodeEvents.get(0).getString("lane"), Matchers.is("normal"));
+    Assert.assertThat(encodeEvents.get(0).getBoolean("truncated"), Matchers.is(false));
+    Assert.assertThat(encodeEvents.get(0).getString("dropReason"), Matchers.nullValue());
+    Assert.assertThat(encodeEvents.get(1).getBoolean("truncated"), Matchers.is(true));
+    Assert.assertThat(encodeEvents.get(1).getInt("bytes"), Matchers.is(32));
+
+    Assert.assertThat(sendEvents.size(), Matchers.is(2));
+    Assert.assertThat(sendEvents.get(1).getInt("bytes"), Matchers.is(32));
+    Assert.assertThat(sendEvents.get(1).getLong("queueWait"), Matchers.is(0L));
+    Assert.assertThat(sendEvents.get(1).getBoolean("failed"), Matchers.is(false));
+  }
+
+  private static void log(AccessLogPipeline pipeline, String message, int messageLengthLimit)
+      throws MessageEncodingException, MessageLengthLimitException {
+    final CharArrayWriter charArrayWriter = new CharArrayWriter();
+    charArrayWriter.append(message);
+    pipeline.log(charArrayWriter, System.currentTimeMillis(), 14, Lane.NORMAL, messageLengthLimit, true);
+  }
+
+  private static void awaitRecording(boolean recording) throws InterruptedException {
+    for (int i = 0; i < 500 && AccessLogEvents.isRecording() != recording; i++) {
+      Thread.sleep(10);
+    }
+    Assert.assertThat(AccessLogEvents.isRecording(), Matchers.is(recording));
+  }
+}
@@ -0,0 +1,49 @@
+package org.apache.catalina.valves.receiver;
+
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LossReceiverTest {
+
+  @Test
+  public void shouldCountGapsReorderingAndDuplicates() {
+    // Given
+    final SequenceTracker tracker = new SequenceTracker();
+
+    // When
+    for (final long sequenceId : new long[]{1, 2, 4, 3, 3, 7, 10, 9}) {
+      tracker.record(sequenceId);
+    }
+
+    // Then
+    Assert.assertThat(tracker.getReceived(), Matchers.is(7L));
+    Assert.assertThat(tracker.getDuplicates(), Matchers.is(1L));
+    Assert.assertThat(tracker.getExpected(), Matchers.is(10L));
+    Assert.assertThat(tracker.getLost(), Matchers.is(3L));
+    Assert.assertThat(tracker.getLossRate(), Matchers.closeTo(0.3, 1e-9));
+  }
+
+  @Test
+  public void shouldTrackSendersOfBothFormats() {
+    // Given
+    final LossReceiver receiver = new LossReceiver();
+
+    // When
+    receiver.receive("<14>1 2018-04-27T07:09:00.982Z myhost http-nio-8080-exec-1 1234 - "
+        + "[sequence@32473 senderId=\"5f0c3a9e12b47d68\" sequenceId=\"1\"] 127.0.0.1 - - GET / 200");
+    receiver.receive("<14>1 2018-04-27T07:09:00.983Z myhost http-nio-8080-exec-1 1234 - "
+        + "[sequence@32473 senderId=\"5f0c3a9e12b47d68\" sequenceId=\"3\"] 127.0.0.1 - - GET / 200");
+    receiver.receive("{\"verb\":\"GET\",\"sender_id\":\"0000000000000001\",\"sequence_id\":5}");
+    final boolean unstamped = receiver.receive("{\"verb\":\"GET\"}");
+
+    // Then
+    Assert.assertThat(unstamped, Matchers.is(false));
+    Assert.assertThat(receiver.getTracker("5f0c3a9e12b47d68").getLost(), Matchers.is(1L));
+    Assert.assertThat(receiver.getTracker("0000000000000001").getReceived(), Matchers.is(1L));
+    Assert.assertThat(receiver.getReport(), Matchers.is(
+        "5f0c3a9e12b47d68 received=2 lost=1 loss=33.333% duplicates=0\n"
+            + "0000000000000001 received=1 lost=0 loss=0.000% duplicates=0\n"
+            + "unstamped=1"));
+  }
+}
@@ -0,0 +1,153 @@
+package org.apache.catalina.valves.replay;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import org.apache.catalina.LifecycleException;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AccessLogReplayTest {
+
+  private static final String COMBINED_LINE =
+      "172.17.0.1 - bob [27/Apr/2018:07:09:00 +0700] \"GET /?pretty=wow HTTP/1.1\" 200 11250 \"-\" \"curl/7.47.0\"";
+  // XXX: the time of COMBINED_LINE, rendered by the valves in the zone of the JVM
+  private static final long COMBINED_TIME = 1524787740000L;
+  private static final String COMMON_LINE =
+      "172.17.0.1 - - [27/Apr/2018:07:09:01 +0700] \"POST /login HTTP/1.1\" 503 -";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void shouldReplayLinesThroughJsonValvePattern() throws IOException, LifecycleException {
+    // Given
+    final File accessLog = write(COMBINED_LINE + "\n" + "not an access log line\n" + COMMON_LINE + "\n");
+    final DatagramSocket datagramSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    datagramSocket.setSoTimeout(5000);
+    final AccessLogReplay replay = new AccessLogReplay(AccessLogReplay.JSON_VALVE, 0);
+    replay.setProperty("hostname", InetAddress.getLoopbackAddress().getHostAddress());
+    replay.setProperty("port", String.valueOf(datagramSocket.getLocalPort()));
+    replay.start();
+
+    // When
+    try {
+      replay.replay(accessLog);
+    } finally {
+      replay.stop();
+    }
+
+    // Then
+    Assert.assertThat(receive(datagramSocket), Matchers.is(
+        "{\"@timestamp\":\"" + format("yyyy-MM-dd'T'HH:mm:ss.SSSZ", COMBINED_TIME) + "\",\"type\":\"tomcataccess\","
+            + "\"agent\":\"curl/7.47.0\",\"auth\":\"bob\",\"bytes\":11250,\"clientip\":\"172.17.0.1\","
+            + "\"httpversion\":\"HTTP/1.1\",\"ident\":\"-\",\"request\":\"/?pretty=wow\",\"request_time\":0,"
+            + "\"response\":200,\"timestamp\":\"" + format("dd/MMM/yyyy:HH:mm:ss Z", COMBINED_TIME) + "\","
+            + "\"verb\":\"GET\",\"vhost\":\"-\",\"x_forwarded_for\":\"-\"}"));
+    Assert.assertThat(receive(datagramSocket),
+        Matchers.containsString("\"agent\":\"-\",\"auth\":\"-\",\"bytes\":0,\"clientip\":\"172.17.0.1\""));
+    datagramSocket.close();
+
+    Assert.assertThat(replay.getLines(), Matchers.is(3L));
+    Assert.assertThat(replay.getEntries(), Matchers.is(2L));
+    Assert.assertThat(replay.getSkipped(), Matchers.is(1L));
+    Assert.assertThat(replay.getMessages(), Matchers.is(2L));
+    Assert.assertThat(AccessLogReplay.report(replay), Matchers.containsString("2 messages sent"));
+  }
+
+  @Test
+  public void shouldReplayLinesThroughConfiguredSyslogValve() throws IOException, LifecycleException {
+    // Given
+    final File accessLog = write(COMBINED_LINE + "\n");
+    final DatagramSocket datagramSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    datagramSocket.setSoTimeout(5000);
+    final AccessLogReplay replay = new AccessLogReplay(AccessLogReplay.SYSLOG_VALVE, 0);
+    replay.setProperty("hostname", InetAddress.getLoopbackAddress().getHostAddress());
+    replay.setProperty("port", String.valueOf(datagramSocket.getLocalPort()));
+    replay.setProperty("pattern", "combined");
+    replay.setProperty("format", "rfc3164");
+    replay.start();
+
+    // When
+    try {
+      replay.replay(accessLog);
+    } finally {
+      replay.stop();
+    }
+
+    // Then
+    final String received = receive(datagramSocket);
+    datagramSocket.close();
+    Assert.assertThat(received, Matchers.startsWith("<14>"));
+    Assert.assertThat(received, Matchers.endsWith(
+        "172.17.0.1 - bob [" + format("dd/MMM/yyyy:HH:mm:ss Z", COMBINED_TIME)
+            + "] \"GET /?pretty=wow HTTP/1.1\" 200 11250 \"-\" \"curl/7.47.0\""));
+    Assert.assertThat(replay.getMessages(), Matchers.is(1L));
+  }
+
+  @Test
+  public void shouldParseTimeWithZoneOffset() {
+    // Given
+    final CombinedLogLine line = new CombinedLogLine();
+
+    // When
+    final boolean parsed = line.parse(CharBuffer.wrap(
+        "127.0.0.1 - frank [10/Oct/2000:13:55:36 -0700] \"GET /apache_pb.gif HTTP/1.0\" 200 2326".toCharArray()));
+
+    // Then
+    Assert.assertThat(parsed, Matchers.is(true));
+    Assert.assertThat(line.getTimestamp(), Matchers.is(971211336000L));
+    Assert.assertThat(line.getStatus(), Matchers.is(200));
+  }
+
+  @Test
+  public void shouldReadLinesAcrossMappedWindows() throws IOException {
+    // Given
+    final File file = write("short\r\na line longer than the sixteen byte window\n\nhéllo\nlast line without newline");
+
+    // When
+    final List<String> lines = new ArrayList<String>();
+    try (MappedLineReader reader = new MappedLineReader(file, 16)) {
+      CharBuffer line;
+      while ((line = reader.nextLine()) != null) {
+        lines.add(line.toString());
+      }
+    }
+
+    // Then
+    Assert.assertThat(lines, Matchers.contains("short", "a line longer than the sixteen byte window", "",
+        "héllo", "last line without newline"));
+  }
+
+  private File write(String content) throws IOException {
+    final File file = this.temporaryFolder.newFile();
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+    return file;
+  }
+
+  private static String format(String pattern, long time) {
+    return new SimpleDateFormat(pattern, Locale.getDefault()).format(new Date(time));
+  }
+
+  private static String receive(DatagramSocket datagramSocket) throws IOException {
+    final DatagramPacket packet = new DatagramPacket(new byte[65507], 65507);
+    datagramSocket.receive(packet);
+    return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+  }
+}
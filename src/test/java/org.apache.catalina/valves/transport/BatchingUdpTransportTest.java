@@ -0,0 +1,192 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The sendmmsg(2) tests are skipped on JVMs without the Foreign Function &amp; Memory API, e.g. run
+ * them with a Java 21 or later JAVA_HOME.
+ */
+public class BatchingUdpTransportTest {
+
+  private DatagramSocket datagramSocket;
+  private BatchingUdpTransport batchingUdpTransport;
+
+  @Before
+  public void setUp() throws IOException {
+    datagramSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    datagramSocket.setReceiveBufferSize(1 << 20);
+    datagramSocket.setSoTimeout(5000);
+  }
+
+  @After
+  public void tearDown() {
+    if (batchingUdpTransport != null) {
+      batchingUdpTransport.close();
+    }
+    datagramSocket.close();
+  }
+
+  @Test
+  public void shouldSendEveryDatagramOfTheBatchesIntactWithSendmmsg() throws IOException {
+    // Given
+    Assume.assumeTrue(SendmmsgEngine.isAvailable());
+    batchingUdpTransport = new BatchingUdpTransport(collector(), BatchingUdpTransport.DEFAULT_BATCH_BYTES, true);
+    batchingUdpTransport.open();
+
+    // When
+    for (int i = 0; i < 100; i++) {
+      batchingUdpTransport.send(message(i));
+    }
+    batchingUdpTransport.flush();
+
+    // Then
+    for (int i = 0; i < 100; i++) {
+      Assert.assertThat(receive(), Matchers.is(new String(message(i).array(), StandardCharsets.UTF_8)));
+    }
+    Assert.assertThat(batchingUdpTransport.isSendmmsg(), Matchers.is(true));
+    Assert.assertThat(batchingUdpTransport.getDatagrams(), Matchers.is(100L));
+    // XXX: a full batch of 64 datagrams, then the rest
+    Assert.assertThat(batchingUdpTransport.getBatches(), Matchers.is(2L));
+  }
+
+  @Test
+  public void shouldSendEveryByteOfManyBatchesInOrderWithSendmmsg() throws IOException {
+    Assume.assumeTrue(SendmmsgEngine.isAvailable());
+    assertSendsEveryByteInOrder(true);
+    Assert.assertThat(batchingUdpTransport.getBatches(), Matchers.greaterThanOrEqualTo(1000L / 64));
+  }
+
+  @Test
+  public void shouldSendEveryByteInOrderWithoutSendmmsg() throws IOException {
+    assertSendsEveryByteInOrder(false);
+    Assert.assertThat(batchingUdpTransport.isSendmmsg(), Matchers.is(false));
+    Assert.assertThat(batchingUdpTransport.isConnected(), Matchers.is(true));
+    Assert.assertThat(batchingUdpTransport.getBatches(), Matchers.is(0L));
+  }
+
+  @Test
+  public void shouldFlushWhenTheBatchBufferIsFullAndSendLargerMessagesOnTheirOwn() throws IOException {
+    // Given
+    Assume.assumeTrue(SendmmsgEngine.isAvailable());
+    batchingUdpTransport = new BatchingUdpTransport(collector(), 1024, true);
+    batchingUdpTransport.open();
+    final StringBuilder large = new StringBuilder();
+    while (large.length() < 2000) {
+      large.append("0123456789");
+    }
+
+    // When
+    batchingUdpTransport.send(ByteBuffer.wrap(large.substring(0, 600).getBytes(StandardCharsets.UTF_8)));
+    batchingUdpTransport.send(ByteBuffer.wrap(large.substring(0, 600).getBytes(StandardCharsets.UTF_8)));
+    batchingUdpTransport.send(ByteBuffer.wrap(large.toString().getBytes(StandardCharsets.UTF_8)));
+    batchingUdpTransport.flush();
+
+    // Then
+    Assert.assertThat(receive(), Matchers.is(large.substring(0, 600)));
+    Assert.assertThat(receive(), Matchers.is(large.substring(0, 600)));
+    Assert.assertThat(receive(), Matchers.is(large.toString()));
+    Assert.assertThat(batchingUdpTransport.getBatches(), Matchers.is(3L));
+  }
+
+  @Test
+  public void shouldCountRatherThanFailDatagramsToAnUnreachablePortWithSendmmsg()
+      throws IOException, InterruptedException {
+    Assume.assumeTrue(SendmmsgEngine.isAvailable());
+    assertCountsDatagramsToAnUnreachablePort(true);
+  }
+
+  @Test
+  public void shouldCountRatherThanFailDatagramsToAnUnreachablePortWithoutSendmmsg()
+      throws IOException, InterruptedException {
+    assertCountsDatagramsToAnUnreachablePort(false);
+  }
+
+  private void assertSendsEveryByteInOrder(boolean sendmmsg) throws IOException {
+    // Given
+    batchingUdpTransport = new BatchingUdpTransport(collector(), 4096, sendmmsg);
+    batchingUdpTransport.open();
+    final byte[][] sent = new byte[1000][];
+
+    // When
+    for (int i = 0; i < sent.length; i++) {
+      sent[i] = payload(i);
+      batchingUdpTransport.send(ByteBuffer.wrap(sent[i]));
+      // XXX: flush like the drain does, now and then, so batches end both full and partial
+      if (i % 97 == 96) {
+        batchingUdpTransport.flush();
+      }
+    }
+    batchingUdpTransport.flush();
+
+    // Then
+    final byte[] bytes = new byte[4096];
+    for (int i = 0; i < sent.length; i++) {
+      final DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length);
+      datagramSocket.receive(datagramPacket);
+      Assert.assertThat("datagram " + i, Arrays.copyOf(datagramPacket.getData(), datagramPacket.getLength()),
+          Matchers.is(sent[i]));
+    }
+    Assert.assertThat(batchingUdpTransport.getDatagrams(), Matchers.is((long) sent.length));
+    Assert.assertThat(batchingUdpTransport.getUnreachable(), Matchers.is(0L));
+  }
+
+  private void assertCountsDatagramsToAnUnreachablePort(boolean sendmmsg) throws IOException, InterruptedException {
+    // Given
+    final InetSocketAddress closed = collector();
+    datagramSocket.close();
+    batchingUdpTransport = new BatchingUdpTransport(closed, BatchingUdpTransport.DEFAULT_BATCH_BYTES, sendmmsg);
+    batchingUdpTransport.open();
+
+    // When
+    for (int i = 0; i < 20 && batchingUdpTransport.getUnreachable() == 0; i++) {
+      batchingUdpTransport.send(message(i));
+      batchingUdpTransport.flush();
+      Thread.sleep(10);
+    }
+
+    // Then
+    Assert.assertThat(batchingUdpTransport.getUnreachable(), Matchers.greaterThan(0L));
+  }
+
+  private InetSocketAddress collector() {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), datagramSocket.getLocalPort());
+  }
+
+  private String receive() throws IOException {
+    final byte[] bytes = new byte[4096];
+    final DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length);
+    datagramSocket.receive(datagramPacket);
+    return new String(datagramPacket.getData(), 0, datagramPacket.getLength(), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] payload(int i) {
+    // XXX: every byte value, lengths from 1 to 1500
+    final byte[] payload = new byte[1 + (i * 131) % 1500];
+    for (int j = 0; j < payload.length; j++) {
+      payload[j] = (byte) (i + j);
+    }
+    return payload;
+  }
+
+  private static ByteBuffer message(int i) {
+    final StringBuilder message = new StringBuilder().append("<14>1 - localhost - - - - GET /").append(i);
+    // XXX: datagrams of different lengths
+    for (int j = 0; j < i % 7; j++) {
+      message.append("?q=").append(j);
+    }
+    return ByteBuffer.wrap(message.toString().getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,253 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void shouldOpenAfterConsecutiveFailuresAndCloseOnceAProbeSucceeds() {
+    // Given
+    final CircuitBreaker circuitBreaker = new CircuitBreaker("test", 3, 1000);
+    final IOException failure = new PortUnreachableException();
+
+    // When
+    for (int i = 0; i < 2; i++) {
+      Assert.assertThat(circuitBreaker.allow(i), Matchers.is(true));
+      circuitBreaker.recordFailure(i, "send message", failure);
+    }
+
+    // Then
+    Assert.assertThat(circuitBreaker.isOpen(), Matchers.is(false));
+
+    // When
+    circuitBreaker.recordFailure(2, "send message", failure);
+
+    // Then
+    Assert.assertThat(circuitBreaker.isOpen(), Matchers.is(true));
+    Assert.assertThat(circuitBreaker.skip(3), Matchers.is(true));
+    Assert.assertThat(circuitBreaker.allow(1001), Matchers.is(false));
+
+    // When
+    // XXX: the probe fails, the circuit stays open for another interval
+    Assert.assertThat(circuitBreaker.skip(1002), Matchers.is(false));
+    Assert.assertThat(circuitBreaker.allow(1002), Matchers.is(true));
+    Assert.assertThat(circuitBreaker.getStatistics(), Matchers.is("state=half-open, opened=1, skipped=2"));
+    circuitBreaker.recordFailure(1002, "send message", failure);
+
+    // Then
+    Assert.assertThat(circuitBreaker.isOpen(), Matchers.is(true));
+    Assert.assertThat(circuitBreaker.skip(2001), Matchers.is(true));
+
+    // When
+    Assert.assertThat(circuitBreaker.allow(2002), Matchers.is(true));
+    circuitBreaker.recordSuccess(2002);
+
+    // Then
+    Assert.assertThat(circuitBreaker.isOpen(), Matchers.is(false));
+    Assert.assertThat(circuitBreaker.skip(2003), Matchers.is(false));
+    Assert.assertThat(circuitBreaker.getStatistics(), Matchers.is("state=closed, opened=1, skipped=3"));
+  }
+
+  @Test
+  public void shouldNotOpenOnFailuresWithSuccessfulFlushesInBetween() {
+    // Given
+    final CircuitBreaker circuitBreaker = new CircuitBreaker("test", 3, 1000);
+
+    // When
+    for (int i = 0; i < 10; i++) {
+      circuitBreaker.recordFailure(i, "send message", new PortUnreachableException());
+      circuitBreaker.recordFailure(i, "send message", new PortUnreachableException());
+      circuitBreaker.recordSuccess(i);
+    }
+
+    // Then
+    Assert.assertThat(circuitBreaker.isOpen(), Matchers.is(false));
+    Assert.assertThat(circuitBreaker.getOpened(), Matchers.is(0L));
+  }
+
+  @Test
+  public void shouldNeverOpenWithAThresholdOfZero() {
+    // Given
+    final CircuitBreaker circuitBreaker = new CircuitBreaker("test", 0, 1000);
+
+    // When
+    for (int i = 0; i < 100; i++) {
+      circuitBreaker.recordFailure(i, "send message", new PortUnreachableException());
+    }
+
+    // Then
+    Assert.assertThat(circuitBreaker.allow(100), Matchers.is(true));
+    Assert.assertThat(circuitBreaker.getOpened(), Matchers.is(0L));
+  }
+
+  @Test
+  public void shouldSkipMessagesWithoutSendingWhileTheDestinationIsDown() throws IOException, InterruptedException {
+    // Given
+    final FailingTransport transport = new FailingTransport();
+    final MessageSender messageSender = new MessageSender("test", transport, 0, BufferBudget.unlimited(),
+        new CircuitBreaker("test", 5, 50));
+    messageSender.open();
+
+    // When
+    for (int i = 0; i < 100; i++) {
+      Assert.assertThat(messageSender.submit(Lane.NORMAL, ByteBuffer.wrap(new byte[]{'x'})), Matchers.is(false));
+    }
+
+    // Then
+    Assert.assertThat(transport.sends, Matchers.is(5));
+    Assert.assertThat(messageSender.getFailed(), Matchers.is(5L));
+    Assert.assertThat(messageSender.getCircuitBreaker().getSkipped(), Matchers.is(95L));
+
+    // When
+    transport.failing = false;
+    Thread.sleep(60);
+
+    // Then
+    Assert.assertThat(messageSender.submit(Lane.NORMAL, ByteBuffer.wrap(new byte[]{'x'})), Matchers.is(true));
+    Assert.assertThat(messageSender.submit(Lane.NORMAL, ByteBuffer.wrap(new byte[]{'x'})), Matchers.is(true));
+    Assert.assertThat(transport.sends, Matchers.is(7));
+    Assert.assertThat(messageSender.getStatistics(), Matchers.is("failed=5 circuit[state=closed, opened=1, skipped=95]"));
+    messageSender.close();
+  }
+
+  @Test
+  public void shouldStayClosedOnOccasionalFailuresOfATransportUnderLoad() throws IOException, InterruptedException {
+    assertStaysClosedOnOccasionalFailuresUnderLoad(new FlakyTransport(false));
+  }
+
+  @Test
+  public void shouldStayClosedOnOccasionalFailuresOfABufferingTransportUnderLoad()
+      throws IOException, InterruptedException {
+    assertStaysClosedOnOccasionalFailuresUnderLoad(new FlakyTransport(true));
+  }
+
+  private static void assertStaysClosedOnOccasionalFailuresUnderLoad(FlakyTransport transport)
+      throws IOException, InterruptedException {
+    // Given
+    // XXX: room for every message, so none is dropped rather than sent
+    final MessageSender messageSender = new MessageSender("test", transport, 1 << 15, BufferBudget.unlimited(),
+        new CircuitBreaker("test", 3, 60000));
+    messageSender.open();
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 5000; i++) {
+            messageSender.submit(Lane.NORMAL, ByteBuffer.wrap(new byte[]{'x'}));
+          }
+        }
+      });
+    }
+
+    // When
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    messageSender.close();
+
+    // Then
+    Assert.assertThat(messageSender.getFailed(), Matchers.greaterThan(1000L));
+    Assert.assertThat(messageSender.getCircuitBreaker().getOpened(), Matchers.is(0L));
+    Assert.assertThat(messageSender.getCircuitBreaker().getSkipped(), Matchers.is(0L));
+  }
+
+  /**
+   * Fails every third send, as a healthy destination may now and then.
+   */
+  private static final class FlakyTransport implements Transport {
+
+    private final boolean buffering;
+    private int sends;
+
+    private FlakyTransport(boolean buffering) {
+      this.buffering = buffering;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void send(ByteBuffer message) throws IOException {
+      if (++sends % 3 == 0) {
+        throw new PortUnreachableException("ICMP Port Unreachable");
+      }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isBuffering() {
+      return buffering;
+    }
+
+    @Override
+    public boolean reportDeliveries(DeliveryListener listener) {
+      return false;
+    }
+
+    @Override
+    public String getSettings() {
+      return "";
+    }
+  }
+
+  /**
+   * Fails every send while failing is set.
+   */
+  private static final class FailingTransport implements Transport {
+
+    private volatile boolean failing = true;
+    private int sends;
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void send(ByteBuffer message) throws IOException {
+      sends++;
+      if (failing) {
+        throw new PortUnreachableException("ICMP Port Unreachable");
+      }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isBuffering() {
+      return false;
+    }
+
+    @Override
+    public boolean reportDeliveries(DeliveryListener listener) {
+      return false;
+    }
+
+    @Override
+    public String getSettings() {
+      return "";
+    }
+  }
+}
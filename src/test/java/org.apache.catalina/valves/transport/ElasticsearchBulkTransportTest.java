@@ -0,0 +1,271 @@
+package org.apache.catalina.valves.transport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.zip.GZIPInputStream;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ElasticsearchBulkTransportTest {
+
+  private static final String ACCEPTED = "{\"took\":3,\"errors\":false,\"items\":[]}";
+  private static final String DOCUMENT_ID = "\\{\"_id\":\"[0-9a-f]{16}-[0-9]+\"\\}";
+
+  private HttpServer server;
+  // XXX: with the document ids replaced by {}
+  private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+  private final List<String> bodiesWithIds = Collections.synchronizedList(new ArrayList<String>());
+  private final List<String> contentEncodings = Collections.synchronizedList(new ArrayList<String>());
+  private final Queue<String> responses = new LinkedList<String>();
+  private final Queue<Integer> statuses = new LinkedList<Integer>();
+
+  @Before
+  public void setUp() throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext("/access/_bulk", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        final String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equals(contentEncoding)) {
+          in = new GZIPInputStream(in);
+        }
+        contentEncodings.add(String.valueOf(contentEncoding));
+        final String body = read(in);
+        bodiesWithIds.add(body);
+        bodies.add(body.replaceAll(DOCUMENT_ID, "{}"));
+
+        final String response;
+        final int status;
+        synchronized (responses) {
+          response = responses.isEmpty() ? ACCEPTED : responses.poll();
+          status = statuses.isEmpty() ? 200 : statuses.poll();
+        }
+        final byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(bytes);
+        }
+      }
+    });
+    this.server.start();
+  }
+
+  @After
+  public void tearDown() {
+    this.server.stop(0);
+  }
+
+  @Test
+  public void shouldPostNdjsonBodiesBySizeAndLinger() throws IOException {
+    // Given
+    final ElasticsearchBulkTransport transport = transport(100, 0, false);
+    transport.open();
+
+    // When
+    transport.send(message("{\"response\":200}"));
+    transport.send(message("{\"response\":404}"));
+    transport.send(message("{\"response\":500}"));
+    transport.flush();
+    transport.close();
+
+    // Then
+    Assert.assertThat(bodies, Matchers.containsInAnyOrder(
+        "{\"index\":{}}\n{\"response\":200}\n{\"index\":{}}\n{\"response\":404}\n",
+        "{\"index\":{}}\n{\"response\":500}\n"
+    ));
+    Assert.assertThat(transport.getRequests(), Matchers.is(2L));
+    Assert.assertThat(transport.getIndexed(), Matchers.is(3L));
+  }
+
+  @Test
+  public void shouldHoldMessagesUntilLingerElapsed() throws IOException {
+    // Given
+    final ElasticsearchBulkTransport transport = transport(1 << 20, 60000, true);
+    transport.open();
+
+    // When
+    transport.send(message("{\"response\":200}"));
+    transport.flush();
+
+    // Then
+    Assert.assertThat(transport.getRequests(), Matchers.is(0L));
+
+    // When
+    transport.close();
+
+    // Then
+    Assert.assertThat(bodies, Matchers.contains("{\"index\":{}}\n{\"response\":200}\n"));
+    Assert.assertThat(contentEncodings, Matchers.contains("gzip"));
+  }
+
+  @Test
+  public void shouldRetryOnlyItemsRejectedForLoad() throws IOException {
+    // Given
+    synchronized (responses) {
+      responses.add("{\"took\":3,\"errors\":true,\"items\":["
+          + "{\"index\":{\"status\":201}},"
+          + "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}},"
+          + "{\"index\":{\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}}}"
+          + "]}");
+    }
+    final ElasticsearchBulkTransport transport = transport(1 << 20, 0, false);
+    transport.open();
+
+    // When
+    transport.send(message("{\"response\":200}"));
+    transport.send(message("{\"response\":503}"));
+    transport.send(message("{\"response\":\"bad\"}"));
+    transport.flush();
+    transport.close();
+
+    // Then
+    Assert.assertThat(bodies, Matchers.hasSize(2));
+    Assert.assertThat(bodies.get(1), Matchers.is("{\"index\":{}}\n{\"response\":503}\n"));
+    Assert.assertThat(transport.getStatistics(), Matchers.is("requests=2, indexed=2, retried=1, failed=1"));
+  }
+
+  @Test
+  public void shouldNotRetryRequestsRejectedForTheirContent() throws IOException {
+    // Given
+    synchronized (responses) {
+      responses.add("{\"error\":{\"type\":\"content_too_long\"},\"status\":413}");
+      statuses.add(413);
+      responses.add("{\"error\":{\"type\":\"es_rejected_execution_exception\"},\"status\":429}");
+      statuses.add(429);
+    }
+    final ElasticsearchBulkTransport transport = transport(20, 0, false);
+    transport.open();
+
+    // When
+    transport.send(message("{\"response\":200}"));
+    transport.flush();
+    transport.send(message("{\"response\":404}"));
+    transport.flush();
+    transport.close();
+
+    // Then
+    // XXX: only the request rejected with 429 is posted again
+    Assert.assertThat(bodies, Matchers.hasSize(3));
+    Assert.assertThat(transport.getStatistics(), Matchers.is("requests=3, indexed=1, retried=1, failed=1"));
+  }
+
+  @Test
+  public void shouldKeepTheIdsOfRetriedMessages() throws IOException {
+    // Given
+    synchronized (responses) {
+      responses.add("");
+      statuses.add(503);
+    }
+    final ElasticsearchBulkTransport transport = transport(1 << 20, 0, false);
+    transport.open();
+
+    // When
+    transport.send(message("{\"response\":200}"));
+    transport.send(message("{\"response\":404}"));
+    transport.flush();
+    transport.close();
+
+    // Then
+    // XXX: a retried request overwrites the documents Elasticsearch may have indexed already
+    Assert.assertThat(bodiesWithIds, Matchers.hasSize(2));
+    Assert.assertThat(bodiesWithIds.get(1), Matchers.is(bodiesWithIds.get(0)));
+    final String[] lines = bodiesWithIds.get(0).split("\n");
+    Assert.assertThat(lines[0].matches("\\{\"index\":" + DOCUMENT_ID + "\\}"), Matchers.is(true));
+    Assert.assertThat(lines[2].matches("\\{\"index\":" + DOCUMENT_ID + "\\}"), Matchers.is(true));
+    Assert.assertThat(lines[2], Matchers.not(lines[0]));
+  }
+
+  @Test
+  public void shouldReportTheOutcomeOfEveryRequest() throws IOException {
+    // Given
+    synchronized (responses) {
+      responses.add("{\"error\":{\"type\":\"es_rejected_execution_exception\"},\"status\":503}");
+      statuses.add(503);
+    }
+    final ElasticsearchBulkTransport transport = transport(1 << 20, 0, false);
+    final List<String> outcomes = Collections.synchronizedList(new ArrayList<String>());
+    Assert.assertThat(transport.reportDeliveries(new DeliveryListener() {
+      @Override
+      public void delivered() {
+        outcomes.add("delivered");
+      }
+
+      @Override
+      public void failed(String action, IOException e) {
+        outcomes.add(action + ": " + e.getMessage());
+      }
+    }), Matchers.is(true));
+    transport.open();
+
+    // When
+    transport.send(message("{\"response\":200}"));
+    transport.flush();
+    transport.close();
+
+    // Then
+    Assert.assertThat(outcomes, Matchers.contains(Matchers.startsWith("post bulk request: HTTP 503"),
+        Matchers.is("delivered")));
+  }
+
+  @Test
+  public void shouldOpenTheCircuitOfItsSenderWhileTheClusterIsDown() throws IOException, InterruptedException {
+    // Given
+    final ElasticsearchBulkTransport transport = transport(20, 0, false);
+    this.server.stop(0);
+    final MessageSender messageSender = new MessageSender("test", transport, 64, BufferBudget.unlimited(),
+        new CircuitBreaker("test", 3, 60000));
+    messageSender.open();
+
+    // When
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (messageSender.getCircuitBreaker().getOpened() == 0 && System.currentTimeMillis() < deadline) {
+      messageSender.submit(Lane.NORMAL, message("{\"response\":200}"));
+      Thread.sleep(10);
+    }
+
+    // Then
+    Assert.assertThat(messageSender.getCircuitBreaker().getOpened(), Matchers.is(1L));
+    Assert.assertThat(messageSender.submit(Lane.NORMAL, message("{\"response\":200}")), Matchers.is(false));
+    messageSender.close();
+    Assert.assertThat(transport.getIndexed(), Matchers.is(0L));
+  }
+
+  private ElasticsearchBulkTransport transport(int maxBatchBytes, long lingerMillis, boolean gzip) throws IOException {
+    final URL url = new URL("http", "127.0.0.1", this.server.getAddress().getPort(), "/access/_bulk");
+    return new ElasticsearchBulkTransport(url, maxBatchBytes, lingerMillis, gzip, 2, 3);
+  }
+
+  private static ByteBuffer message(String json) {
+    return ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,142 @@
+package org.apache.catalina.valves.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LaneQueueTest {
+
+  @Test
+  public void shouldClassifyByStatusAndLatency() {
+    Assert.assertThat(Lane.classify(500, 3, 1000), Matchers.is(Lane.HIGH));
+    Assert.assertThat(Lane.classify(200, 1500, 1000), Matchers.is(Lane.HIGH));
+    Assert.assertThat(Lane.classify(404, 3, 1000), Matchers.is(Lane.NORMAL));
+    Assert.assertThat(Lane.classify(200, 3, 1000), Matchers.is(Lane.LOW));
+    Assert.assertThat(Lane.classify(304, 3, 1000), Matchers.is(Lane.LOW));
+  }
+
+  @Test
+  public void shouldDrainHighestLaneFirst() {
+    // Given
+    final LaneQueue laneQueue = new LaneQueue(4);
+    laneQueue.offer(Lane.LOW, message("low"));
+    laneQueue.offer(Lane.NORMAL, message("normal"));
+    laneQueue.offer(Lane.HIGH, message("high"));
+
+    // When / Then
+    Assert.assertThat(pollString(laneQueue), Matchers.is("high"));
+    Assert.assertThat(pollString(laneQueue), Matchers.is("normal"));
+    Assert.assertThat(pollString(laneQueue), Matchers.is("low"));
+    Assert.assertThat(laneQueue.poll(), Matchers.nullValue());
+    Assert.assertThat(laneQueue.getSent(Lane.HIGH), Matchers.is(1L));
+  }
+
+  @Test
+  public void shouldShedOnlyFromLowerLanesWhenFull() {
+    // Given
+    final LaneQueue laneQueue = new LaneQueue(2);
+    laneQueue.offer(Lane.LOW, message("low-1"));
+    laneQueue.offer(Lane.HIGH, message("high-1"));
+
+    // When
+    final boolean highQueued = laneQueue.offer(Lane.HIGH, message("high-2"));
+    final boolean lowQueued = laneQueue.offer(Lane.LOW, message("low-2"));
+    final boolean thirdHighQueued = laneQueue.offer(Lane.HIGH, message("high-3"));
+
+    // Then
+    Assert.assertThat(highQueued, Matchers.is(true));
+    Assert.assertThat(lowQueued, Matchers.is(false));
+    Assert.assertThat(thirdHighQueued, Matchers.is(false));
+
+    Assert.assertThat(laneQueue.getShed(Lane.LOW), Matchers.is(1L));
+    Assert.assertThat(laneQueue.getDropped(Lane.LOW), Matchers.is(1L));
+    Assert.assertThat(laneQueue.getDropped(Lane.HIGH), Matchers.is(1L));
+    Assert.assertThat(laneQueue.getShed(Lane.HIGH), Matchers.is(0L));
+
+    Assert.assertThat(pollString(laneQueue), Matchers.is("high-1"));
+    Assert.assertThat(pollString(laneQueue), Matchers.is("high-2"));
+    Assert.assertThat(laneQueue.isEmpty(), Matchers.is(true));
+  }
+
+  @Test
+  public void shouldShedFromLowerLanesWhenBufferBudgetIsExhausted() {
+    // Given
+    final BufferBudget bufferBudget = new BufferBudget(1024);
+    final LaneQueue laneQueue = new LaneQueue(8, bufferBudget);
+    laneQueue.offer(Lane.LOW, message("low-1"));
+    laneQueue.offer(Lane.LOW, message("low-2"));
+
+    // When
+    final boolean highQueued = laneQueue.offer(Lane.HIGH, message("high-1"));
+    final boolean lowQueued = laneQueue.offer(Lane.LOW, message("low-3"));
+
+    // Then
+    Assert.assertThat(highQueued, Matchers.is(true));
+    Assert.assertThat(lowQueued, Matchers.is(false));
+    Assert.assertThat(laneQueue.getShed(Lane.LOW), Matchers.is(1L));
+    // XXX: every message is charged the 512 bytes of its slot
+    Assert.assertThat(bufferBudget.getReservedBytes(), Matchers.is(1024L));
+
+    Assert.assertThat(pollString(laneQueue), Matchers.is("high-1"));
+    Assert.assertThat(pollString(laneQueue), Matchers.is("low-2"));
+    Assert.assertThat(bufferBudget.getReservedBytes(), Matchers.is(0L));
+  }
+
+  @Test
+  public void shouldChargeAndDropTheBuffersOfLargeMessages() {
+    // Given
+    final BufferBudget bufferBudget = new BufferBudget(4096);
+    final LaneQueue laneQueue = new LaneQueue(2, bufferBudget);
+    final ByteBuffer large = ByteBuffer.wrap(new byte[3000]);
+
+    // When
+    final boolean largeQueued = laneQueue.offer(Lane.HIGH, large);
+    final boolean secondLargeQueued = laneQueue.offer(Lane.HIGH, large);
+
+    // Then
+    Assert.assertThat(largeQueued, Matchers.is(true));
+    Assert.assertThat(secondLargeQueued, Matchers.is(false));
+    Assert.assertThat(bufferBudget.getReservedBytes(), Matchers.is(3000L));
+
+    // When
+    final OutboundMessage slot = laneQueue.poll();
+    laneQueue.release(slot, true);
+
+    // Then
+    Assert.assertThat(bufferBudget.getReservedBytes(), Matchers.is(0L));
+    Assert.assertThat(slot.getCapacity(), Matchers.is(512));
+  }
+
+  @Test
+  public void shouldNotCountFailedMessagesAsSent() {
+    // Given
+    final BufferBudget bufferBudget = new BufferBudget(1024);
+    final LaneQueue laneQueue = new LaneQueue(4, bufferBudget);
+    laneQueue.offer(Lane.HIGH, message("high-1"));
+    laneQueue.offer(Lane.HIGH, message("high-2"));
+
+    // When
+    laneQueue.release(laneQueue.poll(), false);
+    laneQueue.release(laneQueue.poll(), true);
+
+    // Then
+    Assert.assertThat(laneQueue.getSent(Lane.HIGH), Matchers.is(1L));
+    Assert.assertThat(laneQueue.isEmpty(), Matchers.is(true));
+    Assert.assertThat(bufferBudget.getReservedBytes(), Matchers.is(0L));
+  }
+
+  private static ByteBuffer message(String message) {
+    return ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String pollString(LaneQueue laneQueue) {
+    final OutboundMessage slot = laneQueue.poll();
+    final ByteBuffer buffer = slot.getBuffer();
+    final String message = new String(buffer.array(), buffer.position(), buffer.remaining(),
+        StandardCharsets.UTF_8);
+    laneQueue.release(slot, true);
+    return message;
+  }
+}
@@ -0,0 +1,220 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RingFileTransportTest {
+
+  private File file;
+  private RingFileTransport ringFileTransport;
+  private RingFileReader ringFileReader;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("access", ".ring");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() {
+    if (ringFileReader != null) {
+      ringFileReader.close();
+    }
+    ringFileTransport.close();
+    file.delete();
+  }
+
+  @Test
+  public void shouldReadEveryMessageInOrderAcrossWraparounds() throws IOException {
+    // Given
+    ringFileTransport = new RingFileTransport(file, 4096);
+    ringFileTransport.open();
+    ringFileReader = new RingFileReader(file);
+    ringFileReader.open();
+
+    // When
+    int read = 0;
+    for (int i = 0; i < 2000; i++) {
+      ringFileTransport.send(message(i));
+      if (i % 10 == 9) {
+        for (byte[] message = ringFileReader.poll(); message != null; message = ringFileReader.poll()) {
+          Assert.assertThat(new String(message, StandardCharsets.UTF_8), Matchers.is(text(read++)));
+        }
+      }
+    }
+
+    // Then
+    Assert.assertThat(read, Matchers.is(2000));
+    Assert.assertThat(ringFileTransport.getWraps(), Matchers.greaterThan(5L));
+    Assert.assertThat(ringFileTransport.getReaderLag(), Matchers.is(0L));
+    Assert.assertThat(ringFileReader.getStatistics(), Matchers.is("records=2000, lapped=0, lostBytes=0, corrupt=0"));
+  }
+
+  @Test
+  public void shouldLoseTheOverwrittenFramesOfALappedReader() throws IOException {
+    // Given
+    ringFileTransport = new RingFileTransport(file, 1024);
+    ringFileTransport.open();
+    ringFileReader = new RingFileReader(file);
+    ringFileReader.open();
+
+    // When
+    for (int i = 0; i < 100; i++) {
+      ringFileTransport.send(message(i));
+    }
+
+    // Then
+    Assert.assertThat(ringFileTransport.getReaderLag(), Matchers.greaterThan(1024L));
+    Assert.assertThat(ringFileReader.poll(), Matchers.nullValue());
+    Assert.assertThat(ringFileReader.getLapped(), Matchers.is(1L));
+    Assert.assertThat(ringFileReader.getLostBytes(), Matchers.greaterThan(1024L));
+    Assert.assertThat(ringFileTransport.getReaderLag(), Matchers.is(0L));
+
+    // When
+    ringFileTransport.send(message(100));
+    ringFileTransport.send(message(101));
+
+    // Then
+    Assert.assertThat(new String(ringFileReader.poll(), StandardCharsets.UTF_8), Matchers.is(text(100)));
+    Assert.assertThat(new String(ringFileReader.poll(), StandardCharsets.UTF_8), Matchers.is(text(101)));
+    Assert.assertThat(ringFileReader.poll(), Matchers.nullValue());
+  }
+
+  @Test
+  public void shouldNeverReturnTornFramesToAConcurrentReader() throws Exception {
+    // Given
+    ringFileTransport = new RingFileTransport(file, 16384);
+    ringFileTransport.open();
+    ringFileReader = new RingFileReader(file);
+    ringFileReader.open();
+    final int count = 200000;
+    final AtomicReference<Throwable> writerFailure = new AtomicReference<Throwable>();
+    final Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < count; i++) {
+            ringFileTransport.send(message(i));
+            // XXX: bursts of more than the ring holds, the reader is lapped while it reads
+            if (i % 2000 == 1999) {
+              Thread.sleep(1);
+            }
+          }
+        } catch (Throwable e) {
+          writerFailure.set(e);
+        }
+      }
+    });
+
+    // When
+    writer.start();
+    int last = -1;
+    while (writer.isAlive()) {
+      last = verify(ringFileReader.poll(), last);
+    }
+    writer.join();
+    for (byte[] message = ringFileReader.poll(); message != null; message = ringFileReader.poll()) {
+      last = verify(message, last);
+    }
+    ringFileTransport.send(message(count));
+
+    // Then
+    Assert.assertThat(writerFailure.get(), Matchers.nullValue());
+    Assert.assertThat(ringFileReader.getRecords(), Matchers.greaterThan(0L));
+    Assert.assertThat(ringFileReader.getCorrupt(), Matchers.is(0L));
+    // XXX: whatever was lost, the reader continues with the next message
+    Assert.assertThat(new String(ringFileReader.poll(), StandardCharsets.UTF_8), Matchers.is(text(count)));
+    Assert.assertThat(ringFileTransport.getRecords(), Matchers.is((long) count + 1));
+  }
+
+  @Test
+  public void shouldContinueAtTheWriteCursorWhenReopened() throws IOException {
+    // Given
+    ringFileTransport = new RingFileTransport(file, 4096);
+    ringFileTransport.open();
+    ringFileTransport.send(message(0));
+    ringFileTransport.close();
+
+    // When
+    ringFileTransport = new RingFileTransport(file, 4096);
+    ringFileTransport.open();
+    ringFileTransport.send(message(1));
+    ringFileReader = new RingFileReader(file);
+    ringFileReader.open();
+
+    // Then
+    Assert.assertThat(new String(ringFileReader.poll(), StandardCharsets.UTF_8), Matchers.is(text(0)));
+    Assert.assertThat(new String(ringFileReader.poll(), StandardCharsets.UTF_8), Matchers.is(text(1)));
+    Assert.assertThat(ringFileTransport.getStatistics(), Matchers.startsWith("records=1, wraps=0, writeCursor="));
+  }
+
+  @Test
+  public void shouldRejectASecondWriter() throws IOException {
+    // Given
+    ringFileTransport = new RingFileTransport(file, 4096);
+    ringFileTransport.open();
+    final RingFileTransport secondWriter = new RingFileTransport(file, 8192);
+
+    // When
+    try {
+      secondWriter.open();
+      Assert.fail("Expected an IOException");
+    } catch (IOException e) {
+      // Then
+      Assert.assertThat(e.getMessage(), Matchers.endsWith("is written by another writer"));
+    }
+    Assert.assertThat(file.length(), Matchers.is(64L + 4096));
+
+    // When
+    ringFileTransport.close();
+    secondWriter.open();
+    secondWriter.close();
+
+    // Then
+    Assert.assertThat(file.length(), Matchers.is(64L + 8192));
+  }
+
+  @Test(expected = IOException.class)
+  public void shouldRejectMessagesLargerThanTheRing() throws IOException {
+    ringFileTransport = new RingFileTransport(file, 64);
+    ringFileTransport.open();
+    ringFileTransport.send(ByteBuffer.wrap(new byte[64]));
+  }
+
+  /**
+   * Assert the message is intact and follows the last one.
+   *
+   * @return the sequence of the message, the last one if there was none
+   */
+  private static int verify(byte[] message, int last) {
+    if (message == null) {
+      return last;
+    }
+    final String text = new String(message, StandardCharsets.UTF_8);
+    final int sequence = Integer.parseInt(text.substring(0, text.indexOf(' ')));
+    Assert.assertThat(text, Matchers.is(text(sequence)));
+    Assert.assertThat(sequence, Matchers.greaterThan(last));
+    return sequence;
+  }
+
+  private static ByteBuffer message(int i) {
+    return ByteBuffer.wrap(text(i).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String text(int i) {
+    final StringBuilder text = new StringBuilder().append(i).append(" GET /");
+    // XXX: frames of different lengths, so they wrap at different offsets
+    for (int j = 0; j < i % 13; j++) {
+      text.append((char) ('a' + j));
+    }
+    return text.toString();
+  }
+}
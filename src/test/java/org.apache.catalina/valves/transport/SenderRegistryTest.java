@@ -0,0 +1,67 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SenderRegistryTest {
+
+  private static final InetSocketAddress DESTINATION = new InetSocketAddress("127.0.0.1", 10514);
+  private static final InetSocketAddress OTHER_DESTINATION = new InetSocketAddress("127.0.0.1", 10515);
+
+  @Test
+  public void shouldShareOneSenderPerDestination() throws IOException {
+    // Given
+    final MessageSender first = SenderRegistry.acquire(new UdpTransport(DESTINATION), 16);
+    final MessageSender second = SenderRegistry.acquire(new UdpTransport(DESTINATION), 16);
+    final MessageSender other = SenderRegistry.acquire(new UdpTransport(OTHER_DESTINATION), 16);
+    final MessageSender synchronous = SenderRegistry.acquire(new UdpTransport(DESTINATION), 0);
+
+    try {
+      // Then
+      Assert.assertThat(second, Matchers.sameInstance(first));
+      Assert.assertThat(other, Matchers.not(Matchers.sameInstance(first)));
+      Assert.assertThat(synchronous, Matchers.not(Matchers.sameInstance(first)));
+      Assert.assertThat(SenderRegistry.getReferences(first), Matchers.is(2));
+    } finally {
+      SenderRegistry.release(other);
+      SenderRegistry.release(synchronous);
+    }
+
+    // When
+    SenderRegistry.release(first);
+
+    // Then
+    Assert.assertThat(SenderRegistry.getReferences(first), Matchers.is(1));
+    Assert.assertThat(first.getLaneQueue(), Matchers.notNullValue());
+
+    // When
+    SenderRegistry.release(second);
+
+    // Then
+    Assert.assertThat(SenderRegistry.getReferences(first), Matchers.is(0));
+    Assert.assertThat(SenderRegistry.acquire(new UdpTransport(DESTINATION), 16), Matchers.not(Matchers.sameInstance(first)));
+    SenderRegistry.release(SenderRegistry.acquire(new UdpTransport(DESTINATION), 16));
+  }
+
+  @Test
+  public void shouldNotShareSendersOfDifferentSettings() throws IOException {
+    // Given
+    final MessageSender plain = SenderRegistry.acquire(new UdpTransport(DESTINATION), 16);
+    final MessageSender batching = SenderRegistry.acquire(new BatchingUdpTransport(DESTINATION, 65536), 16);
+    final MessageSender smallBatching = SenderRegistry.acquire(new BatchingUdpTransport(DESTINATION, 1024), 16);
+
+    try {
+      // Then
+      Assert.assertThat(batching, Matchers.not(Matchers.sameInstance(plain)));
+      Assert.assertThat(smallBatching, Matchers.not(Matchers.sameInstance(batching)));
+      Assert.assertThat(batching.toString(), Matchers.is("udp://127.0.0.1:10514 [batchBytes=65536] (async)"));
+    } finally {
+      SenderRegistry.release(plain);
+      SenderRegistry.release(batching);
+      SenderRegistry.release(smallBatching);
+    }
+  }
+}
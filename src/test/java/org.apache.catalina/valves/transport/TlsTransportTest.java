@@ -0,0 +1,185 @@
+package org.apache.catalina.valves.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TlsTransportTest {
+
+  private static final String PASSWORD = "changeit";
+
+  private SSLServerSocket serverSocket;
+  private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+  private final List<Socket> accepted = new ArrayList<Socket>();
+  private TlsTransport tlsTransport;
+
+  @Before
+  public void setUp() throws IOException, GeneralSecurityException, URISyntaxException {
+    final java.security.KeyStore keyStore = java.security.KeyStore.getInstance("PKCS12");
+    try (InputStream in = getClass().getResourceAsStream("/tls/collector.p12")) {
+      keyStore.load(in, PASSWORD.toCharArray());
+    }
+    final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, PASSWORD.toCharArray());
+    final SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+    serverSocket = (SSLServerSocket) serverContext.getServerSocketFactory()
+        .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    final Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    tlsTransport = new TlsTransport(
+        new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort()),
+        TlsTransport.createSocketFactory(null, null, resource("/tls/truststore.p12"), PASSWORD));
+    tlsTransport.open();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    tlsTransport.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void shouldCoalesceFramedMessagesIntoRecords() throws IOException, InterruptedException {
+    // When
+    for (int i = 0; i < 100; i++) {
+      tlsTransport.send(message("<14>1 - localhost - - - - GET /" + i + " 200"));
+    }
+    tlsTransport.flush();
+
+    // Then
+    for (int i = 0; i < 100; i++) {
+      Assert.assertThat(received.poll(5, TimeUnit.SECONDS), Matchers.is("<14>1 - localhost - - - - GET /" + i + " 200"));
+    }
+    Assert.assertThat(tlsTransport.getRecords(), Matchers.is(1L));
+  }
+
+  @Test
+  public void shouldSplitRecordsAtTheRecordSize() throws IOException, InterruptedException {
+    // Given
+    final StringBuilder large = new StringBuilder();
+    while (large.length() < 10000) {
+      large.append("0123456789");
+    }
+
+    // When
+    tlsTransport.send(message(large.toString()));
+    tlsTransport.send(message(large.toString()));
+    tlsTransport.flush();
+
+    // Then
+    Assert.assertThat(received.poll(5, TimeUnit.SECONDS), Matchers.is(large.toString()));
+    Assert.assertThat(received.poll(5, TimeUnit.SECONDS), Matchers.is(large.toString()));
+    Assert.assertThat(tlsTransport.getRecords(), Matchers.is(2L));
+  }
+
+  @Test
+  public void shouldResumeTheSessionOnReconnect() throws IOException, InterruptedException {
+    // Given
+    tlsTransport.send(message("first"));
+    tlsTransport.flush();
+    Assert.assertThat(received.poll(5, TimeUnit.SECONDS), Matchers.is("first"));
+
+    // When
+    synchronized (accepted) {
+      for (Socket socket : accepted) {
+        socket.close();
+      }
+    }
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (tlsTransport.isConnected() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    tlsTransport.send(message("second"));
+    tlsTransport.flush();
+
+    // Then
+    Assert.assertThat(received.poll(5, TimeUnit.SECONDS), Matchers.is("second"));
+    Assert.assertThat(tlsTransport.getConnects(), Matchers.is(2L));
+    Assert.assertThat(tlsTransport.getResumptions(), Matchers.is(1L));
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        return;
+      }
+      synchronized (accepted) {
+        accepted.add(socket);
+      }
+      final Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          read(socket);
+        }
+      });
+      reader.setDaemon(true);
+      reader.start();
+    }
+  }
+
+  /**
+   * Read octet-counted frames, MSG-LEN SP SYSLOG-MSG.
+   */
+  private void read(Socket socket) {
+    try (InputStream in = socket.getInputStream()) {
+      while (true) {
+        int length = 0;
+        int read;
+        while ((read = in.read()) != ' ') {
+          if (read < 0) {
+            return;
+          }
+          length = length * 10 + read - '0';
+        }
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream(length);
+        for (int i = 0; i < length; i++) {
+          frame.write(in.read());
+        }
+        received.add(new String(frame.toByteArray(), StandardCharsets.UTF_8));
+      }
+    } catch (IOException e) {
+      // XXX: closed by the test
+    }
+  }
+
+  private static String resource(String name) throws URISyntaxException {
+    return new File(TlsTransportTest.class.getResource(name).toURI()).getPath();
+  }
+
+  private static ByteBuffer message(String message) {
+    return ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+  }
+}
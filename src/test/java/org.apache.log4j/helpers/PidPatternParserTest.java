@@ -0,0 +1,94 @@
+package org.apache.log4j.helpers;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.PidPatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PidPatternParserTest {
+
+  private static final String PATTERN = "%d{yyyy-MM-dd} [%H:%P] %-5p %c - %m (pid %P)%n";
+
+  private final LoggingEvent event =
+      new LoggingEvent(Logger.class.getName(), Logger.getLogger("test"), Level.WARN, "message", null);
+
+  @Test
+  public void shouldFormatLikeTheUnfusedLayout() {
+    // Given
+    final String expected = new PatternLayout(
+        PATTERN.replace("%P", PidPatternParser.PID).replace("%H", PidPatternParser.HOSTNAME)).format(event);
+
+    // When
+    final String formatted = new PidPatternLayout(PATTERN).format(event);
+
+    // Then
+    Assert.assertThat(formatted, Matchers.is(expected));
+  }
+
+  @Test
+  public void shouldFuseLiteralsWithTheProcessId() {
+    // When
+    final PatternConverter head = new PidPatternParser("[%P] %m - %P%n").parse();
+
+    // Then
+    // XXX: "[pid] ", %m and " - pid" with the line separator of %n
+    Assert.assertThat(length(head), Matchers.is(3));
+    Assert.assertThat(format(head), Matchers.is("[" + PidPatternParser.PID + "] message - " + PidPatternParser.PID
+        + System.getProperty("line.separator")));
+  }
+
+  @Test
+  public void shouldFuseTheHostNameWithTheProcessId() {
+    // When
+    final PatternConverter head = new PidPatternParser("%H/%P: %m").parse();
+
+    // Then
+    Assert.assertThat(length(head), Matchers.is(2));
+    Assert.assertThat(format(head), Matchers.is(PidPatternParser.HOSTNAME + "/" + PidPatternParser.PID + ": message"));
+  }
+
+  @Test
+  public void shouldFormatTheSameWhenTheLiteralConverterIsNotFound() {
+    // Given
+    final String pattern = "[%P%P] %m - %P%n";
+    final String expected = format(new PidPatternParser(pattern).parse());
+
+    // When
+    final PatternConverter head = new PidPatternParser(pattern).parse(null);
+
+    // Then
+    // XXX: only adjacent process ids are fused, "[", "] ", %m, " - ", %P and %n are left as they are
+    Assert.assertThat(length(head), Matchers.is(7));
+    Assert.assertThat(format(head), Matchers.is(expected));
+  }
+
+  @Test
+  public void shouldPadTheProcessId() {
+    // When
+    final String formatted = new PidPatternLayout("[%-12P|%12P]").format(event);
+
+    // Then
+    Assert.assertThat(formatted,
+        Matchers.is("[" + String.format("%-12s|%12s", PidPatternParser.PID, PidPatternParser.PID) + "]"));
+  }
+
+  private String format(PatternConverter head) {
+    final StringBuffer formatted = new StringBuffer();
+    for (PatternConverter pc = head; pc != null; pc = pc.next) {
+      pc.format(formatted, event);
+    }
+    return formatted.toString();
+  }
+
+  private static int length(PatternConverter head) {
+    int length = 0;
+    for (PatternConverter pc = head; pc != null; pc = pc.next) {
+      length++;
+    }
+    return length;
+  }
+}